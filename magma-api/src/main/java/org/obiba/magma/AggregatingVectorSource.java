@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.magma;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.NotNull;
+
+/**
+ * Implemented by {@link VectorSource}s that can count their values where they are stored (with a {@code GROUP BY}
+ * query for example), so that statistics over all the entities of a table do not require reading every value. As the
+ * values are counted for all the entities of {@link #getValueTable()}, they must not be used for a table wrapping it
+ * (a view or a batch for example), that may have fewer entities.
+ */
+public interface AggregatingVectorSource extends VectorSource {
+
+  /**
+   * Returns the table of which the values are counted.
+   */
+  @NotNull
+  ValueTable getValueTable();
+
+  /**
+   * Returns the number of entities of the table having each distinct value. Null values may be counted or not: the
+   * entities that are not counted have a null value.
+   *
+   * @return the frequencies of the values, or null if the values cannot be counted where they are stored
+   */
+  @Nullable
+  Map<Value, Long> getValueFrequencies();
+
+}
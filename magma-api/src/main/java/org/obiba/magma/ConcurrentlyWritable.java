@@ -0,0 +1,15 @@
+package org.obiba.magma;
+
+/**
+ * Implemented by the {@link Datasource}s whose tables may be written by several {@link ValueTableWriter} at the same
+ * time. Datasources not implementing it are written by a single writer.
+ */
+public interface ConcurrentlyWritable {
+
+  /**
+   * Returns true if value sets of distinct entities can be written at the same time by several {@link ValueTableWriter}
+   * of the same table, each one being used by a single thread.
+   */
+  boolean canWriteConcurrently();
+
+}
@@ -0,0 +1,32 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.magma;
+
+import java.util.List;
+import java.util.SortedSet;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Implemented by {@link ValueTable}s that can read the vectors of several of their variables in a single pass, instead
+ * of one pass per {@link VectorSource}.
+ */
+public interface MultipleVectorSource {
+
+  /**
+   * Returns the values of some variables for some entities: one list per entity, in the order of the entities, with
+   * the values in the order of the variables.
+   *
+   * @throws NoSuchVariableException if a variable is not a variable of this table
+   */
+  @NotNull
+  Iterable<List<Value>> getValues(@NotNull SortedSet<VariableEntity> entities, @NotNull List<Variable> variables);
+
+}
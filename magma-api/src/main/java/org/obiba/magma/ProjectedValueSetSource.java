@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.magma;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Implemented by {@link ValueTable}s that can load only the values of some of their variables when reading a
+ * {@link ValueSet}, instead of all its values.
+ */
+public interface ProjectedValueSetSource {
+
+  /**
+   * Returns the value set of an entity, that is expected to be read for the given variables. The values of other
+   * variables can still be read, at a higher cost.
+   *
+   * @throws NoSuchValueSetException if the table has no value set for this entity
+   * @throws NoSuchVariableException if a variable is not a variable of this table
+   */
+  @NotNull
+  ValueSet getValueSet(@NotNull VariableEntity entity, @NotNull Iterable<Variable> variables)
+      throws NoSuchValueSetException;
+
+}
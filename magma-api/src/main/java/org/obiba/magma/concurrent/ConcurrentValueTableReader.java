@@ -2,13 +2,16 @@ package org.obiba.magma.concurrent;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
@@ -16,18 +19,43 @@ import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.support.VectorSources;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-
+import com.google.common.collect.Maps;
+
+/**
+ * Reads the values of a {@link ValueTable} using several concurrent readers and hands them over to a single
+ * {@link ConcurrentReaderCallback}. Readers and callback are connected by a bounded queue: readers block when the
+ * callback is slower than them and the calling thread blocks (without spinning) while waiting for values. Each reader
+ * signals the end of its stream to the callback side, so that reading is over once all of them did.
+ * <p/>
+ * Values are delivered in the order in which they were read ({@link DeliveryMode#UNORDERED}, the default) or in the
+ * order of the entities to read ({@link DeliveryMode#ORDERED}).
+ */
 @SuppressWarnings("UnusedDeclaration")
 public class ConcurrentValueTableReader {
 
   private static final Logger log = LoggerFactory.getLogger(ConcurrentValueTableReader.class);
 
+  private static final int DEFAULT_QUEUE_CAPACITY = 150;
+
+  public enum DeliveryMode {
+    /**
+     * Values are delivered as soon as they are read.
+     */
+    UNORDERED,
+
+    /**
+     * Values are delivered in the order of the entities to read.
+     */
+    ORDERED
+  }
+
   private boolean ignoreReadErrors = false;
 
   private ThreadFactory threadFactory;
@@ -36,6 +64,12 @@ public class ConcurrentValueTableReader {
 
   private int nbConcurrentReaders = Runtime.getRuntime().availableProcessors() * 2;
 
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+  private DeliveryMode deliveryMode = DeliveryMode.UNORDERED;
+
+  private int chunkSize = 1;
+
   private ValueTable valueTable;
 
   private Iterable<Variable> variablesFilter;
@@ -44,8 +78,6 @@ public class ConcurrentValueTableReader {
 
   private Variable[] variables;
 
-  private BlockingQueue<VariableEntityValues> writeQueue;
-
   private ConcurrentValueTableReader() {
 
   }
@@ -63,15 +95,12 @@ public class ConcurrentValueTableReader {
     List<VariableEntity> entities = ImmutableList
         .copyOf(entitiesFilter == null ? valueTable.getVariableEntities() : entitiesFilter);
 
-    // A queue containing all entities to read the values for.
-    // Once this is empty, and all readers are done, then  reading is over.
-    BlockingQueue<VariableEntity> readQueue = new LinkedBlockingDeque<>(entities);
-    writeQueue = new LinkedBlockingDeque<>();
+    ReadContext context = new ReadContext(entities);
     try {
       callback.onBegin(entities, variables);
       List<Future<?>> readers = entities.isEmpty()
           ? new ArrayList<Future<?>>()
-          : concurrentRead(executorService, variableValueSources, readQueue);
+          : concurrentRead(executorService, variableValueSources, context);
       callback.onComplete();
       waitForReaders(readers);
     } finally {
@@ -80,47 +109,63 @@ public class ConcurrentValueTableReader {
   }
 
   private List<Future<?>> concurrentRead(ExecutorService executorService, VariableValueSource[] variableValueSources,
-      BlockingQueue<VariableEntity> readQueue) {
+      ReadContext context) {
     List<Future<?>> readers = Lists.newArrayList();
     for(int i = 0; i < nbConcurrentReaders; i++) {
-      readers.add(executorService.submit(new ConcurrentValueSetReader(variableValueSources, readQueue, writeQueue)));
+      readers.add(executorService.submit(new ConcurrentValueSetReader(variableValueSources, context)));
     }
-    while(!isReadCompleted(readers)) {
-      flushQueue();
+    try {
+      deliver(context);
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      // unblock readers that may be waiting on the queue or on the ordering window
+      if(context.hasFailed() || Thread.currentThread().isInterrupted()) executorService.shutdownNow();
     }
-    // Flush remaining values if any
-    // This is necessary due to a race condition between isReadComplete() and readers appending to the write queue
-    flushQueue();
     return readers;
   }
 
-  private VariableValueSource[] getVariableValueSources() {
-    VariableValueSource[] variableValueSources = new VariableValueSource[variables.length];
-    for(int i = 0; i < variables.length; i++) {
-      variableValueSources[i] = valueTable.getVariableValueSource(variables[i].getName());
+  /**
+   * Takes values from the queue and passes them to the callback until every reader has signalled the end of its
+   * stream, or one of them failed.
+   */
+  private void deliver(ReadContext context) throws InterruptedException {
+    int completedReaders = 0;
+    while(completedReaders < nbConcurrentReaders && !context.hasFailed()) {
+      VariableEntityValues values = context.writeQueue.take();
+      if(values == VariableEntityValues.END_OF_STREAM) {
+        completedReaders++;
+      } else if(deliveryMode == DeliveryMode.ORDERED) {
+        context.pending.put(values.getIndex(), values);
+        VariableEntityValues next;
+        while((next = context.pending.remove(context.nextIndex)) != null) {
+          onValues(next);
+          context.nextIndex++;
+          // the whole chunk was delivered
+          if(context.nextIndex % chunkSize == 0 || context.nextIndex == context.entities.size()) {
+            context.window.release();
+          }
+        }
+      } else {
+        onValues(values);
+      }
     }
-    return variableValueSources;
   }
 
-  private void flushQueue() {
-    VariableEntityValues values = null;
-    while((values = writeQueue.poll()) != null) {
+  private void onValues(VariableEntityValues values) {
+    // skipped entities carry no values
+    if(values.getValues() != null) {
       callback.onValues(values.getEntity(), variables, values.getValues());
     }
   }
 
-  /**
-   * Returns true when all readers have finished submitting to the writeQueue. false otherwise.
-   *
-   * @return
-   */
-  private boolean isReadCompleted(Iterable<Future<?>> readers) {
-    for(Future<?> reader : readers) {
-      if(!reader.isDone()) {
-        return false;
-      }
+  private VariableValueSource[] getVariableValueSources() {
+    VariableValueSource[] variableValueSources = new VariableValueSource[variables.length];
+    for(int i = 0; i < variables.length; i++) {
+      variableValueSources[i] = valueTable.getVariableValueSource(variables[i].getName());
     }
-    return true;
+    return variableValueSources;
   }
 
   private void waitForReaders(Iterable<Future<?>> readers) {
@@ -135,32 +180,74 @@ public class ConcurrentValueTableReader {
           if(cause instanceof RuntimeException) {
             throw (RuntimeException) cause;
           }
+          if(cause instanceof Error) {
+            throw (Error) cause;
+          }
         }
         throw new RuntimeException(cause);
       }
     }
   }
 
-  private VariableValueSource[] prepareSources(
-      @SuppressWarnings("ParameterHidesMemberVariable") Variable... variables) {
-    VariableValueSource[] sources = new VariableValueSource[variables.length];
-    for(int i = 0; i < variables.length; i++) {
-      sources[i] = valueTable.getVariableValueSource(variables[i].getName());
+  /**
+   * State shared by the readers and the delivering thread.
+   */
+  private class ReadContext {
+
+    private final List<VariableEntity> entities;
+
+    /**
+     * Index of the first entity of the next chunk to be claimed by a reader.
+     */
+    private final AtomicInteger nextToRead = new AtomicInteger();
+
+    private final BlockingQueue<VariableEntityValues> writeQueue = new LinkedBlockingQueue<>(queueCapacity);
+
+    /**
+     * In ordered mode, limits the number of chunks claimed by readers and not yet delivered, which bounds the size of
+     * the pending map.
+     */
+    private final Semaphore window = new Semaphore(Math.max(nbConcurrentReaders, queueCapacity / chunkSize));
+
+    /**
+     * In ordered mode, values read ahead of the next entity to deliver, by entity index. Only accessed by the
+     * delivering thread.
+     */
+    private final Map<Integer, VariableEntityValues> pending = Maps.newHashMap();
+
+    private int nextIndex = 0;
+
+    private volatile boolean failed = false;
+
+    private ReadContext(List<VariableEntity> entities) {
+      this.entities = entities;
+    }
+
+    boolean hasFailed() {
+      return failed;
     }
-    return sources;
   }
 
   private static class VariableEntityValues {
 
+    private static final VariableEntityValues END_OF_STREAM = new VariableEntityValues(-1, null);
+
+    private final int index;
+
     private final VariableEntity entity;
 
     private final Value[] values;
 
-    private VariableEntityValues(VariableEntity entity, Value... values) {
+    private VariableEntityValues(int index, VariableEntity entity, Value... values) {
+      this.index = index;
       this.entity = entity;
       this.values = values;
     }
 
+    public int getIndex() {
+      return index;
+    }
+
     public VariableEntity getEntity() {
       return entity;
     }
@@ -175,30 +262,110 @@ public class ConcurrentValueTableReader {
 
     private final VariableValueSource[] sources;
 
-    private final BlockingQueue<VariableEntity> readQueue;
+    private final ReadContext context;
 
-    private final BlockingQueue<VariableEntityValues> writeQueue;
+    /**
+     * True when chunks are read with one {@link org.obiba.magma.VectorSource} read per variable.
+     */
+    private final boolean vectorRead;
 
-    private ConcurrentValueSetReader(VariableValueSource[] sources, BlockingQueue<VariableEntity> readQueue,
-        BlockingQueue<VariableEntityValues> writeQueue) {
+    private ConcurrentValueSetReader(VariableValueSource[] sources, ReadContext context) {
       this.sources = sources;
-      this.readQueue = readQueue;
-      this.writeQueue = writeQueue;
+      this.context = context;
+      vectorRead = chunkSize > 1 && VectorSources.supportVectorSource(sources);
     }
 
     @Override
     public void run() {
       try {
-        VariableEntity entity = readQueue.poll();
-        while(entity != null && !callback.isCancelled()) {
-          if(valueTable.hasValueSet(entity)) {
-            log.trace("Read entity {}", entity.getIdentifier());
-            writeQueue.put(new VariableEntityValues(entity, readValues(entity)));
+        int start;
+        while((start = claim()) >= 0) {
+          int end = Math.min(start + chunkSize, context.entities.size());
+          if(vectorRead) {
+            readChunk(start, end);
+          } else {
+            for(int index = start; index < end; index++) {
+              readEntity(index);
+            }
           }
-          entity = readQueue.poll();
         }
       } catch(InterruptedException e) {
-        // do nothing
+        context.failed = true;
+        Thread.currentThread().interrupt();
+      } catch(RuntimeException | Error e) {
+        context.failed = true;
+        throw e;
+      } finally {
+        signalEndOfStream();
+      }
+    }
+
+    /**
+     * Enqueues the end of this reader's stream, whatever the way it ended, so that the delivering thread never waits
+     * for it forever. On failure, the delivering thread stops as soon as it takes anything from the queue, so the
+     * marker is only offered.
+     */
+    private void signalEndOfStream() {
+      if(!context.hasFailed()) {
+        try {
+          context.writeQueue.put(VariableEntityValues.END_OF_STREAM);
+          return;
+        } catch(InterruptedException e) {
+          context.failed = true;
+          Thread.currentThread().interrupt();
+        }
+      }
+      context.writeQueue.offer(VariableEntityValues.END_OF_STREAM);
+    }
+
+    /**
+     * Returns the index of the first entity of the next chunk to read or -1 when there is nothing left to read.
+     */
+    private int claim() throws InterruptedException {
+      if(callback.isCancelled() || context.hasFailed()) return -1;
+      if(deliveryMode == DeliveryMode.ORDERED) context.window.acquire();
+      int index = context.nextToRead.getAndAdd(chunkSize);
+      if(index < context.entities.size()) return index;
+      // nothing left: give the permit back to the readers still waiting for one
+      if(deliveryMode == DeliveryMode.ORDERED) context.window.release();
+      return -1;
+    }
+
+    private void readEntity(int index) throws InterruptedException {
+      VariableEntity entity = context.entities.get(index);
+      if(valueTable.hasValueSet(entity)) {
+        log.trace("Read entity {}", entity.getIdentifier());
+        context.writeQueue.put(new VariableEntityValues(index, entity, readValues(entity)));
+      } else {
+        skip(index, entity);
+      }
+    }
+
+    private void readChunk(int start, int end) throws InterruptedException {
+      List<Integer> indices = Lists.newArrayListWithCapacity(end - start);
+      List<VariableEntity> entities = Lists.newArrayListWithCapacity(end - start);
+      for(int index = start; index < end; index++) {
+        VariableEntity entity = context.entities.get(index);
+        if(valueTable.hasValueSet(entity)) {
+          indices.add(index);
+          entities.add(entity);
+        } else {
+          skip(index, entity);
+        }
+      }
+      if(entities.isEmpty()) return;
+
+      log.trace("Read chunk of {} entities from {}", entities.size(), entities.get(0).getIdentifier());
+      Value[][] values = VectorSources.readValues(sources, entities, ignoreReadErrors);
+      for(int i = 0; i < entities.size(); i++) {
+        context.writeQueue.put(new VariableEntityValues(indices.get(i), entities.get(i), values[i]));
+      }
+    }
+
+    private void skip(int index, VariableEntity entity) throws InterruptedException {
+      // skipped entities are only queued to preserve the ordering
+      if(deliveryMode == DeliveryMode.ORDERED) {
+        context.writeQueue.put(new VariableEntityValues(index, entity, (Value[]) null));
       }
     }
 
@@ -299,6 +466,38 @@ public class ConcurrentValueTableReader {
       return this;
     }
 
+    /**
+     * Maximum number of read values waiting to be passed to the callback. Readers block when it is reached.
+     */
+    public Builder withQueueCapacity(int capacity) {
+      if(capacity < 1) throw new IllegalArgumentException("queue capacity must be positive");
+      reader.queueCapacity = capacity;
+      return this;
+    }
+
+    /**
+     * Number of contiguous entities claimed at once by a reader. When greater than one and all the variables support
+     * {@link org.obiba.magma.VectorSource}, the values of a chunk are read with one vector read per variable instead of
+     * one read per entity and per variable.
+     */
+    public Builder withChunkSize(int size) {
+      if(size < 1) throw new IllegalArgumentException("chunk size must be positive");
+      reader.chunkSize = size;
+      return this;
+    }
+
+    public Builder withDeliveryMode(DeliveryMode mode) {
+      reader.deliveryMode = mode;
+      return this;
+    }
+
+    /**
+     * Values will be passed to the callback in the order of the entities to read.
+     */
+    public Builder ordered() {
+      return withDeliveryMode(DeliveryMode.ORDERED);
+    }
+
     public Builder ignoreReadErrors() {
       reader.ignoreReadErrors = true;
       return this;
@@ -16,6 +16,7 @@ import java.util.Set;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Attribute;
+import org.obiba.magma.ConcurrentlyWritable;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.NoSuchAttributeException;
 import org.obiba.magma.NoSuchValueTableException;
@@ -28,7 +29,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 
-public abstract class AbstractDatasourceWrapper implements Datasource {
+public abstract class AbstractDatasourceWrapper implements Datasource, ConcurrentlyWritable {
 
   private final Datasource wrapped;
 
@@ -87,6 +88,12 @@ public abstract class AbstractDatasourceWrapper implements Datasource {
     return getWrappedDatasource().getValueTables();
   }
 
+  @Override
+  public boolean canWriteConcurrently() {
+    return getWrappedDatasource() instanceof ConcurrentlyWritable &&
+        ((ConcurrentlyWritable) getWrappedDatasource()).canWriteConcurrently();
+  }
+
   @Override
   public boolean canDropTable(String name) {
     return getWrappedDatasource().canDropTable(name);
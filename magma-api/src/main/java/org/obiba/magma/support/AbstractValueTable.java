@@ -39,7 +39,7 @@ public abstract class AbstractValueTable implements ValueTable, Initialisable {
   @NotNull
   protected String name;
 
-  private final Map<String, VariableValueSource> sources = new LinkedHashMap<>();
+  private volatile Map<String, VariableValueSource> sources = new LinkedHashMap<>();
 
   private VariableEntityProvider variableEntityProvider;
 
@@ -209,6 +209,17 @@ public abstract class AbstractValueTable implements ValueTable, Initialisable {
     sources.clear();
   }
 
+  /**
+   * Replaces all the sources of this table at once.
+   */
+  protected void setVariableValueSources(Collection<VariableValueSource> sourcesToSet) {
+    Map<String, VariableValueSource> newSources = new LinkedHashMap<>();
+    for(VariableValueSource variableValueSource : sourcesToSet) {
+      newSources.put(variableValueSource.getName(), variableValueSource);
+    }
+    sources = newSources;
+  }
+
   @Override
   public boolean isView() {
     return false;
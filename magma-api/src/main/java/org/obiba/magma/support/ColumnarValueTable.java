@@ -0,0 +1,533 @@
+package org.obiba.magma.support;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.AbstractVariableValueSource;
+import org.obiba.magma.NoSuchValueSetException;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.TimestampsBean;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.VectorSource;
+import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * An in-memory, read-only snapshot of a {@link ValueTable} where the values of each variable are stored in a column
+ * of primitives: {@code long[]} for integers, {@code double[]} for decimals, {@code boolean[]} for booleans and
+ * dictionary-encoded {@code int[]} for texts and other atomic types. Nulls are tracked in a bitmap. {@code Value}
+ * instances are only created when they are requested, and all variables support {@link VectorSource}.
+ * <p/>
+ * The snapshot is keyed on the last update timestamp of the source table: {@link #refresh()} re-materializes the
+ * columns only when the source table was modified since the snapshot was taken. Value sets timestamps are those of
+ * the snapshot.
+ */
+public class ColumnarValueTable extends AbstractValueTable {
+
+  private static final Logger log = LoggerFactory.getLogger(ColumnarValueTable.class);
+
+  @NotNull
+  private final ValueTable source;
+
+  private volatile Snapshot snapshot;
+
+  public ColumnarValueTable(@NotNull ValueTable source) {
+    super(source.getDatasource(), source.getName());
+    this.source = source;
+    setVariableEntityProvider(new AbstractVariableEntityProvider(source.getEntityType()) {
+      @NotNull
+      @Override
+      public Set<VariableEntity> getVariableEntities() {
+        return getSnapshot().entities;
+      }
+    });
+  }
+
+  @Override
+  public void initialise() {
+    refresh();
+    super.initialise();
+  }
+
+  /**
+   * Materializes the source table again if it was updated since the current snapshot was taken.
+   *
+   * @return true if a new snapshot was taken
+   */
+  public synchronized boolean refresh() {
+    Value lastUpdate = source.getTimestamps().getLastUpdate();
+    if(snapshot != null && snapshot.isTakenAt(lastUpdate)) return false;
+    Snapshot taken = materialize(lastUpdate);
+    List<VariableValueSource> columnSources = Lists.newArrayListWithCapacity(taken.variables.size());
+    for(Variable variable : taken.variables) {
+      columnSources.add(new ColumnVariableValueSource(variable, taken));
+    }
+    snapshot = taken;
+    // readers see either the previous sources or the new ones, never an empty table
+    setVariableValueSources(columnSources);
+    return true;
+  }
+
+  /**
+   * Returns true if the source table was not updated since the snapshot was taken.
+   */
+  public boolean isUpToDate() {
+    Snapshot current = snapshot;
+    return current != null && current.isTakenAt(source.getTimestamps().getLastUpdate());
+  }
+
+  @NotNull
+  public ValueTable getSourceTable() {
+    return source;
+  }
+
+  @Override
+  public String getEntityType() {
+    return source.getEntityType();
+  }
+
+  @Override
+  public boolean hasValueSet(VariableEntity entity) {
+    return getSnapshot().rows.containsKey(entity);
+  }
+
+  @Override
+  public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
+    if(!hasValueSet(entity)) throw new NoSuchValueSetException(this, entity);
+    return new ValueSetBean(this, entity);
+  }
+
+  @Override
+  public Timestamps getValueSetTimestamps(VariableEntity entity) throws NoSuchValueSetException {
+    if(!hasValueSet(entity)) throw new NoSuchValueSetException(this, entity);
+    return getTimestamps();
+  }
+
+  @NotNull
+  @Override
+  public Timestamps getTimestamps() {
+    Snapshot current = getSnapshot();
+    return new TimestampsBean(current.created, current.lastUpdate);
+  }
+
+  @Override
+  public int getVariableEntityCount() {
+    return getSnapshot().entities.size();
+  }
+
+  @NotNull
+  private Snapshot getSnapshot() {
+    Snapshot current = snapshot;
+    if(current == null) throw new IllegalStateException("Table " + getName() + " is not initialised");
+    return current;
+  }
+
+  private Snapshot materialize(Value lastUpdate) {
+    log.debug("Materializing columnar snapshot of table {}", source.getTableReference());
+    SortedSet<VariableEntity> entities = new TreeSet<>(source.getVariableEntities());
+    Map<VariableEntity, Integer> rows = Maps.newHashMapWithExpectedSize(entities.size());
+    List<VariableEntity> orderedEntities = new ArrayList<>(entities);
+    for(int row = 0; row < orderedEntities.size(); row++) {
+      rows.put(orderedEntities.get(row), row);
+    }
+
+    List<Variable> variables = Lists.newArrayList(source.getVariables());
+    Column[] columns = new Column[variables.size()];
+    VariableValueSource[] sources = new VariableValueSource[variables.size()];
+    // variables that can only be read value set by value set
+    List<Integer> pending = Lists.newArrayList();
+    for(int i = 0; i < columns.length; i++) {
+      Variable variable = variables.get(i);
+      columns[i] = Column.forVariable(variable, entities.size());
+      sources[i] = source.getVariableValueSource(variable.getName());
+      if(sources[i].supportVectorSource()) {
+        int row = 0;
+        for(Value value : sources[i].asVectorSource().getValues(entities)) {
+          columns[i] = columns[i].set(row++, value);
+        }
+      } else {
+        pending.add(i);
+      }
+    }
+
+    if(!pending.isEmpty()) {
+      for(int row = 0; row < orderedEntities.size(); row++) {
+        ValueSet valueSet = source.getValueSet(orderedEntities.get(row));
+        for(int i : pending) {
+          columns[i] = columns[i].set(row, sources[i].getValue(valueSet));
+        }
+      }
+    }
+
+    Map<String, Column> columnsByName = Maps.newHashMap();
+    for(int i = 0; i < columns.length; i++) {
+      columnsByName.put(variables.get(i).getName(), columns[i]);
+    }
+    return new Snapshot(Collections.unmodifiableSortedSet(entities), rows, variables, columnsByName,
+        source.getTimestamps().getCreated(), lastUpdate);
+  }
+
+  private static class Snapshot {
+
+    private final Set<VariableEntity> entities;
+
+    private final Map<VariableEntity, Integer> rows;
+
+    private final List<Variable> variables;
+
+    private final Map<String, Column> columns;
+
+    private final Value created;
+
+    private final Value lastUpdate;
+
+    @SuppressWarnings("ParameterHidesMemberVariable")
+    private Snapshot(Set<VariableEntity> entities, Map<VariableEntity, Integer> rows, List<Variable> variables,
+        Map<String, Column> columns, Value created, Value lastUpdate) {
+      this.entities = entities;
+      this.rows = rows;
+      this.variables = variables;
+      this.columns = columns;
+      this.created = created;
+      this.lastUpdate = lastUpdate;
+    }
+
+    private boolean isTakenAt(Value updated) {
+      return lastUpdate.isNull() ? updated.isNull() : !updated.isNull() && lastUpdate.equals(updated);
+    }
+  }
+
+  /**
+   * Reads the column of a variable in the snapshot it was created for, so that a source obtained before a refresh
+   * keeps reading consistent values.
+   */
+  private class ColumnVariableValueSource extends AbstractVariableValueSource implements VectorSource {
+
+    private final Variable variable;
+
+    private final Snapshot snapshot;
+
+    @SuppressWarnings("ParameterHidesMemberVariable")
+    private ColumnVariableValueSource(Variable variable, Snapshot snapshot) {
+      this.variable = variable;
+      this.snapshot = snapshot;
+    }
+
+    @NotNull
+    @Override
+    public Variable getVariable() {
+      return variable;
+    }
+
+    @NotNull
+    @Override
+    public ValueType getValueType() {
+      return variable.getValueType();
+    }
+
+    @NotNull
+    @Override
+    public Value getValue(ValueSet valueSet) {
+      Integer row = snapshot.rows.get(valueSet.getVariableEntity());
+      if(row == null) throw new NoSuchValueSetException(ColumnarValueTable.this, valueSet.getVariableEntity());
+      return getColumn().get(row);
+    }
+
+    @Override
+    public boolean supportVectorSource() {
+      return true;
+    }
+
+    @NotNull
+    @Override
+    public VectorSource asVectorSource() {
+      return this;
+    }
+
+    @Override
+    public Iterable<Value> getValues(final SortedSet<VariableEntity> entities) {
+      final Column column = getColumn();
+      return new Iterable<Value>() {
+        @Override
+        public Iterator<Value> iterator() {
+          final Iterator<VariableEntity> entitiesIterator = entities.iterator();
+          return new Iterator<Value>() {
+            @Override
+            public boolean hasNext() {
+              return entitiesIterator.hasNext();
+            }
+
+            @Override
+            public Value next() {
+              if(!hasNext()) throw new NoSuchElementException();
+              Integer row = snapshot.rows.get(entitiesIterator.next());
+              return row == null ? column.nullValue() : column.get(row);
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+      };
+    }
+
+    private Column getColumn() {
+      Column column = snapshot.columns.get(variable.getName());
+      if(column == null) throw new IllegalStateException("No column for variable " + variable.getName());
+      return column;
+    }
+  }
+
+  //
+  // Columns
+  //
+
+  /**
+   * Values of a variable, one per row. A set bit in the null bitmap indicates a null value at that row.
+   */
+  private abstract static class Column {
+
+    protected final ValueType valueType;
+
+    protected final boolean repeatable;
+
+    protected final BitSet nulls;
+
+    protected final int size;
+
+    protected Column(ValueType valueType, boolean repeatable, int size) {
+      this.valueType = valueType;
+      this.repeatable = repeatable;
+      this.size = size;
+      nulls = new BitSet(size);
+      nulls.set(0, size);
+    }
+
+    static Column forVariable(Variable variable, int size) {
+      ValueType valueType = variable.getValueType();
+      if(variable.isRepeatable() || valueType.isBinary() || valueType.isGeo()) {
+        return new ValueColumn(valueType, variable.isRepeatable(), size);
+      }
+      if(valueType == IntegerType.get()) return new LongColumn(valueType, size);
+      if(valueType == DecimalType.get()) return new DoubleColumn(valueType, size);
+      if(valueType == BooleanType.get()) return new BooleanColumn(valueType, size);
+      return new DictionaryColumn(valueType, size);
+    }
+
+    Value nullValue() {
+      return repeatable ? valueType.nullSequence() : valueType.nullValue();
+    }
+
+    Value get(int row) {
+      return nulls.get(row) ? nullValue() : getNonNull(row);
+    }
+
+    /**
+     * Stores the value at the given row. Returns the column in which the value was stored.
+     */
+    abstract Column set(int row, Value value);
+
+    abstract Value getNonNull(int row);
+
+  }
+
+  /**
+   * Column of primitives or of values of the variable's value type. A value it cannot hold is stored in a
+   * {@link ValueColumn} copy of this column.
+   */
+  private abstract static class TypedColumn extends Column {
+
+    protected TypedColumn(ValueType valueType, int size) {
+      super(valueType, false, size);
+    }
+
+    @Override
+    Column set(int row, Value value) {
+      if(value.isNull() && !value.isSequence()) return this;
+      if(value.isSequence() || !accepts(value.getValue())) {
+        return toValueColumn().set(row, value);
+      }
+      nulls.clear(row);
+      setNonNull(row, value.getValue());
+      return this;
+    }
+
+    private Column toValueColumn() {
+      ValueColumn column = new ValueColumn(valueType, repeatable, size);
+      for(int row = nulls.nextClearBit(0); row >= 0 && row < size; row = nulls.nextClearBit(row + 1)) {
+        column.set(row, getNonNull(row));
+      }
+      return column;
+    }
+
+    abstract boolean accepts(Object object);
+
+    abstract void setNonNull(int row, Object object);
+
+  }
+
+  private static class LongColumn extends TypedColumn {
+
+    private final long[] values;
+
+    private LongColumn(ValueType valueType, int size) {
+      super(valueType, size);
+      values = new long[size];
+    }
+
+    @Override
+    boolean accepts(Object object) {
+      return object instanceof Long;
+    }
+
+    @Override
+    Value getNonNull(int row) {
+      return ValueType.Factory.newValue(valueType, values[row]);
+    }
+
+    @Override
+    void setNonNull(int row, Object object) {
+      values[row] = (Long) object;
+    }
+  }
+
+  private static class DoubleColumn extends TypedColumn {
+
+    private final double[] values;
+
+    private DoubleColumn(ValueType valueType, int size) {
+      super(valueType, size);
+      values = new double[size];
+    }
+
+    @Override
+    boolean accepts(Object object) {
+      return object instanceof Double;
+    }
+
+    @Override
+    Value getNonNull(int row) {
+      return ValueType.Factory.newValue(valueType, values[row]);
+    }
+
+    @Override
+    void setNonNull(int row, Object object) {
+      values[row] = (Double) object;
+    }
+  }
+
+  private static class BooleanColumn extends TypedColumn {
+
+    private final boolean[] values;
+
+    private BooleanColumn(ValueType valueType, int size) {
+      super(valueType, size);
+      values = new boolean[size];
+    }
+
+    @Override
+    boolean accepts(Object object) {
+      return object instanceof Boolean;
+    }
+
+    @Override
+    Value getNonNull(int row) {
+      return ((BooleanType) valueType).valueOf(values[row]);
+    }
+
+    @Override
+    void setNonNull(int row, Object object) {
+      values[row] = (Boolean) object;
+    }
+  }
+
+  /**
+   * Distinct values are stored once, rows hold the index of their value in the dictionary.
+   */
+  private static class DictionaryColumn extends TypedColumn {
+
+    private final int[] codes;
+
+    private final List<Value> dictionary = Lists.newArrayList();
+
+    private final Map<Object, Integer> index = Maps.newHashMap();
+
+    private DictionaryColumn(ValueType valueType, int size) {
+      super(valueType, size);
+      codes = new int[size];
+    }
+
+    @Override
+    boolean accepts(Object object) {
+      return valueType.getJavaClass().isInstance(object);
+    }
+
+    @Override
+    Value getNonNull(int row) {
+      return dictionary.get(codes[row]);
+    }
+
+    @Override
+    void setNonNull(int row, Object object) {
+      Integer code = index.get(object);
+      if(code == null) {
+        code = dictionary.size();
+        dictionary.add(ValueType.Factory.newValue(valueType, (Serializable) object));
+        index.put(object, code);
+      }
+      codes[row] = code;
+    }
+  }
+
+  /**
+   * Fallback column for sequences, binaries and geo values, or values that do not match the variable's value type.
+   */
+  private static class ValueColumn extends Column {
+
+    private final Value[] values;
+
+    private ValueColumn(ValueType valueType, boolean repeatable, int size) {
+      super(valueType, repeatable, size);
+      values = new Value[size];
+    }
+
+    @Override
+    Column set(int row, Value value) {
+      if(value.isNull() && (repeatable || !value.isSequence())) return this;
+      nulls.clear(row);
+      values[row] = value;
+      return this;
+    }
+
+    @Override
+    Value getNonNull(int row) {
+      return values[row];
+    }
+  }
+
+}
@@ -1,21 +1,28 @@
 package org.obiba.magma.support;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
+import org.obiba.magma.ConcurrentlyWritable;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.DatasourceCopierProgressListener;
+import org.obiba.magma.ProjectedValueSetSource;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
@@ -62,6 +69,28 @@ public class MultithreadedDatasourceCopier {
       return this;
     }
 
+    /**
+     * Number of entities claimed at once by a reader. When greater than one and all the source variables support
+     * {@link org.obiba.magma.VectorSource}, the values of these entities are read with one vector read per variable.
+     */
+    public Builder withChunkSize(int size) {
+      if(size < 1) throw new IllegalArgumentException("chunk size must be positive");
+      copier.chunkSize = size;
+      return this;
+    }
+
+    /**
+     * Number of threads writing to the destination table, each with its own {@link ValueTableWriter}. Entities are
+     * partitioned among them. Only applies when the destination datasource
+     * {@link ConcurrentlyWritable#canWriteConcurrently() can write concurrently}, otherwise a single writer is used. Note that
+     * copy listeners are then notified from several threads.
+     */
+    public Builder withWriters(int writers) {
+      if(writers < 1) throw new IllegalArgumentException("number of writers must be positive");
+      copier.concurrentWriters = writers;
+      return this;
+    }
+
     public Builder withReaderListener(ReaderListener readerListener) {
       copier.readerListener = readerListener;
       return this;
@@ -113,6 +142,10 @@ public class MultithreadedDatasourceCopier {
 
   private int concurrentReaders = 3;
 
+  private int chunkSize = 1;
+
+  private int concurrentWriters = 1;
+
   @NotNull
   private DatasourceCopier.Builder copier = DatasourceCopier.Builder.newCopier();
 
@@ -131,8 +164,7 @@ public class MultithreadedDatasourceCopier {
 
   private long entitiesToCopy = 0;
 
-  @SuppressWarnings("FieldMayBeFinal")
-  private long entitiesCopied = 0;
+  private final AtomicLong entitiesCopied = new AtomicLong();
 
   private int nextPercentIncrement = 0;
 
@@ -153,8 +185,12 @@ public class MultithreadedDatasourceCopier {
 
     prepareVariables();
 
-    // A queue containing all entity values available for writing to the destinationDatasource.
-    BlockingQueue<VariableEntityValues> writeQueue = new LinkedBlockingDeque<>(bufferSize);
+    // One queue per writer, containing the entity values available for writing to the destinationDatasource.
+    int writers = concurrentWriters > 1 && canWriteConcurrently() ? concurrentWriters : 1;
+    List<BlockingQueue<VariableEntityValues>> writeQueues = Lists.newArrayListWithCapacity(writers);
+    for(int i = 0; i < writers; i++) {
+      writeQueues.add(new LinkedBlockingDeque<VariableEntityValues>(bufferSize));
+    }
 
     DatasourceCopier datasourceCopier = copier.build();
     if(datasourceCopier.isCopyValues()) {
@@ -165,11 +201,11 @@ public class MultithreadedDatasourceCopier {
       entitiesToCopy = readQueue.size();
       for(int i = 0; i < concurrentReaders; i++) {
         readers.add(
-            executor.submit(new ConcurrentValueSetReader(readQueue, writeQueue, datasourceCopier.isCopyNullValues())));
+            executor.submit(new ConcurrentValueSetReader(readQueue, writeQueues, datasourceCopier.isCopyNullValues())));
       }
     }
     try {
-      write(writeQueue);
+      write(writeQueues);
       checkReadersForException();
     } finally {
       log.debug("Finished multi-threaded copy. Submitted tasks {}, executed tasks {}", executor.getTaskCount(),
@@ -178,29 +214,71 @@ public class MultithreadedDatasourceCopier {
     }
   }
 
-  private void write(BlockingQueue<VariableEntityValues> writeQueue) throws IOException {
+  private boolean canWriteConcurrently() {
+    return destinationDatasource instanceof ConcurrentlyWritable &&
+        ((ConcurrentlyWritable) destinationDatasource).canWriteConcurrently();
+  }
+
+  private void write(List<BlockingQueue<VariableEntityValues>> writeQueues) throws IOException {
     copyVariables();
-    // The writers could also be concurrent, but dues to transaction isolation issues, it is currently ran
-    // synchronously
-    new ConcurrentValueSetWriter(writeQueue).run();
+    if(writeQueues.size() == 1) {
+      // Destinations that cannot be written concurrently (because of transaction isolation issues for instance) are
+      // written synchronously
+      newValueSetWriter(writeQueues.get(0)).run();
+      return;
+    }
+
+    // all the writers are opened before any of them can be closed, so that the destination sees them as one copy
+    List<ConcurrentValueSetWriter> valueSetWriters = Lists.newArrayListWithCapacity(writeQueues.size());
+    for(BlockingQueue<VariableEntityValues> writeQueue : writeQueues) {
+      valueSetWriters.add(newValueSetWriter(writeQueue));
+    }
+
+    ExecutorService writersExecutor = threadFactory == null //
+        ? Executors.newFixedThreadPool(writeQueues.size()) //
+        : Executors.newFixedThreadPool(writeQueues.size(), threadFactory);
+    try {
+      CompletionService<Void> writers = new ExecutorCompletionService<>(writersExecutor);
+      for(ConcurrentValueSetWriter valueSetWriter : valueSetWriters) {
+        writers.submit(valueSetWriter, null);
+      }
+      // Fail as soon as one writer fails: readers would otherwise block on its full queue
+      for(int i = 0; i < writeQueues.size(); i++) {
+        checkForException(writers.take());
+      }
+    } catch(InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      writersExecutor.shutdownNow();
+    }
+  }
+
+  private ConcurrentValueSetWriter newValueSetWriter(BlockingQueue<VariableEntityValues> writeQueue) {
+    DatasourceCopier datasourceCopier = copier.build();
+    return new ConcurrentValueSetWriter(writeQueue, datasourceCopier,
+        datasourceCopier.innerValueTableWriter(sourceTable, destinationName, destinationDatasource));
   }
 
-  @SuppressWarnings("OverlyNestedMethod")
   private void checkReadersForException() {
     for(Future<?> reader : readers) {
-      try {
-        reader.get();
-      } catch(InterruptedException e) {
-        throw new RuntimeException(e);
-      } catch(ExecutionException e) {
-        Throwable cause = e.getCause();
-        if(cause != null) {
-          if(cause instanceof RuntimeException) {
-            throw (RuntimeException) cause;
-          }
+      checkForException(reader);
+    }
+  }
+
+  @SuppressWarnings("OverlyNestedMethod")
+  private void checkForException(Future<?> task) {
+    try {
+      task.get();
+    } catch(InterruptedException e) {
+      throw new RuntimeException(e);
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause != null) {
+        if(cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
         }
-        throw new RuntimeException(e);
       }
+      throw new RuntimeException(e);
     }
   }
 
@@ -239,44 +317,83 @@ public class MultithreadedDatasourceCopier {
 
     private final BlockingQueue<VariableEntity> readQueue;
 
-    private final BlockingQueue<VariableEntityValues> writeQueue;
+    private final List<BlockingQueue<VariableEntityValues>> writeQueues;
 
     private final boolean copyNullValues;
 
+    private final boolean vectorRead;
+
     private ConcurrentValueSetReader(BlockingQueue<VariableEntity> readQueue,
-        BlockingQueue<VariableEntityValues> writeQueue, boolean copyNullValues) {
+        List<BlockingQueue<VariableEntityValues>> writeQueues, boolean copyNullValues) {
       this.readQueue = readQueue;
-      this.writeQueue = writeQueue;
+      this.writeQueues = writeQueues;
       this.copyNullValues = copyNullValues;
+      vectorRead = chunkSize > 1 && VectorSources.supportVectorSource(sources);
     }
 
     @Override
     public void run() {
       try {
-        VariableEntity entity = null;
-        while((entity = readQueue.poll()) != null) {
-          copyEntity(entity);
+        if(chunkSize > 1) {
+          List<VariableEntity> chunk = Lists.newArrayListWithCapacity(chunkSize);
+          while(readQueue.drainTo(chunk, chunkSize) > 0) {
+            copyChunk(chunk);
+            chunk.clear();
+          }
+        } else {
+          VariableEntity entity = null;
+          while((entity = readQueue.poll()) != null) {
+            copyEntity(entity);
+          }
         }
       } catch(InterruptedException ignored) {
       }
     }
 
+    private void copyChunk(List<VariableEntity> chunk) throws InterruptedException {
+      if(!vectorRead) {
+        for(VariableEntity entity : chunk) {
+          copyEntity(entity);
+        }
+        return;
+      }
+      List<VariableEntity> entities = Lists.newArrayListWithCapacity(chunk.size());
+      for(VariableEntity entity : chunk) {
+        if(sourceTable.hasValueSet(entity)) entities.add(entity);
+      }
+      if(entities.isEmpty()) return;
+
+      Value[][] values = VectorSources.readValues(sources, entities, false);
+      for(int i = 0; i < entities.size(); i++) {
+        enqueue(sourceTable.getValueSet(entities.get(i)), values[i]);
+      }
+    }
+
     private void copyEntity(VariableEntity entity) throws InterruptedException {
       if(!sourceTable.hasValueSet(entity)) return;
 
-      ValueSet valueSet = sourceTable.getValueSet(entity);
-      boolean hasOnlyNullValues = true;
+      // only the values of the copied variables are read
+      ValueSet valueSet = sourceTable instanceof ProjectedValueSetSource
+          ? ((ProjectedValueSetSource) sourceTable).getValueSet(entity, Arrays.asList(variables))
+          : sourceTable.getValueSet(entity);
       Value[] values = new Value[sources.length];
 
       for(int i = 0; i < sources.length; i++) {
-        Value value = sources[i].getValue(valueSet);
-        values[i] = value;
+        values[i] = sources[i].getValue(valueSet);
+      }
+      enqueue(valueSet, values);
+    }
+
+    private void enqueue(ValueSet valueSet, Value... values) throws InterruptedException {
+      VariableEntity entity = valueSet.getVariableEntity();
+      boolean hasOnlyNullValues = true;
+      for(Value value : values) {
         hasOnlyNullValues &= value.isNull();
       }
 
       if(copyNullValues || !hasOnlyNullValues) {
         log.trace("Enqueued entity {}", entity.getIdentifier());
-        writeQueue.put(new VariableEntityValues(valueSet, values));
+        getWriteQueue(entity).put(new VariableEntityValues(valueSet, values));
       } else {
         log.trace("Skip entity {} because of null values", entity.getIdentifier());
       }
@@ -285,14 +402,30 @@ public class MultithreadedDatasourceCopier {
         readerListener.onRead(valueSet, values);
       }
     }
+
+    /**
+     * Entities are partitioned among writers by their hash.
+     */
+    private BlockingQueue<VariableEntityValues> getWriteQueue(VariableEntity entity) {
+      return writeQueues.size() == 1
+          ? writeQueues.get(0)
+          : writeQueues.get((entity.hashCode() & Integer.MAX_VALUE) % writeQueues.size());
+    }
   }
 
   private class ConcurrentValueSetWriter implements Runnable {
 
     private final BlockingQueue<VariableEntityValues> writeQueue;
 
-    private ConcurrentValueSetWriter(BlockingQueue<VariableEntityValues> writeQueue) {
+    private final DatasourceCopier datasourceCopier;
+
+    private final ValueTableWriter tableWriter;
+
+    private ConcurrentValueSetWriter(BlockingQueue<VariableEntityValues> writeQueue, DatasourceCopier datasourceCopier,
+        ValueTableWriter tableWriter) {
       this.writeQueue = writeQueue;
+      this.datasourceCopier = datasourceCopier;
+      this.tableWriter = tableWriter;
     }
 
     /**
@@ -331,44 +464,40 @@ public class MultithreadedDatasourceCopier {
     @SuppressWarnings("ThrowFromFinallyBlock")
     @Override
     public void run() {
-      DatasourceCopier datasourceCopier = copier.build();
-      try(ValueTableWriter tableWriter = datasourceCopier
-          .innerValueTableWriter(sourceTable, destinationName, destinationDatasource)) {
+      try(ValueTableWriter writer = tableWriter) {
         VariableEntityValues values = null;
         while((values = next()) != null) {
-          copyValue(datasourceCopier, tableWriter, values);
+          copyValue(writer, values);
         }
       }
     }
 
     @SuppressWarnings("ThrowFromFinallyBlock")
-    private void copyValue(DatasourceCopier datasourceCopier, ValueTableWriter tableWriter,
-        VariableEntityValues values) {
+    private void copyValue(ValueTableWriter tableWriter, VariableEntityValues values) {
       try(ValueSetWriter writer = tableWriter.writeValueSet(values.valueSet.getVariableEntity())) {
         // Copy the ValueSet to the destinationDatasource
         log.trace("Dequeued entity {}", values.valueSet.getVariableEntity().getIdentifier());
         datasourceCopier.copyValues(sourceTable, destinationName, values.valueSet, variables, values.values, writer);
       }
-      entitiesCopied++;
-      printProgress();
+      printProgress(entitiesCopied.incrementAndGet());
     }
+  }
 
-    @SuppressWarnings("NumericCastThatLosesPrecision")
-    private void printProgress() {
-      try {
-        if(entitiesToCopy > 0) {
-          int percentComplete = (int) (entitiesCopied / (double) entitiesToCopy * 100);
-          if(percentComplete >= nextPercentIncrement) {
-            log.info("Copy {}% complete.", percentComplete);
-            for(DatasourceCopierProgressListener listener : progressListeners) {
-              listener.status(sourceTable.getName(), entitiesCopied, entitiesToCopy, percentComplete);
-            }
-            nextPercentIncrement = percentComplete + 1;
+  @SuppressWarnings("NumericCastThatLosesPrecision")
+  private synchronized void printProgress(long copied) {
+    try {
+      if(entitiesToCopy > 0) {
+        int percentComplete = (int) (copied / (double) entitiesToCopy * 100);
+        if(percentComplete >= nextPercentIncrement) {
+          log.info("Copy {}% complete.", percentComplete);
+          for(DatasourceCopierProgressListener listener : progressListeners) {
+            listener.status(sourceTable.getName(), copied, entitiesToCopy, percentComplete);
           }
+          nextPercentIncrement = percentComplete + 1;
         }
-      } catch(RuntimeException e) {
-        // Ignore
       }
+    } catch(RuntimeException e) {
+      // Ignore
     }
   }
 }
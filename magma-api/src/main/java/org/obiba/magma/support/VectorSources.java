@@ -0,0 +1,70 @@
+package org.obiba.magma.support;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSource;
+import org.obiba.magma.VariableEntity;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Helpers for reading values of several entities at once through {@link org.obiba.magma.VectorSource}.
+ */
+public final class VectorSources {
+
+  private VectorSources() {
+
+  }
+
+  /**
+   * Returns true if all the given sources support {@link org.obiba.magma.VectorSource}.
+   */
+  public static boolean supportVectorSource(ValueSource... sources) {
+    for(ValueSource source : sources) {
+      if(!source.supportVectorSource()) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Reads the values of a block of entities with one vector read per source. The returned array holds one row per
+   * entity, in the order of {@code entities}, each row holding one value per source.
+   *
+   * @param sources sources that all support {@link org.obiba.magma.VectorSource}
+   * @param entities distinct entities to read the values of
+   * @param ignoreReadErrors when true, a source that fails to be read provides null values for the whole block
+   * @return the values per entity and per source
+   */
+  public static Value[][] readValues(ValueSource[] sources, List<VariableEntity> entities,
+      boolean ignoreReadErrors) {
+    SortedSet<VariableEntity> sortedEntities = new TreeSet<>(entities);
+    Map<VariableEntity, Integer> positions = Maps.newHashMapWithExpectedSize(entities.size());
+    for(int i = 0; i < entities.size(); i++) {
+      positions.put(entities.get(i), i);
+    }
+
+    Value[][] values = new Value[entities.size()][sources.length];
+    for(int s = 0; s < sources.length; s++) {
+      try {
+        Iterator<Value> vector = sources[s].asVectorSource().getValues(sortedEntities).iterator();
+        for(VariableEntity entity : sortedEntities) {
+          if(!vector.hasNext()) throw new MagmaRuntimeException("Vector of values is shorter than the entities list");
+          values[positions.get(entity)][s] = vector.next();
+        }
+      } catch(RuntimeException e) {
+        if(!ignoreReadErrors) throw e;
+        for(Value[] row : values) {
+          row[s] = sources[s].getValueType().nullValue();
+        }
+      }
+    }
+    return values;
+  }
+
+}
@@ -4,6 +4,7 @@
 package org.obiba.magma.views;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
@@ -12,6 +13,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Datasource;
@@ -45,8 +47,6 @@ import com.google.common.collect.Multimap;
 @SuppressWarnings({ "UnusedDeclaration", "TransientFieldInNonSerializableClass" })
 public class JoinTable implements ValueTable, Initialisable {
 
-  private static final int DEFAULT_ENTITY_COUNT = 5000;
-
   @NotNull
   private final List<ValueTable> tables;
 
@@ -73,12 +73,20 @@ public class JoinTable implements ValueTable, Initialisable {
   @NotNull
   private transient final Map<String, JoinableVariable> joinableVariablesByName = Maps.newHashMap();
 
-  // An arbitrary number to initialise the LinkedHashSet with a capacity close to the actual value
-  // See getVariableEntities()
-  private transient int lastEntityCount = DEFAULT_ENTITY_COUNT;
-
   private transient boolean variableAnalysed = false;
 
+  /**
+   * Cached union of the entities of all tables in the join.
+   */
+  @Nullable
+  private transient JoinedEntities joinedEntities;
+
+  /**
+   * Last update of each table when the union of the entities was cached.
+   */
+  @Nullable
+  private transient Value[] tablesLastUpdate;
+
   /**
    * No-arg constructor (mainly for XStream).
    */
@@ -171,8 +179,13 @@ public class JoinTable implements ValueTable, Initialisable {
 
   @Override
   public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
-    if(hasValueSet(entity)) {
-      return new JoinedValueSet(this, entity);
+    if(!variableAnalysed) analyseVariables();
+    JoinedEntities entities = getCachedJoinedEntities();
+    if(entities == null) {
+      if(hasValueSet(entity)) return new JoinedValueSet(this, entity);
+    } else {
+      BitSet owners = entities.getOwners(entity);
+      if(!owners.isEmpty()) return new JoinedValueSet(this, entity, owners);
     }
     throw new NoSuchValueSetException(this, entity);
   }
@@ -210,27 +223,60 @@ public class JoinTable implements ValueTable, Initialisable {
   @Override
   public Set<VariableEntity> getVariableEntities() {
     if(!variableAnalysed) analyseVariables();
-
-    // Set the initial capacity to the number of entities we saw in the previous call to this method
-    Set<VariableEntity> entities = new LinkedHashSet<>(lastEntityCount);
-    for(ValueTable table : getTables()) {
-      entities.addAll(table.getVariableEntities());
-    }
-    // Remember this value so that next time around, the set is initialised with a capacity closer to the actual value.
-    lastEntityCount = entities.size();
-    return entities;
+    return getJoinedEntities().getEntities();
   }
 
+  /**
+   * Value sets know the tables that have a value set for their entity, so that these tables are not queried again.
+   */
   @Override
   public Iterable<ValueSet> getValueSets() {
-    return Iterables.transform(getVariableEntities(), new Function<VariableEntity, ValueSet>() {
+    if(!variableAnalysed) analyseVariables();
+    final JoinedEntities entities = getJoinedEntities();
+    return Iterables.transform(entities.getEntities(), new Function<VariableEntity, ValueSet>() {
       @Override
       public ValueSet apply(VariableEntity from) {
-        return new JoinedValueSet(JoinTable.this, from);
+        return new JoinedValueSet(JoinTable.this, from, entities.getOwners(from));
       }
     });
   }
 
+  /**
+   * Returns the cached union of the entities of the tables, if the last update of the tables did not change. If only
+   * one table changed, the entities of this table are merged in the cached union, otherwise the union is computed
+   * again.
+   */
+  @NotNull
+  private synchronized JoinedEntities getJoinedEntities() {
+    List<ValueTable> valueTables = getTables();
+    Value[] lastUpdates = new Value[valueTables.size()];
+    List<Integer> changedTables = Lists.newArrayList();
+    for(int i = 0; i < valueTables.size(); i++) {
+      lastUpdates[i] = valueTables.get(i).getTimestamps().getLastUpdate();
+      // a table without last update is considered as changed
+      if(tablesLastUpdate == null || lastUpdates[i].isNull() || !lastUpdates[i].equals(tablesLastUpdate[i])) {
+        changedTables.add(i);
+      }
+    }
+    if(joinedEntities == null || changedTables.size() > 1) {
+      joinedEntities = new JoinedEntities(valueTables);
+    } else if(changedTables.size() == 1) {
+      int changed = changedTables.get(0);
+      joinedEntities = new JoinedEntities(joinedEntities, changed, valueTables.get(changed));
+    }
+    tablesLastUpdate = lastUpdates;
+    return joinedEntities;
+  }
+
+  /**
+   * Returns the union of the entities if it was cached, brought up to date, or null: a single lookup does not trigger
+   * the computation of the union.
+   */
+  @Nullable
+  private synchronized JoinedEntities getCachedJoinedEntities() {
+    return joinedEntities == null ? null : getJoinedEntities();
+  }
+
   @Override
   public boolean hasVariable(String name) {
     return getJoinableVariablesByName().containsKey(name);
@@ -278,6 +324,8 @@ public class JoinTable implements ValueTable, Initialisable {
   public boolean hasValueSet(VariableEntity entity) {
     if(!variableAnalysed) analyseVariables();
 
+    JoinedEntities entities = getCachedJoinedEntities();
+    if(entities != null) return entities.getEntities().contains(entity);
     for(ValueTable table : getTables()) {
       if(table.hasValueSet(entity)) {
         return true;
@@ -368,12 +416,13 @@ public class JoinTable implements ValueTable, Initialisable {
 
   @Override
   public int getValueSetCount() {
-    return Iterables.size(getValueSets());
+    return getVariableEntityCount();
   }
 
   @Override
   public int getVariableEntityCount() {
-    return Iterables.size(getVariableEntities());
+    if(!variableAnalysed) analyseVariables();
+    return getJoinedEntities().size();
   }
 
   static class JoinedValueSet extends ValueSetBean {
@@ -384,36 +433,63 @@ public class JoinTable implements ValueTable, Initialisable {
     @NotNull
     private final Map<String, Timestamps> timestampsByTable = Maps.newHashMap();
 
+    /**
+     * Positions in the join of the tables that have a value set for the entity, looked up on first access if null
+     */
+    @Nullable
+    private BitSet owners;
+
     JoinedValueSet(@NotNull ValueTable table, @NotNull VariableEntity entity) {
+      this(table, entity, null);
+    }
+
+    JoinedValueSet(@NotNull ValueTable table, @NotNull VariableEntity entity, @Nullable BitSet owners) {
       super(table, entity);
+      this.owners = owners;
     }
 
     @NotNull
     @Override
     public Timestamps getTimestamps() {
+      List<ValueTable> tables = ((JoinTable) getValueTable()).getTables();
+      BitSet tableOwners = getOwners();
       List<Timestamps> timestampses = Lists.newArrayList();
-      for(ValueTable valueTable : ((JoinTable) getValueTable()).getTables()) {
-        if(valueTable.hasValueSet(getVariableEntity())) {
-          timestampses.add(valueTable.getValueSetTimestamps(getVariableEntity()));
-        }
+      for(int i = tableOwners.nextSetBit(0); i >= 0; i = tableOwners.nextSetBit(i + 1)) {
+        timestampses.add(tables.get(i).getValueSetTimestamps(getVariableEntity()));
       }
       return new UnionTimestamps(timestampses);
     }
 
     synchronized Iterable<ValueSet> getInnerTableValueSets(Iterable<ValueTable> valueTables) {
+      List<ValueTable> tables = ((JoinTable) getValueTable()).getTables();
       List<ValueSet> valueSets = Lists.newArrayList();
       for(ValueTable valueTable : valueTables) {
         if(valueSetsByTable.containsKey(valueTable.getTableReference())) {
           ValueSet valueSet = valueSetsByTable.get(valueTable.getTableReference());
           if(valueSet != null) valueSets.add(valueSet);
-        } else if(valueTable.hasValueSet(getVariableEntity())) {
-          ValueSet valueSet = valueTable.getValueSet(getVariableEntity());
+        } else {
+          // remember the tables without value set too
+          ValueSet valueSet = getOwners().get(tables.indexOf(valueTable))
+              ? valueTable.getValueSet(getVariableEntity())
+              : null;
           valueSetsByTable.put(valueTable.getTableReference(), valueSet);
-          valueSets.add(valueSet);
+          if(valueSet != null) valueSets.add(valueSet);
         }
       }
       return valueSets;
     }
+
+    @NotNull
+    private synchronized BitSet getOwners() {
+      if(owners == null) {
+        owners = new BitSet();
+        List<ValueTable> tables = ((JoinTable) getValueTable()).getTables();
+        for(int i = 0; i < tables.size(); i++) {
+          if(tables.get(i).hasValueSet(getVariableEntity())) owners.set(i);
+        }
+      }
+      return owners;
+    }
   }
 
   private static class JoinedVariableValueSource extends AbstractVariableValueSourceWrapper implements VectorSource {
@@ -0,0 +1,146 @@
+package org.obiba.magma.views;
+
+import java.util.BitSet;
+import java.util.List;
+
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+
+/**
+ * The union of the entities of the tables of a {@link JoinTable}, with the tables that have a value set for each
+ * entity. It is built by walking the sorted entity sets of the tables together (a merge join), and keeps one bitmap per
+ * table, indexed by the position of the entities in the union. When the entities of a single table changed, the union
+ * is updated by merging the previous union with the entities of this table only.
+ */
+class JoinedEntities {
+
+  @NotNull
+  private final ImmutableSortedSet<VariableEntity> entities;
+
+  /**
+   * For each table, the positions of the entities of the table in the union
+   */
+  @NotNull
+  private final BitSet[] owners;
+
+  JoinedEntities(@NotNull List<ValueTable> tables) {
+    List<PeekingIterator<VariableEntity>> iterators = Lists.newArrayListWithCapacity(tables.size());
+    owners = new BitSet[tables.size()];
+    for(int i = 0; i < tables.size(); i++) {
+      iterators.add(
+          Iterators.peekingIterator(ImmutableSortedSet.copyOf(tables.get(i).getVariableEntities()).iterator()));
+      owners[i] = new BitSet();
+    }
+
+    List<VariableEntity> union = Lists.newArrayList();
+    VariableEntity entity;
+    while((entity = nextEntity(iterators)) != null) {
+      for(int i = 0; i < iterators.size(); i++) {
+        PeekingIterator<VariableEntity> iterator = iterators.get(i);
+        if(iterator.hasNext() && iterator.peek().compareTo(entity) == 0) {
+          iterator.next();
+          owners[i].set(union.size());
+        }
+      }
+      union.add(entity);
+    }
+    // already sorted
+    entities = ImmutableSortedSet.copyOf(union);
+  }
+
+  /**
+   * Updates the union of the entities of the tables, when only the entities of one table changed.
+   *
+   * @param previous the union before the change
+   * @param table the position of the changed table in the join
+   * @param valueTable the changed table
+   */
+  JoinedEntities(@NotNull JoinedEntities previous, int table, @NotNull ValueTable valueTable) {
+    owners = new BitSet[previous.owners.length];
+    for(int i = 0; i < owners.length; i++) {
+      owners[i] = new BitSet();
+    }
+    List<VariableEntity> previousEntities = previous.entities.asList();
+    PeekingIterator<VariableEntity> updated = Iterators
+        .peekingIterator(ImmutableSortedSet.copyOf(valueTable.getVariableEntities()).iterator());
+
+    List<VariableEntity> union = Lists.newArrayList();
+    int previousPosition = 0;
+    while(previousPosition < previousEntities.size() || updated.hasNext()) {
+      VariableEntity entity;
+      boolean inPrevious = false;
+      boolean inUpdated = false;
+      if(previousPosition < previousEntities.size() &&
+          (!updated.hasNext() || previousEntities.get(previousPosition).compareTo(updated.peek()) <= 0)) {
+        entity = previousEntities.get(previousPosition);
+        inPrevious = true;
+        if(updated.hasNext() && updated.peek().compareTo(entity) == 0) {
+          updated.next();
+          inUpdated = true;
+        }
+      } else {
+        entity = updated.next();
+        inUpdated = true;
+      }
+
+      // entities that were only in the changed table are dropped
+      boolean owned = inUpdated;
+      if(inPrevious) {
+        for(int i = 0; i < owners.length; i++) {
+          if(i != table && previous.owners[i].get(previousPosition)) {
+            owners[i].set(union.size());
+            owned = true;
+          }
+        }
+        previousPosition++;
+      }
+      if(inUpdated) owners[table].set(union.size());
+      if(owned) union.add(entity);
+    }
+    entities = ImmutableSortedSet.copyOf(union);
+  }
+
+  /**
+   * Returns the smallest of the next entities of the tables, or null if there is none.
+   */
+  private static VariableEntity nextEntity(Iterable<PeekingIterator<VariableEntity>> iterators) {
+    VariableEntity next = null;
+    for(PeekingIterator<VariableEntity> iterator : iterators) {
+      if(iterator.hasNext() && (next == null || iterator.peek().compareTo(next) < 0)) {
+        next = iterator.peek();
+      }
+    }
+    return next;
+  }
+
+  @NotNull
+  ImmutableSortedSet<VariableEntity> getEntities() {
+    return entities;
+  }
+
+  int size() {
+    return entities.size();
+  }
+
+  /**
+   * Returns the positions in the list of tables of the tables that have a value set for this entity.
+   */
+  @NotNull
+  BitSet getOwners(@NotNull VariableEntity entity) {
+    BitSet entityOwners = new BitSet(owners.length);
+    int position = entities.asList().indexOf(entity);
+    if(position < 0) return entityOwners;
+    for(int i = 0; i < owners.length; i++) {
+      if(owners[i].get(position)) entityOwners.set(i);
+    }
+    return entityOwners;
+  }
+
+}
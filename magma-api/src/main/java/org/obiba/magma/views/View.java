@@ -2,6 +2,7 @@ package org.obiba.magma.views;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -123,12 +124,13 @@ public class View extends AbstractValueTableWrapper implements Initialisable, Di
   public void initialise() {
     getListClause().setValueTable(this);
     Initialisables.initialise(getWrappedValueTable(), getSelectClause(), getWhereClause(), getListClause());
+    // not a redefinition of the view: its last update is kept
     if(isViewOfDerivedVariables()) {
       setSelectClause(new NoneClause());
     } else if(!(getSelectClause() instanceof NoneClause)) {
-      setListClause(new NoneClause());
+      variables = new NoneClause();
     } else {
-      setListClause(new NoneClause());
+      variables = new NoneClause();
       setSelectClause(new AllClause());
     }
   }
@@ -470,15 +472,29 @@ public class View extends AbstractValueTableWrapper implements Initialisable, Di
   @SuppressWarnings("ConstantConditions")
   public void setWhereClause(@NotNull WhereClause whereClause) {
     Preconditions.checkArgument(whereClause != null, "null whereClause");
+    if(where != null && where != whereClause) touch();
     where = whereClause;
   }
 
   @SuppressWarnings("ConstantConditions")
   public void setListClause(@NotNull ListClause listClause) {
     Preconditions.checkArgument(listClause != null, "null listClause");
+    if(variables != null && variables != listClause) touch();
     variables = listClause;
   }
 
+  /**
+   * Moves the last update of this view forward when its entities or variables are redefined, so that the entities
+   * cached by this view, or by the tables that include it, are read again.
+   */
+  private void touch() {
+    Value now = DateTimeType.get().now();
+    if(updated != null && !updated.isNull() && now.compareTo(updated) <= 0) {
+      now = DateTimeType.get().valueOf(new Date(((Date) updated.getValue()).getTime() + 1));
+    }
+    updated = now;
+  }
+
   @NotNull
   @Override
   public BijectiveFunction<VariableEntity, VariableEntity> getVariableEntityMappingFunction() {
@@ -0,0 +1,168 @@
+package org.obiba.magma.concurrent;
+
+import java.util.List;
+
+import javax.validation.constraints.NotNull;
+
+import org.junit.Test;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.support.AbstractVariableValueSourceWrapper;
+import org.obiba.magma.support.ColumnarValueTable;
+import org.obiba.magma.support.Initialisables;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.IntegerType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ConcurrentValueTableReaderTest extends AbstractMagmaTest {
+
+  private static final int NB_ENTITIES = 500;
+
+  private StaticValueTable createTable() {
+    List<String> identifiers = Lists.newArrayList();
+    for(int i = 0; i < NB_ENTITIES; i++) {
+      identifiers.add(String.format("%04d", i));
+    }
+    StaticDatasource datasource = new StaticDatasource("ds");
+    StaticValueTable table = new StaticValueTable(datasource, "table", identifiers);
+    table.addVariables(IntegerType.get(), "var");
+    for(int i = 0; i < NB_ENTITIES; i++) {
+      table.addValues(identifiers.get(i), "var", (long) i);
+    }
+    datasource.addValueTable(table);
+    return table;
+  }
+
+  @Test
+  public void test_unordered_read_delivers_all_entities() {
+    RecordingCallback callback = new RecordingCallback();
+    ConcurrentValueTableReader.Builder.newReader().from(createTable()).to(callback).withReaders(4)
+        .withQueueCapacity(2).build().read();
+
+    assertThat(callback.completed).isTrue();
+    assertThat(callback.entities).hasSize(NB_ENTITIES);
+    assertThat(Sets.newHashSet(callback.entities)).hasSize(NB_ENTITIES);
+  }
+
+  @Test
+  public void test_ordered_read_delivers_entities_in_order() {
+    StaticValueTable table = createTable();
+    RecordingCallback callback = new RecordingCallback();
+    ConcurrentValueTableReader.Builder.newReader().from(table).to(callback).withReaders(4).withQueueCapacity(3)
+        .ordered().build().read();
+
+    assertThat(callback.completed).isTrue();
+    assertThat(callback.entities).isEqualTo(Lists.newArrayList(table.getVariableEntities()));
+    for(int i = 0; i < NB_ENTITIES; i++) {
+      assertThat(callback.values.get(i).getValue()).isEqualTo((long) i);
+    }
+  }
+
+  @Test
+  public void test_chunked_vector_read_delivers_entities_in_order() {
+    ColumnarValueTable table = new ColumnarValueTable(createTable());
+    Initialisables.initialise(table);
+    RecordingCallback callback = new RecordingCallback();
+    ConcurrentValueTableReader.Builder.newReader().from(table).to(callback).withReaders(3).withChunkSize(40)
+        .withQueueCapacity(10).ordered().build().read();
+
+    assertThat(callback.entities).isEqualTo(Lists.newArrayList(table.getVariableEntities()));
+    for(int i = 0; i < NB_ENTITIES; i++) {
+      assertThat(callback.values.get(i).getValue()).isEqualTo((long) i);
+    }
+  }
+
+  @Test
+  public void test_chunked_read_without_vector_source() {
+    RecordingCallback callback = new RecordingCallback();
+    ConcurrentValueTableReader.Builder.newReader().from(createTable()).to(callback).withReaders(3).withChunkSize(40)
+        .build().read();
+
+    assertThat(callback.entities).hasSize(NB_ENTITIES);
+    assertThat(Sets.newHashSet(callback.entities)).hasSize(NB_ENTITIES);
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void test_read_error_is_rethrown() {
+    StaticValueTable table = createTable();
+    table.removeValues("0100");
+    ConcurrentValueTableReader.Builder.newReader().from(table).to(new RecordingCallback()).withReaders(4)
+        .withQueueCapacity(2).ordered().build().read();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void test_callback_error_is_rethrown() {
+    StaticValueTable table = createTable();
+    table.removeValues("0100");
+    ConcurrentValueTableReader.Builder.newReader().from(table).to(new RecordingCallback() {
+      @Override
+      public void onValues(VariableEntity entity, Variable[] variables, Value... values) {
+        if(values[0].isNull()) throw new IllegalStateException();
+        super.onValues(entity, variables, values);
+      }
+    }).withReaders(4).withQueueCapacity(2).ignoreReadErrors().build().read();
+  }
+
+  @Test(expected = AssertionError.class, timeout = 30000)
+  public void test_reader_error_is_rethrown() {
+    StaticDatasource datasource = new StaticDatasource("ds");
+    StaticValueTable table = new StaticValueTable(datasource, "table", Lists.newArrayList("0000", "0001", "0002")) {
+      @Override
+      public VariableValueSource getVariableValueSource(String variableName) {
+        return new AbstractVariableValueSourceWrapper(super.getVariableValueSource(variableName)) {
+          @NotNull
+          @Override
+          public Value getValue(ValueSet valueSet) {
+            if("0001".equals(valueSet.getVariableEntity().getIdentifier())) throw new AssertionError();
+            return super.getValue(valueSet);
+          }
+        };
+      }
+    };
+    table.addVariables(IntegerType.get(), "var");
+    for(VariableEntity entity : table.getVariableEntities()) {
+      table.addValues(entity.getIdentifier(), "var", 1L);
+    }
+    // the failing reader must still signal the end of its stream, otherwise the read blocks forever
+    ConcurrentValueTableReader.Builder.newReader().from(table).to(new RecordingCallback()).withReaders(3)
+        .withQueueCapacity(1).ordered().build().read();
+  }
+
+  private static class RecordingCallback implements ConcurrentValueTableReader.ConcurrentReaderCallback {
+
+    private final List<VariableEntity> entities = Lists.newArrayList();
+
+    private final List<Value> values = Lists.newArrayList();
+
+    private boolean completed = false;
+
+    @Override
+    public void onBegin(List<VariableEntity> entitiesToRead, Variable... variables) {
+    }
+
+    @Override
+    public void onValues(VariableEntity entity, Variable[] variables, Value... read) {
+      entities.add(entity);
+      values.add(read[0]);
+    }
+
+    @Override
+    public void onComplete() {
+      completed = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+  }
+}
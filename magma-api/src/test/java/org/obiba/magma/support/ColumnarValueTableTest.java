@@ -0,0 +1,150 @@
+package org.obiba.magma.support;
+
+import java.util.Date;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.validation.constraints.NotNull;
+
+import org.junit.Test;
+import org.obiba.magma.NoSuchValueSetException;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.TimestampsBean;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ColumnarValueTableTest extends AbstractMagmaTest {
+
+  private static final String PARTICIPANT = "Participant";
+
+  private StaticValueTable createSourceTable() {
+    StaticDatasource datasource = new StaticDatasource("ds");
+    StaticValueTable table = new StaticValueTable(datasource, "table", ImmutableList.of("3", "1", "2"));
+    table.addVariables(IntegerType.get(), "int");
+    table.addVariables(DecimalType.get(), "dec");
+    table.addVariables(BooleanType.get(), "bool");
+    table.addVariables(TextType.get(), "text");
+    table.addValues("1", "int", 1L, "dec", 1.5, "bool", true, "text", "a");
+    table.addValues("2", "int", null, "dec", null, "bool", null, "text", null);
+    table.addValues("3", "int", 3L, "dec", 3.5, "bool", false, "text", "a");
+    datasource.addValueTable(table);
+    return table;
+  }
+
+  @Test
+  public void test_snapshot_values() {
+    ColumnarValueTable table = new ColumnarValueTable(createSourceTable());
+    Initialisables.initialise(table);
+
+    assertThat(table.getVariableEntityCount()).isEqualTo(3);
+    assertThat(table.getVariableCount()).isEqualTo(4);
+
+    ValueSet valueSet = table.getValueSet(new VariableEntityBean(PARTICIPANT, "1"));
+    assertThat(table.getValue(table.getVariable("int"), valueSet)).isEqualTo(IntegerType.get().valueOf(1L));
+    assertThat(table.getValue(table.getVariable("dec"), valueSet)).isEqualTo(DecimalType.get().valueOf(1.5));
+    assertThat(table.getValue(table.getVariable("bool"), valueSet)).isEqualTo(BooleanType.get().trueValue());
+    assertThat(table.getValue(table.getVariable("text"), valueSet)).isEqualTo(TextType.get().valueOf("a"));
+
+    valueSet = table.getValueSet(new VariableEntityBean(PARTICIPANT, "2"));
+    for(Variable variable : table.getVariables()) {
+      assertThat(table.getValue(variable, valueSet).isNull()).isTrue();
+    }
+  }
+
+  @Test
+  public void test_vector_source_in_entities_order() {
+    ColumnarValueTable table = new ColumnarValueTable(createSourceTable());
+    Initialisables.initialise(table);
+
+    SortedSet<VariableEntity> entities = new TreeSet<>();
+    entities.add(new VariableEntityBean(PARTICIPANT, "1"));
+    entities.add(new VariableEntityBean(PARTICIPANT, "3"));
+    entities.add(new VariableEntityBean(PARTICIPANT, "4"));
+
+    VariableValueSource source = table.getVariableValueSource("int");
+    assertThat(source.supportVectorSource()).isTrue();
+    Value[] values = Iterables.toArray(source.asVectorSource().getValues(entities), Value.class);
+    assertThat(values).hasSize(3);
+    assertThat(values[0]).isEqualTo(IntegerType.get().valueOf(1L));
+    assertThat(values[1]).isEqualTo(IntegerType.get().valueOf(3L));
+    assertThat(values[2].isNull()).isTrue();
+  }
+
+  @Test
+  public void test_sequence_values_are_kept() {
+    StaticValueTable source = createSourceTable();
+    source.addValues("1", Variable.Builder.newVariable("seq", IntegerType.get(), PARTICIPANT).repeatable().build(),
+        Values.asSequence(IntegerType.get(), 1L, 2L));
+    source.addValues("2", "seq", IntegerType.get().nullSequence());
+    source.addValues("3", "seq", IntegerType.get().nullSequence());
+    ColumnarValueTable table = new ColumnarValueTable(source);
+    Initialisables.initialise(table);
+
+    Value value = table.getValue(table.getVariable("seq"), table.getValueSet(new VariableEntityBean(PARTICIPANT, "1")));
+    assertThat(value.isSequence()).isTrue();
+    assertThat(value.asSequence().getSize()).isEqualTo(2);
+    value = table.getValue(table.getVariable("seq"), table.getValueSet(new VariableEntityBean(PARTICIPANT, "2")));
+    assertThat(value.isSequence()).isTrue();
+    assertThat(value.isNull()).isTrue();
+  }
+
+  @Test
+  public void test_refresh_without_update_keeps_snapshot() {
+    ColumnarValueTable table = new ColumnarValueTable(createSourceTable());
+    Initialisables.initialise(table);
+    assertThat(table.isUpToDate()).isTrue();
+    assertThat(table.refresh()).isFalse();
+  }
+
+  @Test
+  public void test_refresh_after_update_replaces_sources() {
+    final Value[] lastUpdate = { DateTimeType.get().valueOf(new Date(1000)) };
+    StaticDatasource datasource = new StaticDatasource("ds");
+    StaticValueTable source = new StaticValueTable(datasource, "table", ImmutableList.of("1")) {
+      @NotNull
+      @Override
+      public Timestamps getTimestamps() {
+        return new TimestampsBean(DateTimeType.get().valueOf(new Date(0)), lastUpdate[0]);
+      }
+    };
+    source.addVariables(IntegerType.get(), "int");
+    source.addValues("1", "int", 1L);
+    ColumnarValueTable table = new ColumnarValueTable(source);
+    Initialisables.initialise(table);
+    VariableValueSource previous = table.getVariableValueSource("int");
+    ValueSet valueSet = table.getValueSet(new VariableEntityBean(PARTICIPANT, "1"));
+
+    source.addVariables(TextType.get(), "text");
+    source.addValues("1", "int", 2L, "text", "a");
+    lastUpdate[0] = DateTimeType.get().valueOf(new Date(2000));
+    assertThat(table.refresh()).isTrue();
+
+    assertThat(table.getVariableCount()).isEqualTo(2);
+    assertThat(table.getValue(table.getVariable("int"), valueSet)).isEqualTo(IntegerType.get().valueOf(2L));
+    assertThat(table.getValue(table.getVariable("text"), valueSet)).isEqualTo(TextType.get().valueOf("a"));
+    // a source obtained before the refresh keeps reading its snapshot
+    assertThat(previous.getValue(valueSet)).isEqualTo(IntegerType.get().valueOf(1L));
+  }
+
+  @Test(expected = NoSuchValueSetException.class)
+  public void test_unknown_value_set() {
+    ColumnarValueTable table = new ColumnarValueTable(createSourceTable());
+    Initialisables.initialise(table);
+    table.getValueSet(new VariableEntityBean(PARTICIPANT, "4"));
+  }
+
+}
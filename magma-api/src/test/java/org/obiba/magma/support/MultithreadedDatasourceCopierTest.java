@@ -0,0 +1,155 @@
+package org.obiba.magma.support;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.validation.constraints.NotNull;
+
+import org.junit.Test;
+import org.obiba.magma.ConcurrentlyWritable;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueTableWriter;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.IntegerType;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Sets;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class MultithreadedDatasourceCopierTest extends AbstractMagmaTest {
+
+  private static final int NB_ENTITIES = 500;
+
+  private StaticValueTable createTable() {
+    List<String> identifiers = Lists.newArrayList();
+    for(int i = 0; i < NB_ENTITIES; i++) {
+      identifiers.add(String.format("%04d", i));
+    }
+    StaticDatasource datasource = new StaticDatasource("source");
+    StaticValueTable table = new StaticValueTable(datasource, "table", identifiers);
+    table.addVariables(IntegerType.get(), "var");
+    for(int i = 0; i < NB_ENTITIES; i++) {
+      table.addValues(identifiers.get(i), "var", (long) i);
+    }
+    datasource.addValueTable(table);
+    return table;
+  }
+
+  @Test
+  public void test_concurrent_writers_write_each_value_set_once() throws IOException {
+    RecordingDatasource destination = new RecordingDatasource(true, null);
+    MultithreadedDatasourceCopier.Builder.newCopier().from(createTable()).to(destination).withReaders(3)
+        .withWriters(4).withQueueSize(5).build().copy();
+
+    assertThat(destination.writtenEntities).hasSize(NB_ENTITIES);
+    assertThat(destination.writtenEntities.elementSet()).hasSize(NB_ENTITIES);
+    assertThat(destination.valueSetWriters).hasSize(4);
+    // all the writers were open at the same time
+    assertThat(destination.maxOpenWriters.get()).isEqualTo(4);
+  }
+
+  @Test
+  public void test_non_concurrent_datasource_is_written_by_one_writer() throws IOException {
+    RecordingDatasource destination = new RecordingDatasource(false, null);
+    MultithreadedDatasourceCopier.Builder.newCopier().from(createTable()).to(destination).withReaders(3)
+        .withWriters(4).build().copy();
+
+    assertThat(destination.writtenEntities).hasSize(NB_ENTITIES);
+    assertThat(destination.writtenEntities.elementSet()).hasSize(NB_ENTITIES);
+    assertThat(destination.valueSetWriters).hasSize(1);
+  }
+
+  @Test(timeout = 30000)
+  public void test_failing_writer_fails_the_copy() throws IOException {
+    RecordingDatasource destination = new RecordingDatasource(true, "0100");
+    try {
+      MultithreadedDatasourceCopier.Builder.newCopier().from(createTable()).to(destination).withReaders(3)
+          .withWriters(4).withQueueSize(2).build().copy();
+      fail("Should throw the exception of the writer");
+    } catch(IllegalStateException e) {
+      assertThat(e.getMessage()).isEqualTo("Cannot write 0100");
+    }
+  }
+
+  /**
+   * Records the entities written by each table writer, and fails to write the value set of an entity.
+   */
+  private static class RecordingDatasource extends StaticDatasource implements ConcurrentlyWritable {
+
+    private final boolean concurrent;
+
+    private final String failingIdentifier;
+
+    private final Multiset<String> writtenEntities = ConcurrentHashMultiset.create();
+
+    private final Set<ValueTableWriter> valueSetWriters = Sets.newConcurrentHashSet();
+
+    private final AtomicInteger openWriters = new AtomicInteger();
+
+    private final AtomicInteger maxOpenWriters = new AtomicInteger();
+
+    private RecordingDatasource(boolean concurrent, String failingIdentifier) {
+      super("destination");
+      this.concurrent = concurrent;
+      this.failingIdentifier = failingIdentifier;
+    }
+
+    @Override
+    public boolean canWriteConcurrently() {
+      return concurrent;
+    }
+
+    @NotNull
+    @Override
+    public ValueTableWriter createWriter(@NotNull String tableName, @NotNull String entityType) {
+      final ValueTableWriter writer = super.createWriter(tableName, entityType);
+      int open = openWriters.incrementAndGet();
+      if(open > maxOpenWriters.get()) maxOpenWriters.set(open);
+      return new ValueTableWriter() {
+
+        @Override
+        public VariableWriter writeVariables() {
+          return writer.writeVariables();
+        }
+
+        @NotNull
+        @Override
+        public ValueSetWriter writeValueSet(@NotNull final VariableEntity entity) {
+          valueSetWriters.add(this);
+          if(entity.getIdentifier().equals(failingIdentifier)) {
+            throw new IllegalStateException("Cannot write " + failingIdentifier);
+          }
+          return new ValueSetWriter() {
+
+            @Override
+            public void writeValue(@NotNull Variable variable, Value value) {
+            }
+
+            @Override
+            public void remove() {
+            }
+
+            @Override
+            public void close() {
+              writtenEntities.add(entity.getIdentifier());
+            }
+          };
+        }
+
+        @Override
+        public void close() {
+          openWriters.decrementAndGet();
+        }
+      };
+    }
+  }
+
+}
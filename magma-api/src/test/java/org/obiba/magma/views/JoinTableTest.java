@@ -2,6 +2,7 @@ package org.obiba.magma.views;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -9,15 +10,24 @@ import java.util.Set;
 import org.junit.Test;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchVariableException;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.TimestampsBean;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
+import org.obiba.magma.support.NullTimestamps;
+import org.obiba.magma.support.StaticDatasource;
+import org.obiba.magma.support.StaticValueTable;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.test.AbstractMagmaTest;
+import org.obiba.magma.type.DateTimeType;
 import org.obiba.magma.type.TextType;
+import org.obiba.magma.views.support.AllClause;
+import org.obiba.magma.views.support.NoneClause;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -170,6 +180,85 @@ public class JoinTableTest extends AbstractMagmaTest {
     assertThat(valueSets).hasSize(2);
   }
 
+  @Test
+  public void test_getVariableEntities_isSortedUnion() {
+    JoinTable joinTable = JoinTableBuilder.newBuilder() //
+        .withMockTable(newTableMock().withEntities("3", "1")) //
+        .withMockTable(newTableMock().withEntities("2", "1")).build();
+
+    assertThat(joinTable.getVariableEntities()).containsExactly(newEntity("1"), newEntity("2"), newEntity("3"));
+  }
+
+  @Test
+  public void test_getValueSets_doesNotProbeTables() {
+    // hasValueSet() is not expected by the mocks
+    JoinTable joinTable = JoinTableBuilder.newBuilder() //
+        .withMockTable(newTableMock().withEntities("1").withValueSetTimestamps("1")) //
+        .withMockTable(newTableMock().withEntities("1", "2").withValueSetTimestamps("1", "2")) //
+        .withMockTable(newTableMock().withEntities()).build();
+
+    for(ValueSet valueSet : joinTable.getValueSets()) {
+      assertThat(valueSet.getTimestamps()).isNotNull();
+    }
+  }
+
+  @Test
+  public void test_getVariableEntities_isCachedUntilTablesChange() {
+    Timestamps timestamps = newTimestamps(1);
+    JoinTable joinTable = JoinTableBuilder.newBuilder() //
+        .withMockTable(newTableMock().withEntitiesOnce("1", "2").withTimestamps(timestamps)) //
+        .withMockTable(newTableMock().withEntitiesOnce("2", "3").withTimestamps(timestamps)).build();
+
+    assertThat(joinTable.getVariableEntities()).hasSize(3);
+    assertThat(joinTable.getVariableEntities()).hasSize(3);
+    assertThat(joinTable.getVariableEntityCount()).isEqualTo(3);
+    assertThat(joinTable.getValueSetCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void test_hasValueSet_and_getValueSet_useCachedEntities() {
+    // hasValueSet() is not expected by the mocks
+    Timestamps timestamps = newTimestamps(1);
+    JoinTable joinTable = JoinTableBuilder.newBuilder() //
+        .withMockTable(newTableMock().withEntitiesOnce("1", "2").withTimestamps(timestamps)) //
+        .withMockTable(newTableMock().withEntitiesOnce("2", "3").withTimestamps(timestamps) //
+            .withValueSetTimestamps("3")).build();
+
+    assertThat(joinTable.getVariableEntities()).hasSize(3);
+    assertThat(joinTable.hasValueSet(newEntity("2"))).isTrue();
+    assertThat(joinTable.hasValueSet(newEntity("4"))).isFalse();
+    assertThat(joinTable.getValueSet(newEntity("3")).getTimestamps()).isNotNull();
+  }
+
+  @Test
+  public void test_getVariableEntities_mergesChangedTable() {
+    // the entities of the first table are read once
+    JoinTable joinTable = JoinTableBuilder.newBuilder() //
+        .withMockTable(newTableMock().withEntitiesOnce("1", "2").withTimestamps(newTimestamps(1))) //
+        .withMockTable(newTableMock().withEntitiesOnce("2", "3").withEntitiesOnce("4") //
+            .withTimestamps(newTimestamps(1), newTimestamps(2))).build();
+
+    assertThat(joinTable.getVariableEntities()).containsExactly(newEntity("1"), newEntity("2"), newEntity("3"));
+    assertThat(joinTable.getVariableEntities()).containsExactly(newEntity("1"), newEntity("2"), newEntity("4"));
+  }
+
+  @Test
+  public void test_getVariableEntities_followsViewWhereClause() {
+    StaticDatasource datasource = new StaticDatasource("ds");
+    StaticValueTable table1 = new StaticValueTable(datasource, "table1", ImmutableList.of("1", "2"));
+    table1.addVariables(TextType.get(), "var1");
+    StaticValueTable table2 = new StaticValueTable(datasource, "table2", ImmutableList.of("2", "3"));
+    table2.addVariables(TextType.get(), "var2");
+    View view = new View("view", table1);
+    JoinTable joinTable = new JoinTable(ImmutableList.<ValueTable>of(view, table2));
+
+    assertThat(joinTable.getVariableEntities()).containsExactly(newEntity("1"), newEntity("2"), newEntity("3"));
+    view.setWhereClause(new NoneClause());
+    assertThat(joinTable.getVariableEntities()).containsExactly(newEntity("2"), newEntity("3"));
+    view.setWhereClause(new AllClause());
+    assertThat(joinTable.getVariableEntities()).containsExactly(newEntity("1"), newEntity("2"), newEntity("3"));
+  }
+
   @Test
   public void test_hasValueSet() {
     JoinTable joinTable = JoinTableBuilder.newBuilder() //
@@ -239,6 +328,11 @@ public class JoinTableTest extends AbstractMagmaTest {
     return new VariableEntityBean(PARTICIPANT_ENTITY_TYPE, entityIdentifier);
   }
 
+  private static Timestamps newTimestamps(long lastUpdate) {
+    return new TimestampsBean(DateTimeType.get().valueOf(new Date(0)),
+        DateTimeType.get().valueOf(new Date(lastUpdate)));
+  }
+
   //
   // Helper Methods
   //
@@ -293,6 +387,8 @@ public class JoinTableTest extends AbstractMagmaTest {
 
     private final Collection<Variable> variables = new HashSet<>();
 
+    private boolean withTimestamps;
+
     static MockValueTableBuilder newTableMock() {
       return newTableMock(PARTICIPANT_ENTITY_TYPE);
     }
@@ -342,7 +438,35 @@ public class JoinTableTest extends AbstractMagmaTest {
       return this;
     }
 
+    MockValueTableBuilder withEntitiesOnce(String... identifiers) {
+      expect(mock.getVariableEntities()).andReturn(createEntitySet(entityType, identifiers)).once();
+      return this;
+    }
+
+    /**
+     * The last timestamps are returned any times.
+     */
+    MockValueTableBuilder withTimestamps(Timestamps... timestamps) {
+      for(int i = 0; i < timestamps.length - 1; i++) {
+        expect(mock.getTimestamps()).andReturn(timestamps[i]).once();
+      }
+      expect(mock.getTimestamps()).andReturn(timestamps[timestamps.length - 1]).anyTimes();
+      withTimestamps = true;
+      return this;
+    }
+
+    MockValueTableBuilder withValueSetTimestamps(String... identifiers) {
+      for(String identifier : identifiers) {
+        expect(mock.getValueSetTimestamps(new VariableEntityBean(entityType, identifier)))
+            .andReturn(NullTimestamps.get()).once();
+      }
+      return this;
+    }
+
     ValueTable build() {
+      if(!withTimestamps) {
+        expect(mock.getTimestamps()).andReturn(NullTimestamps.get()).anyTimes();
+      }
       replay(mock);
       return mock;
     }
@@ -55,6 +55,8 @@ public class CsvDatasource extends AbstractDatasource {
 
   private int firstRow = 1;
 
+  private boolean persistIndex = false;
+
   public CsvDatasource(String name) {
     super(name, TYPE);
   }
@@ -180,6 +182,13 @@ public class CsvDatasource extends AbstractDatasource {
     return new CSVReader(reader, separator.getCharacter(), quote.getCharacter(), DEL_CHAR, getFirstRow() - 1);
   }
 
+  /**
+   * Returns a reader of the records of a reader already positioned at the start of a record: no header row is skipped.
+   */
+  CSVReader getCsvRecordReader(Reader reader) {
+    return new CSVReader(reader, separator.getCharacter(), quote.getCharacter(), DEL_CHAR);
+  }
+
   CSVParser getCsvParser() {
     // we don't want escape processing try DEL as a rare character until we can turn it off
     return new CSVParser(separator.getCharacter(), quote.getCharacter(), DEL_CHAR);
@@ -225,4 +234,16 @@ public class CsvDatasource extends AbstractDatasource {
     return firstRow;
   }
 
+  /**
+   * When true, the index of each data file is persisted in a sidecar file (data file name suffixed by {@code .idx})
+   * and reloaded on initialisation as long as the data file did not change.
+   */
+  public void setPersistIndex(boolean persistIndex) {
+    this.persistIndex = persistIndex;
+  }
+
+  public boolean isPersistIndex() {
+    return persistIndex;
+  }
+
 }
@@ -0,0 +1,144 @@
+package org.obiba.magma.datasource.csv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.VariableEntityBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar file of a csv data file, in which the entity index and the header of the data file are persisted so that
+ * they do not need to be rebuilt by scanning the data file on each initialisation.
+ * <p/>
+ * The index is valid as long as the data file has the same size, last modification date and header checksum, and as
+ * long as it is read with the same parsing settings.
+ */
+class CsvIndexFile {
+
+  private static final Logger log = LoggerFactory.getLogger(CsvIndexFile.class);
+
+  static final String SUFFIX = ".idx";
+
+  private static final int VERSION = 1;
+
+  /**
+   * Number of bytes at the start of the data file covered by the checksum
+   */
+  private static final int HEADER_CHECKSUM_LENGTH = 4096;
+
+  private final File dataFile;
+
+  private final File file;
+
+  /**
+   * Settings that change the content of the index
+   */
+  private final String settings;
+
+  private int duplicateIdCount;
+
+  CsvIndexFile(File dataFile, String settings) {
+    this.dataFile = dataFile;
+    this.settings = settings;
+    file = new File(dataFile.getParentFile(), dataFile.getName() + SUFFIX);
+  }
+
+  /**
+   * Loads the index if the sidecar file exists and is valid for the data file.
+   *
+   * @return true if the index was loaded
+   */
+  boolean load(String entityType, Map<VariableEntity, CsvIndexEntry> entityIndex, Map<String, Integer> headerMap) {
+    if(!file.exists()) return false;
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if(in.readInt() != VERSION || !settings.equals(in.readUTF()) || in.readLong() != dataFile.length() ||
+          in.readLong() != dataFile.lastModified() || in.readLong() != headerChecksum()) {
+        log.debug("Outdated index file {}", file);
+        return false;
+      }
+      int headerSize = in.readInt();
+      for(int i = 0; i < headerSize; i++) {
+        headerMap.put(in.readUTF(), in.readInt());
+      }
+      int size = in.readInt();
+      for(int i = 0; i < size; i++) {
+        entityIndex.put(new VariableEntityBean(entityType, in.readUTF()), new CsvIndexEntry(in.readLong(), in.readLong()));
+      }
+      duplicateIdCount = in.readInt();
+      return true;
+    } catch(IOException e) {
+      log.warn("Unable to read index file {}", file, e);
+      entityIndex.clear();
+      headerMap.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Saves the index of the data file in its current state. Failing to save it is not an error, the data file will be
+   * scanned again on the next initialisation.
+   */
+  void save(Map<VariableEntity, CsvIndexEntry> entityIndex, Map<String, Integer> headerMap, int duplicateIdCount) {
+    try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(VERSION);
+      out.writeUTF(settings);
+      out.writeLong(dataFile.length());
+      out.writeLong(dataFile.lastModified());
+      out.writeLong(headerChecksum());
+      out.writeInt(headerMap.size());
+      for(Map.Entry<String, Integer> entry : headerMap.entrySet()) {
+        out.writeUTF(entry.getKey());
+        out.writeInt(entry.getValue());
+      }
+      out.writeInt(entityIndex.size());
+      for(Map.Entry<VariableEntity, CsvIndexEntry> entry : entityIndex.entrySet()) {
+        out.writeUTF(entry.getKey().getIdentifier());
+        out.writeLong(entry.getValue().getStart());
+        out.writeLong(entry.getValue().getEnd());
+      }
+      out.writeInt(duplicateIdCount);
+    } catch(IOException e) {
+      log.warn("Unable to write index file {}", file, e);
+      delete();
+    }
+  }
+
+  /**
+   * Count of duplicate identifiers in the data file, as found when the loaded index was built.
+   */
+  int getDuplicateIdCount() {
+    return duplicateIdCount;
+  }
+
+  void delete() {
+    if(file.exists() && !file.delete()) {
+      log.warn("Unable to delete index file {}", file);
+    }
+  }
+
+  private long headerChecksum() throws IOException {
+    CRC32 crc = new CRC32();
+    try(InputStream in = new FileInputStream(dataFile)) {
+      byte[] buffer = new byte[HEADER_CHECKSUM_LENGTH];
+      int read = 0;
+      int n;
+      while(read < buffer.length && (n = in.read(buffer, read, buffer.length - read)) > 0) {
+        read += n;
+      }
+      crc.update(buffer, 0, read);
+    }
+    return crc.getValue();
+  }
+
+}
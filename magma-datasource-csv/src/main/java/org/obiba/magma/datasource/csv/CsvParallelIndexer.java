@@ -0,0 +1,228 @@
+package org.obiba.magma.datasource.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.csv.support.ByteOffsetLineReader;
+import org.obiba.magma.datasource.csv.support.LineEncoding;
+import org.obiba.magma.support.VariableEntityBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+/**
+ * Indexes the data records of a csv file by parsing byte ranges of the file concurrently on a fork-join pool.
+ * <p/>
+ * Ranges are cut at the end of a line, which is not necessarily the end of a record when a quoted value spans several
+ * lines. Each range is therefore parsed speculatively: when merging the ranges in file order, a range is kept only if
+ * its first record starts where the parsing of the previous range ended, otherwise it is parsed again from there. A
+ * speculative parse stops at the end of its range when a record is still not complete, so that a range that starts
+ * inside a quoted value does not join the rest of the file in a single record: the incomplete record is parsed again
+ * from its start once the range is known to be aligned.
+ */
+class CsvParallelIndexer {
+
+  private static final Logger log = LoggerFactory.getLogger(CsvParallelIndexer.class);
+
+  private final File file;
+
+  private final String characterSet;
+
+  private final char separator;
+
+  private final char quote;
+
+  private final int parallelism;
+
+  private final long chunkSize;
+
+  CsvParallelIndexer(File file, String characterSet, char separator, char quote, int parallelism, long chunkSize) {
+    this.file = file;
+    this.characterSet = characterSet;
+    this.separator = separator;
+    this.quote = quote;
+    this.parallelism = parallelism;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Indexes the records from the given byte offset to the end of the file. The first value of each record is the
+   * entity identifier. Entities are put in the index in file order, the last record of an entity wins.
+   *
+   * @param dataStart byte offset of the first data record
+   * @return the number of records indexed
+   * @throws IOException
+   */
+  int index(long dataStart, String entityType, Map<VariableEntity, CsvIndexEntry> entityIndex) throws IOException {
+    List<Long> starts = splitFrom(dataStart);
+    List<ChunkTask> tasks = new ArrayList<>(starts.size());
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      for(int i = 0; i < starts.size(); i++) {
+        long bound = i + 1 < starts.size() ? starts.get(i + 1) : Long.MAX_VALUE;
+        ChunkTask task = new ChunkTask(starts.get(i), bound);
+        tasks.add(task);
+        pool.execute(task);
+      }
+
+      int count = 0;
+      long expectedStart = dataStart;
+      for(ChunkTask task : tasks) {
+        Chunk chunk = task.join();
+        if(chunk.firstRecordStart != expectedStart) {
+          log.debug("Chunk at {} of {} is not aligned on a record, parse it again from {}", task.start, file.getName(),
+              expectedStart);
+          chunk = parse(expectedStart, task.bound, false);
+        } else if(chunk.truncated) {
+          log.debug("Record at {} of {} was not complete at the end of its chunk, parse it again", chunk.nextRecordStart,
+              file.getName());
+          chunk.append(parse(chunk.nextRecordStart, task.bound, false));
+        }
+        chunk.checkIdentifiers(file);
+        for(int i = 0; i < chunk.identifiers.size(); i++) {
+          entityIndex.put(new VariableEntityBean(entityType, chunk.identifiers.get(i)), chunk.entries.get(i));
+        }
+        count += chunk.identifiers.size();
+        expectedStart = chunk.nextRecordStart;
+      }
+      return count;
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Offsets of the ranges to parse: the first one is the data start, the next ones are the starts of the lines that
+   * follow each chunk size.
+   */
+  private List<Long> splitFrom(long dataStart) throws IOException {
+    List<Long> starts = new ArrayList<>();
+    starts.add(dataStart);
+    LineEncoding encoding = LineEncoding.forFile(file, characterSet);
+    long length = file.length();
+    long start = dataStart;
+    while(start + chunkSize < length) {
+      start = nextLineStart(encoding.alignToUnit(start + chunkSize));
+      if(start >= length) break;
+      starts.add(start);
+    }
+    return starts;
+  }
+
+  /**
+   * Returns the offset of the first byte that follows the end of line characters found from the given offset, which
+   * is the start of a code unit.
+   */
+  private long nextLineStart(long offset) throws IOException {
+    try(ByteOffsetLineReader reader = CsvRecordReader.openLineReader(file, characterSet, offset)) {
+      reader.readLine();
+      return reader.getCursorPosition();
+    }
+  }
+
+  /**
+   * Parses the records that start from the given offset and before the given bound. A speculative parse is truncated
+   * at the bound when a record is not complete there.
+   */
+  private Chunk parse(long start, long bound, boolean speculative) throws IOException {
+    Chunk chunk = new Chunk();
+    try(CsvRecordReader reader = new CsvRecordReader(file, characterSet,
+        new CSVParser(separator, quote, CsvDatasource.DEL_CHAR), start)) {
+      if(speculative) reader.setPendingLimit(bound);
+      String[] values;
+      while((values = reader.readNext()) != null) {
+        long recordStart = reader.getRecordStart();
+        if(chunk.firstRecordStart < 0) chunk.firstRecordStart = recordStart;
+        if(recordStart >= bound) {
+          chunk.nextRecordStart = recordStart;
+          return chunk;
+        }
+        chunk.identifiers.add(values[0]);
+        chunk.entries.add(new CsvIndexEntry(recordStart, reader.getRecordEnd()));
+      }
+      if(reader.isTruncated()) {
+        chunk.nextRecordStart = reader.getNextRecordStart();
+        if(chunk.firstRecordStart < 0) chunk.firstRecordStart = chunk.nextRecordStart;
+        // a record that starts from the bound belongs to the next chunk
+        chunk.truncated = chunk.nextRecordStart < bound;
+        return chunk;
+      }
+    }
+    chunk.nextRecordStart = file.length();
+    if(chunk.firstRecordStart < 0) chunk.firstRecordStart = chunk.nextRecordStart;
+    return chunk;
+  }
+
+  private static class Chunk {
+
+    private long firstRecordStart = -1;
+
+    private long nextRecordStart;
+
+    private final List<String> identifiers = new ArrayList<>();
+
+    private final List<CsvIndexEntry> entries = new ArrayList<>();
+
+    /**
+     * True if the parsing stopped on a record that starts before the bound but was not complete at the bound
+     */
+    private boolean truncated;
+
+    /**
+     * Appends the records of the chunk parsed from the record this chunk was truncated at.
+     */
+    private void append(Chunk next) {
+      identifiers.addAll(next.identifiers);
+      entries.addAll(next.entries);
+      nextRecordStart = next.nextRecordStart;
+      truncated = false;
+    }
+
+    private void checkIdentifiers(File file) {
+      for(int i = 0; i < identifiers.size(); i++) {
+        if(Strings.isNullOrEmpty(identifiers.get(i))) {
+          throw new MagmaRuntimeException(
+              "Cannot find identifier for record at byte " + entries.get(i).getStart() + " in file " + file.getName());
+        }
+      }
+    }
+
+  }
+
+  private class ChunkTask extends RecursiveTask<Chunk> {
+
+    private static final long serialVersionUID = -2468710425392829405L;
+
+    private final long start;
+
+    private final long bound;
+
+    private ChunkTask(long start, long bound) {
+      this.start = start;
+      this.bound = bound;
+    }
+
+    @Override
+    protected Chunk compute() {
+      try {
+        return parse(start, bound, true);
+      } catch(IOException | RuntimeException e) {
+        // a chunk that does not start on a record may not be parsable, it will be parsed again from a record start
+        log.debug("Unable to parse chunk at {} of {}", start, file.getName(), e);
+        return new Chunk();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,87 @@
+package org.obiba.magma.datasource.csv;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import org.obiba.magma.datasource.csv.support.LineEncoding;
+
+import au.com.bytecode.opencsv.CSVWriter;
+
+/**
+ * Appends records at the end of a csv file through a single buffered stream, and keeps track of the byte offsets of
+ * each record written. Records are encoded in the byte order of the file, without byte order mark (see
+ * {@link LineEncoding}): the one of the character set is only written at the start of an empty file. Records are
+ * formatted in a line buffer that is reused from one record to the next.
+ * <p/>
+ * Appended records are only guaranteed to be in the file once {@link #flush()} or {@link #close()} has been called.
+ */
+class CsvRecordAppender implements Closeable, Flushable {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final OutputStream out;
+
+  private final LineEncoding encoding;
+
+  private final StringWriter line = new StringWriter(256);
+
+  private final CSVWriter lineWriter;
+
+  /**
+   * Offset of the end of the file, including the buffered records
+   */
+  private long position;
+
+  CsvRecordAppender(File file, String characterSet, char separator, char quote) throws IOException {
+    encoding = LineEncoding.forFile(file, characterSet);
+    position = file.length();
+    out = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+    lineWriter = new CSVWriter(line, separator, quote);
+    if(position == 0) {
+      byte[] byteOrderMark = encoding.getByteOrderMark();
+      out.write(byteOrderMark);
+      position = byteOrderMark.length;
+    }
+  }
+
+  /**
+   * Appends a record.
+   *
+   * @return the offset of the start of the record
+   * @throws IOException
+   */
+  long append(String... values) throws IOException {
+    line.getBuffer().setLength(0);
+    lineWriter.writeNext(values);
+    lineWriter.flush();
+    byte[] bytes = encoding.encode(line.toString());
+    long start = position;
+    out.write(bytes);
+    position += bytes.length;
+    return start;
+  }
+
+  /**
+   * Offset of the end of the last record appended.
+   */
+  long getPosition() {
+    return position;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+}
@@ -0,0 +1,172 @@
+package org.obiba.magma.datasource.csv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.datasource.csv.support.ByteOffsetLineReader;
+import org.obiba.magma.datasource.csv.support.LineEncoding;
+
+import au.com.bytecode.opencsv.CSVParser;
+
+/**
+ * Reads the records of a csv file front to back, along with the byte offsets and the line number of each record (see
+ * {@link LineEncoding}). Records that span several lines are joined, blank (cleared) records are skipped.
+ */
+class CsvRecordReader implements Closeable {
+
+  private final ByteOffsetLineReader reader;
+
+  private final CSVParser parser;
+
+  private int line = 0;
+
+  private long start = 0;
+
+  private long recordStart;
+
+  private long recordEnd;
+
+  private int recordLineNumber;
+
+  private boolean hasReadLines = false;
+
+  private long pendingLimit = Long.MAX_VALUE;
+
+  private boolean truncated = false;
+
+  CsvRecordReader(File file, String characterSet, CSVParser parser) throws IOException {
+    this(file, characterSet, parser, 0);
+  }
+
+  /**
+   * Reads the records from the given offset, that must be the start of a line. Line numbers are then relative to this
+   * offset.
+   */
+  CsvRecordReader(File file, String characterSet, CSVParser parser, long offset) throws IOException {
+    reader = openLineReader(file, characterSet, offset);
+    this.parser = parser;
+    start = reader.getCursorPosition();
+  }
+
+  /**
+   * Opens a reader of the lines of a file from the given byte offset. The byte order mark at the start of the file, if
+   * any, is skipped.
+   */
+  static ByteOffsetLineReader openLineReader(File file, String characterSet, long offset) throws IOException {
+    LineEncoding encoding = LineEncoding.forFile(file, characterSet);
+    long start = Math.max(offset, encoding.getByteOrderMarkLength());
+    FileInputStream in = new FileInputStream(file);
+    try {
+      in.getChannel().position(start);
+    } catch(IOException e) {
+      in.close();
+      throw e;
+    }
+    return new ByteOffsetLineReader(in, encoding, ByteOffsetLineReader.DEFAULT_BUFFER_SIZE, start);
+  }
+
+  /**
+   * Reads the next record.
+   *
+   * @return the values of the record, or null if the end of the file has been reached
+   * @throws IOException
+   */
+  @Nullable
+  String[] readNext() throws IOException {
+    List<String> values = new ArrayList<>();
+    int innerline = 0;
+    String nextLine;
+    while((nextLine = reader.readLine()) != null) {
+      hasReadLines = true;
+      if(!parser.isPending() && nextLine.trim().isEmpty()) {
+        // record that was cleared by an update
+        start = reader.getCursorPosition();
+        line++;
+        continue;
+      }
+
+      Collections.addAll(values, parser.parseLineMulti(nextLine));
+      if(parser.isPending()) {
+        // we are in a multiline entry
+        innerline++;
+        line++;
+        if(reader.getCursorPosition() > pendingLimit) {
+          truncated = true;
+          return null;
+        }
+      } else {
+        recordLineNumber = line - innerline;
+        recordStart = start;
+        recordEnd = reader.getCursorPosition();
+        start = recordEnd;
+        line++;
+        return values.toArray(new String[values.size()]);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sets the offset past which a record that is still not complete is abandoned: {@link #readNext()} then returns
+   * null and {@link #isTruncated()} returns true. This bounds the reading of records from an offset that may be inside
+   * a quoted value, where the rest of the file could be joined in a single record.
+   */
+  void setPendingLimit(long pendingLimit) {
+    this.pendingLimit = pendingLimit;
+  }
+
+  /**
+   * Returns true if the reading stopped on a record that was not complete at the pending limit.
+   */
+  boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * Offset of the start of the record that follows the last record read.
+   */
+  long getNextRecordStart() {
+    return start;
+  }
+
+  /**
+   * Offset of the start of the last record read.
+   */
+  long getRecordStart() {
+    return recordStart;
+  }
+
+  /**
+   * Offset of the end of the last record read.
+   */
+  long getRecordEnd() {
+    return recordEnd;
+  }
+
+  /**
+   * Line number (starting at 0) of the first line of the last record read.
+   */
+  int getRecordLineNumber() {
+    return recordLineNumber;
+  }
+
+  /**
+   * Returns true if at least one line, even blank, was read.
+   */
+  boolean hasReadLines() {
+    return hasReadLines;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+}
@@ -3,16 +3,21 @@ package org.obiba.magma.datasource.csv;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -30,7 +35,8 @@ import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.datasource.csv.converter.VariableConverter;
-import org.obiba.magma.datasource.csv.support.BufferedReaderEolSupport;
+import org.obiba.magma.datasource.csv.support.ByteOffsetLineReader;
+import org.obiba.magma.datasource.csv.support.LineEncoding;
 import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.DatasourceParsingException;
 import org.obiba.magma.support.VariableEntityBean;
@@ -44,7 +50,6 @@ import com.google.common.base.Strings;
 
 import au.com.bytecode.opencsv.CSVParser;
 import au.com.bytecode.opencsv.CSVReader;
-import au.com.bytecode.opencsv.CSVWriter;
 
 @SuppressWarnings({ "OverlyCoupledClass", "OverlyComplexClass" })
 public class CsvValueTable extends AbstractValueTable implements Initialisable, Disposable {
@@ -57,6 +62,18 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
 
   private static final Logger log = LoggerFactory.getLogger(CsvValueTable.class);
 
+  /**
+   * Data files from this size are indexed by several threads
+   */
+  private static final long PARALLEL_INDEX_MIN_LENGTH = 64L * 1024 * 1024;
+
+  private static final long PARALLEL_INDEX_CHUNK_SIZE = 16L * 1024 * 1024;
+
+  /**
+   * Number of value sets read each time the data file is opened when streaming the value sets
+   */
+  static final int VALUE_SETS_BATCH_SIZE = 1000;
+
   private ValueTable refTable;
 
   @Nullable
@@ -93,6 +110,18 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
 
   private int duplicateIdCount = 0;
 
+  /**
+   * Channel shared by the value set reads, in which records are read at the byte offsets of the entity index
+   */
+  @Nullable
+  private FileChannel dataChannel;
+
+  /**
+   * Encoding of the records read from the data channel, in the byte order of the data file
+   */
+  @Nullable
+  private LineEncoding dataEncoding;
+
   public CsvValueTable(Datasource datasource, String name, File dataFile, String entityType) {
     this(datasource, name, null, dataFile, entityType);
   }
@@ -131,15 +160,33 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     if(indexEntry == null) {
       throw new NoSuchValueSetException(this, entity);
     }
-    try(Reader reader = getCsvDatasource().getReader(dataFile)) {
-      CSVReader csvReader = getCsvDatasource().getCsvReader(reader);
-      skipSafely(reader, indexEntry.getStart());
-      return new CsvValueSet(this, entity, dataHeaderMap, csvReader.readNext());
+    try {
+      String[] values = readRecord(getDataChannel(), getDataEncoding(), indexEntry);
+      return new CsvValueSet(this, entity, dataHeaderMap, values);
     } catch(IOException e) {
       throw new MagmaRuntimeException(e);
     }
   }
 
+  /**
+   * Streams the value sets by parsing the data file once, front to back, instead of reading each record at its index
+   * entry. Value sets are returned in the order of the file. Records of an entity that were superseded by a later one
+   * (duplicate identifiers or updates) are skipped. The file is read by batches of value sets and closed after each
+   * batch, so that an iteration can be abandoned.
+   */
+  @Override
+  public Iterable<ValueSet> getValueSets() {
+    if(dataFile == null || !dataFile.exists()) {
+      return Collections.emptyList();
+    }
+    return new Iterable<ValueSet>() {
+      @Override
+      public Iterator<ValueSet> iterator() {
+        return new ValueSetIterator();
+      }
+    };
+  }
+
   @Override
   public void initialise() {
     try {
@@ -152,7 +199,62 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
   }
 
   @Override
-  public void dispose() {
+  public synchronized void dispose() {
+    if(dataChannel != null) {
+      try {
+        dataChannel.close();
+      } catch(IOException e) {
+        log.warn("Unable to close data file of table {}", getName(), e);
+      }
+      dataChannel = null;
+    }
+    dataEncoding = null;
+  }
+
+  /**
+   * Returns the channel on the data file, opened again if it was closed (by an interrupted read for instance).
+   */
+  private synchronized FileChannel getDataChannel() throws IOException {
+    if(dataChannel == null || !dataChannel.isOpen()) {
+      if(dataFile == null) {
+        throw new MagmaRuntimeException("Cannot read from null data file for table " + getName());
+      }
+      dataChannel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+    }
+    return dataChannel;
+  }
+
+  private synchronized LineEncoding getDataEncoding() throws IOException {
+    if(dataEncoding == null) {
+      //noinspection ConstantConditions
+      dataEncoding = LineEncoding.forFile(dataFile, getCharacterSet());
+    }
+    return dataEncoding;
+  }
+
+  /**
+   * Reads the record at the given byte offsets with a positional read, which does not change the position of the
+   * channel and can be done by several threads at the same time.
+   */
+  private String[] readRecord(FileChannel channel, LineEncoding encoding, CsvIndexEntry indexEntry)
+      throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) (indexEntry.getEnd() - indexEntry.getStart()));
+    while(buffer.hasRemaining()) {
+      if(channel.read(buffer, indexEntry.getStart() + buffer.position()) < 0) break;
+    }
+    String record = encoding.decode(buffer.array(), 0, buffer.position());
+    try(CSVReader csvReader = getCsvDatasource().getCsvRecordReader(new StringReader(record))) {
+      return csvReader.readNext();
+    }
+  }
+
+  /**
+   * Reads the record at the given offsets of a file opened for this read only.
+   */
+  private String[] readRecord(File file, CsvIndexEntry indexEntry) throws IOException {
+    try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return readRecord(channel, LineEncoding.forFile(file, getCharacterSet()), indexEntry);
+    }
   }
 
   private void initialiseVariables() throws IOException {
@@ -250,14 +352,26 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     missingVariableNames = getMissingVariableNames();
   }
 
+  /**
+   * Returns an appender of records at the end of the variables file, or null if this table has no variables file.
+   */
   @Nullable
-  CSVWriter getVariableWriter() {
-    return getCsvDatasource().getCsvWriter(variableFile);
+  CsvRecordAppender newVariableRecordAppender() throws IOException {
+    return variableFile == null ? null : newRecordAppender(variableFile);
   }
 
+  /**
+   * Returns an appender of records at the end of the data file, or null if this table has no data file.
+   */
   @Nullable
-  CSVWriter getValueWriter() {
-    return getCsvDatasource().getCsvWriter(dataFile);
+  CsvRecordAppender newDataRecordAppender() throws IOException {
+    return dataFile == null ? null : newRecordAppender(dataFile);
+  }
+
+  private CsvRecordAppender newRecordAppender(File file) throws IOException {
+    CsvDatasource datasource = getCsvDatasource();
+    return new CsvRecordAppender(file, getCharacterSet(), datasource.getSeparator().getCharacter(),
+        datasource.getQuote().getCharacter());
   }
 
   @Nullable
@@ -266,8 +380,54 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
   }
 
   private void initialiseData() throws IOException {
-    Map<Integer, CsvIndexEntry> map = buildDataLineIndex();
-    this.duplicateIdCount = map.size() - entityIndex.size();
+    CsvIndexFile indexFile = getIndexFile();
+    if(indexFile != null && loadDataIndex(indexFile)) return;
+
+    int parallelism = Runtime.getRuntime().availableProcessors();
+    if(dataFile != null && dataFile.length() >= PARALLEL_INDEX_MIN_LENGTH && parallelism > 1) {
+      int count = buildDataIndexInParallel(parallelism, PARALLEL_INDEX_CHUNK_SIZE);
+      duplicateIdCount = count - entityIndex.size();
+    } else {
+      Map<Integer, CsvIndexEntry> map = buildDataLineIndex();
+      duplicateIdCount = map.size() - entityIndex.size();
+    }
+    if(indexFile != null) indexFile.save(entityIndex, dataHeaderMap, duplicateIdCount);
+  }
+
+  private boolean loadDataIndex(CsvIndexFile indexFile) {
+    Map<VariableEntity, CsvIndexEntry> loadedIndex = new LinkedHashMap<>();
+    Map<String, Integer> loadedHeader = new HashMap<>();
+    //noinspection ConstantConditions
+    if(!indexFile.load(entityType, loadedIndex, loadedHeader)) return false;
+
+    log.debug("Loaded index of {} from {}{}", getName(), dataFile.getName(), CsvIndexFile.SUFFIX);
+    entityIndex.clear();
+    entityIndex.putAll(loadedIndex);
+    if(!dataHeaderMapInitialized) {
+      dataHeaderMap.putAll(loadedHeader);
+      dataHeaderMapInitialized = !loadedHeader.isEmpty();
+    }
+    duplicateIdCount = indexFile.getDuplicateIdCount();
+    isDataFileEmpty = dataFile.length() == 0;
+    return true;
+  }
+
+  /**
+   * Persists the current state of the data index, if the datasource is configured to do so. Called once the data file
+   * has been written to, so that the next initialisation does not scan it again.
+   */
+  void saveDataIndex() {
+    CsvIndexFile indexFile = getIndexFile();
+    if(indexFile != null) indexFile.save(entityIndex, dataHeaderMap, duplicateIdCount);
+  }
+
+  @Nullable
+  private CsvIndexFile getIndexFile() {
+    if(dataFile == null || !dataFile.exists() || !getCsvDatasource().isPersistIndex()) return null;
+    CsvDatasource datasource = getCsvDatasource();
+    String settings = datasource.getCharacterSet() + "|" + datasource.getSeparator().getCharacter() + "|" +
+        datasource.getQuote().getCharacter() + "|" + datasource.getFirstRow() + "|" + entityType;
+    return new CsvIndexFile(dataFile, settings);
   }
 
   @NotNull
@@ -281,10 +441,10 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     }
 
     CSVParser parser = getCsvDatasource().getCsvParser();
-    try(BufferedReaderEolSupport reader = new BufferedReaderEolSupport(getCsvDatasource().getReader(variableFile))) {
+    try(ByteOffsetLineReader reader = CsvRecordReader.openLineReader(variableFile, getCharacterSet(), 0)) {
       int line = 0;
       int innerline = 0;
-      long start = 0;
+      long start = reader.getCursorPosition();
       String nextLine = null;
       while((nextLine = reader.readLine()) != null) {
         parser.parseLineMulti(nextLine);
@@ -320,54 +480,78 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
       return lineNumberMap;
     }
 
-    CSVParser parser = getCsvDatasource().getCsvParser();
+    try(CsvRecordReader reader = newDataRecordReader()) {
+      String[] values;
+      while((values = reader.readNext()) != null) {
+        int lineNumber = reader.getRecordLineNumber();
+        if(lineNumber >= getCsvDatasource().getFirstRow()) {
+          log.trace("[{}:{}] {}", dataFile.getName(), lineNumber, Arrays.toString(values));
+          String identifier = values[0];
+          if(Strings.isNullOrEmpty(identifier)) {
+            throw new MagmaRuntimeException(
+                "Cannot find identifier for line " + lineNumber + " in file " + dataFile.getName());
+          }
+          CsvIndexEntry indexEntry = new CsvIndexEntry(reader.getRecordStart(), reader.getRecordEnd());
+          lineNumberMap.put(lineNumber, indexEntry);
+          entityIndex.put(new VariableEntityBean(entityType, identifier), indexEntry);
+        } else if(!dataHeaderMapInitialized) {
+          // first line(s) is headers = entity_id + variable names
+          for(int i = 1; i < values.length; i++) {
+            dataHeaderMap.put(values[i].trim(), i);
+          }
+          dataHeaderMapInitialized = true;
+        }
+      }
+      isDataFileEmpty = !reader.hasReadLines();
+    }
 
-    try(BufferedReaderEolSupport reader = new BufferedReaderEolSupport(getCsvDatasource().getReader(dataFile))) {
-      int line = 0;
-      int innerline = 0;
-      long start = 0;
-      String nextLine = null;
-      List<String> multiLineValues = new ArrayList<>();
-      while((nextLine = reader.readLine()) != null) {
-        if(isDataFileEmpty) isDataFileEmpty = false;
+    if(log.isTraceEnabled()) traceLineNumberMap(lineNumberMap, dataFile);
 
-        String[] values = parser.parseLineMulti(nextLine);
-        Collections.addAll(multiLineValues, values);
-        if(parser.isPending()) {
-          // we are in a multiline entry
-          innerline++;
-        } else {
-          long cursorPosition = reader.getCursorPosition();
+    return lineNumberMap;
+  }
 
-          int lineNumber = line - innerline;
-          if(lineNumber >= getCsvDatasource().getFirstRow()) {
-            log.trace("[{}:{}] {}", dataFile.getName(), lineNumber, nextLine);
-            String identifier = multiLineValues.get(0);
-            if(Strings.isNullOrEmpty(identifier)) {
-              throw new MagmaRuntimeException(
-                  "Cannot find identifier for line " + line + " in file " + dataFile.getName());
-            }
-            CsvIndexEntry indexEntry = new CsvIndexEntry(start, cursorPosition);
-            lineNumberMap.put(lineNumber, indexEntry);
-            entityIndex.put(new VariableEntityBean(entityType, identifier), indexEntry);
-          } else if(!dataHeaderMapInitialized) {
-            // first line(s) is headers = entity_id + variable names
-            for(int i = 1; i < values.length; i++) {
-              dataHeaderMap.put(values[i].trim(), i);
-            }
-            dataHeaderMapInitialized = true;
+  /**
+   * Reads the header of the data file and indexes its records concurrently, by chunks of the given size.
+   *
+   * @return the number of records indexed
+   */
+  @VisibleForTesting
+  int buildDataIndexInParallel(int parallelism, long chunkSize) throws IOException {
+    isDataFileEmpty = true;
+    if(dataFile == null || !dataFile.exists()) return 0;
+
+    long dataStart = dataFile.length();
+    try(CsvRecordReader reader = newDataRecordReader()) {
+      String[] values;
+      while((values = reader.readNext()) != null) {
+        if(reader.getRecordLineNumber() >= getCsvDatasource().getFirstRow()) {
+          dataStart = reader.getRecordStart();
+          break;
+        }
+        if(!dataHeaderMapInitialized) {
+          for(int i = 1; i < values.length; i++) {
+            dataHeaderMap.put(values[i].trim(), i);
           }
-          multiLineValues.clear();
-          innerline = 0;
-          start = cursorPosition;
+          dataHeaderMapInitialized = true;
         }
-        line++;
       }
+      isDataFileEmpty = !reader.hasReadLines();
     }
+    if(dataStart >= dataFile.length()) return 0;
 
-    if(log.isTraceEnabled()) traceLineNumberMap(lineNumberMap, dataFile);
+    CsvDatasource datasource = getCsvDatasource();
+    return new CsvParallelIndexer(dataFile, getCharacterSet(), datasource.getSeparator().getCharacter(),
+        datasource.getQuote().getCharacter(), parallelism, chunkSize).index(dataStart, entityType, entityIndex);
+  }
 
-    return lineNumberMap;
+  private CsvRecordReader newDataRecordReader() throws IOException {
+    //noinspection ConstantConditions
+    return new CsvRecordReader(dataFile, getCharacterSet(), getCsvDatasource().getCsvParser());
+  }
+
+  private CsvRecordReader newDataRecordReader(long offset) throws IOException {
+    //noinspection ConstantConditions
+    return new CsvRecordReader(dataFile, getCharacterSet(), getCsvDatasource().getCsvParser(), offset);
   }
 
   private <T extends CsvIndexEntry> void traceLineNumberMap(Map<Integer, T> lineNumberMap, File file) {
@@ -377,21 +561,25 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     for(Map.Entry<Integer, T> entry : lineNumberMap.entrySet()) {
       CsvIndexEntry indexEntry = entry.getValue();
       log.trace("{}: {}", entry.getKey(), indexEntry);
-      try(Reader reader = getCsvDatasource().getReader(file)) {
-        CSVReader csvReader = getCsvDatasource().getCsvReader(reader);
-        skipSafely(reader, indexEntry.getStart());
-        log.trace("   '{}'", Arrays.toString(csvReader.readNext()));
+      try {
+        log.trace("   '{}'", Arrays.toString(readRecord(file, indexEntry)));
       } catch(IOException e) {
         throw new MagmaRuntimeException(e);
       }
     }
   }
 
+  /**
+   * Blanks the record at the given offsets. End of line characters are kept, so that the following record is still on
+   * its own line.
+   */
   public void clear(@NotNull File file, CsvIndexEntry indexEntry) throws IOException {
+    LineEncoding encoding = LineEncoding.forFile(file, getCharacterSet());
     try(RandomAccessFile raf = new RandomAccessFile(file, "rws")) {
-      int length = (int) (indexEntry.getEnd() - indexEntry.getStart());
-      byte[] fill = new byte[length];
-      Arrays.fill(fill, BLANKING_CHARACTER);
+      byte[] fill = new byte[(int) (indexEntry.getEnd() - indexEntry.getStart())];
+      raf.seek(indexEntry.getStart());
+      raf.readFully(fill);
+      encoding.blank(fill);
       raf.seek(indexEntry.getStart());
       raf.write(fill);
     }
@@ -421,6 +609,62 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     }
   }
 
+  private class ValueSetIterator implements Iterator<ValueSet> {
+
+    private Iterator<ValueSet> batch = Collections.emptyIterator();
+
+    /**
+     * Offset of the record that follows the last batch
+     */
+    private long offset = 0;
+
+    private boolean lastBatch = false;
+
+    @Override
+    public boolean hasNext() {
+      while(!batch.hasNext() && !lastBatch) {
+        batch = readBatch();
+      }
+      return batch.hasNext();
+    }
+
+    @Override
+    public ValueSet next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return batch.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private Iterator<ValueSet> readBatch() {
+      List<ValueSet> valueSets = new ArrayList<>(VALUE_SETS_BATCH_SIZE);
+      // line numbers are relative to the offset: headers are only at the start of the file
+      boolean fromStart = offset == 0;
+      try(CsvRecordReader reader = fromStart ? newDataRecordReader() : newDataRecordReader(offset)) {
+        String[] values = null;
+        while(valueSets.size() < VALUE_SETS_BATCH_SIZE && (values = reader.readNext()) != null) {
+          if(fromStart && reader.getRecordLineNumber() < getCsvDatasource().getFirstRow()) continue;
+          VariableEntity entity = new VariableEntityBean(entityType, values[0]);
+          CsvIndexEntry indexEntry = entityIndex.get(entity);
+          // the record at the index entry of its entity is the current one
+          if(indexEntry != null && indexEntry.getStart() == reader.getRecordStart()) {
+            valueSets.add(new CsvValueSet(CsvValueTable.this, entity, dataHeaderMap, values));
+          }
+        }
+        lastBatch = values == null;
+        offset = reader.getNextRecordStart();
+      } catch(IOException e) {
+        throw new MagmaRuntimeException(e);
+      }
+      return valueSets.iterator();
+    }
+  }
+
   private class CSVVariableEntityProvider implements VariableEntityProvider {
 
     @NotNull
@@ -529,12 +773,26 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
   }
 
   public void updateDataIndex(VariableEntity entity, long lastByte, String... line) {
+    updateDataIndex(entity, lastByte, lastByte + lineLength(line));
+  }
+
+  /**
+   * Indexes the record of an entity written between the given byte offsets of the data file.
+   */
+  public void updateDataIndex(VariableEntity entity, long start, long end) {
     log.trace("entityIndex: {}", entityIndex);
-    entityIndex.put(entity, new CsvIndexEntry(lastByte, lastByte + lineLength(line)));
+    entityIndex.put(entity, new CsvIndexEntry(start, end));
   }
 
   public void updateVariableIndex(Variable variable, long lastByte, String... line) {
-    variableNameIndex.put(variable.getName(), new CsvIndexEntry(lastByte, lastByte + lineLength(line)));
+    updateVariableIndex(variable, lastByte, lastByte + lineLength(line));
+  }
+
+  /**
+   * Indexes the record of a variable written between the given byte offsets of the variables file.
+   */
+  public void updateVariableIndex(Variable variable, long start, long end) {
+    variableNameIndex.put(variable.getName(), new CsvIndexEntry(start, end));
     addVariableValueSource(new CsvVariableValueSource(variable));
   }
 
@@ -620,15 +878,6 @@ public class CsvValueTable extends AbstractValueTable implements Initialisable,
     return getCsvDatasource().getCharacterSet();
   }
 
-  /**
-   * Skips {@code skip} bytes in {@code reader} and tests that that amount of byte were effectively skipped. This method
-   * throws an IOException if the number of bytes actually skipped is not identical to the number of requested bytes to
-   * skip.
-   */
-  private void skipSafely(Reader reader, long skip) throws IOException {
-    if(reader.skip(skip) != skip) throw new IOException("error seeking in file");
-  }
-
   /**
    * Returns missing {@link Variable}s. All variables will be of the default value "text". Missing variables are created
    * for variables names specified in a csv data file that are not provided with associated {@link Variable}s when the
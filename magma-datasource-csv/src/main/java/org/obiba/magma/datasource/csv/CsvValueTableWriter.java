@@ -4,9 +4,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.MagmaRuntimeException;
@@ -20,14 +22,24 @@ import org.obiba.magma.support.DatasourceParsingException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import au.com.bytecode.opencsv.CSVWriter;
-
 public class CsvValueTableWriter implements ValueTableWriter {
 
   private static final Logger log = LoggerFactory.getLogger(CsvValueSet.class);
 
   private final CsvValueTable valueTable;
 
+  /**
+   * Appender of value sets to the data file, kept open for the lifetime of this writer
+   */
+  @Nullable
+  private CsvRecordAppender dataAppender;
+
+  /**
+   * Index entries of the value sets appended but not flushed yet: they are added to the table index once flushed, so
+   * that they are never read before being in the data file.
+   */
+  private final Map<VariableEntity, CsvIndexEntry> pendingIndex = new LinkedHashMap<>();
+
   public CsvValueTableWriter(CsvValueTable valueTable) {
     this.valueTable = valueTable;
   }
@@ -45,6 +57,41 @@ public class CsvValueTableWriter implements ValueTableWriter {
 
   @Override
   public void close() {
+    try {
+      if(dataAppender != null) {
+        flushData();
+        dataAppender.close();
+        dataAppender = null;
+      }
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    } finally {
+      valueTable.saveDataIndex();
+    }
+  }
+
+  private CsvRecordAppender getDataAppender() throws IOException {
+    if(dataAppender == null) {
+      dataAppender = valueTable.newDataRecordAppender();
+      if(dataAppender == null) {
+        throw new DatasourceParsingException(
+            "Cannot create data writer. Table " + valueTable.getName() + " does not have data file.",
+            "CsvCannotCreateWriter", valueTable.getName());
+      }
+    }
+    return dataAppender;
+  }
+
+  /**
+   * Writes the appended value sets to the data file and adds them to the table index.
+   */
+  private void flushData() throws IOException {
+    if(dataAppender == null) return;
+    dataAppender.flush();
+    for(Map.Entry<VariableEntity, CsvIndexEntry> entry : pendingIndex.entrySet()) {
+      valueTable.updateDataIndex(entry.getKey(), entry.getValue().getStart(), entry.getValue().getEnd());
+    }
+    pendingIndex.clear();
   }
 
   private class CsvVariableWriter implements VariableWriter {
@@ -54,19 +101,20 @@ public class CsvValueTableWriter implements ValueTableWriter {
       try {
 
         VariableConverter variableConverter = valueTable.getVariableConverter();
-        if(valueTable.isVariablesFileEmpty()) {
-          // Write Header
-          writeVariableToCsv(variableConverter.getHeader());
-          valueTable.setVariablesFileEmpty(false);
-        } else if(valueTable.hasVariable(variable.getName())) {
+        if(!valueTable.isVariablesFileEmpty() && valueTable.hasVariable(variable.getName())) {
           // doing an update.
           valueTable.clearVariable(variable);
         }
 
-        String[] line = variableConverter.marshal(variable);
-        long lastByte = valueTable.getVariablesLastByte();
-        writeVariableToCsv(line);
-        valueTable.updateVariableIndex(variable, lastByte, line);
+        try(CsvRecordAppender appender = newVariableAppender()) {
+          if(valueTable.isVariablesFileEmpty()) {
+            // Write Header
+            writeVariableToCsv(appender, variableConverter.getHeader());
+            valueTable.setVariablesFileEmpty(false);
+          }
+          long start = writeVariableToCsv(appender, variableConverter.marshal(variable));
+          valueTable.updateVariableIndex(variable, start, appender.getPosition());
+        }
       } catch(IOException e) {
         throw new MagmaRuntimeException(e);
       }
@@ -77,16 +125,19 @@ public class CsvValueTableWriter implements ValueTableWriter {
       throw new UnsupportedOperationException("Variable cannot be removed from a CSV file");
     }
 
-    private void writeVariableToCsv(String... strings) throws IOException {
-      try(CSVWriter writer = valueTable.getVariableWriter()) {
-        if(writer == null) {
-          throw new DatasourceParsingException(
-              "Cannot create variable writer. Table " + valueTable.getName() + " does not have variable file.",
-              "CsvCannotCreateWriter", valueTable.getName());
-        }
-        log.trace("write '{}'", Arrays.toString(strings));
-        writer.writeNext(strings);
+    private CsvRecordAppender newVariableAppender() throws IOException {
+      CsvRecordAppender appender = valueTable.newVariableRecordAppender();
+      if(appender == null) {
+        throw new DatasourceParsingException(
+            "Cannot create variable writer. Table " + valueTable.getName() + " does not have variable file.",
+            "CsvCannotCreateWriter", valueTable.getName());
       }
+      return appender;
+    }
+
+    private long writeVariableToCsv(CsvRecordAppender appender, String... strings) throws IOException {
+      log.trace("write '{}'", Arrays.toString(strings));
+      return appender.append(strings);
     }
 
     @Override
@@ -109,6 +160,15 @@ public class CsvValueTableWriter implements ValueTableWriter {
       //noinspection ConstantConditions
       csvLine = new CsvLine(entity, valueTable.getParentFile());
 
+      if(pendingIndex.containsKey(entity)) {
+        // value set written earlier by this writer: make it readable
+        try {
+          flushData();
+        } catch(IOException e) {
+          throw new MagmaRuntimeException(e);
+        }
+      }
+
       // Populate with existing values, if available
       if(valueTable.hasValueSet(entity)) {
         ValueSet valueSet = valueTable.getValueSet(entity);
@@ -139,11 +199,8 @@ public class CsvValueTableWriter implements ValueTableWriter {
         }
 
         // Writer Value set. Throw exception if doesn't match header
-        long lastByte = valueTable.getDataLastByte();
-        String[] line = csvLine.getLine();
-        writeValueToCsv(line);
-        // Update index
-        valueTable.updateDataIndex(entity, lastByte, line);
+        long start = writeValueToCsv(csvLine.getLine());
+        pendingIndex.put(entity, new CsvIndexEntry(start, getDataAppender().getPosition()));
       } catch(IOException e) {
         throw new RuntimeException(e);
       }
@@ -186,16 +243,9 @@ public class CsvValueTableWriter implements ValueTableWriter {
       csvLine.setHeaderMap(getExistingHeaderMap());
     }
 
-    private void writeValueToCsv(String... strings) throws IOException {
-      try(CSVWriter writer = valueTable.getValueWriter()) {
-        if(writer == null) {
-          throw new DatasourceParsingException(
-              "Cannot create data writer. Table " + valueTable.getName() + " does not have data file.",
-              "CsvCannotCreateWriter", valueTable.getName());
-        }
-        log.trace("write '{}'", Arrays.toString(strings));
-        writer.writeNext(strings);
-      }
+    private long writeValueToCsv(String... strings) throws IOException {
+      log.trace("write '{}'", Arrays.toString(strings));
+      return getDataAppender().append(strings);
     }
 
     private Map<String, Integer> getExistingHeaderMap() {
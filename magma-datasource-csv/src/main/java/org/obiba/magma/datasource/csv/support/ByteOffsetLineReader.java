@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.magma.datasource.csv.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads lines of text from a stream of bytes while keeping track of the byte offset of the cursor, so that the
+ * position of a line can be used to read it again directly from the file.
+ * <p/>
+ * Like {@link BufferedReaderEolSupport}, end of lines are not returned by {@link #readLine()} and consecutive end of
+ * line characters are skipped. The stream is scanned for end of line characters by code units of the
+ * {@link LineEncoding}, each line is then decoded on its own.
+ */
+public class ByteOffsetLineReader implements Closeable {
+
+  public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final InputStream in;
+
+  private final LineEncoding encoding;
+
+  private final int unitLength;
+
+  private final byte[] buffer;
+
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+  /**
+   * Number of valid bytes in the buffer
+   */
+  private int length;
+
+  /**
+   * Position of the next byte to read in the buffer
+   */
+  private int next;
+
+  /**
+   * Offset in the stream of the first byte of the buffer
+   */
+  private long bufferOffset;
+
+  public ByteOffsetLineReader(InputStream in, String characterSet) {
+    this(in, characterSet, DEFAULT_BUFFER_SIZE);
+  }
+
+  public ByteOffsetLineReader(InputStream in, String characterSet, int bufferSize) {
+    this(in, LineEncoding.forCharset(Charset.forName(characterSet)), bufferSize, 0);
+  }
+
+  /**
+   * @param offset offset in bytes of the first byte of the stream, when reading from the middle of a file: it must be
+   * the start of a code unit of the encoding, past the byte order mark
+   */
+  public ByteOffsetLineReader(InputStream in, LineEncoding encoding, int bufferSize, long offset) {
+    if(bufferSize <= 0) throw new IllegalArgumentException("Buffer size <= 0");
+    this.in = in;
+    this.encoding = encoding;
+    unitLength = encoding.getUnitLength();
+    bufferOffset = offset;
+    // whole code units fit in the buffer
+    buffer = new byte[Math.max(bufferSize - bufferSize % unitLength, unitLength)];
+  }
+
+  /**
+   * Reads a line of text, terminated by a line feed, a carriage return or both.
+   *
+   * @return the line without the line-termination characters, or null if the end of the stream has been reached
+   * @throws IOException
+   */
+  @Nullable
+  public String readLine() throws IOException {
+    line.reset();
+    while(true) {
+      if(next >= length && !fill()) {
+        return line.size() > 0 ? decodeLine() : null;
+      }
+      int i = next;
+      while(i < length && !encoding.isEndOfLine(buffer, i, length)) {
+        i += unitLength;
+      }
+      i = Math.min(i, length);
+      line.write(buffer, next, i - next);
+      next = i;
+      if(i < length) {
+        skipEndOfLines();
+        return decodeLine();
+      }
+    }
+  }
+
+  /**
+   * Returns the offset in bytes of the next character to be read.
+   */
+  public long getCursorPosition() {
+    return bufferOffset + next;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private void skipEndOfLines() throws IOException {
+    while((next < length || fill()) && encoding.isEndOfLine(buffer, next, length)) {
+      next += unitLength;
+    }
+  }
+
+  /**
+   * Fills the buffer with whole code units, unless the end of the stream is reached.
+   */
+  private boolean fill() throws IOException {
+    bufferOffset += length;
+    next = 0;
+    length = 0;
+    int n;
+    while(length == 0 || length % unitLength != 0) {
+      n = in.read(buffer, length, buffer.length - length);
+      if(n < 0) break;
+      length += n;
+    }
+    return length > 0;
+  }
+
+  private String decodeLine() {
+    return encoding.decode(line.toByteArray(), 0, line.size());
+  }
+
+}
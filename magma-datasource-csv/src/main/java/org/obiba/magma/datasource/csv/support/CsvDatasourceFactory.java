@@ -26,6 +26,8 @@ public class CsvDatasourceFactory extends AbstractDatasourceFactory {
 
   private int firstRow = 1;
 
+  private boolean persistIndex = false;
+
   public void setBundle(File bundle) {
     this.bundle = bundle;
   }
@@ -50,6 +52,10 @@ public class CsvDatasourceFactory extends AbstractDatasourceFactory {
     this.firstRow = firstRow;
   }
 
+  public void setPersistIndex(boolean persistIndex) {
+    this.persistIndex = persistIndex;
+  }
+
   public CsvDatasourceFactory addTable(File tableDirectory) {
     if(tableDirectory != null && !hasTable(tableDirectory.getName())) {
       getTables().add(new TableBundle(tableDirectory));
@@ -107,6 +113,7 @@ public class CsvDatasourceFactory extends AbstractDatasourceFactory {
       datasource.setSeparator(Separator.fromString(separator));
     }
     datasource.setFirstRow(firstRow);
+    datasource.setPersistIndex(persistIndex);
 
     for(TableBundle tableBundle : getTables()) {
       if(tableBundle.hasRefTable()) {
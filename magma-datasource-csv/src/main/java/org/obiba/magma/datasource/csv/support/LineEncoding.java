@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2013 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.magma.datasource.csv.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.annotation.Nullable;
+
+/**
+ * Encoding of the lines of a file, in which end of line characters can be found without decoding the file: they are
+ * either single bytes (UTF-8, ISO-8859-x...), or single code units of UTF-16 and UTF-32 which are read by units of 2
+ * or 4 bytes. A line can then be read again from its byte offset, and decoded on its own.
+ * <p/>
+ * The byte order of UTF-16 and UTF-32 is the one of the byte order mark at the start of the file, if any, otherwise the
+ * one of the character set. Lines are decoded and encoded in this byte order, without byte order mark.
+ */
+public final class LineEncoding {
+
+  private static final int HEAD_LENGTH = 4;
+
+  /**
+   * Character set with an explicit byte order, that neither reads nor writes a byte order mark
+   */
+  private final Charset charset;
+
+  /**
+   * Length in bytes of the code units scanned for end of line characters
+   */
+  private final int unitLength;
+
+  private final byte[] lineFeed;
+
+  private final byte[] carriageReturn;
+
+  private final byte[] blank;
+
+  /**
+   * Byte order mark written by the encoder of the character set at the start of its output
+   */
+  private final byte[] byteOrderMark;
+
+  /**
+   * Length of the byte order mark found at the start of the file
+   */
+  private final int byteOrderMarkLength;
+
+  private LineEncoding(Charset configured, byte[] head, int headLength) {
+    byte[] unit = encodeUnit('\n', configured);
+    unitLength = unit.length;
+    if(!isSupported(configured)) {
+      throw new IllegalArgumentException("Character set not supported for byte offset reading: " + configured.name());
+    }
+    byte[] encoded = "\n".getBytes(configured);
+    byteOrderMark = Arrays.copyOf(encoded, encoded.length - unitLength);
+    if(unitLength == 1) {
+      charset = configured;
+      byteOrderMarkLength = 0;
+    } else {
+      Boolean bigEndian = readByteOrderMark(head, headLength);
+      byteOrderMarkLength = bigEndian == null ? 0 : unitLength;
+      if(bigEndian == null) bigEndian = unit[unitLength - 1] == '\n';
+      charset = Charset.forName("UTF-" + unitLength * 8 + (bigEndian ? "BE" : "LE"));
+    }
+    lineFeed = "\n".getBytes(charset);
+    carriageReturn = "\r".getBytes(charset);
+    blank = " ".getBytes(charset);
+  }
+
+  /**
+   * Returns the encoding of the lines of a stream in the given character set, without byte order mark.
+   */
+  public static LineEncoding forCharset(Charset charset) {
+    return new LineEncoding(charset, new byte[0], 0);
+  }
+
+  /**
+   * Returns the encoding of the lines of a file in the given character set, which byte order mark is read from the
+   * start of the file. The file may not exist yet.
+   */
+  public static LineEncoding forFile(File file, String characterSet) throws IOException {
+    Charset charset = Charset.forName(characterSet);
+    byte[] head = new byte[HEAD_LENGTH];
+    int length = 0;
+    if(encodeUnit('\n', charset).length > 1 && file.exists()) {
+      try(InputStream in = new FileInputStream(file)) {
+        int n;
+        while(length < head.length && (n = in.read(head, length, head.length - length)) >= 0) {
+          length += n;
+        }
+      }
+    }
+    return new LineEncoding(charset, head, length);
+  }
+
+  /**
+   * Returns true if end of line characters are single bytes of the given character set, that no other character
+   * uses, or single code units of UTF-16 or UTF-32.
+   */
+  public static boolean isSupported(Charset charset) {
+    byte[] lineFeed = encodeUnit('\n', charset);
+    byte[] carriageReturn = encodeUnit('\r', charset);
+    if(lineFeed.length != carriageReturn.length) return false;
+    switch(lineFeed.length) {
+      case 1:
+        return lineFeed[0] == '\n' && carriageReturn[0] == '\r' || charset.newEncoder().maxBytesPerChar() == 1;
+      case 2:
+      case 4:
+        String name = charset.name().toUpperCase(Locale.ENGLISH);
+        return name.contains("UTF-16") || name.contains("UTF-32");
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Character set in which lines are decoded and encoded, without byte order mark.
+   */
+  public Charset getCharset() {
+    return charset;
+  }
+
+  /**
+   * Length in bytes of the code units of the encoding: offsets of lines are multiples of this length.
+   */
+  public int getUnitLength() {
+    return unitLength;
+  }
+
+  /**
+   * Length of the byte order mark found at the start of the file, that precedes the first line.
+   */
+  public int getByteOrderMarkLength() {
+    return byteOrderMarkLength;
+  }
+
+  /**
+   * Byte order mark to write at the start of an empty file, as the encoder of the character set does.
+   */
+  public byte[] getByteOrderMark() {
+    return byteOrderMark.clone();
+  }
+
+  /**
+   * Returns true if the code unit at the given offset is a line feed or a carriage return.
+   */
+  public boolean isEndOfLine(byte[] bytes, int offset, int length) {
+    return offset + unitLength <= length &&
+        (matches(bytes, offset, lineFeed) || matches(bytes, offset, carriageReturn));
+  }
+
+  /**
+   * Returns the first offset from the given one that is the start of a code unit.
+   */
+  public long alignToUnit(long offset) {
+    long remainder = offset % unitLength;
+    return remainder == 0 ? offset : offset + unitLength - remainder;
+  }
+
+  /**
+   * Encodes a line, without byte order mark.
+   */
+  public byte[] encode(String line) {
+    return line.getBytes(charset);
+  }
+
+  /**
+   * Decodes a line that was read without its byte order mark.
+   */
+  public String decode(byte[] bytes, int offset, int length) {
+    return new String(bytes, offset, length, charset);
+  }
+
+  /**
+   * Replaces each code unit of the given bytes by a blank, except end of line characters: the blanked line has the
+   * same length and the lines that follow stay on their own.
+   */
+  public void blank(byte[] bytes) {
+    for(int i = 0; i + unitLength <= bytes.length; i += unitLength) {
+      if(!isEndOfLine(bytes, i, bytes.length)) System.arraycopy(blank, 0, bytes, i, unitLength);
+    }
+  }
+
+  private boolean matches(byte[] bytes, int offset, byte[] unit) {
+    for(int i = 0; i < unitLength; i++) {
+      if(bytes[offset + i] != unit[i]) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true for a big-endian byte order mark, false for a little-endian one, null if there is none.
+   */
+  @Nullable
+  private Boolean readByteOrderMark(byte[] head, int length) {
+    if(length < unitLength) return null;
+    byte[] bom = Arrays.copyOf(head, unitLength);
+    if(unitLength == 2) {
+      if(Arrays.equals(bom, new byte[] { (byte) 0xFE, (byte) 0xFF })) return true;
+      if(Arrays.equals(bom, new byte[] { (byte) 0xFF, (byte) 0xFE })) return false;
+    } else {
+      if(Arrays.equals(bom, new byte[] { 0, 0, (byte) 0xFE, (byte) 0xFF })) return true;
+      if(Arrays.equals(bom, new byte[] { (byte) 0xFF, (byte) 0xFE, 0, 0 })) return false;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the bytes of a character in the given character set, without the byte order mark its encoder may write.
+   */
+  private static byte[] encodeUnit(char c, Charset charset) {
+    byte[] one = String.valueOf(c).getBytes(charset);
+    byte[] two = (String.valueOf(c) + c).getBytes(charset);
+    return Arrays.copyOfRange(two, one.length, two.length);
+  }
+
+}
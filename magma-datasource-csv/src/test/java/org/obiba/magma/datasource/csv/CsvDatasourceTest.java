@@ -2,10 +2,15 @@ package org.obiba.magma.datasource.csv;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 import org.apache.commons.io.FileUtils;
+import org.junit.Assume;
 import org.junit.Test;
 import org.obiba.magma.Category;
 import org.obiba.magma.NoSuchValueSetException;
@@ -29,6 +34,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.common.collect.ImmutableMap;
 
+import au.com.bytecode.opencsv.CSVParser;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.junit.Assert.fail;
 import static org.obiba.core.util.FileUtil.getFileFromResource;
@@ -689,4 +696,162 @@ public class CsvDatasourceTest extends AbstractMagmaTest {
     }
     assertThat(table.getVariableEntities()).hasSize(4);
   }
+
+  @Test
+  public void test_value_sets_are_read_by_batches() throws IOException {
+    int count = 2 * CsvValueTable.VALUE_SETS_BATCH_SIZE + 10;
+    ValueTable table = createTableOfEntities(count);
+
+    int i = 0;
+    for(ValueSet valueSet : table.getValueSets()) {
+      // the updated record of the first entity is the last one
+      int expected = i == count - 1 ? 0 : i + 1;
+      assertThat(valueSet.getVariableEntity().getIdentifier()).isEqualTo(String.valueOf(expected));
+      assertThat(table.getValue(table.getVariable("Name"), valueSet).toString())
+          .isEqualTo(expected == 0 ? "updated" : "name" + expected);
+      i++;
+    }
+    assertThat(i).isEqualTo(count);
+  }
+
+  @Test
+  public void test_abandoned_value_sets_iteration_closes_data_file() throws IOException {
+    File fds = new File("/proc/self/fd");
+    Assume.assumeTrue(fds.isDirectory());
+    ValueTable table = createTableOfEntities(2 * CsvValueTable.VALUE_SETS_BATCH_SIZE);
+
+    int openFiles = fds.list().length;
+    for(int i = 0; i < 10; i++) {
+      Iterator<ValueSet> iterator = table.getValueSets().iterator();
+      assertThat(iterator.next()).isNotNull();
+    }
+    assertThat(fds.list().length).isLessThanOrEqualTo(openFiles);
+  }
+
+  /**
+   * A table of entities 0 to count - 1, where the record of entity 0 is updated by a last record.
+   */
+  private ValueTable createTableOfEntities(int count) throws IOException {
+    File dataFile = File.createTempFile("magma", "test-value-sets.csv");
+    dataFile.deleteOnExit();
+    StringBuilder content = new StringBuilder("entity_id,Name\n");
+    for(int i = 0; i < count; i++) {
+      content.append(i).append(",name").append(i).append('\n');
+    }
+    content.append("0,updated\n");
+    FileUtils.writeStringToFile(dataFile, content.toString(), "UTF-8");
+
+    CsvDatasource datasource = new CsvDatasource("csv-datasource").addValueTable("Table", (File) null, dataFile);
+    datasource.initialise();
+    return datasource.getValueTable("Table");
+  }
+
+  @Test
+  public void test_parallel_index_matches_sequential_index_for_any_chunk_size() throws IOException {
+    assertParallelIndexMatchesSequentialIndex("UTF-8");
+  }
+
+  @Test
+  public void test_parallel_index_matches_sequential_index_for_any_chunk_size_in_utf16() throws IOException {
+    assertParallelIndexMatchesSequentialIndex("UTF-16");
+  }
+
+  private void assertParallelIndexMatchesSequentialIndex(String characterSet) throws IOException {
+    File dataFile = File.createTempFile("magma", "test-parallel-index");
+    dataFile.deleteOnExit();
+    FileUtils.writeStringToFile(dataFile, "entity_id,Name,Comment\n" + //
+        "1,Julius,\"a comment\non two lines\"\n" + //
+        "2,Isaac,\"1,\n2,\n3\"\n" + //
+        "          \n" + //
+        "3,Albert,\r\n" + //
+        "4,\"Marie\nCurie\",\"\"\"quoted\"\"\"\n" + //
+        "2,Isaac,updated\n", characterSet);
+
+    Map<VariableEntity, CsvIndexEntry> sequentialIndex = new LinkedHashMap<>();
+    long dataStart = -1;
+    int count = 0;
+    try(CsvRecordReader reader = new CsvRecordReader(dataFile, characterSet,
+        new CSVParser(',', '"', CsvDatasource.DEL_CHAR))) {
+      String[] values;
+      while((values = reader.readNext()) != null) {
+        if(reader.getRecordLineNumber() == 0) continue;
+        if(dataStart < 0) dataStart = reader.getRecordStart();
+        sequentialIndex.put(new VariableEntityBean(DEFAULT_ENTITY_TYPE, values[0]),
+            new CsvIndexEntry(reader.getRecordStart(), reader.getRecordEnd()));
+        count++;
+      }
+    }
+    assertThat(sequentialIndex).hasSize(4);
+
+    for(int chunkSize = 1; chunkSize < dataFile.length(); chunkSize++) {
+      Map<VariableEntity, CsvIndexEntry> parallelIndex = new LinkedHashMap<>();
+      int parallelCount = new CsvParallelIndexer(dataFile, characterSet, ',', '"', 4, chunkSize)
+          .index(dataStart, DEFAULT_ENTITY_TYPE, parallelIndex);
+      assertThat(parallelCount).isEqualTo(count);
+      assertThat(toStrings(parallelIndex)).isEqualTo(toStrings(sequentialIndex));
+    }
+  }
+
+  @Test
+  public void test_parallel_index_of_quoted_value_spanning_chunks() throws IOException {
+    File dataFile = File.createTempFile("magma", "test-parallel-index");
+    dataFile.deleteOnExit();
+    StringBuilder content = new StringBuilder("entity_id,Name,Comment\n1,Julius,\"a comment on many lines\n");
+    // lines of the quoted value that look like records
+    for(int i = 0; i < 100; i++) {
+      content.append(100 + i).append(",Isaac,comment\n");
+    }
+    // the end of the quoted value opens a quote when parsed from one of the lines above
+    content.append("end of comment\"\n");
+    for(int i = 2; i < 100; i++) {
+      content.append(i).append(",Albert,comment\n");
+    }
+    FileUtils.writeStringToFile(dataFile, content.toString(), "UTF-8");
+
+    Map<VariableEntity, CsvIndexEntry> sequentialIndex = new LinkedHashMap<>();
+    long dataStart = -1;
+    try(CsvRecordReader reader = new CsvRecordReader(dataFile, "UTF-8",
+        new CSVParser(',', '"', CsvDatasource.DEL_CHAR))) {
+      String[] values;
+      while((values = reader.readNext()) != null) {
+        if(reader.getRecordLineNumber() == 0) continue;
+        if(dataStart < 0) dataStart = reader.getRecordStart();
+        sequentialIndex.put(new VariableEntityBean(DEFAULT_ENTITY_TYPE, values[0]),
+            new CsvIndexEntry(reader.getRecordStart(), reader.getRecordEnd()));
+      }
+    }
+    assertThat(sequentialIndex).hasSize(99);
+
+    for(int chunkSize = 16; chunkSize < dataFile.length(); chunkSize += 37) {
+      Map<VariableEntity, CsvIndexEntry> parallelIndex = new LinkedHashMap<>();
+      int parallelCount = new CsvParallelIndexer(dataFile, "UTF-8", ',', '"', 4, chunkSize)
+          .index(dataStart, DEFAULT_ENTITY_TYPE, parallelIndex);
+      assertThat(parallelCount).isEqualTo(99);
+      assertThat(toStrings(parallelIndex)).isEqualTo(toStrings(sequentialIndex));
+    }
+
+    // a speculative read from a line inside the quoted value stops at the limit instead of the end of the file
+    long offset = content.indexOf("150,Isaac");
+    long endOfComment = content.indexOf("end of comment");
+    try(CsvRecordReader reader = new CsvRecordReader(dataFile, "UTF-8",
+        new CSVParser(',', '"', CsvDatasource.DEL_CHAR), offset)) {
+      reader.setPendingLimit(endOfComment + 100);
+      int count = 0;
+      while(reader.readNext() != null) {
+        count++;
+      }
+      assertThat(count).isEqualTo(50);
+      assertThat(reader.isTruncated()).isTrue();
+      assertThat(reader.getNextRecordStart()).isEqualTo(endOfComment);
+    }
+  }
+
+  private List<String> toStrings(Map<VariableEntity, CsvIndexEntry> index) {
+    List<String> strings = new ArrayList<>();
+    for(Map.Entry<VariableEntity, CsvIndexEntry> entry : index.entrySet()) {
+      strings.add(entry.getKey().getIdentifier() + ":" + entry.getValue().getStart() + "-" + entry.getValue().getEnd());
+    }
+    return strings;
+  }
+
 }
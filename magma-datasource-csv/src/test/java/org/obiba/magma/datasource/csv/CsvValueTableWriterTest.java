@@ -322,6 +322,222 @@ public class CsvValueTableWriterTest extends AbstractMagmaTest {
     datasource.dispose();
   }
 
+  @Test
+  public void test_updating_multi_byte_value_sets_and_reading_back_from_reinitialized_datasource() throws Exception {
+    String tableName = "TableDataOnly";
+    CsvDatasource datasource = new TempTableBuilder(tableName)
+        .addData(getFileFromResource("org/obiba/magma/datasource/csv/TableDataOnly/data.csv"))
+        .buildCsvDatasource("csv-datasource");
+
+    Variable cityVariable = Variable.Builder.newVariable("City", TextType.get(), "Participant").build();
+    Map<Variable, Value> values = Maps.newHashMap();
+    VariableEntity entity2 = new VariableEntityBean(DEFAULT_ENTITY_TYPE, "2");
+    VariableEntity entity3 = new VariableEntityBean(DEFAULT_ENTITY_TYPE, "3");
+
+    try(ValueTableWriter writer = datasource.createWriter(tableName, DEFAULT_ENTITY_TYPE)) {
+      values.put(cityVariable, TextType.get().valueOf("Montr\u00e9al \u00e0 l'\u00e9t\u00e9"));
+      writeValueSet(entity2, writer, values);
+      values.put(cityVariable, TextType.get().valueOf("Trois-Rivi\u00e8res"));
+      writeValueSet(entity3, writer, values);
+      // value set 2 is read back from its byte offsets before being updated
+      values.put(cityVariable, TextType.get().valueOf("Qu\u00e9bec"));
+      writeValueSet(entity2, writer, values);
+    }
+    ValueTable table = datasource.getValueTable(tableName);
+    assertThat(table.getValue(table.getVariable("FirstName"), table.getValueSet(entity2)))
+        .isEqualTo(TextType.get().valueOf("Dennis"));
+
+    datasource.dispose();
+    datasource.initialise();
+    table = datasource.getValueTable(tableName);
+    assertThat(table.getVariableEntities()).hasSize(4);
+    assertThat(table.getValue(cityVariable, table.getValueSet(entity2)))
+        .isEqualTo(TextType.get().valueOf("Qu\u00e9bec"));
+    assertThat(table.getValue(cityVariable, table.getValueSet(entity3)))
+        .isEqualTo(TextType.get().valueOf("Trois-Rivi\u00e8res"));
+    assertThat(table.getValue(table.getVariable("FavouriteIcecream"), table.getValueSet(entity3)))
+        .isEqualTo(TextType.get().valueOf("Chocolate"));
+    datasource.dispose();
+  }
+
+  @Test
+  public void test_streaming_value_sets_skips_updated_records() throws Exception {
+    String tableName = "TableDataOnly";
+    CsvDatasource datasource = new TempTableBuilder(tableName)
+        .addData(getFileFromResource("org/obiba/magma/datasource/csv/TableDataOnly/data.csv"))
+        .buildCsvDatasource("csv-datasource");
+
+    Variable cityVariable = Variable.Builder.newVariable("City", TextType.get(), "Participant").build();
+    Map<Variable, Value> values = Maps.newHashMap();
+    try(ValueTableWriter writer = datasource.createWriter(tableName, DEFAULT_ENTITY_TYPE)) {
+      values.put(cityVariable, TextType.get().valueOf("Regina"));
+      writeValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "2"), writer, values);
+    }
+
+    ValueTable table = datasource.getValueTable(tableName);
+    List<String> identifiers = Lists.newArrayList();
+    List<Value> cities = Lists.newArrayList();
+    for(ValueSet valueSet : table.getValueSets()) {
+      identifiers.add(valueSet.getVariableEntity().getIdentifier());
+      cities.add(table.getValue(cityVariable, valueSet));
+    }
+    // updated record was appended to the file
+    assertThat(identifiers).containsExactly("1", "3", "4", "2");
+    assertThat(cities.get(3)).isEqualTo(TextType.get().valueOf("Regina"));
+    datasource.dispose();
+  }
+
+  @Test
+  public void test_writing_and_updating_value_sets_in_one_writer_session() throws Exception {
+    String tableName = "TableDataOnly";
+    CsvDatasource datasource = new TempTableBuilder(tableName)
+        .addData(getFileFromResource("org/obiba/magma/datasource/csv/TableDataOnly/data.csv"))
+        .buildCsvDatasource("csv-datasource");
+
+    Variable cityVariable = Variable.Builder.newVariable("City", TextType.get(), "Participant").build();
+    Map<Variable, Value> values = Maps.newHashMap();
+    try(ValueTableWriter writer = datasource.createWriter(tableName, DEFAULT_ENTITY_TYPE)) {
+      for(int i = 5; i < 105; i++) {
+        values.put(cityVariable, TextType.get().valueOf("City " + i));
+        writeValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, String.valueOf(i)), writer, values);
+      }
+      // update a value set written by this same writer
+      values.put(cityVariable, TextType.get().valueOf("Regina"));
+      writeValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "50"), writer, values);
+    }
+
+    ValueTable table = datasource.getValueTable(tableName);
+    assertThat(table.getVariableEntities()).hasSize(104);
+    assertThat(table.getValue(cityVariable, table.getValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "104"))))
+        .isEqualTo(TextType.get().valueOf("City 104"));
+    assertThat(table.getValue(cityVariable, table.getValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "50"))))
+        .isEqualTo(TextType.get().valueOf("Regina"));
+    datasource.dispose();
+  }
+
+  @Test
+  public void test_persisted_index_is_reloaded_until_data_file_changes() throws Exception {
+    String tableName = "TableDataOnly";
+    File tempDirectory = new TempTableBuilder(tableName)
+        .addData(getFileFromResource("org/obiba/magma/datasource/csv/TableDataOnly/data.csv")).build();
+    File dataFile = new File(new File(tempDirectory, tableName), CsvDatasource.DATA_FILE);
+    File indexFile = new File(dataFile.getParentFile(), CsvDatasource.DATA_FILE + CsvIndexFile.SUFFIX);
+
+    CsvDatasource datasource = newIndexedCsvDatasource(tableName, dataFile);
+    assertThat(indexFile.exists()).isTrue();
+    Variable cityVariable = Variable.Builder.newVariable("City", TextType.get(), "Participant").build();
+    Map<Variable, Value> values = Maps.newHashMap();
+    try(ValueTableWriter writer = datasource.createWriter(tableName, DEFAULT_ENTITY_TYPE)) {
+      values.put(cityVariable, TextType.get().valueOf("Regina"));
+      writeValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "2"), writer, values);
+    }
+    datasource.dispose();
+
+    // index saved by the writer is valid for the updated data file
+    CsvIndexFile index = new CsvIndexFile(dataFile, "UTF-8|,|\"|1|" + DEFAULT_ENTITY_TYPE);
+    Map<VariableEntity, CsvIndexEntry> entityIndex = Maps.newLinkedHashMap();
+    assertThat(index.load(DEFAULT_ENTITY_TYPE, entityIndex, Maps.<String, Integer>newHashMap())).isTrue();
+    assertThat(entityIndex).hasSize(4);
+
+    datasource = newIndexedCsvDatasource(tableName, dataFile);
+    ValueTable table = datasource.getValueTable(tableName);
+    assertThat(table.getVariableEntities()).hasSize(4);
+    assertThat(table.getValue(cityVariable, table.getValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "2"))))
+        .isEqualTo(TextType.get().valueOf("Regina"));
+    datasource.dispose();
+
+    // index is rebuilt once the data file is changed behind its back
+    FileUtils.writeStringToFile(dataFile, "5,Paul,Gauthier,M,Quebec,\n", "UTF-8", true);
+    datasource = newIndexedCsvDatasource(tableName, dataFile);
+    table = datasource.getValueTable(tableName);
+    assertThat(table.getVariableEntities()).hasSize(5);
+    assertThat(table.getValue(cityVariable, table.getValueSet(new VariableEntityBean(DEFAULT_ENTITY_TYPE, "5"))))
+        .isEqualTo(TextType.get().valueOf("Quebec"));
+    datasource.dispose();
+  }
+
+  private CsvDatasource newIndexedCsvDatasource(String tableName, File dataFile) {
+    CsvDatasource datasource = new CsvDatasource("csv-datasource").addValueTable(tableName, null, dataFile);
+    datasource.setPersistIndex(true);
+    datasource.initialise();
+    return datasource;
+  }
+
+  @Test
+  public void test_updating_value_sets_in_utf16_file_and_reading_back_from_reinitialized_datasource()
+      throws Exception {
+    assertUpdatingValueSetsInFileEncodedAs("UTF-16", "UTF-16");
+  }
+
+  @Test
+  public void test_updating_value_sets_in_little_endian_utf16_file_and_reading_back_from_reinitialized_datasource()
+      throws Exception {
+    // the byte order mark of the file wins over the big-endian default of UTF-16
+    assertUpdatingValueSetsInFileEncodedAs("x-UTF-16LE-BOM", "UTF-16");
+  }
+
+  @Test
+  public void test_updating_value_sets_in_utf32_file_and_reading_back_from_reinitialized_datasource()
+      throws Exception {
+    assertUpdatingValueSetsInFileEncodedAs("UTF-32LE", "UTF-32LE");
+  }
+
+  private void assertUpdatingValueSetsInFileEncodedAs(String fileCharacterSet, String characterSet)
+      throws Exception {
+    String tableName = "TableDataOnly";
+    File utf8Data = getFileFromResource("org/obiba/magma/datasource/csv/TableDataOnly/data.csv");
+    File encodedData = File.createTempFile("data", ".csv");
+    encodedData.deleteOnExit();
+    FileUtils.write(encodedData, FileUtils.readFileToString(utf8Data, "UTF-8"), fileCharacterSet);
+    File directory = new TempTableBuilder(tableName).addData(encodedData).build();
+    File dataFile = new File(new File(directory, tableName), CsvDatasource.DATA_FILE);
+    CsvDatasource datasource = new CsvDatasource("csv-datasource").addValueTable(tableName, null, dataFile);
+    datasource.setCharacterSet(characterSet);
+    datasource.initialise();
+
+    Variable cityVariable = Variable.Builder.newVariable("City", TextType.get(), "Participant").build();
+    Map<Variable, Value> values = Maps.newHashMap();
+    VariableEntity entity2 = new VariableEntityBean(DEFAULT_ENTITY_TYPE, "2");
+    VariableEntity entity3 = new VariableEntityBean(DEFAULT_ENTITY_TYPE, "3");
+
+    ValueTable table = datasource.getValueTable(tableName);
+    assertThat(table.getValue(table.getVariable("FavouriteIcecream"), table.getValueSet(entity3)))
+        .isEqualTo(TextType.get().valueOf("Chocolate"));
+
+    try(ValueTableWriter writer = datasource.createWriter(tableName, DEFAULT_ENTITY_TYPE)) {
+      values.put(cityVariable, TextType.get().valueOf("Montr\u00e9al \u00e0 l'\u00e9t\u00e9"));
+      writeValueSet(entity2, writer, values);
+      values.put(cityVariable, TextType.get().valueOf("Trois-Rivi\u00e8res"));
+      writeValueSet(entity3, writer, values);
+      // value set 2 is read back from its byte offsets before being updated
+      values.put(cityVariable, TextType.get().valueOf("Qu\u00e9bec"));
+      writeValueSet(entity2, writer, values);
+    }
+    assertThat(table.getValue(table.getVariable("FirstName"), table.getValueSet(entity2)))
+        .isEqualTo(TextType.get().valueOf("Dennis"));
+
+    datasource.dispose();
+    datasource.initialise();
+    table = datasource.getValueTable(tableName);
+    assertThat(table.getVariableEntities()).hasSize(4);
+    assertThat(table.getValue(cityVariable, table.getValueSet(entity2)))
+        .isEqualTo(TextType.get().valueOf("Qu\u00e9bec"));
+    assertThat(table.getValue(cityVariable, table.getValueSet(entity3)))
+        .isEqualTo(TextType.get().valueOf("Trois-Rivi\u00e8res"));
+    assertThat(table.getValue(table.getVariable("FavouriteIcecream"), table.getValueSet(entity3)))
+        .isEqualTo(TextType.get().valueOf("Chocolate"));
+    int count = 0;
+    for(ValueSet valueSet : table.getValueSets()) {
+      assertThat(table.hasValueSet(valueSet.getVariableEntity())).isTrue();
+      count++;
+    }
+    assertThat(count).isEqualTo(4);
+    datasource.dispose();
+    // no byte order mark was appended, and the byte order of the file was kept
+    String content = FileUtils.readFileToString(dataFile, fileCharacterSet);
+    assertThat(content).doesNotContain("\ufeff").contains("Qu\u00e9bec").contains("Trois-Rivi\u00e8res");
+  }
+
   @Test(expected = MagmaRuntimeException.class)
   public void test_writing_variables_header_in_file_without_required_name_causes_error() throws Exception {
     String tableName = "TableVariablesOnly";
@@ -0,0 +1,128 @@
+package org.obiba.magma.datasource.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.type.BinaryType;
+import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+
+/**
+ * Encodes the values of a column in a compressed, typed binary form: integers, decimals and booleans are written as
+ * primitives, binaries as raw bytes and all other types as their string representation.
+ */
+final class FsColumnCodec {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final byte NULL = 0;
+
+  private static final byte VALUE = 1;
+
+  private static final byte SEQUENCE = 2;
+
+  private static final byte NULL_SEQUENCE = 3;
+
+  private FsColumnCodec() {}
+
+  static byte[] encode(ValueType valueType, List<Value> values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+      for(Value value : values) {
+        if(value.isSequence()) {
+          if(value.isNull()) {
+            out.writeByte(NULL_SEQUENCE);
+          } else {
+            List<Value> sequence = value.asSequence().getValues();
+            out.writeByte(SEQUENCE);
+            out.writeInt(sequence.size());
+            for(Value element : sequence) {
+              writeValue(out, valueType, element);
+            }
+          }
+        } else {
+          writeValue(out, valueType, value);
+        }
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  static List<Value> decode(ValueType valueType, int size, byte[] encoded) throws IOException {
+    List<Value> values = new ArrayList<>(size);
+    try(DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(encoded)))) {
+      for(int i = 0; i < size; i++) {
+        byte flag = in.readByte();
+        switch(flag) {
+          case NULL_SEQUENCE:
+            values.add(valueType.nullSequence());
+            break;
+          case SEQUENCE:
+            int length = in.readInt();
+            List<Value> sequence = new ArrayList<>(length);
+            for(int j = 0; j < length; j++) {
+              sequence.add(readValue(in, valueType, in.readByte()));
+            }
+            values.add(valueType.sequenceOf(sequence));
+            break;
+          default:
+            values.add(readValue(in, valueType, flag));
+        }
+      }
+    }
+    return values;
+  }
+
+  private static void writeValue(DataOutputStream out, ValueType valueType, Value value) throws IOException {
+    Object object = value.isNull() ? null : value.getValue();
+    if(object == null) {
+      out.writeByte(NULL);
+      return;
+    }
+    out.writeByte(VALUE);
+    if(valueType == IntegerType.get()) {
+      out.writeLong(((Number) object).longValue());
+    } else if(valueType == DecimalType.get()) {
+      out.writeDouble(((Number) object).doubleValue());
+    } else if(valueType == BooleanType.get()) {
+      out.writeBoolean((Boolean) object);
+    } else if(valueType == BinaryType.get()) {
+      writeBytes(out, (byte[]) object);
+    } else {
+      //noinspection ConstantConditions
+      writeBytes(out, valueType.toString(value).getBytes(UTF8));
+    }
+  }
+
+  private static Value readValue(DataInputStream in, ValueType valueType, byte flag) throws IOException {
+    if(flag == NULL) return valueType.nullValue();
+    if(valueType == IntegerType.get()) return valueType.valueOf(in.readLong());
+    if(valueType == DecimalType.get()) return valueType.valueOf(in.readDouble());
+    if(valueType == BooleanType.get()) return valueType.valueOf(in.readBoolean());
+    if(valueType == BinaryType.get()) return valueType.valueOf(readBytes(in));
+    return valueType.valueOf(new String(readBytes(in), UTF8));
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+}
@@ -0,0 +1,171 @@
+package org.obiba.magma.datasource.fs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Value;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+
+import com.google.common.collect.Maps;
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Writes the value sets of a columnar {@link FsDatasource}: value sets are buffered and written by groups of
+ * {@link #ROW_GROUP_SIZE} in {@link FsRowGroup} entries. Variables are written in XML, like in the XML format.
+ * <p/>
+ * A value set written again is stored in a new group, the location of its previous version is forgotten. When the
+ * writer is closed, the groups of which all the value sets were written again are deleted. A group that still holds
+ * some current value sets is kept as a whole, including the rows of the previous versions of the other value sets.
+ */
+class FsColumnarValueTableWriter extends FsValueTableWriter {
+
+  static final int ROW_GROUP_SIZE = 500;
+
+  private final FsValueTable valueTable;
+
+  /**
+   * Pads entry names with zeroes
+   */
+  private final NumberFormat entryFilenameFormat = new DecimalFormat("0000000");
+
+  private final List<VariableEntity> entities = new ArrayList<>(ROW_GROUP_SIZE);
+
+  private final List<Map<String, Value>> rows = new ArrayList<>(ROW_GROUP_SIZE);
+
+  private final Map<String, Variable> variables = new LinkedHashMap<>();
+
+  private int groupCount;
+
+  FsColumnarValueTableWriter(FsValueTable valueTable, XStream xstream) {
+    super(valueTable, xstream);
+    this.valueTable = valueTable;
+    // superseded groups are deleted, number the new groups after the last one
+    for(String entryName : valueTable.getRowGroupEntryNames()) {
+      groupCount = Math.max(groupCount, FsRowGroup.getNumber(entryName));
+    }
+  }
+
+  @NotNull
+  @Override
+  public ValueSetWriter writeValueSet(@NotNull VariableEntity entity) {
+    return new ColumnarValueSetWriter(entity);
+  }
+
+  @Override
+  public void close() {
+    try {
+      flush();
+      deleteSupersededGroups();
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    } finally {
+      super.close();
+    }
+  }
+
+  private synchronized void addRow(VariableEntity entity, Map<String, Value> row) {
+    entities.add(entity);
+    rows.add(row);
+    if(rows.size() >= ROW_GROUP_SIZE) {
+      try {
+        flush();
+      } catch(IOException e) {
+        throw new MagmaRuntimeException(e);
+      }
+    }
+  }
+
+  /**
+   * Writes the buffered value sets in a new group.
+   */
+  private synchronized void flush() throws IOException {
+    if(rows.isEmpty()) return;
+
+    List<String> identifiers = new ArrayList<>(entities.size());
+    for(VariableEntity entity : entities) {
+      identifiers.add(entity.getIdentifier());
+    }
+    List<Variable> columnVariables = new ArrayList<>(variables.values());
+    List<List<Value>> columns = new ArrayList<>(columnVariables.size());
+    for(Variable variable : columnVariables) {
+      List<Value> column = new ArrayList<>(rows.size());
+      for(Map<String, Value> row : rows) {
+        Value value = row.get(variable.getName());
+        if(value == null) {
+          value = variable.isRepeatable()
+              ? variable.getValueType().nullSequence()
+              : variable.getValueType().nullValue();
+        }
+        column.add(value);
+      }
+      columns.add(column);
+    }
+
+    String entryName = FsRowGroup.DIRECTORY + "/" + entryFilenameFormat.format(++groupCount) + FsRowGroup.SUFFIX;
+    try(OutputStream os = valueTable.createOutputStream(entryName)) {
+      FsRowGroup.write(os, identifiers, columnVariables, columns);
+    }
+    for(int i = 0; i < entities.size(); i++) {
+      valueTable.getVariableEntityProvider().putEntity(entities.get(i), FsRowGroup.getLocation(entryName, i));
+    }
+    entities.clear();
+    rows.clear();
+  }
+
+  /**
+   * Deletes the groups that do not hold the current value set of any entity.
+   */
+  private synchronized void deleteSupersededGroups() {
+    Set<String> currentEntryNames = new HashSet<>();
+    for(String location : valueTable.getVariableEntityProvider().getEntityFiles()) {
+      currentEntryNames.add(FsRowGroup.getEntryName(location));
+    }
+    for(String entryName : valueTable.getRowGroupEntryNames()) {
+      if(!currentEntryNames.contains(entryName)) valueTable.deleteRowGroup(entryName);
+    }
+  }
+
+  private class ColumnarValueSetWriter implements ValueSetWriter {
+
+    private final VariableEntity entity;
+
+    private final Map<String, Value> values = Maps.newHashMap();
+
+    private ColumnarValueSetWriter(VariableEntity entity) {
+      this.entity = entity;
+    }
+
+    @Override
+    public void writeValue(@NotNull Variable variable, Value value) {
+      synchronized(FsColumnarValueTableWriter.this) {
+        if(!variables.containsKey(variable.getName())) variables.put(variable.getName(), variable);
+      }
+      values.put(variable.getName(),
+          value.getValueType() == variable.getValueType() ? value : variable.getValueType().convert(value));
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      addRow(entity, values);
+    }
+
+  }
+
+}
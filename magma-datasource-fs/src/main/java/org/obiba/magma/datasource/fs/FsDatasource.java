@@ -1,9 +1,13 @@
 package org.obiba.magma.datasource.fs;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
@@ -31,7 +35,9 @@ import org.obiba.magma.datasource.fs.output.NullOutputStreamWrapper;
 import org.obiba.magma.support.AbstractDatasource;
 import org.obiba.magma.type.BooleanType;
 import org.obiba.magma.type.TextType;
+import org.obiba.magma.xstream.DefaultXStreamFactory;
 import org.obiba.magma.xstream.MagmaXStreamExtension;
+import org.obiba.magma.xstream.XStreamFactory;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -54,6 +60,15 @@ public class FsDatasource extends AbstractDatasource {
    */
   private static final Charset CHARSET = Charset.availableCharsets().get("UTF-8");
 
+  /**
+   * Size of the buffers on both sides of the stream wrappers: cipher streams read and write small blocks
+   */
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final String VERSION_ATTRIBUTE = "magma.datasource.fs.version";
+
+  private static final String FORMAT_ATTRIBUTE = "magma.datasource.fs.format";
+
   private final File datasourceArchive;
 
   @Nullable
@@ -65,6 +80,8 @@ public class FsDatasource extends AbstractDatasource {
 
   private boolean instanceAttributesModified = false;
 
+  private FsStorageFormat storageFormat = FsStorageFormat.XML;
+
   public FsDatasource(String name, java.io.File outputFile,
       @Nullable DatasourceEncryptionStrategy datasourceEncryptionStrategy) {
     this(name, outputFile);
@@ -80,6 +97,18 @@ public class FsDatasource extends AbstractDatasource {
     this.datasourceEncryptionStrategy = datasourceEncryptionStrategy;
   }
 
+  /**
+   * Storage format of the value sets of a new datasource. The format of an existing datasource is the one it was
+   * created with.
+   */
+  public void setStorageFormat(FsStorageFormat storageFormat) {
+    this.storageFormat = storageFormat;
+  }
+
+  public FsStorageFormat getStorageFormat() {
+    return storageFormat;
+  }
+
   @Override
   protected void onInitialise() {
 
@@ -87,8 +116,12 @@ public class FsDatasource extends AbstractDatasource {
     if(datasourceArchive.exists()) {
       readAttributes();
       newDatasource = false;
+      storageFormat = hasAttribute(FORMAT_ATTRIBUTE)
+          ? FsStorageFormat.valueOf(getAttributeStringValue(FORMAT_ATTRIBUTE).toUpperCase())
+          : FsStorageFormat.XML;
     } else {
-      setAttributeValue("magma.datasource.fs.version", TextType.get().valueOf("1"));
+      setAttributeValue(VERSION_ATTRIBUTE, TextType.get().valueOf("1"));
+      setAttributeValue(FORMAT_ATTRIBUTE, TextType.get().valueOf(storageFormat.name().toLowerCase()));
       setAttributeValue("magma.datasource.fs.encrypted",
           hasEncryptionStrategy() ? BooleanType.get().trueValue() : BooleanType.get().falseValue());
     }
@@ -125,7 +158,9 @@ public class FsDatasource extends AbstractDatasource {
     } else {
       addValueTable(valueTable = new FsValueTable(this, name, entityType));
     }
-    return new FsValueTableWriter(valueTable, getXStreamInstance());
+    return storageFormat == FsStorageFormat.COLUMNAR
+        ? new FsColumnarValueTableWriter(valueTable, getXStreamInstance())
+        : new FsValueTableWriter(valueTable, getXStreamInstance());
   }
 
   @Override
@@ -214,9 +249,19 @@ public class FsDatasource extends AbstractDatasource {
     return new File(datasourceArchive, name);
   }
 
+  /**
+   * Returns the XStream instance of the version of this datasource, shared by all the datasources of this version when
+   * the factory is a {@link DefaultXStreamFactory}.
+   */
   XStream getXStreamInstance() {
-    // TODO: Use the FsDatasource version to obtain the proper XStream instance
-    return MagmaEngine.get().getExtension(MagmaXStreamExtension.class).getXStreamFactory().createXStream();
+    MagmaXStreamExtension extension = MagmaEngine.get().getExtension(MagmaXStreamExtension.class);
+    XStreamFactory factory = hasAttribute(VERSION_ATTRIBUTE)
+        ? extension.getXStreamFactory(getAttributeStringValue(VERSION_ATTRIBUTE))
+        : null;
+    if(factory == null) factory = extension.getXStreamFactory();
+    return factory instanceof DefaultXStreamFactory
+        ? ((DefaultXStreamFactory) factory).getSharedXStream()
+        : factory.createXStream();
   }
 
   @Nullable
@@ -240,16 +285,28 @@ public class FsDatasource extends AbstractDatasource {
   }
 
   Reader createReader(File entry) {
+    return new InputStreamReader(createInputStream(entry), CHARSET);
+  }
+
+  Writer createWriter(File entry) {
+    return new OutputStreamWriter(createOutputStream(entry), CHARSET);
+  }
+
+  InputStream createInputStream(File entry) {
     try {
-      return new InputStreamReader(inputStreamWrapper.wrap(new FileInputStream(entry), entry), CHARSET);
+      return new BufferedInputStream(
+          inputStreamWrapper.wrap(new BufferedInputStream(new FileInputStream(entry), BUFFER_SIZE), entry),
+          BUFFER_SIZE);
     } catch(FileNotFoundException e) {
       throw new MagmaRuntimeException(e);
     }
   }
 
-  Writer createWriter(File entry) {
+  OutputStream createOutputStream(File entry) {
     try {
-      return new OutputStreamWriter(outputStreamWrapper.wrap(new FileOutputStream(entry), entry), CHARSET);
+      return new BufferedOutputStream(
+          outputStreamWrapper.wrap(new BufferedOutputStream(new FileOutputStream(entry), BUFFER_SIZE), entry),
+          BUFFER_SIZE);
     } catch(FileNotFoundException e) {
       throw new MagmaRuntimeException(e);
     }
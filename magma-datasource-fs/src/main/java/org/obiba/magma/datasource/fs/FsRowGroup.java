@@ -0,0 +1,217 @@
+package org.obiba.magma.datasource.fs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.Variable;
+
+/**
+ * A group of value sets stored column by column in one entry of a columnar {@link FsDatasource}.
+ * <p/>
+ * The entry starts with an index (identifiers of the entities in row order, then name, value type and length of each
+ * column) followed by the compressed column chunks. Reading a group only loads the chunks of the requested columns and
+ * only decodes them when their values are accessed.
+ */
+class FsRowGroup {
+
+  /**
+   * Directory of the group entries in a table
+   */
+  static final String DIRECTORY = "values";
+
+  /**
+   * Suffix of the group entries, other entries of the directory (digests) are ignored
+   */
+  static final String SUFFIX = ".bin";
+
+  private static final int MAGIC = 0x4d474346; // MGCF
+
+  private static final int VERSION = 1;
+
+  private final List<String> identifiers;
+
+  private final Map<String, Column> columns;
+
+  private FsRowGroup(List<String> identifiers, Map<String, Column> columns) {
+    this.identifiers = identifiers;
+    this.columns = columns;
+  }
+
+  /**
+   * Location of a value set: the name of the group entry and the row in this group.
+   */
+  static String getLocation(String entryName, int row) {
+    return entryName + "#" + row;
+  }
+
+  /**
+   * Number of a group entry, groups are numbered in the order they are written.
+   */
+  static int getNumber(String entryName) {
+    String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+    return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+  }
+
+  static String getEntryName(String location) {
+    return location.substring(0, location.lastIndexOf('#'));
+  }
+
+  static int getRow(String location) {
+    return Integer.parseInt(location.substring(location.lastIndexOf('#') + 1));
+  }
+
+  /**
+   * Identifiers of the entities of this group, in row order.
+   */
+  List<String> getIdentifiers() {
+    return identifiers;
+  }
+
+  /**
+   * Returns the value of a variable at the given row, or null if the column of this variable was not stored (or not
+   * loaded) in this group.
+   */
+  @Nullable
+  Value getValue(String variableName, int row) {
+    Column column = columns.get(variableName);
+    return column == null ? null : column.getValues().get(row);
+  }
+
+  /**
+   * Writes a group of value sets.
+   *
+   * @param identifiers identifiers of the entities, in row order
+   * @param variables the variables of the columns
+   * @param columns the values of each variable, in row order
+   */
+  static void write(OutputStream output, List<String> identifiers, List<Variable> variables, List<List<Value>> columns)
+      throws IOException {
+    List<byte[]> chunks = new ArrayList<>(variables.size());
+    for(int i = 0; i < variables.size(); i++) {
+      chunks.add(FsColumnCodec.encode(variables.get(i).getValueType(), columns.get(i)));
+    }
+
+    DataOutputStream out = new DataOutputStream(output);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(identifiers.size());
+    for(String identifier : identifiers) {
+      out.writeUTF(identifier);
+    }
+    out.writeInt(variables.size());
+    for(int i = 0; i < variables.size(); i++) {
+      out.writeUTF(variables.get(i).getName());
+      out.writeUTF(variables.get(i).getValueType().getName());
+      out.writeInt(chunks.get(i).length);
+    }
+    for(byte[] chunk : chunks) {
+      out.write(chunk);
+    }
+    out.flush();
+  }
+
+  /**
+   * Reads a group of value sets.
+   *
+   * @param variableNames names of the columns to load, all columns are loaded when null
+   */
+  static FsRowGroup read(InputStream input, @Nullable Set<String> variableNames) throws IOException {
+    DataInputStream in = new DataInputStream(input);
+    if(in.readInt() != MAGIC) throw new MagmaRuntimeException("Not a row group entry");
+    int version = in.readInt();
+    if(version != VERSION) throw new MagmaRuntimeException("Unsupported row group version: " + version);
+
+    int size = in.readInt();
+    List<String> identifiers = new ArrayList<>(size);
+    for(int i = 0; i < size; i++) {
+      identifiers.add(in.readUTF());
+    }
+    int columnCount = in.readInt();
+    List<String> names = new ArrayList<>(columnCount);
+    List<String> types = new ArrayList<>(columnCount);
+    int[] lengths = new int[columnCount];
+    for(int i = 0; i < columnCount; i++) {
+      names.add(in.readUTF());
+      types.add(in.readUTF());
+      lengths[i] = in.readInt();
+    }
+
+    Map<String, Column> columns = new LinkedHashMap<>();
+    for(int i = 0; i < columnCount; i++) {
+      if(variableNames != null && columns.size() == variableNames.size()) break;
+      if(variableNames == null || variableNames.contains(names.get(i))) {
+        byte[] chunk = new byte[lengths[i]];
+        in.readFully(chunk);
+        columns.put(names.get(i), new Column(ValueType.Factory.forName(types.get(i)), size, chunk));
+      } else {
+        skipFully(in, lengths[i]);
+      }
+    }
+    return new FsRowGroup(Collections.unmodifiableList(identifiers), columns);
+  }
+
+  private static void skipFully(InputStream in, long length) throws IOException {
+    long remaining = length;
+    while(remaining > 0) {
+      long skipped = in.skip(remaining);
+      if(skipped <= 0) {
+        if(in.read() < 0) throw new IOException("Unexpected end of row group entry");
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+  }
+
+  private static class Column {
+
+    private final ValueType valueType;
+
+    private final int size;
+
+    @Nullable
+    private byte[] chunk;
+
+    @Nullable
+    private volatile List<Value> values;
+
+    private Column(ValueType valueType, int size, byte[] chunk) {
+      this.valueType = valueType;
+      this.size = size;
+      this.chunk = chunk;
+    }
+
+    private List<Value> getValues() {
+      if(values == null) {
+        synchronized(this) {
+          if(values == null) {
+            try {
+              //noinspection ConstantConditions
+              values = FsColumnCodec.decode(valueType, size, chunk);
+              chunk = null;
+            } catch(IOException e) {
+              throw new MagmaRuntimeException(e);
+            }
+          }
+        }
+      }
+      //noinspection ConstantConditions
+      return values;
+    }
+
+  }
+
+}
@@ -0,0 +1,18 @@
+package org.obiba.magma.datasource.fs;
+
+/**
+ * How the value sets of the tables of a {@link FsDatasource} are stored in its archive.
+ */
+public enum FsStorageFormat {
+
+  /**
+   * One XML entry per value set
+   */
+  XML,
+
+  /**
+   * Groups of value sets stored column by column in binary entries, see {@link FsRowGroup}
+   */
+  COLUMNAR
+
+}
@@ -2,16 +2,33 @@ package org.obiba.magma.datasource.fs;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.AbstractVariableValueSource;
 import org.obiba.magma.Disposable;
 import org.obiba.magma.Initialisable;
 import org.obiba.magma.MagmaRuntimeException;
+import org.obiba.magma.MultipleVectorSource;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
@@ -26,13 +43,25 @@ import org.obiba.magma.datasource.fs.FsDatasource.InputCallback;
 import org.obiba.magma.datasource.fs.FsDatasource.OutputCallback;
 import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.ValueSetBean;
+import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.xstream.XStreamValueSet;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.thoughtworks.xstream.XStream;
 
 import de.schlichtherle.io.File;
 
-class FsValueTable extends AbstractValueTable implements Initialisable, Disposable {
+class FsValueTable extends AbstractValueTable implements Initialisable, Disposable, MultipleVectorSource {
+
+  /**
+   * Maximum number of deserialised value sets of a XML table kept in memory
+   */
+  static final int VALUE_SET_CACHE_SIZE = 500;
 
   /**
    * The directory of this {@code ValueTable}
@@ -49,6 +78,21 @@ class FsValueTable extends AbstractValueTable implements Initialisable, Disposab
    */
   private final FsVariableEntityProvider variableEntityProvider;
 
+  /**
+   * Last row group read by a value set of a columnar table: value sets are usually read in the order they were written
+   */
+  @Nullable
+  private FsRowGroup cachedRowGroup;
+
+  @Nullable
+  private String cachedRowGroupEntry;
+
+  /**
+   * Value sets of a XML table recently deserialised, by entry name: shared by the value sets and the vector sources
+   */
+  private final Cache<String, XStreamValueSet> valueSetCache = CacheBuilder.newBuilder()
+      .maximumSize(VALUE_SET_CACHE_SIZE).build();
+
   FsValueTable(FsDatasource datasource, String name) {
     super(datasource, name);
     valueTableEntry = datasource.getEntry(name);
@@ -79,6 +123,7 @@ class FsValueTable extends AbstractValueTable implements Initialisable, Disposab
   @Override
   public void dispose() {
     variableEntityProvider.dispose();
+    valueSetCache.invalidateAll();
   }
 
   @NotNull
@@ -89,9 +134,31 @@ class FsValueTable extends AbstractValueTable implements Initialisable, Disposab
 
   @Override
   public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
+    if(isColumnar()) {
+      String location = variableEntityProvider.getEntityFile(entity);
+      if(location == null) {
+        throw new NoSuchValueSetException(this, entity);
+      }
+      return new ColumnarValueSet(this, entity, location, null);
+    }
     return new LazyValueSet(this, entity);
   }
 
+  @Override
+  public Iterable<ValueSet> getValueSets() {
+    if(!isColumnar()) return super.getValueSets();
+    return new Iterable<ValueSet>() {
+      @Override
+      public Iterator<ValueSet> iterator() {
+        return new ColumnarValueSetIterator();
+      }
+    };
+  }
+
+  boolean isColumnar() {
+    return getDatasource().getStorageFormat() == FsStorageFormat.COLUMNAR;
+  }
+
   @NotNull
   @Override
   public FsVariableEntityProvider getVariableEntityProvider() {
@@ -114,6 +181,93 @@ class FsValueTable extends AbstractValueTable implements Initialisable, Disposab
     return getDatasource().createWriter(getEntry(name));
   }
 
+  OutputStream createOutputStream(String name) {
+    return getDatasource().createOutputStream(getEntry(name));
+  }
+
+  /**
+   * Reads a row group entry.
+   *
+   * @param variableNames names of the columns to load, all columns are loaded when null
+   */
+  private FsRowGroup readRowGroup(String entryName, @Nullable Set<String> variableNames) {
+    try(InputStream is = getDatasource().createInputStream(getEntry(entryName))) {
+      return FsRowGroup.read(is, variableNames);
+    } catch(IOException e) {
+      throw new MagmaRuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the value set stored in a XML entry, reading it only if it is not one of the value sets recently read.
+   */
+  XStreamValueSet getXStreamValueSet(final String entryName) {
+    try {
+      return valueSetCache.get(entryName, new Callable<XStreamValueSet>() {
+        @Override
+        public XStreamValueSet call() {
+          return readEntry(entryName, new InputCallback<XStreamValueSet>() {
+            @Override
+            public XStreamValueSet readEntry(Reader reader) throws IOException {
+              return (XStreamValueSet) xstream.fromXML(reader);
+            }
+          });
+        }
+      });
+    } catch(UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } catch(ExecutionException e) {
+      throw new MagmaRuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Forgets the value set read from a XML entry, called when this entry is written.
+   */
+  void invalidateXStreamValueSet(String entryName) {
+    valueSetCache.invalidate(entryName);
+  }
+
+  /**
+   * Names of the row group entries of a columnar table, in the order they were written.
+   */
+  List<String> getRowGroupEntryNames() {
+    String[] names = getEntry(FsRowGroup.DIRECTORY).list();
+    List<String> entryNames = new ArrayList<>();
+    if(names != null) {
+      for(String name : names) {
+        if(name.endsWith(FsRowGroup.SUFFIX)) entryNames.add(FsRowGroup.DIRECTORY + "/" + name);
+      }
+    }
+    Collections.sort(entryNames);
+    return entryNames;
+  }
+
+  /**
+   * Deletes a row group entry, along with the entries derived from it (digests).
+   */
+  synchronized void deleteRowGroup(String entryName) {
+    String name = entryName.substring(entryName.lastIndexOf('/') + 1);
+    String[] names = getEntry(FsRowGroup.DIRECTORY).list();
+    if(names != null) {
+      for(String other : names) {
+        if(other.startsWith(name)) getEntry(FsRowGroup.DIRECTORY + "/" + other).delete();
+      }
+    }
+    if(entryName.equals(cachedRowGroupEntry)) {
+      cachedRowGroup = null;
+      cachedRowGroupEntry = null;
+    }
+  }
+
+  private synchronized FsRowGroup getRowGroup(String entryName) {
+    if(cachedRowGroup == null || !entryName.equals(cachedRowGroupEntry)) {
+      cachedRowGroup = readRowGroup(entryName, null);
+      cachedRowGroupEntry = entryName;
+    }
+    return cachedRowGroup;
+  }
+
   private void readVariables() {
     readEntry("variables.xml", new InputCallback<Void>() {
       @SuppressWarnings("InfiniteLoopStatement")
@@ -136,7 +290,7 @@ class FsValueTable extends AbstractValueTable implements Initialisable, Disposab
 
   }
 
-  private static class FsVariableValueSource extends AbstractVariableValueSource implements VariableValueSource {
+  private class FsVariableValueSource extends AbstractVariableValueSource implements VariableValueSource {
 
     private final Variable variable;
 
@@ -159,18 +313,275 @@ class FsValueTable extends AbstractValueTable implements Initialisable, Disposab
     @NotNull
     @Override
     public Value getValue(ValueSet valueSet) {
+      if(valueSet instanceof ColumnarValueSet) {
+        return ((ColumnarValueSet) valueSet).getValue(variable);
+      }
       return ((LazyValueSet) valueSet).getValueSet().getValue(variable);
     }
 
     @Override
     public boolean supportVectorSource() {
-      return false;
+      return true;
     }
 
     @NotNull
     @Override
     public VectorSource asVectorSource() {
-      throw new MagmaRuntimeException("FS Datasource does not support vector source");
+      return isColumnar() ? new ColumnVectorSource(variable) : new ValueSetVectorSource(variable);
+    }
+
+  }
+
+  /**
+   * Reads the values of a variable in a columnar table: each group that holds some of the requested entities is read
+   * once, and only the column of this variable is loaded.
+   */
+  private class ColumnVectorSource implements VectorSource {
+
+    private final Variable variable;
+
+    private ColumnVectorSource(Variable variable) {
+      this.variable = variable;
+    }
+
+    @Override
+    public ValueType getValueType() {
+      return variable.getValueType();
+    }
+
+    @Override
+    public Iterable<Value> getValues(SortedSet<VariableEntity> entities) {
+      Value[] values = new Value[entities.size()];
+      Map<String, List<int[]>> rowsByEntry = new LinkedHashMap<>();
+      int position = 0;
+      for(VariableEntity entity : entities) {
+        String location = variableEntityProvider.getEntityFile(entity);
+        if(location == null) {
+          values[position] = nullValue(variable);
+        } else {
+          String entryName = FsRowGroup.getEntryName(location);
+          if(!rowsByEntry.containsKey(entryName)) rowsByEntry.put(entryName, new ArrayList<int[]>());
+          rowsByEntry.get(entryName).add(new int[] { position, FsRowGroup.getRow(location) });
+        }
+        position++;
+      }
+
+      for(Map.Entry<String, List<int[]>> entry : rowsByEntry.entrySet()) {
+        FsRowGroup rowGroup = readRowGroup(entry.getKey(), Collections.singleton(variable.getName()));
+        for(int[] positionAndRow : entry.getValue()) {
+          Value value = rowGroup.getValue(variable.getName(), positionAndRow[1]);
+          values[positionAndRow[0]] = value == null ? nullValue(variable) : value;
+        }
+      }
+      return Arrays.asList(values);
+    }
+
+  }
+
+  /**
+   * Reads the values of a variable in a XML table, one value set at a time. Use
+   * {@link FsValueTable#getValues(SortedSet, List)} to read several variables while reading each value set once.
+   */
+  private class ValueSetVectorSource implements VectorSource {
+
+    private final Variable variable;
+
+    private ValueSetVectorSource(Variable variable) {
+      this.variable = variable;
+    }
+
+    @Override
+    public ValueType getValueType() {
+      return variable.getValueType();
+    }
+
+    @Override
+    public Iterable<Value> getValues(SortedSet<VariableEntity> entities) {
+      final List<Variable> variables = Collections.singletonList(variable);
+      return Iterables.transform(FsValueTable.this.getValues(entities, variables), new Function<List<Value>, Value>() {
+        @Override
+        public Value apply(List<Value> values) {
+          return values.get(0);
+        }
+      });
+    }
+
+  }
+
+  /**
+   * Reads the values of the entities one after the other: each value set of a XML table is read once (or found in the
+   * value sets recently read), and each group of a columnar table is read once for the consecutive entities it holds,
+   * loading only the columns of the requested variables.
+   */
+  @NotNull
+  @Override
+  public Iterable<List<Value>> getValues(@NotNull final SortedSet<VariableEntity> entities,
+      @NotNull List<Variable> variables) {
+    final List<Variable> tableVariables = new ArrayList<>(variables.size());
+    for(Variable variable : variables) {
+      tableVariables.add(getVariableValueSource(variable.getName()).getVariable());
+    }
+    return new Iterable<List<Value>>() {
+      @Override
+      public Iterator<List<Value>> iterator() {
+        return new ValuesIterator(entities.iterator(), tableVariables);
+      }
+    };
+  }
+
+  private class ValuesIterator implements Iterator<List<Value>> {
+
+    private final Iterator<VariableEntity> entities;
+
+    private final List<Variable> variables;
+
+    private final Set<String> variableNames = new HashSet<>();
+
+    @Nullable
+    private FsRowGroup rowGroup;
+
+    @Nullable
+    private String rowGroupEntry;
+
+    private ValuesIterator(Iterator<VariableEntity> entities, List<Variable> variables) {
+      this.entities = entities;
+      this.variables = variables;
+      for(Variable variable : variables) {
+        variableNames.add(variable.getName());
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return entities.hasNext();
+    }
+
+    @Override
+    public List<Value> next() {
+      String location = variableEntityProvider.getEntityFile(entities.next());
+      List<Value> values = new ArrayList<>(variables.size());
+      if(location == null) {
+        for(Variable variable : variables) {
+          values.add(nullValue(variable));
+        }
+      } else if(isColumnar()) {
+        String entryName = FsRowGroup.getEntryName(location);
+        if(rowGroup == null || !entryName.equals(rowGroupEntry)) {
+          rowGroup = readRowGroup(entryName, variableNames);
+          rowGroupEntry = entryName;
+        }
+        int row = FsRowGroup.getRow(location);
+        for(Variable variable : variables) {
+          Value value = rowGroup.getValue(variable.getName(), row);
+          values.add(value == null ? nullValue(variable) : value);
+        }
+      } else {
+        XStreamValueSet valueSet = getXStreamValueSet(location);
+        for(Variable variable : variables) {
+          values.add(valueSet.getValue(variable));
+        }
+      }
+      return values;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+  }
+
+  private static Value nullValue(Variable variable) {
+    return variable.isRepeatable() ? variable.getValueType().nullSequence() : variable.getValueType().nullValue();
+  }
+
+  private class ColumnarValueSet extends ValueSetBean {
+
+    private final String entryName;
+
+    private final int row;
+
+    @SuppressWarnings("TransientFieldInNonSerializableClass")
+    @Nullable
+    private transient volatile FsRowGroup rowGroup;
+
+    ColumnarValueSet(ValueTable table, VariableEntity entity, String location, @Nullable FsRowGroup rowGroup) {
+      super(table, entity);
+      entryName = FsRowGroup.getEntryName(location);
+      row = FsRowGroup.getRow(location);
+      this.rowGroup = rowGroup;
+    }
+
+    Value getValue(Variable variable) {
+      if(rowGroup == null) {
+        rowGroup = getRowGroup(entryName);
+      }
+      //noinspection ConstantConditions
+      Value value = rowGroup.getValue(variable.getName(), row);
+      return value == null ? nullValue(variable) : value;
+    }
+
+  }
+
+  /**
+   * Reads the groups of a columnar table in the order they were written, skipping the rows of value sets that were
+   * written again in a later group.
+   */
+  private class ColumnarValueSetIterator implements Iterator<ValueSet> {
+
+    private final Iterator<String> entryNames;
+
+    @Nullable
+    private FsRowGroup rowGroup;
+
+    @Nullable
+    private String entryName;
+
+    private int row;
+
+    @Nullable
+    private ValueSet next;
+
+    private ColumnarValueSetIterator() {
+      entryNames = getRowGroupEntryNames().iterator();
+      next = readNext();
+    }
+
+    @Nullable
+    private ValueSet readNext() {
+      while(true) {
+        if(rowGroup == null || row >= rowGroup.getIdentifiers().size()) {
+          if(!entryNames.hasNext()) return null;
+          entryName = entryNames.next();
+          rowGroup = readRowGroup(entryName, null);
+          row = 0;
+          continue;
+        }
+        VariableEntity entity = new VariableEntityBean(getEntityType(), rowGroup.getIdentifiers().get(row));
+        //noinspection ConstantConditions
+        String location = FsRowGroup.getLocation(entryName, row++);
+        if(location.equals(variableEntityProvider.getEntityFile(entity))) {
+          return new ColumnarValueSet(FsValueTable.this, entity, location, rowGroup);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public ValueSet next() {
+      if(next == null) throw new NoSuchElementException();
+      ValueSet valueSet = next;
+      next = readNext();
+      return valueSet;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
     }
 
   }
@@ -186,24 +597,15 @@ class FsValueTable extends AbstractValueTable implements Initialisable, Disposab
 
     XStreamValueSet getValueSet() {
       if(valueSet == null) {
-        valueSet = readValueSet(getVariableEntity());
+        String entryName = variableEntityProvider.getEntityFile(getVariableEntity());
+        if(entryName == null) {
+          throw new NoSuchValueSetException(FsValueTable.this, getVariableEntity());
+        }
+        valueSet = getXStreamValueSet(entryName);
       }
       return valueSet;
     }
 
-    private XStreamValueSet readValueSet(VariableEntity entity) {
-      String entryName = variableEntityProvider.getEntityFile(entity);
-      if(entryName == null) {
-        throw new NoSuchValueSetException(FsValueTable.this, entity);
-      }
-      return readEntry(entryName, new InputCallback<XStreamValueSet>() {
-        @Override
-        public XStreamValueSet readEntry(Reader reader) throws IOException {
-          return (XStreamValueSet) xstream.fromXML(reader);
-        }
-      });
-    }
-
   }
 
   @NotNull
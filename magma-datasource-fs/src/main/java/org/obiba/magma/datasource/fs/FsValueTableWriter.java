@@ -30,8 +30,7 @@ class FsValueTableWriter implements ValueTableWriter {
   public ValueSetWriter writeValueSet(@NotNull VariableEntity entity) {
     String entry = valueTable.getVariableEntityProvider().addEntity(entity);
     try {
-      return new XStreamValueSetWriter(valueTable.createWriter(entry),
-          new XStreamValueSet(valueTable.getName(), entity));
+      return new XStreamValueSetWriter(entry, new XStreamValueSet(valueTable.getName(), entity));
     } catch(IOException e) {
       throw new RuntimeException(e);
     }
@@ -86,12 +85,15 @@ class FsValueTableWriter implements ValueTableWriter {
 
   private class XStreamValueSetWriter implements ValueSetWriter {
 
+    private final String entry;
+
     private final Writer os;
 
     private final XStreamValueSet valueSet;
 
-    private XStreamValueSetWriter(Writer os, XStreamValueSet valueSet) throws IOException {
-      this.os = os;
+    private XStreamValueSetWriter(String entry, XStreamValueSet valueSet) throws IOException {
+      this.entry = entry;
+      os = valueTable.createWriter(entry);
       this.valueSet = valueSet;
     }
 
@@ -104,6 +106,8 @@ class FsValueTableWriter implements ValueTableWriter {
           os.close();
         } catch(IOException ignored) {
         }
+        // once the entry is complete, so that it is not read again before
+        valueTable.invalidateXStreamValueSet(entry);
       }
     }
 
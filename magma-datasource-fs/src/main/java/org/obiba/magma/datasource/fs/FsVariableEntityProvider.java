@@ -7,6 +7,7 @@ import java.io.Reader;
 import java.io.Writer;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 
@@ -121,10 +122,25 @@ class FsVariableEntityProvider implements VariableEntityProvider, Initialisable,
     return getEntityFile(entity);
   }
 
+  /**
+   * Sets where the value set of an entity is stored, in a columnar table: see {@link FsColumnarValueTableWriter}.
+   */
+  void putEntity(VariableEntity entity, String location) {
+    entityToFile.forcePut(entity, location);
+    entityToFileMapModified = true;
+  }
+
   String getEntityFile(VariableEntity variableEntity) {
     return entityToFile.get(variableEntity);
   }
 
+  /**
+   * Returns where the value sets of all the entities are stored.
+   */
+  Collection<String> getEntityFiles() {
+    return entityToFile.values();
+  }
+
   VariableEntity getEntityForFile(String filename) {
     return entityToFile.inverse().get(filename);
   }
@@ -8,6 +8,7 @@ import org.obiba.magma.AbstractDatasourceFactory;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.datasource.crypt.DatasourceEncryptionStrategy;
 import org.obiba.magma.datasource.fs.FsDatasource;
+import org.obiba.magma.datasource.fs.FsStorageFormat;
 
 public class FsDatasourceFactory extends AbstractDatasourceFactory {
 
@@ -15,6 +16,8 @@ public class FsDatasourceFactory extends AbstractDatasourceFactory {
 
   private DatasourceEncryptionStrategy encryptionStrategy;
 
+  private FsStorageFormat storageFormat;
+
   public void setFile(File file) {
     this.file = file;
   }
@@ -23,6 +26,10 @@ public class FsDatasourceFactory extends AbstractDatasourceFactory {
     this.encryptionStrategy = encryptionStrategy;
   }
 
+  public void setStorageFormat(FsStorageFormat storageFormat) {
+    this.storageFormat = storageFormat;
+  }
+
   @NotNull
   @Override
   protected Datasource internalCreate() {
@@ -30,6 +37,9 @@ public class FsDatasourceFactory extends AbstractDatasourceFactory {
     if(encryptionStrategy != null) {
       datasource.setEncryptionStrategy(encryptionStrategy);
     }
+    if(storageFormat != null) {
+      datasource.setStorageFormat(storageFormat);
+    }
     return datasource;
   }
 
@@ -0,0 +1,300 @@
+package org.obiba.magma.datasource.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.SortedSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.MultipleVectorSource;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.ValueTableWriter;
+import org.obiba.magma.ValueTableWriter.ValueSetWriter;
+import org.obiba.magma.ValueTableWriter.VariableWriter;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.Values;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.BinaryType;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+import org.obiba.magma.xstream.MagmaXStreamExtension;
+import org.obiba.magma.xstream.XStreamValueSet;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class FsDatasourceTest {
+
+  private static final String PARTICIPANT = "Participant";
+
+  private static final int ENTITY_COUNT = FsColumnarValueTableWriter.ROW_GROUP_SIZE + 10;
+
+  private Variable integerVariable;
+
+  private Variable textVariable;
+
+  private Variable binaryVariable;
+
+  private File archive;
+
+  @Before
+  public void before() throws IOException {
+    new MagmaEngine().extend(new MagmaXStreamExtension());
+    integerVariable = Variable.Builder.newVariable("INTEGER", IntegerType.get(), PARTICIPANT).build();
+    textVariable = Variable.Builder.newVariable("TEXT", TextType.get(), PARTICIPANT).repeatable().build();
+    binaryVariable = Variable.Builder.newVariable("BINARY", BinaryType.get(), PARTICIPANT).build();
+    archive = File.createTempFile("magma", ".zip");
+    archive.delete();
+  }
+
+  @After
+  public void after() {
+    MagmaEngine.get().shutdown();
+    archive.delete();
+  }
+
+  @Test
+  public void test_columnar_round_trip() {
+    FsDatasource datasource = createColumnarDatasource();
+    writeValueSets(datasource, 0, ENTITY_COUNT, "");
+    dispose(datasource);
+
+    datasource = openDatasource();
+    assertThat(datasource.getStorageFormat()).isEqualTo(FsStorageFormat.COLUMNAR);
+    assertColumnarValues(datasource.getValueTable("table"), "");
+    dispose(datasource);
+  }
+
+  @Test
+  public void test_columnar_rewritten_value_sets_are_read_from_newer_group() {
+    FsDatasource datasource = createColumnarDatasource();
+    writeValueSets(datasource, 0, ENTITY_COUNT, "");
+    writeValueSets(datasource, 0, 5, "new-");
+    dispose(datasource);
+
+    datasource = openDatasource();
+    ValueTable table = datasource.getValueTable("table");
+    assertThat(table.getValueSets()).hasSize(ENTITY_COUNT);
+    for(ValueSet valueSet : table.getValueSets()) {
+      int i = Integer.parseInt(valueSet.getVariableEntity().getIdentifier());
+      assertThat(table.getValue(textVariable, valueSet)).isEqualTo(textValue(i, i < 5 ? "new-" : ""));
+    }
+    assertThat(table.getValue(textVariable, table.getValueSet(entity(3)))).isEqualTo(textValue(3, "new-"));
+    assertThat(table.getValue(textVariable, table.getValueSet(entity(8)))).isEqualTo(textValue(8, ""));
+    List<Value> values = Lists.newArrayList(table.getVariableValueSource("TEXT").asVectorSource()
+        .getValues(ImmutableSortedSet.of(entity(3), entity(8))));
+    assertThat(values).containsExactly(textValue(3, "new-"), textValue(8, ""));
+    dispose(datasource);
+  }
+
+  @Test
+  public void test_columnar_superseded_groups_are_deleted() {
+    FsDatasource datasource = createColumnarDatasource();
+    writeValueSets(datasource, 0, ENTITY_COUNT, "");
+    FsValueTable table = (FsValueTable) datasource.getValueTable("table");
+    assertThat(table.getRowGroupEntryNames()).hasSize(2);
+
+    // the second group only holds the last value sets
+    writeValueSets(datasource, FsColumnarValueTableWriter.ROW_GROUP_SIZE, ENTITY_COUNT, "new-");
+    assertThat(table.getRowGroupEntryNames()).hasSize(2);
+    // partially superseded groups are kept
+    writeValueSets(datasource, 0, 5, "new-");
+    assertThat(table.getRowGroupEntryNames()).hasSize(3);
+    // groups are numbered after the last one
+    writeValueSets(datasource, 0, 5, "newer-");
+    assertThat(table.getRowGroupEntryNames()).hasSize(3);
+    dispose(datasource);
+
+    datasource = openDatasource();
+    ValueTable reopened = datasource.getValueTable("table");
+    assertThat(reopened.getValueSets()).hasSize(ENTITY_COUNT);
+    assertThat(reopened.getValue(textVariable, reopened.getValueSet(entity(0)))).isEqualTo(textValue(0, "newer-"));
+    assertThat(reopened.getValue(textVariable, reopened.getValueSet(entity(8)))).isEqualTo(textValue(8, ""));
+    assertThat(reopened.getValue(textVariable, reopened.getValueSet(entity(ENTITY_COUNT - 1))))
+        .isEqualTo(textValue(ENTITY_COUNT - 1, "new-"));
+    dispose(datasource);
+  }
+
+  @Test
+  public void test_columnar_multiple_vectors() {
+    FsDatasource datasource = createColumnarDatasource();
+    writeValueSets(datasource, 0, ENTITY_COUNT, "");
+    dispose(datasource);
+
+    datasource = openDatasource();
+    assertMultipleVectors(datasource.getValueTable("table"), "");
+    dispose(datasource);
+  }
+
+  @Test
+  public void test_xml_multiple_vectors() {
+    FsDatasource datasource = openDatasource();
+    writeValueSets(datasource, 0, 20, "");
+    dispose(datasource);
+
+    datasource = openDatasource();
+    ValueTable table = datasource.getValueTable("table");
+    assertThat(table).isInstanceOf(MultipleVectorSource.class);
+    SortedSet<VariableEntity> entities = ImmutableSortedSet.of(entity(3), entity(8), entity(99));
+    List<List<Value>> rows = Lists.newArrayList(((MultipleVectorSource) table)
+        .getValues(entities, ImmutableList.of(textVariable, integerVariable)));
+    assertThat(rows).hasSize(3);
+    assertThat(rows.get(0)).containsExactly(textValue(3, ""), integerValue(3));
+    assertThat(rows.get(1)).containsExactly(textValue(8, ""), integerValue(8));
+    // no value set for this entity
+    assertThat(rows.get(2)).containsExactly(TextType.get().nullSequence(), IntegerType.get().nullValue());
+    List<Value> values = Lists.newArrayList(table.getVariableValueSource("TEXT").asVectorSource()
+        .getValues(ImmutableSortedSet.of(entity(3), entity(8))));
+    assertThat(values).containsExactly(textValue(3, ""), textValue(8, ""));
+    dispose(datasource);
+  }
+
+  @Test
+  public void test_xml_value_sets_are_read_once() {
+    FsDatasource datasource = openDatasource();
+    writeValueSets(datasource, 0, 5, "");
+    dispose(datasource);
+
+    datasource = openDatasource();
+    FsValueTable table = (FsValueTable) datasource.getValueTable("table");
+    String entryName = table.getVariableEntityProvider().getEntityFile(entity(3));
+    XStreamValueSet valueSet = table.getXStreamValueSet(entryName);
+    assertThat(table.getXStreamValueSet(entryName)).isSameAs(valueSet);
+    assertThat(table.getValue(textVariable, table.getValueSet(entity(3)))).isEqualTo(textValue(3, ""));
+    assertThat(table.getXStreamValueSet(entryName)).isSameAs(valueSet);
+    dispose(datasource);
+  }
+
+  @Test
+  public void test_xml_rewritten_value_sets_are_read_again() {
+    FsDatasource datasource = openDatasource();
+    writeValueSets(datasource, 0, 5, "");
+    dispose(datasource);
+
+    datasource = openDatasource();
+    ValueTable table = datasource.getValueTable("table");
+    assertThat(table.getValue(textVariable, table.getValueSet(entity(3)))).isEqualTo(textValue(3, ""));
+    writeValueSets(datasource, 3, 4, "new-");
+    assertThat(table.getValue(textVariable, table.getValueSet(entity(3)))).isEqualTo(textValue(3, "new-"));
+    assertThat(table.getVariableValueSource("TEXT").asVectorSource().getValues(ImmutableSortedSet.of(entity(3))))
+        .containsExactly(textValue(3, "new-"));
+    dispose(datasource);
+  }
+
+  private FsDatasource createColumnarDatasource() {
+    FsDatasource datasource = new FsDatasource("fs", archive);
+    datasource.setStorageFormat(FsStorageFormat.COLUMNAR);
+    MagmaEngine.get().addDatasource(datasource);
+    return datasource;
+  }
+
+  private FsDatasource openDatasource() {
+    FsDatasource datasource = new FsDatasource("fs", archive);
+    MagmaEngine.get().addDatasource(datasource);
+    return datasource;
+  }
+
+  private void dispose(FsDatasource datasource) {
+    MagmaEngine.get().removeDatasource(datasource);
+  }
+
+  private void writeValueSets(FsDatasource datasource, int from, int to, String prefix) {
+    try(ValueTableWriter tableWriter = datasource.createWriter("table", PARTICIPANT)) {
+      try(VariableWriter variableWriter = tableWriter.writeVariables()) {
+        variableWriter.writeVariable(integerVariable);
+        variableWriter.writeVariable(textVariable);
+        variableWriter.writeVariable(binaryVariable);
+      }
+      for(int i = from; i < to; i++) {
+        try(ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity(i))) {
+          valueSetWriter.writeValue(integerVariable, integerValue(i));
+          valueSetWriter.writeValue(textVariable, textValue(i, prefix));
+          valueSetWriter.writeValue(binaryVariable, binaryValue(i));
+        }
+      }
+    }
+  }
+
+  private void assertColumnarValues(ValueTable table, String prefix) {
+    assertThat(table.getVariableEntities()).hasSize(ENTITY_COUNT);
+
+    for(int i = 0; i < ENTITY_COUNT; i += 50) {
+      ValueSet valueSet = table.getValueSet(entity(i));
+      assertThat(table.getValue(integerVariable, valueSet)).isEqualTo(integerValue(i));
+      assertThat(table.getValue(textVariable, valueSet)).isEqualTo(textValue(i, prefix));
+      assertBinaryValue(table.getValue(binaryVariable, valueSet), i);
+    }
+
+    SortedSet<VariableEntity> entities = ImmutableSortedSet.copyOf(table.getVariableEntities());
+    int i = 0;
+    for(Value value : table.getVariableValueSource("INTEGER").asVectorSource().getValues(entities)) {
+      assertThat(value).isEqualTo(integerValue(Integer.parseInt(Iterables.get(entities, i++).getIdentifier())));
+    }
+    assertThat(i).isEqualTo(ENTITY_COUNT);
+
+    int count = 0;
+    for(ValueSet valueSet : table.getValueSets()) {
+      int n = Integer.parseInt(valueSet.getVariableEntity().getIdentifier());
+      assertThat(table.getValue(integerVariable, valueSet)).isEqualTo(integerValue(n));
+      assertThat(table.getValue(textVariable, valueSet)).isEqualTo(textValue(n, prefix));
+      assertBinaryValue(table.getValue(binaryVariable, valueSet), n);
+      count++;
+    }
+    assertThat(count).isEqualTo(ENTITY_COUNT);
+  }
+
+  private void assertMultipleVectors(ValueTable table, String prefix) {
+    assertThat(table).isInstanceOf(MultipleVectorSource.class);
+    SortedSet<VariableEntity> entities = ImmutableSortedSet.copyOf(table.getVariableEntities());
+    int i = 0;
+    for(List<Value> values : ((MultipleVectorSource) table)
+        .getValues(entities, ImmutableList.of(textVariable, integerVariable))) {
+      int n = Integer.parseInt(Iterables.get(entities, i++).getIdentifier());
+      assertThat(values).containsExactly(textValue(n, prefix), integerValue(n));
+    }
+    assertThat(i).isEqualTo(ENTITY_COUNT);
+  }
+
+  private static VariableEntity entity(int i) {
+    return new VariableEntityBean(PARTICIPANT, String.format("%04d", i));
+  }
+
+  /**
+   * Null for every third entity.
+   */
+  private static Value integerValue(int i) {
+    return i % 3 == 0 ? IntegerType.get().nullValue() : IntegerType.get().valueOf(i);
+  }
+
+  /**
+   * A sequence with a null element, or a null sequence for every seventh entity.
+   */
+  private static Value textValue(int i, String prefix) {
+    return i % 7 == 0
+        ? TextType.get().nullSequence()
+        : Values.asSequence(TextType.get(), prefix + i, null, prefix + "\u00e9" + i);
+  }
+
+  private static Value binaryValue(int i) {
+    return i % 5 == 0 ? BinaryType.get().nullValue() : BinaryType.get().valueOf(new byte[] { (byte) i, 0, -1 });
+  }
+
+  private static void assertBinaryValue(Value value, int i) {
+    if(i % 5 == 0) {
+      assertThat(value.isNull()).isTrue();
+    } else {
+      assertThat((byte[]) value.getValue()).isEqualTo(new byte[] { (byte) i, 0, -1 });
+    }
+  }
+
+}
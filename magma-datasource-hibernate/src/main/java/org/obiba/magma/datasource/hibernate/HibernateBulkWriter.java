@@ -0,0 +1,310 @@
+package org.obiba.magma.datasource.hibernate;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.validation.constraints.NotNull;
+
+import org.hibernate.LockMode;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.StatelessSession;
+import org.hibernate.jdbc.Work;
+import org.obiba.magma.NoSuchVariableException;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueTableWriter.ValueSetWriter;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.hibernate.converter.VariableConverter;
+import org.obiba.magma.datasource.hibernate.domain.ValueSetBinaryValue;
+import org.obiba.magma.datasource.hibernate.domain.ValueSetState;
+import org.obiba.magma.datasource.hibernate.domain.ValueSetValue;
+import org.obiba.magma.datasource.hibernate.domain.VariableEntityState;
+import org.obiba.magma.datasource.hibernate.domain.VariableState;
+import org.obiba.magma.type.BinaryType;
+import org.obiba.magma.type.TextType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Writes value sets through a {@code StatelessSession}: entities are neither dirty-checked nor kept in a persistence
+ * context, and values are inserted in JDBC batches (see {@code hibernate.jdbc.batch_size}).
+ * <p/>
+ * Value sets are buffered and written by groups of {@link #GROUP_SIZE}. Each group is written by its own stateless
+ * session, opened on the JDBC connection lent by the current session for the duration of the write, so that it takes
+ * part in the current transaction. The entities and value sets of a group that already exist are queried at once, the
+ * missing ones are inserted, then the values of the whole group are inserted. In an existing value set, the values of
+ * the written variables are replaced and the other values are kept.
+ */
+class HibernateBulkWriter {
+
+  private static final Logger log = LoggerFactory.getLogger(HibernateBulkWriter.class);
+
+  static final int GROUP_SIZE = 100;
+
+  private final HibernateValueTableTransaction transaction;
+
+  private final HibernateValueTable valueTable;
+
+  private final Session session;
+
+  private final VariableConverter variableConverter = VariableConverter.getInstance();
+
+  private final Map<String, VariableState> variableStates = Maps.newHashMap();
+
+  /**
+   * Closed value set writers not written yet, by entity identifier
+   */
+  private final Map<String, BulkValueSetWriter> pendingWriters = Maps.newLinkedHashMap();
+
+  HibernateBulkWriter(HibernateValueTableTransaction transaction, Session session) {
+    this.transaction = transaction;
+    this.session = session;
+    valueTable = transaction.getValueTable();
+
+    // the table and its variables must exist before value sets refer to them
+    session.flush();
+  }
+
+  ValueSetWriter writeValueSet(@NotNull VariableEntity entity) {
+    // a value set is written once in a group
+    if(pendingWriters.containsKey(entity.getIdentifier())) flush();
+    return new BulkValueSetWriter(entity);
+  }
+
+  /**
+   * Writes the pending value sets.
+   */
+  void close() {
+    flush();
+  }
+
+  /**
+   * Writes the pending value sets with a stateless session on the connection of the current session.
+   */
+  void flush() {
+    if(pendingWriters.isEmpty()) return;
+
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    final int[] nbValues = { 0 };
+    session.doWork(new Work() {
+      @Override
+      public void execute(Connection connection) throws SQLException {
+        StatelessSession statelessSession = valueTable.getDatasource().getSessionFactory()
+            .openStatelessSession(connection);
+        try {
+          nbValues[0] = write(statelessSession);
+        } finally {
+          statelessSession.close();
+        }
+      }
+    });
+
+    session.buildLockRequest(new LockOptions(LockMode.PESSIMISTIC_FORCE_INCREMENT))
+        .lock(valueTable.getValueTableState());
+    log.debug("Wrote {} value sets ({} values) in {} in {}", pendingWriters.size(), nbValues[0],
+        valueTable.getName(), stopwatch);
+    pendingWriters.clear();
+  }
+
+  /**
+   * Writes the pending value sets and returns the number of values written.
+   */
+  private int write(StatelessSession statelessSession) {
+    Map<String, VariableEntityState> entityStates = findEntityStates(statelessSession);
+    Map<String, ValueSetState> valueSetStates = findValueSetStates(statelessSession);
+
+    // entities and value sets are inserted first: the values refer to their generated identifiers
+    List<ValueSetValue> values = Lists.newArrayList();
+    List<Serializable> valueSetIds = Lists.newArrayListWithCapacity(pendingWriters.size());
+    for(BulkValueSetWriter writer : pendingWriters.values()) {
+      String identifier = writer.entity.getIdentifier();
+      ValueSetState valueSetState = valueSetStates.get(identifier);
+      if(valueSetState == null) {
+        VariableEntityState entityState = entityStates.get(identifier);
+        if(entityState == null) {
+          entityState = new VariableEntityState(identifier, writer.entity.getType());
+          statelessSession.insert(entityState);
+        }
+        valueSetState = new ValueSetState(valueTable.getValueTableState(), entityState);
+        statelessSession.insert(valueSetState);
+        // Make the entity visible within this transaction
+        transaction.addEntity(writer.entity);
+      } else {
+        deleteValues(statelessSession, valueSetState, writer.getVariableStateIds());
+      }
+      valueSetIds.add(valueSetState.getId());
+      writer.createValues(statelessSession, valueSetState, values);
+    }
+    for(ValueSetValue value : values) {
+      statelessSession.insert(value);
+    }
+    // Will update version timestamps. Statements are executed in order, so the values batched above are sent to the
+    // database before this update, and none is left pending when the stateless session is closed.
+    statelessSession.getNamedQuery("setLastUpdateForValueSetIds") //
+        .setParameter("updated", new Date()) //
+        .setParameterList("valueSetIds", valueSetIds) //
+        .executeUpdate();
+    return values.size();
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, VariableEntityState> findEntityStates(StatelessSession statelessSession) {
+    Map<String, VariableEntityState> entityStates = Maps.newHashMap();
+    for(VariableEntityState state : (List<VariableEntityState>) statelessSession
+        .getNamedQuery("findVariableEntitiesByTypeAndIdentifiers") //
+        .setParameter("type", valueTable.getEntityType()) //
+        .setParameterList("identifiers", pendingWriters.keySet()) //
+        .list()) {
+      entityStates.put(state.getIdentifier(), state);
+    }
+    return entityStates;
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, ValueSetState> findValueSetStates(StatelessSession statelessSession) {
+    Map<String, ValueSetState> valueSetStates = Maps.newHashMap();
+    for(ValueSetState state : (List<ValueSetState>) statelessSession
+        .getNamedQuery("findValueSetsByTableIdAndIdentifiers") //
+        .setParameter("valueTableId", valueTable.getValueTableId()) //
+        .setParameterList("identifiers", pendingWriters.keySet()) //
+        .list()) {
+      valueSetStates.put(state.getVariableEntity().getIdentifier(), state);
+    }
+    return valueSetStates;
+  }
+
+  private void deleteValues(StatelessSession statelessSession, ValueSetState valueSetState,
+      List<Serializable> variableIds) {
+    if(variableIds.isEmpty()) return;
+    statelessSession.getNamedQuery("deleteValueSetVariablesBinaryValues") //
+        .setParameter("valueSetId", valueSetState.getId()) //
+        .setParameterList("variableIds", variableIds) //
+        .executeUpdate();
+    statelessSession.getNamedQuery("deleteValueSetVariablesValues") //
+        .setParameter("valueSetId", valueSetState.getId()) //
+        .setParameterList("variableIds", variableIds) //
+        .executeUpdate();
+  }
+
+  private VariableState getVariableState(Variable variable) {
+    VariableState variableState = variableStates.get(variable.getName());
+    if(variableState == null) {
+      variableState = variableConverter.getStateForVariable(variable, valueTable.createContext());
+      if(variableState == null) {
+        throw new NoSuchVariableException(valueTable.getName(), variable.getName());
+      }
+      variableStates.put(variable.getName(), variableState);
+    }
+    return variableState;
+  }
+
+  private class BulkValueSetWriter implements ValueSetWriter {
+
+    @NotNull
+    private final VariableEntity entity;
+
+    private final Map<String, VariableState> writtenVariables = Maps.newLinkedHashMap();
+
+    private final Map<String, Value> values = Maps.newHashMap();
+
+    private boolean removed = false;
+
+    private BulkValueSetWriter(@NotNull VariableEntity entity) {
+      //noinspection ConstantConditions
+      if(entity == null) throw new IllegalArgumentException("entity cannot be null");
+      this.entity = entity;
+    }
+
+    @Override
+    public void writeValue(@NotNull Variable variable, @NotNull Value value) {
+      //noinspection ConstantConditions
+      if(variable == null) throw new IllegalArgumentException("variable cannot be null");
+      //noinspection ConstantConditions
+      if(value == null) throw new IllegalArgumentException("value cannot be null");
+
+      writtenVariables.put(variable.getName(), getVariableState(variable));
+      values.put(variable.getName(), value);
+    }
+
+    @Override
+    public void remove() {
+      flush();
+      Serializable valueSetId = (Serializable) session.getNamedQuery("findValueSetIdByTableIdAndIdentifier") //
+          .setParameter("valueTableId", valueTable.getValueTableId()) //
+          .setParameter("identifier", entity.getIdentifier()) //
+          .uniqueResult();
+      if(valueSetId != null) {
+        valueTable.dropValueSet(entity, valueSetId);
+      }
+      removed = true;
+    }
+
+    @Override
+    public void close() {
+      if(removed) return;
+      pendingWriters.put(entity.getIdentifier(), this);
+      if(pendingWriters.size() >= GROUP_SIZE) flush();
+    }
+
+    private List<Serializable> getVariableStateIds() {
+      List<Serializable> ids = Lists.newArrayListWithCapacity(writtenVariables.size());
+      for(VariableState variableState : writtenVariables.values()) {
+        ids.add(variableState.getId());
+      }
+      return ids;
+    }
+
+    /**
+     * Inserts the binary values and adds the values to insert in the given list.
+     */
+    private void createValues(StatelessSession statelessSession, ValueSetState valueSetState,
+        List<ValueSetValue> valueSetValues) {
+      for(Map.Entry<String, VariableState> entry : writtenVariables.entrySet()) {
+        Value value = values.get(entry.getKey());
+        if(value.isNull()) continue;
+
+        ValueSetValue valueSetValue = new ValueSetValue(entry.getValue(), valueSetState);
+        if(BinaryType.get().equals(value.getValueType())) {
+          writeBinaryValue(statelessSession, valueSetValue, value);
+        } else {
+          valueSetValue.setValue(value);
+        }
+        valueSetValues.add(valueSetValue);
+      }
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    private void writeBinaryValue(StatelessSession statelessSession, ValueSetValue valueSetValue, Value value) {
+      if(value.isSequence()) {
+        List<Value> sequenceValues = Lists.newArrayList();
+        int occurrence = 0;
+        for(Value valueOccurrence : value.asSequence().getValue()) {
+          sequenceValues.add(insertBinaryValue(statelessSession, valueSetValue, valueOccurrence, occurrence++));
+        }
+        valueSetValue.setValue(TextType.get().sequenceOf(sequenceValues));
+      } else {
+        valueSetValue.setValue(insertBinaryValue(statelessSession, valueSetValue, value, 0));
+      }
+    }
+
+    private Value insertBinaryValue(StatelessSession statelessSession, ValueSetValue valueSetValue, Value value,
+        int occurrence) {
+      if(value.isNull()) return TextType.get().nullValue();
+      ValueSetBinaryValue binaryValue = new ValueSetBinaryValue(valueSetValue, occurrence);
+      binaryValue.setValue((byte[]) value.getValue());
+      statelessSession.insert(binaryValue);
+      return HibernateValueTableWriter.getBinaryMetadata(binaryValue);
+    }
+
+  }
+
+}
@@ -1,6 +1,10 @@
 package org.obiba.magma.datasource.hibernate;
 
 import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -19,20 +23,24 @@ import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.criterion.Restrictions;
+import org.hibernate.jdbc.Work;
 import org.obiba.core.service.impl.hibernate.AssociationCriteria;
 import org.obiba.core.service.impl.hibernate.AssociationCriteria.Operation;
 import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.NoSuchValueTableException;
 import org.obiba.magma.Timestamped;
 import org.obiba.magma.Timestamps;
+import org.obiba.magma.Value;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueTableWriter;
+import org.obiba.magma.ValueType;
 import org.obiba.magma.datasource.hibernate.converter.AttributeAwareConverter;
 import org.obiba.magma.datasource.hibernate.converter.HibernateMarshallingContext;
 import org.obiba.magma.datasource.hibernate.domain.AttributeState;
 import org.obiba.magma.datasource.hibernate.domain.DatasourceState;
 import org.obiba.magma.datasource.hibernate.domain.ValueTableState;
 import org.obiba.magma.datasource.hibernate.domain.VariableState;
+import org.obiba.magma.datasource.hibernate.type.TypedValueHibernateType;
 import org.obiba.magma.support.AbstractDatasource;
 import org.obiba.magma.support.UnionTimestamps;
 import org.slf4j.Logger;
@@ -57,6 +65,8 @@ public class HibernateDatasource extends AbstractDatasource {
 
   private Serializable datasourceId;
 
+  private boolean bulkWrite = false;
+
   /**
    * A Map of {@code org.hibernate.Transaction} to a list of all {@code HibernateValueTable} involved in the
    * transaction. This map uses weak keys, meaning that when the transaction object is no longer reference anywhere, its
@@ -290,6 +300,93 @@ public class HibernateDatasource extends AbstractDatasource {
     addValueTable(vt);
   }
 
+  /**
+   * When enabled, value sets are written by groups through {@code StatelessSession}s borrowing the connection of the
+   * current session: no dirty-checking is done and values are inserted in JDBC batches (see
+   * {@code hibernate.jdbc.batch_size}). Meant for bulk imports, value sets written this way are only visible in the
+   * database once the table writer is closed or the transaction completes.
+   */
+  public void setBulkWrite(boolean bulkWrite) {
+    this.bulkWrite = bulkWrite;
+  }
+
+  public boolean isBulkWrite() {
+    return bulkWrite;
+  }
+
+  /**
+   * Moves the integer, decimal, boolean, date and datetime values of this datasource that are stored as strings to the
+   * typed columns of {@link TypedValueHibernateType}. Values are read and updated by batches of {@code batchSize}
+   * values, within the current Hibernate transaction. Migrated values stay readable when the
+   * {@link TypedValueHibernateType#TYPED_STORAGE_PROPERTY} system property is turned off. The typed columns must exist,
+   * see {@link TypedValueHibernateType} for the scripts adding them.
+   *
+   * @param batchSize the maximum number of values read and updated at once
+   * @return the number of migrated values
+   */
+  public int migrateTypedValues(final int batchSize) {
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Session session = getSessionFactory().getCurrentSession();
+    // pending values must be written before they are migrated
+    session.flush();
+    final int[] nbMigrated = { 0 };
+    session.doWork(new Work() {
+      @Override
+      public void execute(Connection connection) throws SQLException {
+        int nbValues;
+        do {
+          nbValues = migrateTypedValues(connection, batchSize);
+          nbMigrated[0] += nbValues;
+        } while(nbValues == batchSize);
+      }
+    });
+    log.info("Migrated {} values of {} to typed columns in {}", nbMigrated[0], getName(), stopwatch);
+    return nbMigrated[0];
+  }
+
+  /**
+   * Migrates at most {@code batchSize} values stored as strings, returns the number of migrated values.
+   */
+  private int migrateTypedValues(Connection connection, int batchSize) throws SQLException {
+    List<ValueType> valueTypes = TypedValueHibernateType.getTypedValueTypes();
+    List<Object[]> rows = Lists.newArrayListWithCapacity(batchSize);
+    try(PreparedStatement select = connection.prepareStatement(
+        "SELECT vsv.value_set_id, vsv.variable_id, vsv.value_type, vsv.is_sequence, vsv.value " +
+            "FROM value_set_value vsv WHERE vsv.value_type IN (?, ?, ?, ?, ?) " +
+            "AND vsv.integer_value IS NULL AND vsv.decimal_value IS NULL AND vsv.boolean_value IS NULL " +
+            "AND vsv.date_value IS NULL AND vsv.sequence_value IS NULL AND vsv.value_set_id IN " +
+            "(SELECT vs.id FROM value_set vs, value_table vt WHERE vt.id = vs.value_table_id AND vt.datasource_id = ?)")) {
+      for(int i = 0; i < valueTypes.size(); i++) {
+        select.setString(i + 1, valueTypes.get(i).getName());
+      }
+      select.setObject(valueTypes.size() + 1, datasourceId);
+      select.setMaxRows(batchSize);
+      try(ResultSet rs = select.executeQuery()) {
+        while(rs.next()) {
+          ValueType valueType = ValueType.Factory.forName(rs.getString(3));
+          String stringValue = rs.getString(5);
+          Value value = rs.getBoolean(4) ? valueType.sequenceOf(stringValue) : valueType.valueOf(stringValue);
+          rows.add(new Object[] { rs.getObject(1), rs.getObject(2), value });
+        }
+      }
+    }
+    if(rows.isEmpty()) return 0;
+
+    try(PreparedStatement update = connection.prepareStatement(
+        "UPDATE value_set_value SET value = ?, integer_value = ?, decimal_value = ?, boolean_value = ?, " +
+            "date_value = ?, sequence_value = ? WHERE value_set_id = ? AND variable_id = ?")) {
+      for(Object[] row : rows) {
+        TypedValueHibernateType.setTypedColumns(update, 1, (Value) row[2]);
+        update.setObject(7, row[0]);
+        update.setObject(8, row[1]);
+        update.addBatch();
+      }
+      update.executeBatch();
+    }
+    return rows.size();
+  }
+
   /**
    * Use with caution!
    *
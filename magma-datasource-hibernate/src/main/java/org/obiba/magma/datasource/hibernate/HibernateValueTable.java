@@ -28,6 +28,7 @@ import org.obiba.core.service.impl.hibernate.AssociationCriteria;
 import org.obiba.core.service.impl.hibernate.AssociationCriteria.Operation;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.Initialisable;
+import org.obiba.magma.MultipleVectorSource;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchVariableException;
 import org.obiba.magma.Timestamps;
@@ -57,13 +58,19 @@ import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 @SuppressWarnings("OverlyCoupledClass")
-class HibernateValueTable extends AbstractValueTable {
+class HibernateValueTable extends AbstractValueTable implements MultipleVectorSource {
 
   private static final Logger log = LoggerFactory.getLogger(HibernateValueTable.class);
 
+  /**
+   * Number of value sets loaded at once when iterating over the value sets of the table
+   */
+  static final int PREFETCH_SIZE = 100;
+
   private final Serializable valueTableId;
 
   private final HibernateVariableEntityProvider variableEntityProvider;
@@ -103,6 +110,20 @@ class HibernateValueTable extends AbstractValueTable {
     return new HibernateValueSet(entity, criteria.getCriteria().setFetchMode("values", FetchMode.JOIN));
   }
 
+  /**
+   * Value sets are loaded with their values by pages of {@link #PREFETCH_SIZE} entities, one query per page.
+   */
+  @Override
+  public Iterable<ValueSet> getValueSets() {
+    final Set<VariableEntity> entities = getVariableEntities();
+    return new Iterable<ValueSet>() {
+      @Override
+      public Iterator<ValueSet> iterator() {
+        return new PrefetchingValueSetIterator(entities.iterator());
+      }
+    };
+  }
+
   @Override
   public boolean canDropValueSets() {
     return true;
@@ -258,6 +279,28 @@ class HibernateValueTable extends AbstractValueTable {
     }
   }
 
+  /**
+   * The values of all the variables are read with a single scroll over the value sets of the table.
+   */
+  @NotNull
+  @Override
+  public Iterable<List<Value>> getValues(@NotNull final SortedSet<VariableEntity> entities,
+      @NotNull List<Variable> variables) {
+    if(entities.isEmpty()) {
+      return ImmutableList.of();
+    }
+    final List<HibernateVariableValueSource> sources = Lists.newArrayListWithCapacity(variables.size());
+    for(Variable variable : variables) {
+      sources.add((HibernateVariableValueSource) getVariableValueSource(variable.getName()));
+    }
+    return new Iterable<List<Value>>() {
+      @Override
+      public Iterator<List<Value>> iterator() {
+        return new HibernateVariableValueSourceFactory(HibernateValueTable.this).new ValuesIterator(entities, sources);
+      }
+    };
+  }
+
   @Override
   public boolean hasVariable(String variableName) {
     for(VariableValueSource source : getSources()) {
@@ -328,6 +371,7 @@ class HibernateValueTable extends AbstractValueTable {
 
   class HibernateValueSet extends ValueSetBean {
 
+    @Nullable
     private final Criteria valueSetCriteria;
 
     private ValueSetState valueSetState;
@@ -337,8 +381,18 @@ class HibernateValueTable extends AbstractValueTable {
       this.valueSetCriteria = valueSetCriteria;
     }
 
+    /**
+     * Value set which state was already loaded (and evicted from the session) with its values.
+     */
+    HibernateValueSet(VariableEntity entity, ValueSetState valueSetState) {
+      super(HibernateValueTable.this, entity);
+      valueSetCriteria = null;
+      this.valueSetState = valueSetState;
+    }
+
     synchronized ValueSetState getValueSetState() {
       if(valueSetState == null) {
+        //noinspection ConstantConditions
         valueSetState = (ValueSetState) valueSetCriteria.uniqueResult();
         if(valueSetState != null) {
           // this is important when copying from a HibernateDatasource. Otherwise, they accumulate in the session and
@@ -405,6 +459,70 @@ class HibernateValueTable extends AbstractValueTable {
     }
   }
 
+  /**
+   * Iterates over the value sets of some entities: the value set states of the next {@link #PREFETCH_SIZE} entities
+   * are loaded with their values in one query, then evicted from the session so that they do not accumulate in it.
+   */
+  private class PrefetchingValueSetIterator implements Iterator<ValueSet> {
+
+    private final Iterator<VariableEntity> entities;
+
+    private Iterator<ValueSet> currentPage = Collections.emptyIterator();
+
+    private PrefetchingValueSetIterator(Iterator<VariableEntity> entities) {
+      this.entities = entities;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return currentPage.hasNext() || entities.hasNext();
+    }
+
+    @Override
+    public ValueSet next() {
+      if(!currentPage.hasNext()) {
+        currentPage = nextPage();
+      }
+      return currentPage.next();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Iterator<ValueSet> nextPage() {
+      List<VariableEntity> pageEntities = Lists.newArrayListWithCapacity(PREFETCH_SIZE);
+      while(entities.hasNext() && pageEntities.size() < PREFETCH_SIZE) {
+        pageEntities.add(entities.next());
+      }
+      if(pageEntities.isEmpty()) throw new NoSuchElementException();
+
+      List<String> identifiers = Lists.newArrayListWithCapacity(pageEntities.size());
+      for(VariableEntity entity : pageEntities) {
+        identifiers.add(entity.getIdentifier());
+      }
+      Session session = getDatasource().getSessionFactory().getCurrentSession();
+      Map<String, ValueSetState> states = Maps.newHashMap();
+      for(ValueSetState state : (List<ValueSetState>) session
+          .getNamedQuery("findValueSetsWithValuesByTableIdAndIdentifiers") //
+          .setParameter("valueTableId", valueTableId) //
+          .setParameterList("identifiers", identifiers) //
+          .list()) {
+        session.evict(state);
+        states.put(state.getVariableEntity().getIdentifier(), state);
+      }
+
+      List<ValueSet> valueSets = Lists.newArrayListWithCapacity(pageEntities.size());
+      for(VariableEntity entity : pageEntities) {
+        ValueSetState state = states.get(entity.getIdentifier());
+        valueSets.add(state == null ? getValueSet(entity) : new HibernateValueSet(entity, state));
+      }
+      return valueSets.iterator();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   private class TimestampsIterator implements Iterator<Timestamps> {
     private final ScrollableResults results;
 
@@ -69,6 +69,12 @@ class HibernateValueTableTransaction extends HibernateDatasourceSynchronization
     }
   }
 
+  @Override
+  public void beforeCompletion() {
+    super.beforeCompletion();
+    transactionWriter.closeBulkWriter();
+  }
+
   @Override
   protected void rollback() {
     super.rollback();
@@ -63,6 +63,9 @@ class HibernateValueTableWriter implements ValueTableWriter {
 
   private final HibernateMarshallingContext context;
 
+  @Nullable
+  private HibernateBulkWriter bulkWriter;
+
   HibernateValueTableWriter(HibernateValueTableTransaction transaction) {
     if(transaction == null) throw new IllegalArgumentException("transaction cannot be null");
     this.transaction = transaction;
@@ -80,6 +83,10 @@ class HibernateValueTableWriter implements ValueTableWriter {
   @NotNull
   @Override
   public ValueSetWriter writeValueSet(@NotNull VariableEntity entity) {
+    if(valueTable.getDatasource().isBulkWrite()) {
+      if(bulkWriter == null) bulkWriter = new HibernateBulkWriter(transaction, session);
+      return bulkWriter.writeValueSet(entity);
+    }
     return new HibernateValueSetWriter(entity);
   }
 
@@ -90,6 +97,30 @@ class HibernateValueTableWriter implements ValueTableWriter {
 
   @Override
   public void close() {
+    closeBulkWriter();
+  }
+
+  /**
+   * Writes the value sets pending in bulk write mode, if any. Called on close and before the transaction completes.
+   */
+  void closeBulkWriter() {
+    if(bulkWriter != null) {
+      try {
+        bulkWriter.close();
+      } finally {
+        bulkWriter = null;
+      }
+    }
+  }
+
+  static Value getBinaryMetadata(@Nullable ValueSetBinaryValue binaryValue) {
+    try {
+      JSONObject properties = new JSONObject();
+      properties.put("size", binaryValue == null ? 0 : binaryValue.getSize());
+      return TextType.get().valueOf(properties.toString());
+    } catch(JSONException e) {
+      throw new MagmaRuntimeException(e);
+    }
   }
 
   private void updateTableLastUpdate() {
@@ -372,16 +403,6 @@ class HibernateValueTableWriter implements ValueTableWriter {
       return binaryValue;
     }
 
-    private Value getBinaryMetadata(ValueSetBinaryValue binaryValue) {
-      try {
-        JSONObject properties = new JSONObject();
-        properties.put("size", binaryValue == null ? 0 : binaryValue.getSize());
-        return TextType.get().valueOf(properties.toString());
-      } catch(JSONException e) {
-        throw new MagmaRuntimeException(e);
-      }
-    }
-
     @Override
     public void close() {
       if(!errorOccurred) {
@@ -8,6 +8,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.hibernate.FetchMode;
@@ -21,6 +22,7 @@ import org.obiba.core.service.SortingClause;
 import org.obiba.core.service.impl.hibernate.AssociationCriteria;
 import org.obiba.core.service.impl.hibernate.AssociationCriteria.Operation;
 import org.obiba.magma.AbstractVariableValueSource;
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueLoaderFactory;
 import org.obiba.magma.ValueSet;
@@ -35,9 +37,16 @@ import org.obiba.magma.datasource.hibernate.converter.HibernateValueLoaderFactor
 import org.obiba.magma.datasource.hibernate.converter.VariableConverter;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetValue;
 import org.obiba.magma.datasource.hibernate.domain.VariableState;
+import org.obiba.magma.datasource.hibernate.type.TypedValueHibernateType;
 import org.obiba.magma.type.BinaryType;
+import org.obiba.magma.type.BooleanType;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 class HibernateVariableValueSourceFactory implements VariableValueSourceFactory {
@@ -78,7 +87,8 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
     return valueTable.getDatasource().getSessionFactory().getCurrentSession();
   }
 
-  class HibernateVariableValueSource extends AbstractVariableValueSource implements VariableValueSource, VectorSource {
+  class HibernateVariableValueSource extends AbstractVariableValueSource
+      implements VariableValueSource, AggregatingVectorSource {
 
     private final String name;
 
@@ -152,14 +162,63 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
       if(entities.isEmpty()) {
         return ImmutableList.of();
       }
+      final List<HibernateVariableValueSource> sources = ImmutableList.of(this);
       return new Iterable<Value>() {
         @Override
         public Iterator<Value> iterator() {
-          return new ValueIterator(entities.iterator());
+          return Iterators.transform(new ValuesIterator(entities, sources), new Function<List<Value>, Value>() {
+            @Override
+            public Value apply(List<Value> values) {
+              return values.get(0);
+            }
+          });
         }
       };
     }
 
+    @NotNull
+    @Override
+    public HibernateValueTable getValueTable() {
+      return valueTable;
+    }
+
+    /**
+     * Values stored in typed columns (see {@link TypedValueHibernateType}) are counted with a {@code GROUP BY} query on
+     * these columns. Values are not counted when some of them are stored as strings or when they are sequences.
+     */
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<Value, Long> getValueFrequencies() {
+      if(getVariable().isRepeatable() || !TypedValueHibernateType.isTyped(getValueType())) return null;
+
+      List<Object[]> rows = getCurrentSession().createSQLQuery(
+          "SELECT v.integer_value, v.decimal_value, v.boolean_value, v.date_value, COUNT(*) " +
+              "FROM value_set_value v INNER JOIN value_set vs ON vs.id = v.value_set_id " +
+              "WHERE vs.value_table_id = :value_table_id AND v.variable_id = :variable_id " +
+              "GROUP BY v.integer_value, v.decimal_value, v.boolean_value, v.date_value") //
+          .setParameter("value_table_id", valueTable.getValueTableId()) //
+          .setParameter("variable_id", ensureVariableId()) //
+          .list();
+      Map<Value, Long> frequencies = Maps.newHashMap();
+      for(Object[] row : rows) {
+        Object typedValue = null;
+        for(int i = 0; i < row.length - 1 && typedValue == null; i++) {
+          typedValue = row[i];
+        }
+        // values stored as strings
+        if(typedValue == null) return null;
+
+        if(typedValue instanceof Number && BooleanType.get().equals(getValueType())) {
+          typedValue = ((Number) typedValue).intValue() != 0;
+        }
+        Value value = getValueType().valueOf(typedValue);
+        Long count = frequencies.get(value);
+        frequencies.put(value, (count == null ? 0 : count) + ((Number) row[row.length - 1]).longValue());
+      }
+      return frequencies;
+    }
+
     @NotNull
     @Override
     public ValueType getValueType() {
@@ -206,96 +265,146 @@ class HibernateVariableValueSourceFactory implements VariableValueSourceFactory
       return name.hashCode();
     }
 
-    private class ValueIterator implements Iterator<Value> {
+    /**
+     * Returns the value of this variable read in the given value set, or its null value.
+     */
+    @NotNull
+    Value getValue(@Nullable Serializable valueSetId, @Nullable Value value) {
+      if(value == null) {
+        return getVariable().isRepeatable() ? getValueType().nullSequence() : getValueType().nullValue();
+      }
 
-      private final ScrollableResults results;
+      if(getValueType().equals(BinaryType.get())) {
+        ValueLoaderFactory factory = new HibernateValueLoaderFactory(valueTable.getDatasource().getSessionFactory(),
+            ensureVariableId(), valueSetId);
+        return getVariable().isRepeatable()
+            ? BinaryType.get().sequenceOfReferences(factory, value)
+            : BinaryType.get().valueOfReference(factory, value);
+      }
 
-      private boolean hasNextResults;
+      return value;
+    }
+  }
 
-      private boolean closed;
+  /**
+   * Iterates over the values of several variables for some entities, with a single scroll over their value sets
+   * ordered by entity identifier. The scroll moves forward in lockstep with the entities and stops at the first row of
+   * an entity sorted after the current one, so that no rows are kept in memory. The scroll is restricted to the
+   * requested entities when they are a part of the table. When the database sorts the identifiers in another order
+   * (collation), the values of an entity of the table that are not found at its position are looked up on their own.
+   */
+  class ValuesIterator implements Iterator<List<Value>> {
 
-      private final Iterator<VariableEntity> entities;
+    /**
+     * Maximum number of entities in a {@code in} restriction, above which all the value sets of the table are scrolled
+     */
+    static final int MAX_IN_SIZE = 1000;
 
-      private final Map<String, Value> valueMap = Maps.newHashMap();
+    private final Iterator<VariableEntity> entities;
 
-      private ValueIterator(Iterator<VariableEntity> entities) {
+    private final List<HibernateVariableValueSource> sources;
 
-        this.entities = entities;
-        Query query = getCurrentSession().getNamedQuery("allValues") //
-            .setParameter("valueTableId", valueTable.getValueTableState().getId()) //
-            .setParameter("variableId", ensureVariableId());
-        results = query.scroll(ScrollMode.FORWARD_ONLY);
-        hasNextResults = results.next();
-      }
+    private final Set<VariableEntity> tableEntities;
 
-      @Override
-      public boolean hasNext() {
-        return entities.hasNext();
-      }
+    /**
+     * Positions of the variables in the returned lists, by variable id
+     */
+    private final ListMultimap<Serializable, Integer> positions = ArrayListMultimap.create();
 
-      @Override
-      public Value next() {
-        VariableEntity entity = entities.next();
-
-        if(valueMap.containsKey(entity.getIdentifier())) return getValueFromMap(entity);
-
-        boolean found = false;
-        // Scroll until we find the required entity or reach the end of the results
-        while(hasNextResults && !found) {
-          String id = results.getString(0);
-          Value value = getValue((Serializable) results.get(2), (Value) results.get(1));
-          valueMap.put(id, value);
-          if(entity.getIdentifier().equals(id)) {
-            found = true;
-          }
-          hasNextResults = results.next();
-        }
+    private final ScrollableResults results;
 
-        closeCursorIfNecessary();
+    private boolean hasNextResults;
 
-        if(valueMap.containsKey(entity.getIdentifier())) return getValueFromMap(entity);
-        return getVariable().isRepeatable() ? getValueType().nullSequence() : getValueType().nullValue();
-      }
+    private boolean closed;
 
-      /**
-       * No duplicate of entities, so remove value from map once get.
-       * @param entity
-       * @return
-       */
-      private Value getValueFromMap(VariableEntity entity) {
-        Value value = valueMap.get(entity.getIdentifier());
-        valueMap.remove(entity.getIdentifier());
-        return value;
+    ValuesIterator(SortedSet<VariableEntity> entitySet, List<HibernateVariableValueSource> sources) {
+      this.sources = sources;
+      entities = entitySet.iterator();
+      tableEntities = valueTable.getVariableEntities();
+      for(int i = 0; i < sources.size(); i++) {
+        positions.put(sources.get(i).ensureVariableId(), i);
       }
-
-      private Value getValue(Serializable valueSetId, Value value) {
-        if(value == null) {
-          return getVariable().isRepeatable() ? getValueType().nullSequence() : getValueType().nullValue();
+      Query query;
+      if(entitySet.size() <= MAX_IN_SIZE && entitySet.size() < tableEntities.size()) {
+        List<String> identifiers = Lists.newArrayListWithCapacity(entitySet.size());
+        for(VariableEntity entity : entitySet) {
+          identifiers.add(entity.getIdentifier());
         }
+        query = createQuery(identifiers);
+      } else {
+        query = getCurrentSession().getNamedQuery("allValues") //
+            .setParameter("valueTableId", valueTable.getValueTableState().getId()) //
+            .setParameterList("variableIds", positions.keySet());
+      }
+      results = query.scroll(ScrollMode.FORWARD_ONLY);
+      hasNextResults = results.next();
+    }
+
+    private Query createQuery(List<String> identifiers) {
+      return getCurrentSession().getNamedQuery("allValuesOfEntities") //
+          .setParameter("valueTableId", valueTable.getValueTableState().getId()) //
+          .setParameterList("variableIds", positions.keySet()) //
+          .setParameterList("identifiers", identifiers);
+    }
+
+    @Override
+    public boolean hasNext() {
+      return entities.hasNext();
+    }
 
-        if(getValueType().equals(BinaryType.get())) {
-          ValueLoaderFactory factory = new HibernateValueLoaderFactory(valueTable.getDatasource().getSessionFactory(),
-              ensureVariableId(), valueSetId);
-          return getVariable().isRepeatable()
-              ? BinaryType.get().sequenceOfReferences(factory, value)
-              : BinaryType.get().valueOfReference(factory, value);
+    @Override
+    public List<Value> next() {
+      VariableEntity entity = entities.next();
+
+      Value[] row = new Value[sources.size()];
+      boolean found = false;
+      // Scroll until the end of the rows of the required entity, or the first row of a later entity
+      while(hasNextResults) {
+        String id = results.getString(0);
+        if(entity.getIdentifier().equals(id)) {
+          found = true;
+          readValue(results.get(), row);
+        } else if(found || id.compareTo(entity.getIdentifier()) > 0) {
+          break;
         }
+        hasNextResults = results.next();
+      }
+      if(!found && tableEntities.contains(entity)) {
+        // sorted elsewhere by the database
+        for(Object tuple : createQuery(ImmutableList.of(entity.getIdentifier())).list()) {
+          readValue((Object[]) tuple, row);
+        }
+      }
 
-        return value;
+      closeCursorIfNecessary();
+
+      List<Value> values = Lists.newArrayListWithCapacity(row.length);
+      for(int i = 0; i < row.length; i++) {
+        values.add(row[i] == null ? sources.get(i).getValue(null, null) : row[i]);
       }
+      return values;
+    }
 
-      @Override
-      public void remove() {
-        throw new UnsupportedOperationException();
+    private void readValue(Object[] tuple, Value[] row) {
+      Serializable variableId = (Serializable) tuple[1];
+      // value set without values for these variables
+      if(variableId == null) return;
+      for(int position : positions.get(variableId)) {
+        row[position] = sources.get(position).getValue((Serializable) tuple[3], (Value) tuple[2]);
       }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
 
-      private void closeCursorIfNecessary() {
-        if(!closed) {
-          // Close the cursor if we don't have any more results or no more entities to return
-          if(!hasNextResults || !hasNext()) {
-            closed = true;
-            results.close();
-          }
+    private void closeCursorIfNecessary() {
+      if(!closed) {
+        // Close the cursor if we don't have any more results or no more entities to return
+        if(!hasNextResults || !hasNext()) {
+          closed = true;
+          results.close();
         }
       }
     }
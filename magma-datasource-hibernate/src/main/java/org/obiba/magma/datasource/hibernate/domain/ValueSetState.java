@@ -36,9 +36,20 @@ import com.google.common.collect.Sets;
         query = "SELECT id, created, updated FROM ValueSetState WHERE valueTable.id = :valueTableId"),
     @NamedQuery(name = "setLastUpdateForTableId",
         query = "UPDATE ValueSetState SET updated = :updated WHERE valueTable.id = :valueTableId"),
+    @NamedQuery(name = "setLastUpdateForValueSetIds",
+        query = "UPDATE ValueSetState SET updated = :updated WHERE id IN (:valueSetIds)"),
     @NamedQuery(name = "deleteEmptyValueSets",
         query = "DELETE FROM ValueSetState WHERE id NOT IN (SELECT DISTINCT(id.valueSet.id) from ValueSetValue)"), @NamedQuery(name = "deleteValueSetStates",
-        query = "DELETE FROM ValueSetState WHERE id IN (:valueTableIds)") })
+        query = "DELETE FROM ValueSetState WHERE id IN (:valueTableIds)"),
+    @NamedQuery(name = "findValueSetIdByTableIdAndIdentifier",
+        query = "SELECT id FROM ValueSetState WHERE valueTable.id = :valueTableId " + //
+            "AND variableEntity.identifier = :identifier"),
+    @NamedQuery(name = "findValueSetsByTableIdAndIdentifiers",
+        query = "SELECT vs FROM ValueSetState vs JOIN FETCH vs.valueTable JOIN FETCH vs.variableEntity " + //
+            "WHERE vs.valueTable.id = :valueTableId AND vs.variableEntity.identifier IN (:identifiers)"),
+    @NamedQuery(name = "findValueSetsWithValuesByTableIdAndIdentifiers",
+        query = "SELECT DISTINCT vs FROM ValueSetState vs JOIN FETCH vs.variableEntity LEFT JOIN FETCH vs.values " + //
+            "WHERE vs.valueTable.id = :valueTableId AND vs.variableEntity.identifier IN (:identifiers)") })
 public class ValueSetState extends AbstractTimestampedEntity {
 
   private static final long serialVersionUID = 1L;
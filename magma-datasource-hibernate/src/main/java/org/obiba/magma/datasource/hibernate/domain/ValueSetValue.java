@@ -30,13 +30,13 @@ import org.hibernate.annotations.Columns;
 import org.hibernate.annotations.Type;
 import org.hibernate.annotations.TypeDef;
 import org.obiba.magma.Value;
-import org.obiba.magma.datasource.hibernate.type.ValueHibernateType;
+import org.obiba.magma.datasource.hibernate.type.TypedValueHibernateType;
 
 import com.google.common.base.Objects;
 
 @Entity
 @Table(name = "value_set_value")
-@TypeDef(name = "value", typeClass = ValueHibernateType.class)
+@TypeDef(name = "typedValue", typeClass = TypedValueHibernateType.class)
 @NamedQueries({ //
     @NamedQuery(name = "findValuesByTable",
         query = "SELECT vsv FROM ValueSetValue vsv WHERE vsv.id.valueSet " + //
@@ -44,7 +44,9 @@ import com.google.common.base.Objects;
     @NamedQuery(name = "deleteValueSetValues",
         query = "DELETE FROM ValueSetValue WHERE id.valueSet.id IN (:valueSetIds)"),
     @NamedQuery(name = "deleteVariableValueSetValues",
-        query = "DELETE FROM ValueSetValue WHERE id.variable.id = :variableId") })
+        query = "DELETE FROM ValueSetValue WHERE id.variable.id = :variableId"),
+    @NamedQuery(name = "deleteValueSetVariablesValues",
+        query = "DELETE FROM ValueSetValue WHERE id.valueSet.id = :valueSetId AND id.variable.id IN (:variableIds)") })
 public class ValueSetValue implements Timestamped, Serializable {
 
   private static final long serialVersionUID = 4356913652103162813L;
@@ -52,11 +54,16 @@ public class ValueSetValue implements Timestamped, Serializable {
   @EmbeddedId
   private ValueSetValueId id;
 
-  @Type(type = "value")
+  @Type(type = "typedValue")
   @Columns(columns = { //
       @Column(name = "value_type", nullable = false), //
       @Column(name = "is_sequence", nullable = false), //
-      @Column(name = "value", length = Integer.MAX_VALUE, nullable = false) })
+      @Column(name = "value", length = Integer.MAX_VALUE, nullable = false), //
+      @Column(name = "integer_value"), //
+      @Column(name = "decimal_value"), //
+      @Column(name = "boolean_value"), //
+      @Column(name = "date_value"), //
+      @Column(name = "sequence_value", length = Integer.MAX_VALUE) })
   private Value value;
 
   @SuppressWarnings("FieldMayBeFinal")
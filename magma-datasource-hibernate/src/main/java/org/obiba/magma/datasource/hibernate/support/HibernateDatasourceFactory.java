@@ -17,6 +17,8 @@ public class HibernateDatasourceFactory extends AbstractDatasourceFactory implem
   @NotNull
   private SessionFactoryProvider sessionFactoryProvider;
 
+  private boolean bulkWrite = false;
+
   /**
    * Empty constructor for XML serialization
    */
@@ -32,13 +34,19 @@ public class HibernateDatasourceFactory extends AbstractDatasourceFactory implem
   @NotNull
   @Override
   public Datasource internalCreate() {
-    return new HibernateDatasource(getName(), sessionFactoryProvider.getSessionFactory());
+    HibernateDatasource datasource = new HibernateDatasource(getName(), sessionFactoryProvider.getSessionFactory());
+    datasource.setBulkWrite(bulkWrite);
+    return datasource;
   }
 
   public void setSessionFactoryProvider(@NotNull SessionFactoryProvider sessionFactoryProvider) {
     this.sessionFactoryProvider = sessionFactoryProvider;
   }
 
+  public void setBulkWrite(boolean bulkWrite) {
+    this.bulkWrite = bulkWrite;
+  }
+
   @NotNull
   public SessionFactoryProvider getSessionFactoryProvider() {
     return sessionFactoryProvider;
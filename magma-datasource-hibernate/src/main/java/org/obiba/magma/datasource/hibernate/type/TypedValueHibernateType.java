@@ -0,0 +1,371 @@
+package org.obiba.magma.datasource.hibernate.type;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.annotation.Nullable;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.engine.spi.Mapping;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metamodel.relational.Size;
+import org.obiba.magma.MagmaDate;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.type.BooleanType;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.magma.type.DateType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * A Hibernate Type for persisting {@code Value} instances that may store integer, decimal, boolean, date and datetime
+ * values in typed columns instead of their string representation. The strategy uses 8 columns:
+ * <ul>
+ * <li>value_type, is_sequence and value: as in {@link ValueHibernateType}, value is empty when the value is typed</li>
+ * <li>integer_value, decimal_value, boolean_value, date_value: the typed value when it is not a sequence</li>
+ * <li>sequence_value: a binary encoding of the typed values of a sequence</li>
+ * </ul>
+ * Values are written in typed columns only when the {@link #TYPED_STORAGE_PROPERTY} system property is true. Both
+ * layouts are always read, so that existing values are still readable and are stored in typed columns when they are
+ * written again, or all at once with {@code HibernateDatasource#migrateTypedValues(int)}.
+ * <p/>
+ * Dates and datetimes are stored in date_value as UTC timestamps, dates at midnight, so that they are read back the
+ * same whatever the time zone of the JVM.
+ * <p/>
+ * The typed columns are always mapped. When the schema is not updated by Hibernate, they must be added to the
+ * value_set_value table before upgrading, with the {@code org/obiba/magma/datasource/hibernate/sql/typed-values-*.sql}
+ * script of the database.
+ */
+public class TypedValueHibernateType extends ValueHibernateType {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * System property that enables the storage of values in typed columns
+   */
+  public static final String TYPED_STORAGE_PROPERTY = "org.obiba.magma.datasource.hibernate.typedValues";
+
+  private static final int VALUE_TYPE = 0;
+
+  private static final int IS_SEQUENCE = 1;
+
+  private static final int VALUE = 2;
+
+  private static final int INTEGER_VALUE = 3;
+
+  private static final int DECIMAL_VALUE = 4;
+
+  private static final int BOOLEAN_VALUE = 5;
+
+  private static final int DATE_VALUE = 6;
+
+  private static final int SEQUENCE_VALUE = 7;
+
+  private static final int COLUMN_SPAN = 8;
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  private final boolean typedStorage = Boolean.getBoolean(TYPED_STORAGE_PROPERTY);
+
+  @Override
+  public int getColumnSpan(Mapping mapping) throws MappingException {
+    return COLUMN_SPAN;
+  }
+
+  @Override
+  public String getName() {
+    return "TypedValue";
+  }
+
+  @Nullable
+  @Override
+  public Object nullSafeGet(ResultSet rs, String[] names, SessionImplementor session, Object owner)
+      throws HibernateException, SQLException {
+    String valueTypeName = rs.getString(names[VALUE_TYPE]);
+    // Even when the column is NOT NULL, a SELECT statement can return NULL (using a left join for example).
+    if(valueTypeName == null) {
+      return null;
+    }
+    ValueType valueType = ValueType.Factory.forName(valueTypeName);
+    boolean isSequence = rs.getBoolean(names[IS_SEQUENCE]);
+    if(isTyped(valueType)) {
+      Value value = isSequence ? getSequence(rs, names, valueType) : getValue(rs, names, valueType);
+      if(value != null) return value;
+    }
+    String stringValue = rs.getString(names[VALUE]);
+    return isSequence ? valueType.sequenceOf(stringValue) : valueType.valueOf(stringValue);
+  }
+
+  @Override
+  public void nullSafeSet(PreparedStatement st, Object obj, int index, boolean[] settable, SessionImplementor session)
+      throws HibernateException, SQLException {
+    Value value = (Value) obj;
+    boolean typed = isStoredTyped(value);
+
+    int offset = 0;
+    for(int column = 0; column < COLUMN_SPAN; column++) {
+      if(settable[column]) {
+        setColumn(st, index + offset++, column, value, typed, false);
+      }
+    }
+  }
+
+  @Override
+  public void nullSafeSet(PreparedStatement st, Object obj, int index, SessionImplementor session)
+      throws HibernateException, SQLException {
+    Value value = (Value) obj;
+    boolean typed = isStoredTyped(value);
+    for(int column = 0; column < COLUMN_SPAN; column++) {
+      setColumn(st, index + column, column, value, typed, true);
+    }
+  }
+
+  @Override
+  public int[] sqlTypes(Mapping mapping) throws MappingException {
+    return new int[] { Types.VARCHAR, Types.BIT, Types.CLOB, Types.BIGINT, Types.DOUBLE, Types.BIT, Types.TIMESTAMP,
+        Types.LONGVARBINARY };
+  }
+
+  @Override
+  public boolean[] toColumnNullness(Object value, Mapping mapping) {
+    return new boolean[] { false, false, false, true, true, true, true, true };
+  }
+
+  @Override
+  public Size[] defaultSizes(Mapping mapping) throws MappingException {
+    Size[] sizes = super.defaultSizes(mapping);
+    return new Size[] { sizes[VALUE_TYPE], sizes[IS_SEQUENCE], sizes[VALUE], //
+        new Size(), // integer
+        new Size(), // decimal
+        new Size(Size.DEFAULT_PRECISION, Size.DEFAULT_SCALE, 1, Size.LobMultiplier.NONE), // boolean
+        new Size(), // date
+        new Size(Size.DEFAULT_PRECISION, Size.DEFAULT_SCALE, Integer.MAX_VALUE, Size.LobMultiplier.NONE) // sequence
+    };
+  }
+
+  private boolean isStoredTyped(Value value) {
+    return typedStorage && !value.isNull() && isTyped(value.getValueType());
+  }
+
+  /**
+   * Returns whether the values of this type are stored in typed columns, when they are not sequences.
+   */
+  public static boolean isTyped(ValueType valueType) {
+    return valueType == IntegerType.get() || valueType == DecimalType.get() || valueType == BooleanType.get() ||
+        valueType == DateType.get() || valueType == DateTimeType.get();
+  }
+
+  /**
+   * Returns the value types which values are stored in typed columns.
+   */
+  public static List<ValueType> getTypedValueTypes() {
+    return ImmutableList.of(IntegerType.get(), DecimalType.get(), BooleanType.get(), DateType.get(),
+        DateTimeType.get());
+  }
+
+  /**
+   * Sets the value, integer_value, decimal_value, boolean_value, date_value and sequence_value parameters, starting at
+   * index, so that a value of a typed value type is stored in typed columns whatever the system property.
+   */
+  public static void setTypedColumns(PreparedStatement st, int index, Value value) throws SQLException {
+    if(!isTyped(value.getValueType()) || value.isNull()) {
+      throw new IllegalArgumentException("Value cannot be stored in typed columns: " + value);
+    }
+    for(int column = VALUE; column < COLUMN_SPAN; column++) {
+      setColumn(st, index + column - VALUE, column, value, true, true);
+    }
+  }
+
+  @SuppressWarnings({ "OverlyComplexMethod", "ConstantConditions" })
+  private static void setColumn(PreparedStatement st, int index, int column, Value value, boolean typed, boolean clob)
+      throws SQLException {
+    switch(column) {
+      case VALUE_TYPE:
+        st.setString(index, value.getValueType().getName());
+        break;
+      case IS_SEQUENCE:
+        st.setBoolean(index, value.isSequence());
+        break;
+      case VALUE:
+        String stringValue = typed || value.isNull() ? "" : value.toString();
+        if(clob) {
+          st.setClob(index, new StringReader(stringValue), stringValue.length());
+        } else {
+          st.setString(index, stringValue);
+        }
+        break;
+      case INTEGER_VALUE:
+        if(typed && !value.isSequence() && value.getValueType() == IntegerType.get()) {
+          st.setLong(index, ((Number) value.getValue()).longValue());
+        } else {
+          st.setNull(index, Types.BIGINT);
+        }
+        break;
+      case DECIMAL_VALUE:
+        if(typed && !value.isSequence() && value.getValueType() == DecimalType.get()) {
+          st.setDouble(index, ((Number) value.getValue()).doubleValue());
+        } else {
+          st.setNull(index, Types.DOUBLE);
+        }
+        break;
+      case BOOLEAN_VALUE:
+        if(typed && !value.isSequence() && value.getValueType() == BooleanType.get()) {
+          st.setBoolean(index, (Boolean) value.getValue());
+        } else {
+          st.setNull(index, Types.BIT);
+        }
+        break;
+      case DATE_VALUE:
+        if(typed && !value.isSequence() &&
+            (value.getValueType() == DateType.get() || value.getValueType() == DateTimeType.get())) {
+          st.setTimestamp(index, toTimestamp(value), utcCalendar());
+        } else {
+          st.setNull(index, Types.TIMESTAMP);
+        }
+        break;
+      case SEQUENCE_VALUE:
+        if(typed && value.isSequence()) {
+          st.setBytes(index, encode(value.asSequence().getValue()));
+        } else {
+          st.setNull(index, Types.LONGVARBINARY);
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("No such column: " + column);
+    }
+  }
+
+  /**
+   * Returns the value stored in a typed column, or null if the value was not stored typed.
+   */
+  @Nullable
+  private Value getValue(ResultSet rs, String[] names, ValueType valueType) throws SQLException {
+    if(valueType == IntegerType.get()) {
+      long integer = rs.getLong(names[INTEGER_VALUE]);
+      return rs.wasNull() ? null : valueType.valueOf(integer);
+    }
+    if(valueType == DecimalType.get()) {
+      double decimal = rs.getDouble(names[DECIMAL_VALUE]);
+      return rs.wasNull() ? null : valueType.valueOf(decimal);
+    }
+    if(valueType == BooleanType.get()) {
+      boolean bool = rs.getBoolean(names[BOOLEAN_VALUE]);
+      return rs.wasNull() ? null : valueType.valueOf(bool);
+    }
+    Timestamp timestamp = rs.getTimestamp(names[DATE_VALUE], utcCalendar());
+    if(timestamp == null) return null;
+    if(valueType == DateType.get()) {
+      Calendar calendar = utcCalendar();
+      calendar.setTimeInMillis(timestamp.getTime());
+      return valueType.valueOf(new MagmaDate(calendar));
+    }
+    return valueType.valueOf(new Date(timestamp.getTime()));
+  }
+
+  /**
+   * Returns the sequence stored in the sequence column, or null if the sequence was not stored typed.
+   */
+  @Nullable
+  private Value getSequence(ResultSet rs, String[] names, ValueType valueType) throws SQLException {
+    byte[] bytes = rs.getBytes(names[SEQUENCE_VALUE]);
+    return bytes == null ? null : valueType.sequenceOf(decode(valueType, bytes));
+  }
+
+  /**
+   * Returns the timestamp of a datetime, or of midnight UTC of a date.
+   */
+  private static Timestamp toTimestamp(Value value) {
+    Object object = value.getValue();
+    if(object instanceof MagmaDate) {
+      MagmaDate date = (MagmaDate) object;
+      Calendar calendar = utcCalendar();
+      calendar.clear();
+      calendar.set(date.getYear(), date.getMonth(), date.getDayOfMonth());
+      return new Timestamp(calendar.getTimeInMillis());
+    }
+    return new Timestamp(((Date) object).getTime());
+  }
+
+  private static Calendar utcCalendar() {
+    return Calendar.getInstance(UTC);
+  }
+
+  /**
+   * Encodes the values of a sequence: the number of values, then for each value a null flag and the value as a
+   * primitive (dates as year, month and day of month, datetimes as milliseconds).
+   */
+  @SuppressWarnings("ConstantConditions")
+  private static byte[] encode(Iterable<Value> values) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(DataOutputStream out = new DataOutputStream(bytes)) {
+      List<Value> list = Lists.newArrayList(values);
+      out.writeInt(list.size());
+      for(Value value : list) {
+        out.writeBoolean(value.isNull());
+        if(value.isNull()) continue;
+        ValueType valueType = value.getValueType();
+        if(valueType == IntegerType.get()) {
+          out.writeLong(((Number) value.getValue()).longValue());
+        } else if(valueType == DecimalType.get()) {
+          out.writeDouble(((Number) value.getValue()).doubleValue());
+        } else if(valueType == BooleanType.get()) {
+          out.writeBoolean((Boolean) value.getValue());
+        } else if(valueType == DateType.get()) {
+          MagmaDate date = (MagmaDate) value.getValue();
+          out.writeInt(date.getYear());
+          out.writeInt(date.getMonth());
+          out.writeInt(date.getDayOfMonth());
+        } else {
+          out.writeLong(((Date) value.getValue()).getTime());
+        }
+      }
+    } catch(IOException e) {
+      throw new HibernateException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<Value> decode(ValueType valueType, byte[] bytes) {
+    try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      int size = in.readInt();
+      List<Value> values = Lists.newArrayListWithCapacity(size);
+      for(int i = 0; i < size; i++) {
+        if(in.readBoolean()) {
+          values.add(valueType.nullValue());
+        } else if(valueType == IntegerType.get()) {
+          values.add(valueType.valueOf(in.readLong()));
+        } else if(valueType == DecimalType.get()) {
+          values.add(valueType.valueOf(in.readDouble()));
+        } else if(valueType == BooleanType.get()) {
+          values.add(valueType.valueOf(in.readBoolean()));
+        } else if(valueType == DateType.get()) {
+          values.add(valueType.valueOf(new MagmaDate(in.readInt(), in.readInt(), in.readInt())));
+        } else {
+          values.add(valueType.valueOf(new Date(in.readLong())));
+        }
+      }
+      return values;
+    } catch(IOException e) {
+      throw new HibernateException(e);
+    }
+  }
+
+}
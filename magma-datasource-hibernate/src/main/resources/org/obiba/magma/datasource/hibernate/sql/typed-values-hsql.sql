@@ -0,0 +1,9 @@
+-- Adds the typed value columns of the value_set_value table (HSQLDB).
+-- To be run before upgrading when the schema is not updated by Hibernate (hibernate.hbm2ddl.auto other than update).
+-- Existing values remain readable from the value column, HibernateDatasource#migrateTypedValues(int) moves them to
+-- the typed columns.
+ALTER TABLE value_set_value ADD COLUMN integer_value BIGINT;
+ALTER TABLE value_set_value ADD COLUMN decimal_value DOUBLE;
+ALTER TABLE value_set_value ADD COLUMN boolean_value BIT;
+ALTER TABLE value_set_value ADD COLUMN date_value TIMESTAMP;
+ALTER TABLE value_set_value ADD COLUMN sequence_value LONGVARBINARY;
@@ -11,11 +11,14 @@ import java.util.TreeSet;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Category;
 import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.MultipleVectorSource;
 import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.NoSuchValueTableException;
 import org.obiba.magma.NoSuchVariableException;
@@ -36,6 +39,7 @@ import org.obiba.magma.datasource.hibernate.domain.ValueSetState;
 import org.obiba.magma.datasource.hibernate.domain.ValueSetValue;
 import org.obiba.magma.datasource.hibernate.domain.ValueTableState;
 import org.obiba.magma.datasource.hibernate.domain.VariableState;
+import org.obiba.magma.datasource.hibernate.type.TypedValueHibernateType;
 import org.obiba.magma.support.DatasourceCopier;
 import org.obiba.magma.support.Initialisables;
 import org.obiba.magma.support.VariableEntityBean;
@@ -55,6 +59,7 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -253,6 +258,280 @@ public class HibernateDatasourceTest {
 
   }
 
+  @Test
+  public void test_bulk_write() {
+
+    final Variable integerVariable = Variable.Builder.newVariable("Test Variable", IntegerType.get(), PARTICIPANT)
+        .build();
+    final Variable binaryVariable = Variable.Builder.newVariable("Test Binary", BinaryType.get(), PARTICIPANT).build();
+    final ImmutableSet<Variable> variables = ImmutableSet.of(integerVariable, binaryVariable, //
+        Variable.Builder.newVariable("Other Variable", DecimalType.get(), PARTICIPANT).build());
+    final VariableEntity entity = new VariableEntityBean(PARTICIPANT, "bulk-1");
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ds.setBulkWrite(true);
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 250);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, TABLE, ds);
+
+        try(ValueTableWriter tableWriter = ds.createWriter(TABLE, PARTICIPANT);
+            ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity)) {
+          valueSetWriter.writeValue(integerVariable, IntegerType.get().valueOf(1));
+          valueSetWriter.writeValue(binaryVariable, BinaryType.get().valueOf(new byte[] { 1, 2, 3 }));
+        }
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = getDatasource();
+        ds.setBulkWrite(true);
+        ValueTable table = ds.getValueTable(TABLE);
+        assertThat(table.getVariableEntities()).hasSize(251);
+        assertJpaEntitiesHasSize(ds.getSessionFactory().getCurrentSession(), ValueSetState.class, 251);
+        assertThat(table.getValue(binaryVariable, table.getValueSet(entity)).getValue()).isEqualTo(new byte[] { 1, 2, 3 });
+
+        // update one value, keep the other one
+        try(ValueTableWriter tableWriter = ds.createWriter(TABLE, PARTICIPANT);
+            ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity)) {
+          valueSetWriter.writeValue(integerVariable, IntegerType.get().valueOf(2));
+        }
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable table = getDatasource().getValueTable(TABLE);
+        assertThat(table.getVariableEntities()).hasSize(251);
+        ValueSet valueSet = table.getValueSet(entity);
+        assertThat(table.getValue(integerVariable, valueSet)).isEqualTo(IntegerType.get().valueOf(2));
+        assertThat(table.getValue(binaryVariable, valueSet).getValue()).isEqualTo(new byte[] { 1, 2, 3 });
+      }
+    });
+  }
+
+  @Test
+  public void test_value_frequencies_are_not_counted_when_stored_as_strings() {
+    Assume.assumeFalse(Boolean.getBoolean(TypedValueHibernateType.TYPED_STORAGE_PROPERTY));
+
+    final Variable integerVariable = Variable.Builder.newVariable("Test Variable", IntegerType.get(), PARTICIPANT)
+        .build();
+    final Variable textVariable = Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build();
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, ImmutableSet.of(integerVariable, textVariable),
+            10);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, TABLE, ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable table = getDatasource().getValueTable(TABLE);
+        for(Variable variable : ImmutableList.of(integerVariable, textVariable)) {
+          VectorSource vectorSource = table.getVariableValueSource(variable.getName()).asVectorSource();
+          assertThat(vectorSource).isInstanceOf(AggregatingVectorSource.class);
+          assertThat(((AggregatingVectorSource) vectorSource).getValueFrequencies()).isNull();
+        }
+      }
+    });
+  }
+
+  @Test
+  public void test_values_stored_as_strings_are_migrated_to_typed_columns() {
+    Assume.assumeFalse(Boolean.getBoolean(TypedValueHibernateType.TYPED_STORAGE_PROPERTY));
+
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Integer", IntegerType.get(), PARTICIPANT).build(), //
+        Variable.Builder.newVariable("Test Decimal", DecimalType.get(), PARTICIPANT).build(), //
+        Variable.Builder.newVariable("Test Date", DateType.get(), PARTICIPANT).build(), //
+        Variable.Builder.newVariable("Test Repeatable", IntegerType.get(), PARTICIPANT).repeatable().build(), //
+        Variable.Builder.newVariable("Test Text", TextType.get(), PARTICIPANT).build());
+    final List<Value> expected = Lists.newArrayList();
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, ImmutableSet.copyOf(variables), 20);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, TABLE, ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = getDatasource();
+        ValueTable table = ds.getValueTable(TABLE);
+        for(ValueSet valueSet : table.getValueSets()) {
+          for(Variable variable : variables) {
+            expected.add(table.getValue(variable, valueSet));
+          }
+        }
+        Session session = ds.getSessionFactory().getCurrentSession();
+        int nbTypedValues = countValues(session, "value_type <> 'text'");
+        assertThat(nbTypedValues).isPositive();
+
+        assertThat(ds.migrateTypedValues(7)).isEqualTo(nbTypedValues);
+        assertThat(countValues(session, "value_type <> 'text' AND integer_value IS NULL AND decimal_value IS NULL " +
+            "AND date_value IS NULL AND sequence_value IS NULL")).isZero();
+        assertThat(countValues(session, "value_type = 'text' AND integer_value IS NULL AND decimal_value IS NULL " +
+            "AND date_value IS NULL AND sequence_value IS NULL")).isPositive();
+        // already migrated
+        assertThat(ds.migrateTypedValues(7)).isZero();
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable table = getDatasource().getValueTable(TABLE);
+        Iterator<Value> expectedValues = expected.iterator();
+        for(ValueSet valueSet : table.getValueSets()) {
+          for(Variable variable : variables) {
+            assertThat(table.getValue(variable, valueSet)).isEqualTo(expectedValues.next());
+          }
+        }
+        assertThat(expectedValues.hasNext()).isFalse();
+      }
+    });
+  }
+
+  @Test
+  public void test_value_sets_are_prefetched_by_pages() {
+
+    final ImmutableSet<Variable> variables = ImmutableSet.of( //
+        Variable.Builder.newVariable("Test Variable", IntegerType.get(), PARTICIPANT).build(), //
+        Variable.Builder.newVariable("Test Repeatable", TextType.get(), PARTICIPANT).repeatable().build());
+    final int nbEntities = HibernateValueTable.PREFETCH_SIZE * 2 + 10;
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, nbEntities);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, TABLE, ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable table = getDatasource().getValueTable(TABLE);
+        List<VariableEntity> entities = new ArrayList<>();
+        for(ValueSet valueSet : table.getValueSets()) {
+          entities.add(valueSet.getVariableEntity());
+          ValueSet expected = table.getValueSet(valueSet.getVariableEntity());
+          for(Variable variable : variables) {
+            assertThat(table.getValue(variable, valueSet)).isEqualTo(table.getValue(variable, expected));
+          }
+        }
+        assertThat(entities).containsExactly(Iterables.toArray(table.getVariableEntities(), VariableEntity.class));
+      }
+    });
+  }
+
+  @Test
+  public void test_multiple_vector_source() {
+
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Variable", IntegerType.get(), PARTICIPANT).build(), //
+        Variable.Builder.newVariable("Test Repeatable", TextType.get(), PARTICIPANT).repeatable().build(), //
+        Variable.Builder.newVariable("Test Date", DateType.get(), PARTICIPANT).build());
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, ImmutableSet.copyOf(variables), 50);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, TABLE, ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable table = getDatasource().getValueTable(TABLE);
+        assertThat(table).isInstanceOf(MultipleVectorSource.class);
+
+        // every other entity, plus one that is not in the table
+        SortedSet<VariableEntity> entities = new TreeSet<>();
+        boolean skip = false;
+        for(VariableEntity entity : table.getVariableEntities()) {
+          if(!skip) entities.add(entity);
+          skip = !skip;
+        }
+        VariableEntity unknown = new VariableEntityBean(PARTICIPANT, "unknown");
+        entities.add(unknown);
+
+        // the same variable twice is read twice
+        List<Variable> requested = ImmutableList.<Variable>builder().addAll(variables).add(variables.get(0)).build();
+        Iterator<VariableEntity> entityIterator = entities.iterator();
+        for(List<Value> values : ((MultipleVectorSource) table).getValues(entities, requested)) {
+          VariableEntity entity = entityIterator.next();
+          assertThat(values).hasSize(requested.size());
+          for(int i = 0; i < requested.size(); i++) {
+            Variable variable = requested.get(i);
+            Value expected = entity.equals(unknown)
+                ? variable.isRepeatable() ? variable.getValueType().nullSequence() : variable.getValueType().nullValue()
+                : table.getValue(variable, table.getValueSet(entity));
+            assertThat(values.get(i)).isEqualTo(expected);
+          }
+        }
+        assertThat(entityIterator.hasNext()).isFalse();
+      }
+    });
+  }
+
+  @Test
+  public void test_multiple_vector_source_of_all_entities() {
+
+    final List<Variable> variables = ImmutableList.of( //
+        Variable.Builder.newVariable("Test Variable", IntegerType.get(), PARTICIPANT).build(), //
+        Variable.Builder.newVariable("Test Repeatable", TextType.get(), PARTICIPANT).repeatable().build());
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        HibernateDatasource ds = createDatasource();
+        ValueTable generatedValueTable = new GeneratedValueTable(ds, ImmutableSet.copyOf(variables), 50);
+        MagmaEngine.get().addDatasource(ds);
+        DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, TABLE, ds);
+      }
+    });
+
+    transactionTemplate.execute(new TransactionCallbackRuntimeExceptions() {
+      @Override
+      protected void doAction(TransactionStatus status) throws Exception {
+        ValueTable table = getDatasource().getValueTable(TABLE);
+
+        // all the value sets are scrolled
+        SortedSet<VariableEntity> entities = new TreeSet<>(table.getVariableEntities());
+        Iterator<VariableEntity> entityIterator = entities.iterator();
+        for(List<Value> values : ((MultipleVectorSource) table).getValues(entities, variables)) {
+          VariableEntity entity = entityIterator.next();
+          for(int i = 0; i < variables.size(); i++) {
+            assertThat(values.get(i)).isEqualTo(table.getValue(variables.get(i), table.getValueSet(entity)));
+          }
+        }
+        assertThat(entityIterator.hasNext()).isFalse();
+      }
+    });
+  }
+
   @Test
   public void test_vector_source() {
 
@@ -1262,6 +1541,11 @@ public class HibernateDatasourceTest {
     assertThat((List<?>) session.createCriteria(entityClass).list()).isEmpty();
   }
 
+  private static int countValues(Session session, String condition) {
+    return ((Number) session.createSQLQuery("SELECT COUNT(*) FROM value_set_value WHERE " + condition).uniqueResult())
+        .intValue();
+  }
+
   private void assertJpaEntitiesHasSize(@SuppressWarnings("TypeMayBeWeakened") Session session, Class<?> entityClass,
       int expectedSize) {
     assertThat((List<?>) session.createCriteria(entityClass).list()).hasSize(expectedSize);
@@ -0,0 +1,155 @@
+package org.obiba.magma.datasource.hibernate.type;
+
+import java.io.Reader;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.obiba.magma.MagmaDate;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.Value;
+import org.obiba.magma.type.DateType;
+import org.obiba.magma.type.DecimalType;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TypedValueHibernateTypeTest {
+
+  private static final String[] NAMES = { "value_type", "is_sequence", "value", "integer_value", "decimal_value",
+      "boolean_value", "date_value", "sequence_value" };
+
+  @Before
+  public void before() {
+    MagmaEngine.get();
+    System.setProperty(TypedValueHibernateType.TYPED_STORAGE_PROPERTY, "true");
+  }
+
+  @After
+  public void after() {
+    System.clearProperty(TypedValueHibernateType.TYPED_STORAGE_PROPERTY);
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void test_integer_is_stored_in_typed_column() throws Exception {
+    PreparedStatement st = mock(PreparedStatement.class);
+    new TypedValueHibernateType().nullSafeSet(st, IntegerType.get().valueOf(42), 1, null);
+
+    verify(st).setString(1, "integer");
+    verify(st).setBoolean(2, false);
+    verify(st).setClob(eq(3), any(Reader.class), eq(0L));
+    verify(st).setLong(4, 42L);
+    verify(st).setNull(8, Types.LONGVARBINARY);
+  }
+
+  @Test
+  public void test_text_is_stored_as_string() throws Exception {
+    PreparedStatement st = mock(PreparedStatement.class);
+    new TypedValueHibernateType().nullSafeSet(st, TextType.get().valueOf("foo"), 1, null);
+
+    verify(st).setClob(eq(3), any(Reader.class), eq(3L));
+    verify(st, never()).setLong(anyInt(), anyLong());
+  }
+
+  @Test
+  public void test_values_are_stored_as_string_when_typed_storage_is_disabled() throws Exception {
+    System.clearProperty(TypedValueHibernateType.TYPED_STORAGE_PROPERTY);
+    PreparedStatement st = mock(PreparedStatement.class);
+    new TypedValueHibernateType().nullSafeSet(st, IntegerType.get().valueOf(42), 1, null);
+
+    verify(st).setClob(eq(3), any(Reader.class), eq(2L));
+    verify(st).setNull(4, Types.BIGINT);
+  }
+
+  @Test
+  public void test_typed_values_are_read_from_typed_columns() throws Exception {
+    ResultSet rs = mock(ResultSet.class);
+    when(rs.getString("value_type")).thenReturn("date");
+    when(rs.getTimestamp(eq("date_value"), any(Calendar.class))).thenReturn(new Timestamp(utcMidnight(2014, 2, 3)));
+
+    Value value = (Value) new TypedValueHibernateType().nullSafeGet(rs, NAMES, null, null);
+    assertThat(value).isEqualTo(DateType.get().valueOf(new MagmaDate(2014, 2, 3)));
+  }
+
+  @Test
+  public void test_dates_are_stored_at_midnight_utc_whatever_the_time_zone() throws Exception {
+    TimeZone defaultTimeZone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("Pacific/Auckland"));
+    try {
+      PreparedStatement st = mock(PreparedStatement.class);
+      new TypedValueHibernateType().nullSafeSet(st, DateType.get().valueOf(new MagmaDate(2014, 2, 3)), 1, null);
+      ArgumentCaptor<Calendar> calendar = ArgumentCaptor.forClass(Calendar.class);
+      verify(st).setTimestamp(eq(7), eq(new Timestamp(utcMidnight(2014, 2, 3))), calendar.capture());
+      assertThat(calendar.getValue().getTimeZone().getID()).isEqualTo("UTC");
+    } finally {
+      TimeZone.setDefault(defaultTimeZone);
+    }
+  }
+
+  private static long utcMidnight(int year, int month, int dayOfMonth) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.clear();
+    calendar.set(year, month, dayOfMonth);
+    return calendar.getTimeInMillis();
+  }
+
+  @Test
+  public void test_string_values_are_still_read() throws Exception {
+    ResultSet rs = mock(ResultSet.class);
+    when(rs.getString("value_type")).thenReturn("decimal");
+    when(rs.getDouble("decimal_value")).thenReturn(0d);
+    when(rs.wasNull()).thenReturn(true);
+    when(rs.getString("value")).thenReturn("1.5");
+
+    Value value = (Value) new TypedValueHibernateType().nullSafeGet(rs, NAMES, null, null);
+    assertThat(value).isEqualTo(DecimalType.get().valueOf(1.5));
+  }
+
+  @Test
+  public void test_sequence_round_trip() throws Exception {
+    Value sequence = IntegerType.get()
+        .sequenceOf(ImmutableList.of(IntegerType.get().valueOf(1), IntegerType.get().nullValue(),
+            IntegerType.get().valueOf(Long.MAX_VALUE)));
+    PreparedStatement st = mock(PreparedStatement.class);
+    new TypedValueHibernateType().nullSafeSet(st, sequence, 1, null);
+    ArgumentCaptor<byte[]> bytes = ArgumentCaptor.forClass(byte[].class);
+    verify(st).setBytes(eq(8), bytes.capture());
+
+    ResultSet rs = mock(ResultSet.class);
+    when(rs.getString("value_type")).thenReturn("integer");
+    when(rs.getBoolean("is_sequence")).thenReturn(true);
+    when(rs.getBytes("sequence_value")).thenReturn(bytes.getValue());
+
+    assertThat(new TypedValueHibernateType().nullSafeGet(rs, NAMES, null, null)).isEqualTo(sequence);
+  }
+
+  @Test
+  public void test_date_sequence_is_stored_typed() throws Exception {
+    PreparedStatement st = mock(PreparedStatement.class);
+    new TypedValueHibernateType()
+        .nullSafeSet(st, DateType.get().sequenceOf(ImmutableList.of(DateType.get().valueOf(new Date()))), 1, null);
+    verify(st).setBytes(eq(8), any(byte[].class));
+    verify(st).setNull(7, Types.TIMESTAMP);
+  }
+
+}
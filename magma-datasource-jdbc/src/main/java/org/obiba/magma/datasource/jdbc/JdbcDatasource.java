@@ -13,6 +13,7 @@ import javax.annotation.Nullable;
 import javax.sql.DataSource;
 import javax.validation.constraints.NotNull;
 
+import org.obiba.magma.ConcurrentlyWritable;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueTableWriter;
 import org.obiba.magma.datasource.jdbc.support.CreateTableChangeBuilder;
@@ -43,7 +44,7 @@ import static org.obiba.magma.datasource.jdbc.JdbcValueTableWriter.ATTRIBUTE_MET
 import static org.obiba.magma.datasource.jdbc.JdbcValueTableWriter.CATEGORY_METADATA_TABLE;
 import static org.obiba.magma.datasource.jdbc.JdbcValueTableWriter.VARIABLE_METADATA_TABLE;
 
-public class JdbcDatasource extends AbstractDatasource {
+public class JdbcDatasource extends AbstractDatasource implements ConcurrentlyWritable {
 
   private static final Logger log = LoggerFactory.getLogger(JdbcDatasource.class);
 
@@ -107,6 +108,15 @@ public class JdbcDatasource extends AbstractDatasource {
     return new JdbcValueTableWriter(table);
   }
 
+  /**
+   * Value sets are inserted or updated row by row, so distinct entities can be written by several writers. The table
+   * is reloaded once all of them are closed.
+   */
+  @Override
+  public boolean canWriteConcurrently() {
+    return true;
+  }
+
   @Override
   protected void onInitialise() {
     if(getSettings().isUseMetadataTables()) {
@@ -161,7 +171,7 @@ public class JdbcDatasource extends AbstractDatasource {
     return jdbcTemplate;
   }
 
-  DatabaseSnapshot getDatabaseSnapshot() {
+  synchronized DatabaseSnapshot getDatabaseSnapshot() {
     if(snapshot == null) {
       snapshot = doWithDatabase(new DatabaseCallback<DatabaseSnapshot>() {
 
@@ -175,7 +185,7 @@ public class JdbcDatasource extends AbstractDatasource {
     return snapshot;
   }
 
-  void databaseChanged() {
+  synchronized void databaseChanged() {
     snapshot = null;
   }
 
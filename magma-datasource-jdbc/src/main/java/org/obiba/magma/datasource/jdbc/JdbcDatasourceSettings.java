@@ -10,6 +10,17 @@ import javax.validation.constraints.NotNull;
 import com.google.common.base.Strings;
 
 public class JdbcDatasourceSettings {
+
+  /**
+   * Default number of value sets sent to the database in one batch
+   */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  /**
+   * Default duration in milliseconds during which the timestamps of a table are not queried again
+   */
+  public static final long DEFAULT_TIMESTAMPS_TTL = 2000;
+
   //
   // Instance Variables
   //
@@ -32,6 +43,23 @@ public class JdbcDatasourceSettings {
    */
   private String defaultUpdatedTimestampColumnName;
 
+  /**
+   * The number of value sets sent to the database in one batch
+   */
+  private int batchSize = DEFAULT_BATCH_SIZE;
+
+  /**
+   * Duration in milliseconds during which the timestamps of a table are not queried again, null for the default
+   */
+  @Nullable
+  private Long timestampsTtl;
+
+  /**
+   * Minimum duration in milliseconds between two counts of the rows of a table, null to never count them
+   */
+  @Nullable
+  private Long rowCountCheckInterval;
+
   public JdbcDatasourceSettings() {
   }
 
@@ -132,6 +160,46 @@ public class JdbcDatasourceSettings {
     this.defaultUpdatedTimestampColumnName = defaultUpdatedTimestampColumnName;
   }
 
+  /**
+   * Returns the number of value sets that are written to the database in one batch. A batch size of 1 writes each
+   * value set as soon as it is closed.
+   */
+  public int getBatchSize() {
+    // settings may have been deserialized without this property
+    return batchSize < 1 ? DEFAULT_BATCH_SIZE : batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Returns the duration in milliseconds during which the timestamps of a table are cached. New rows are only looked
+   * for when the cached update timestamp expires.
+   */
+  public long getTimestampsTtl() {
+    // settings may have been deserialized without this property
+    return timestampsTtl == null ? DEFAULT_TIMESTAMPS_TTL : timestampsTtl;
+  }
+
+  public void setTimestampsTtl(long timestampsTtl) {
+    this.timestampsTtl = timestampsTtl;
+  }
+
+  /**
+   * Returns the minimum duration in milliseconds between two counts of the rows of a timestamped table, used to detect
+   * deleted rows, or null when rows are never counted. Counting rows may scan the whole table, so this is disabled by
+   * default.
+   */
+  @Nullable
+  public Long getRowCountCheckInterval() {
+    return rowCountCheckInterval;
+  }
+
+  public void setRowCountCheckInterval(@Nullable Long rowCountCheckInterval) {
+    this.rowCountCheckInterval = rowCountCheckInterval;
+  }
+
   public boolean isCreatedTimestampColumnNameProvided() {
     return !Strings.isNullOrEmpty(defaultCreatedTimestampColumnName);
   }
@@ -1,7 +1,9 @@
 package org.obiba.magma.datasource.jdbc;
 
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -10,6 +12,7 @@ import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
+import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.datasource.jdbc.support.NameConverter;
@@ -29,6 +32,15 @@ public class JdbcValueSet extends ValueSetBean {
     escapedSqlTableName = valueTable.getDatasource().escapeSqlTableName(sqlTableName);
   }
 
+  /**
+   * Value set built from the current row of a result set that was already read.
+   */
+  JdbcValueSet(JdbcValueTable valueTable, VariableEntity variableEntity, ResultSet rs, RowMapping mapping)
+      throws SQLException {
+    this(valueTable, variableEntity);
+    mapping.mapValues(rs, resultSetCache);
+  }
+
   @NotNull
   @Override
   public JdbcValueTable getValueTable() {
@@ -83,14 +95,7 @@ public class JdbcValueSet extends ValueSetBean {
           public Void extractData(ResultSet rs) throws SQLException {
             // Cache the data.
             rs.next();
-            for(int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-              if(!getValueTable().getSettings().getEntityIdentifierColumns()
-                  .contains(rs.getMetaData().getColumnName(i))) {
-                String variableName = NameConverter.toMagmaVariableName(rs.getMetaData().getColumnName(i));
-                Value variableValue = SqlTypes.valueTypeFor(rs.getMetaData().getColumnType(i)).valueOf(rs.getObject(i));
-                resultSetCache.put(variableName, variableValue);
-              }
-            }
+            new RowMapping(getValueTable(), rs.getMetaData()).mapValues(rs, resultSetCache);
 
             // Just return null. We have everything we need in the cache.
             return null;
@@ -109,4 +114,81 @@ public class JdbcValueSet extends ValueSetBean {
     return resultSetCache.get(getValueTable().getUpdatedTimestampColumnName());
   }
 
+  /**
+   * Mapping of the columns of a result set to the entity identifier and to the variable values, resolved once from the
+   * result set metadata and then applied to each row.
+   */
+  static class RowMapping {
+
+    private final int[] entityIdentifierColumns;
+
+    private final int[] valueColumns;
+
+    private final String[] variableNames;
+
+    private final ValueType[] valueTypes;
+
+    RowMapping(JdbcValueTable valueTable, ResultSetMetaData metaData) throws SQLException {
+      List<String> entityIdentifierColumnNames = valueTable.getSettings().getEntityIdentifierColumns();
+      entityIdentifierColumns = new int[entityIdentifierColumnNames.size()];
+      List<Integer> columns = new ArrayList<>();
+      for(int i = 1; i <= metaData.getColumnCount(); i++) {
+        String columnName = metaData.getColumnName(i);
+        int identifierPosition = indexOfIgnoreCase(entityIdentifierColumnNames, columnName);
+        if(identifierPosition == -1) {
+          columns.add(i);
+        } else {
+          entityIdentifierColumns[identifierPosition] = i;
+        }
+      }
+
+      valueColumns = new int[columns.size()];
+      variableNames = new String[columns.size()];
+      valueTypes = new ValueType[columns.size()];
+      for(int i = 0; i < columns.size(); i++) {
+        valueColumns[i] = columns.get(i);
+        variableNames[i] = NameConverter.toMagmaVariableName(metaData.getColumnName(valueColumns[i]));
+        valueTypes[i] = SqlTypes.valueTypeFor(metaData.getColumnType(valueColumns[i]));
+      }
+    }
+
+    /**
+     * Builds the entity identifier of the current row, identifier column values being joined by '-'.
+     */
+    String getEntityIdentifier(ResultSet rs) throws SQLException {
+      StringBuilder entityIdentifier = new StringBuilder();
+      for(int i = 0; i < entityIdentifierColumns.length; i++) {
+        if(i > 0) {
+          entityIdentifier.append('-');
+        }
+        entityIdentifier.append(rs.getObject(entityIdentifierColumns[i]));
+      }
+      return entityIdentifier.toString();
+    }
+
+    /**
+     * Returns the values of the entity identifier columns of the current row.
+     */
+    Object[] getEntityIdentifierValues(ResultSet rs) throws SQLException {
+      Object[] values = new Object[entityIdentifierColumns.length];
+      for(int i = 0; i < entityIdentifierColumns.length; i++) {
+        values[i] = rs.getObject(entityIdentifierColumns[i]);
+      }
+      return values;
+    }
+
+    void mapValues(ResultSet rs, Map<String, Value> values) throws SQLException {
+      for(int i = 0; i < valueColumns.length; i++) {
+        values.put(variableNames[i], valueTypes[i].valueOf(rs.getObject(valueColumns[i])));
+      }
+    }
+
+    private static int indexOfIgnoreCase(List<String> names, String name) {
+      for(int i = 0; i < names.size(); i++) {
+        if(names.get(i).equalsIgnoreCase(name)) return i;
+      }
+      return -1;
+    }
+  }
+
 }
@@ -5,6 +5,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -12,6 +13,7 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.SortedSet;
@@ -20,6 +22,7 @@ import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.obiba.magma.AbstractVariableValueSource;
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Attribute;
 import org.obiba.magma.Category;
 import org.obiba.magma.Datasource;
@@ -29,6 +32,7 @@ import org.obiba.magma.NoSuchValueSetException;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
+import org.obiba.magma.ValueTable;
 import org.obiba.magma.ValueType;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
@@ -42,8 +46,12 @@ import org.obiba.magma.support.Initialisables;
 import org.obiba.magma.support.NullTimestamps;
 import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.type.DateTimeType;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
+import com.google.common.collect.Maps;
+
 import liquibase.change.ChangeWithColumns;
 import liquibase.change.ColumnConfig;
 import liquibase.change.ConstraintsConfig;
@@ -55,9 +63,14 @@ import liquibase.database.structure.Table;
 @SuppressWarnings("OverlyCoupledClass")
 class JdbcValueTable extends AbstractValueTable {
 
+  /**
+   * Number of rows read by each query when scanning the whole table
+   */
+  static final int VALUE_SETS_PAGE_SIZE = 500;
+
   private final JdbcValueTableSettings settings;
 
-  private Table table;
+  private volatile Table table;
 
   private String escapedSqlTableName;
 
@@ -67,6 +80,13 @@ class JdbcValueTable extends AbstractValueTable {
 
   private String escapedCategoriesSqlTableName;
 
+  private final TableTimestamps tableTimestamps = new TableTimestamps();
+
+  /**
+   * Number of writers of this table that are not closed yet
+   */
+  private int openWriters;
+
   JdbcValueTable(Datasource datasource, JdbcValueTableSettings settings) {
     super(datasource, settings.getMagmaTableName());
     this.settings = settings;
@@ -113,6 +133,21 @@ class JdbcValueTable extends AbstractValueTable {
     return new JdbcValueSet(this, entity);
   }
 
+  /**
+   * Scans the whole table with queries ordered by entity identifier, each reading a page of rows, instead of querying
+   * the values of each entity separately. Value sets are returned in entity identifier order, their values being
+   * already loaded.
+   */
+  @Override
+  public Iterable<ValueSet> getValueSets() {
+    return new Iterable<ValueSet>() {
+      @Override
+      public Iterator<ValueSet> iterator() {
+        return new ValueSetIterator();
+      }
+    };
+  }
+
   @Override
   public Timestamps getValueSetTimestamps(VariableEntity entity) throws NoSuchValueSetException {
     if(hasCreatedTimestampColumn() && hasUpdatedTimestampColumn()) {
@@ -121,27 +156,15 @@ class JdbcValueTable extends AbstractValueTable {
     return NullTimestamps.get();
   }
 
+  /**
+   * Table timestamps are cached for a short time, as they are requested on each access to the entities of the views
+   * over this table.
+   */
   @NotNull
   @Override
   public Timestamps getTimestamps() {
     if(hasCreatedTimestampColumn() && hasUpdatedTimestampColumn()) {
-      return new Timestamps() {
-
-        @NotNull
-        @Override
-        public Value getLastUpdate() {
-          String sql = "SELECT MAX(" + getUpdatedTimestampColumnName() + ") FROM " + escapedSqlTableName;
-          return DateTimeType.get().valueOf(getDatasource().getJdbcTemplate().queryForObject(sql, Date.class));
-        }
-
-        @NotNull
-        @Override
-        public Value getCreated() {
-          String sql = "SELECT MIN(" + getCreatedTimestampColumnName() + ") FROM " + escapedSqlTableName;
-          return DateTimeType.get().valueOf(getDatasource().getJdbcTemplate().queryForObject(sql, Date.class));
-        }
-
-      };
+      return tableTimestamps;
     }
     return NullTimestamps.get();
   }
@@ -158,8 +181,24 @@ class JdbcValueTable extends AbstractValueTable {
     return NameConverter.toSqlName(getName());
   }
 
-  void tableChanged() {
+  synchronized void writerOpened() {
+    openWriters++;
+  }
+
+  /**
+   * Reloads the table when the last of its writers is closed, so that concurrent writers of the same copy reload it
+   * once.
+   */
+  synchronized void writerClosed() {
+    if(--openWriters == 0) {
+      getDatasource().databaseChanged();
+      tableChanged();
+    }
+  }
+
+  private void tableChanged() {
     table = getDatasource().getDatabaseSnapshot().getTable(settings.getSqlTableName());
+    tableTimestamps.invalidate();
     initialise();
   }
 
@@ -185,10 +224,22 @@ class JdbcValueTable extends AbstractValueTable {
         : getDatasource().getSettings().getDefaultUpdatedTimestampColumnName();
   }
 
+  private long getTimestampsTtl() {
+    return getDatasource().getSettings().getTimestampsTtl();
+  }
+
   void writeVariableValueSource(Variable source) {
     addVariableValueSource(new JdbcVariableValueSource(source));
   }
 
+  /**
+   * Returns the JDBC type of a column of the SQL table, {@link Types#VARCHAR} if this column is not known.
+   */
+  int getSqlType(String columnName) {
+    Column column = table == null ? null : table.getColumn(columnName);
+    return column == null ? Types.VARCHAR : column.getDataType();
+  }
+
   static List<String> getEntityIdentifierColumns(Table table) {
     List<String> entityIdentifierColumns = new ArrayList<>();
     for(Column column : table.getColumns()) {
@@ -387,6 +438,51 @@ class JdbcValueTable extends AbstractValueTable {
   // Inner Classes
   //
 
+  private class TableTimestamps implements Timestamps {
+
+    private Date lastUpdate;
+
+    private long lastUpdateExpiry;
+
+    private Date created;
+
+    private long createdExpiry;
+
+    @NotNull
+    @Override
+    public Value getLastUpdate() {
+      return DateTimeType.get().valueOf(getLastUpdateDate());
+    }
+
+    @NotNull
+    @Override
+    public synchronized Value getCreated() {
+      long now = System.currentTimeMillis();
+      if(now >= createdExpiry) {
+        String sql = "SELECT MIN(" + getCreatedTimestampColumnName() + ") FROM " + escapedSqlTableName;
+        created = getDatasource().getJdbcTemplate().queryForObject(sql, Date.class);
+        createdExpiry = now + getTimestampsTtl();
+      }
+      return DateTimeType.get().valueOf(created);
+    }
+
+    @Nullable
+    synchronized Date getLastUpdateDate() {
+      long now = System.currentTimeMillis();
+      if(now >= lastUpdateExpiry) {
+        String sql = "SELECT MAX(" + getUpdatedTimestampColumnName() + ") FROM " + escapedSqlTableName;
+        lastUpdate = getDatasource().getJdbcTemplate().queryForObject(sql, Date.class);
+        lastUpdateExpiry = now + getTimestampsTtl();
+      }
+      return lastUpdate;
+    }
+
+    synchronized void invalidate() {
+      lastUpdateExpiry = 0;
+      createdExpiry = 0;
+    }
+  }
+
   private class ValueSetTimestamps implements Timestamps {
 
     private final VariableEntity entity;
@@ -434,44 +530,235 @@ class JdbcValueTable extends AbstractValueTable {
     }
   }
 
+  /**
+   * Reads the value sets by pages of rows ordered by entity identifier. Each page is read by its own query, starting
+   * after the entity identifier of the last row of the previous page, so that no connection is held between two pages
+   * and the iteration can be abandoned at any time.
+   */
+  private class ValueSetIterator implements Iterator<ValueSet> {
+
+    private Iterator<ValueSet> page = Collections.emptyIterator();
+
+    /**
+     * Identifier column values of the last row read, null before the first page
+     */
+    @Nullable
+    private Object[] lastIdentifier;
+
+    private boolean lastPage = false;
+
+    @Override
+    public boolean hasNext() {
+      if(!page.hasNext() && !lastPage) {
+        page = readPage();
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public ValueSet next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    private Iterator<ValueSet> readPage() {
+      List<String> entityIdentifierColumns = getSettings().getEntityIdentifierColumns();
+      StringBuilder sql = new StringBuilder("SELECT * FROM ").append(escapedSqlTableName);
+      final List<Object> args = new ArrayList<>();
+      if(lastIdentifier != null) {
+        // (c1 > ?) OR (c1 = ? AND c2 > ?) OR ...
+        sql.append(" WHERE ");
+        for(int i = 0; i < entityIdentifierColumns.size(); i++) {
+          if(i > 0) sql.append(" OR ");
+          sql.append("(");
+          for(int j = 0; j < i; j++) {
+            sql.append(entityIdentifierColumns.get(j)).append(" = ? AND ");
+            args.add(lastIdentifier[j]);
+          }
+          sql.append(entityIdentifierColumns.get(i)).append(" > ?)");
+          args.add(lastIdentifier[i]);
+        }
+      }
+      sql.append(" ORDER BY ").append(getEntityIdentifierColumnsSql());
+
+      final String pageSql = sql.toString();
+      final List<ValueSet> valueSets = new ArrayList<>();
+      getDatasource().getJdbcTemplate().query(new PreparedStatementCreator() {
+        @Override
+        @edu.umd.cs.findbugs.annotations.SuppressWarnings("SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING")
+        public PreparedStatement createPreparedStatement(Connection connection) throws SQLException {
+          PreparedStatement statement = connection.prepareStatement(pageSql);
+          statement.setMaxRows(VALUE_SETS_PAGE_SIZE);
+          statement.setFetchSize(VALUE_SETS_PAGE_SIZE);
+          for(int i = 0; i < args.size(); i++) {
+            statement.setObject(i + 1, args.get(i));
+          }
+          return statement;
+        }
+      }, new RowCallbackHandler() {
+
+        private JdbcValueSet.RowMapping mapping;
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+          if(mapping == null) {
+            mapping = new JdbcValueSet.RowMapping(JdbcValueTable.this, rs.getMetaData());
+          }
+          VariableEntity entity = new VariableEntityBean(getEntityType(), mapping.getEntityIdentifier(rs));
+          valueSets.add(new JdbcValueSet(JdbcValueTable.this, entity, rs, mapping));
+          lastIdentifier = mapping.getEntityIdentifierValues(rs);
+        }
+      });
+      lastPage = valueSets.size() < VALUE_SETS_PAGE_SIZE;
+      return valueSets.iterator();
+    }
+  }
+
+  @SuppressWarnings({ "OverlyStrongTypeCast", "ChainOfInstanceofChecks" })
+  private static void closeQuietly(Object... objs) {
+    if(objs != null) {
+      for(Object o : objs) {
+        try {
+          if(o instanceof ResultSet) {
+            ((ResultSet) o).close();
+          }
+          if(o instanceof Statement) {
+            ((Statement) o).close();
+          }
+          if(o instanceof Connection) {
+            ((Connection) o).close();
+          }
+        } catch(SQLException e) {
+          // ignored
+        }
+      }
+    }
+  }
+
+  /**
+   * Loads all the entity identifiers on initialisation. When the table has an update timestamp column, the entities
+   * of the rows updated since the last load are then added on access, without scanning the whole table again. All the
+   * entities are loaded again when the table is written by Magma, or when rows were deleted, if rows are counted (see
+   * {@link JdbcDatasourceSettings#getRowCountCheckInterval()}).
+   */
   class JdbcVariableEntityProvider extends AbstractVariableEntityProvider implements Initialisable {
 
-    private Set<VariableEntity> entities = new LinkedHashSet<>();
+    private volatile Set<VariableEntity> entities = Collections.emptySet();
+
+    /**
+     * Latest update timestamp of the rows that were loaded
+     */
+    @Nullable
+    private Date watermark;
+
+    /**
+     * Number of rows of the table when it was last loaded or counted
+     */
+    private long rowCount;
+
+    /**
+     * Time after which the rows of the table are counted again
+     */
+    private long rowCountExpiry;
+
+    private boolean loaded;
 
     JdbcVariableEntityProvider(String entityType) {
       super(entityType);
     }
 
     @Override
-    public void initialise() {
-      entities = new LinkedHashSet<>();
-
+    public synchronized void initialise() {
       // MAGMA-100
       if(escapedSqlTableName == null) {
         escapedSqlTableName = getDatasource().escapeSqlTableName(getSqlName());
       }
 
-      List<VariableEntity> results = getDatasource().getJdbcTemplate()
-          .query("SELECT " + getEntityIdentifierColumnsSql() + " FROM " + escapedSqlTableName,
-              new RowMapper<VariableEntity>() {
-                @Override
-                public VariableEntity mapRow(ResultSet rs, int rowNum) throws SQLException {
-                  return new VariableEntityBean(JdbcValueTable.this.getEntityType(), buildEntityIdentifier(rs));
-                }
-              });
+      reload();
+      loaded = true;
+    }
 
-      entities.addAll(results);
+    private void reload() {
+      // read the watermark first, so that rows updated during the load are read again by the next refresh
+      watermark = hasUpdatedTimestampColumn() ? tableTimestamps.getLastUpdateDate() : null;
+      List<VariableEntity> rows = loadEntities(null);
+      entities = Collections.unmodifiableSet(new LinkedHashSet<>(rows));
+      // identifiers may not be unique: rows and entities are not compared
+      rowCount = rows.size();
+      Long interval = getDatasource().getSettings().getRowCountCheckInterval();
+      if(interval != null) rowCountExpiry = System.currentTimeMillis() + interval;
     }
 
     @NotNull
     @Override
     public Set<VariableEntity> getVariableEntities() {
-      return Collections.unmodifiableSet(entities);
+      if(hasUpdatedTimestampColumn()) {
+        refresh();
+      }
+      return entities;
+    }
+
+    /**
+     * Adds the entities of the rows updated since the watermark. Rows committed after a refresh with an older update
+     * timestamp, rows without update timestamp and deleted rows are not seen this way. When enabled, the rows are
+     * counted from time to time and all the entities are loaded again when rows were deleted since the last count.
+     * Other changes are only seen when the table is written through this datasource.
+     */
+    private synchronized void refresh() {
+      if(!loaded) return;
+
+      Date lastUpdate = tableTimestamps.getLastUpdateDate();
+      if(lastUpdate != null && (watermark == null || lastUpdate.after(watermark))) {
+        Set<VariableEntity> refreshed = new LinkedHashSet<>(entities);
+        refreshed.addAll(loadEntities(watermark));
+        watermark = lastUpdate;
+        entities = Collections.unmodifiableSet(refreshed);
+      }
+
+      Long interval = getDatasource().getSettings().getRowCountCheckInterval();
+      long now = System.currentTimeMillis();
+      if(interval != null && now >= rowCountExpiry) {
+        rowCountExpiry = now + interval;
+        long rows = getDatasource().getJdbcTemplate()
+            .queryForObject("SELECT COUNT(*) FROM " + escapedSqlTableName, Long.class);
+        if(rows < rowCount) {
+          reload();
+        } else {
+          rowCount = rows;
+        }
+      }
+    }
+
+    /**
+     * Loads the entities of all the rows, or of the rows updated since the given date.
+     */
+    private List<VariableEntity> loadEntities(@Nullable Date updatedSince) {
+      String sql = "SELECT " + getEntityIdentifierColumnsSql() + " FROM " + escapedSqlTableName;
+      Object[] args = {};
+      if(updatedSince != null) {
+        // same second updates cannot be told apart, entities already loaded are ignored by the set
+        sql += " WHERE " + getUpdatedTimestampColumnName() + " >= ?";
+        args = new Object[] { updatedSince };
+      }
+      return getDatasource().getJdbcTemplate().query(sql, args, new RowMapper<VariableEntity>() {
+        @Override
+        public VariableEntity mapRow(ResultSet rs, int rowNum) throws SQLException {
+          return new VariableEntityBean(JdbcValueTable.this.getEntityType(), buildEntityIdentifier(rs));
+        }
+      });
     }
 
   }
 
-  class JdbcVariableValueSource extends AbstractVariableValueSource implements VariableValueSource, VectorSource {
+  class JdbcVariableValueSource extends AbstractVariableValueSource
+      implements VariableValueSource, AggregatingVectorSource {
     //
     // Instance Variables
     //
@@ -552,6 +839,36 @@ class JdbcValueTable extends AbstractValueTable {
       };
     }
 
+    @NotNull
+    @Override
+    public ValueTable getValueTable() {
+      return JdbcValueTable.this;
+    }
+
+    /**
+     * Values are counted with a {@code GROUP BY} query on the column of the variable. Sequences are stored as text and
+     * are not counted.
+     */
+    @Nullable
+    @Override
+    public Map<Value, Long> getValueFrequencies() {
+      if(variable.isRepeatable()) return null;
+
+      final Map<Value, Long> frequencies = Maps.newHashMap();
+      getDatasource().getJdbcTemplate().query(
+          "SELECT " + columnName + ", COUNT(*) FROM " + escapedSqlTableName + " GROUP BY " + columnName,
+          new RowCallbackHandler() {
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+              Value value = variable.getValueType().valueOf(rs.getObject(1));
+              // distinct column values may be converted to the same value
+              Long count = frequencies.get(value);
+              frequencies.put(value, (count == null ? 0 : count) + rs.getLong(2));
+            }
+          });
+      return frequencies;
+    }
+
     private class ValueIterator implements Iterator<Value> {
 
       private final Connection connection;
@@ -623,27 +940,6 @@ class JdbcValueTable extends AbstractValueTable {
           }
         }
       }
-
-      @SuppressWarnings({ "OverlyStrongTypeCast", "ChainOfInstanceofChecks" })
-      private void closeQuietly(Object... objs) {
-        if(objs != null) {
-          for(Object o : objs) {
-            try {
-              if(o instanceof ResultSet) {
-                ((ResultSet) o).close();
-              }
-              if(o instanceof Statement) {
-                ((Statement) o).close();
-              }
-              if(o instanceof Connection) {
-                ((Connection) o).close();
-              }
-            } catch(SQLException e) {
-              // ignored
-            }
-          }
-        }
-      }
     }
   }
 
@@ -31,7 +31,7 @@ import org.obiba.magma.type.TextType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.support.AbstractLobCreatingPreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCallback;
 import org.springframework.jdbc.support.lob.DefaultLobHandler;
 import org.springframework.jdbc.support.lob.LobCreator;
 import org.springframework.util.Assert;
@@ -78,8 +78,17 @@ class JdbcValueTableWriter implements ValueTableWriter {
 
   private final JdbcValueTable valueTable;
 
+  private final int batchSize;
+
+  /**
+   * Statements of the closed value sets that are not sent to the database yet
+   */
+  private final List<PendingStatement> batch = new ArrayList<>();
+
   JdbcValueTableWriter(JdbcValueTable valueTable) {
     this.valueTable = valueTable;
+    batchSize = valueTable.getDatasource().getSettings().getBatchSize();
+    valueTable.writerOpened();
   }
 
   @NotNull
@@ -97,8 +106,87 @@ class JdbcValueTableWriter implements ValueTableWriter {
 
   @Override
   public void close() {
-    valueTable.getDatasource().databaseChanged();
-    valueTable.tableChanged();
+    try {
+      flush();
+    } finally {
+      valueTable.writerClosed();
+    }
+  }
+
+  private void addToBatch(PendingStatement statement) {
+    batch.add(statement);
+    if(batch.size() >= batchSize) {
+      flush();
+    }
+  }
+
+  /**
+   * Sends the pending statements to the database, consecutive statements having the same SQL being executed as one
+   * JDBC batch.
+   */
+  private void flush() {
+    int from = 0;
+    while(from < batch.size()) {
+      String sql = batch.get(from).sql;
+      int to = from + 1;
+      while(to < batch.size() && batch.get(to).sql.equals(sql)) {
+        to++;
+      }
+      executeBatch(sql, batch.subList(from, to));
+      from = to;
+    }
+    batch.clear();
+  }
+
+  private void executeBatch(String sql, final Iterable<PendingStatement> statements) {
+    valueTable.getDatasource().getJdbcTemplate().execute(sql, new PreparedStatementCallback<int[]>() {
+      @Override
+      public int[] doInPreparedStatement(PreparedStatement ps) throws SQLException {
+        LobCreator lobCreator = new DefaultLobHandler().getLobCreator();
+        try {
+          for(PendingStatement statement : statements) {
+            statement.setValues(ps, lobCreator);
+            ps.addBatch();
+          }
+          return ps.executeBatch();
+        } finally {
+          lobCreator.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * A parameterized INSERT or UPDATE statement of a value set.
+   */
+  private static class PendingStatement {
+
+    private final String sql;
+
+    private final List<Object> parameters;
+
+    private final List<Integer> parameterTypes;
+
+    private PendingStatement(String sql, List<Object> parameters, List<Integer> parameterTypes) {
+      this.sql = sql;
+      this.parameters = parameters;
+      this.parameterTypes = parameterTypes;
+    }
+
+    private void setValues(PreparedStatement ps, LobCreator lobCreator) throws SQLException {
+      for(int i = 0; i < parameters.size(); i++) {
+        Object parameter = parameters.get(i);
+        Integer parameterType = parameterTypes.get(i);
+        if(parameter instanceof byte[]) {
+          lobCreator.setBlobAsBinaryStream(ps, i + 1, new ByteArrayInputStream((byte[]) parameter),
+              ((byte[]) parameter).length);
+        } else if(parameterType == null) {
+          ps.setObject(i + 1, parameter);
+        } else {
+          ps.setObject(i + 1, parameter, parameterType);
+        }
+      }
+    }
   }
 
   private class JdbcVariableWriter implements VariableWriter {
@@ -294,28 +382,16 @@ class JdbcValueTableWriter implements ValueTableWriter {
     @Override
     public void close() {
       if(columnValueMap.size() != 0) {
-        JdbcTemplate jdbcTemplate = valueTable.getDatasource().getJdbcTemplate();
-
-        jdbcTemplate.execute(valueTable.hasValueSet(entity) ? getUpdateSql() : getInsertSql(),
-            new AbstractLobCreatingPreparedStatementCallback(new DefaultLobHandler()) {
-              @Override
-              protected void setValues(PreparedStatement ps, LobCreator lobCreator) throws SQLException {
-                int index = 1;
-                for(Map.Entry<String, Object> entry : columnValueMap.entrySet()) {
-                  if(entry.getValue() instanceof byte[]) {
-                    lobCreator.setBlobAsBinaryStream(ps, index++, new ByteArrayInputStream((byte[]) entry.getValue()),
-                        ((byte[]) entry.getValue()).length);
-                  } else {
-                    ps.setObject(index++, entry.getValue());
-                  }
-                }
-              }
-            });
+        addToBatch(valueTable.hasValueSet(entity) ? getUpdateStatement() : getInsertStatement());
       }
     }
 
+    /**
+     * Entity identifiers are bound as parameters, so that the statements of value sets having the same columns share
+     * the same SQL and can be batched.
+     */
     @SuppressWarnings({ "PMD.NcssMethodCount", "OverlyLongMethod" })
-    private String getInsertSql() {
+    private PendingStatement getInsertStatement() {
       String timestamp = formattedDate(new Date());
       if(valueTable.hasCreatedTimestampColumn()) {
         writeValue(Variable.Builder
@@ -329,6 +405,8 @@ class JdbcValueTableWriter implements ValueTableWriter {
       }
 
       StringBuffer sql = new StringBuffer();
+      List<Object> parameters = new ArrayList<>();
+      List<Integer> parameterTypes = new ArrayList<>();
 
       sql.append("INSERT INTO ");
       sql.append(valueTable.getSqlName());
@@ -339,38 +417,38 @@ class JdbcValueTableWriter implements ValueTableWriter {
       for(Map.Entry<String, String> entry : entityIdentifierColumnValueMap.entrySet()) {
         sql.append(entry.getKey());
         sql.append(", ");
+        parameters.add(entry.getValue());
+        parameterTypes.add(valueTable.getSqlType(entry.getKey()));
       }
       for(Map.Entry<String, Object> entry : columnValueMap.entrySet()) {
         sql.append(entry.getKey());
         sql.append(", ");
+        parameters.add(entry.getValue());
+        parameterTypes.add(null);
       }
       deleteFromEnd(sql, ", ");
       sql.append(") ");
 
       sql.append("VALUES (");
-      for(Map.Entry<String, String> entry : entityIdentifierColumnValueMap.entrySet()) {
-        sql.append("'");
-        sql.append(entry.getValue());
-        sql.append("'");
-        sql.append(", ");
-      }
-      for(int i = 0; i < columnValueMap.size(); i++) {
+      for(int i = 0; i < parameters.size(); i++) {
         sql.append("?");
         sql.append(", ");
       }
       deleteFromEnd(sql, ", ");
       sql.append(")");
 
-      return sql.toString();
+      return new PendingStatement(sql.toString(), parameters, parameterTypes);
     }
 
-    private String getUpdateSql() {
+    private PendingStatement getUpdateStatement() {
       if(valueTable.hasUpdatedTimestampColumn()) {
         writeValue(Variable.Builder
             .newVariable(valueTable.getUpdatedTimestampColumnName(), TextType.get(), valueTable.getEntityType())
             .build(), TextType.get().valueOf(formattedDate(new Date())));
       }
       StringBuffer sql = new StringBuffer();
+      List<Object> parameters = new ArrayList<>();
+      List<Integer> parameterTypes = new ArrayList<>();
 
       sql.append("UPDATE ");
       sql.append(valueTable.getSqlName());
@@ -379,30 +457,21 @@ class JdbcValueTableWriter implements ValueTableWriter {
       for(Map.Entry<String, Object> entry : columnValueMap.entrySet()) {
         sql.append(entry.getKey());
         sql.append(" = ?, ");
+        parameters.add(entry.getValue());
+        parameterTypes.add(null);
       }
       deleteFromEnd(sql, ", ");
 
-      sql.append(" ");
-      sql.append(getWhereClause());
-
-      return sql.toString();
-    }
-
-    private String getWhereClause() {
-      StringBuffer whereClause = new StringBuffer();
-
-      whereClause.append("WHERE ");
+      sql.append(" WHERE ");
       for(Map.Entry<String, String> entry : getEntityIdentifierColumnValueMap().entrySet()) {
-        whereClause.append(entry.getKey());
-        whereClause.append(" = ");
-        whereClause.append("'");
-        whereClause.append(entry.getValue());
-        whereClause.append("'");
-        whereClause.append(" AND ");
+        sql.append(entry.getKey());
+        sql.append(" = ? AND ");
+        parameters.add(entry.getValue());
+        parameterTypes.add(valueTable.getSqlType(entry.getKey()));
       }
-      deleteFromEnd(whereClause, " AND ");
+      deleteFromEnd(sql, " AND ");
 
-      return whereClause.toString();
+      return new PendingStatement(sql.toString(), parameters, parameterTypes);
     }
 
     private Map<String, String> getEntityIdentifierColumnValueMap() {
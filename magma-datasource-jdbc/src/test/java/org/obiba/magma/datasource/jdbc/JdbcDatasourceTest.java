@@ -1,13 +1,19 @@
 package org.obiba.magma.datasource.jdbc;
 
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeSet;
 
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
+import org.apache.commons.dbcp.BasicDataSource;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.obiba.core.test.spring.Dataset;
 import org.obiba.core.test.spring.DbUnitAwareTestExecutionListener;
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Category;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
@@ -26,6 +32,7 @@ import org.obiba.magma.test.TestSchema;
 import org.obiba.magma.type.DecimalType;
 import org.obiba.magma.type.IntegerType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.TestExecutionListeners;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
@@ -34,6 +41,8 @@ import org.springframework.test.context.support.DirtiesContextTestExecutionListe
 import org.springframework.test.context.transaction.TransactionConfiguration;
 import org.springframework.test.context.transaction.TransactionalTestExecutionListener;
 
+import com.google.common.collect.ImmutableMap;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 
 @SuppressWarnings({ "ReuseOfLocalVariable", "OverlyLongMethod", "PMD.NcssMethodCount" })
@@ -116,6 +125,103 @@ public class JdbcDatasourceTest extends AbstractMagmaTest {
     jdbcDatasource.dispose();
   }
 
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-nometa.sql",
+      afterSchema = "schema-notables.sql")
+  @Dataset(filenames = "JdbcDatasourceTest-nometa.xml")
+  @Test
+  public void test_valueFrequencies() {
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource", dataSource, "Participant", false);
+    jdbcDatasource.initialise();
+
+    ValueTable valueTable = jdbcDatasource.getValueTable("BONE_DENSITY");
+    VectorSource bdVar = valueTable.getVariableValueSource("BD").asVectorSource();
+    assertThat(bdVar).isInstanceOf(AggregatingVectorSource.class);
+
+    Map<Value, Long> frequencies = ((AggregatingVectorSource) bdVar).getValueFrequencies();
+    assertThat(frequencies)
+        .isEqualTo(ImmutableMap.of(IntegerType.get().valueOf(64), 1L, IntegerType.get().valueOf(65), 1L));
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-nometa.sql",
+      afterSchema = "schema-notables.sql")
+  @Dataset(filenames = "JdbcDatasourceTest-nometa.xml")
+  @Test
+  public void test_getValueSets() {
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource", dataSource, "Participant", false);
+    jdbcDatasource.initialise();
+
+    ValueTable valueTable = jdbcDatasource.getValueTable("BONE_DENSITY");
+    Iterator<ValueSet> valueSets = valueTable.getValueSets().iterator();
+
+    ValueSet valueSet = valueSets.next();
+    assertThat(valueSet.getVariableEntity().getIdentifier()).isEqualTo("1234-2");
+    assertThat(valueTable.getValue(valueTable.getVariable("BD"), valueSet)).isEqualTo(IntegerType.get().valueOf(64));
+    assertThat(valueTable.getValue(valueTable.getVariable("BD_2"), valueSet)).isEqualTo(IntegerType.get().valueOf(65));
+    valueSet = valueSets.next();
+    assertThat(valueSet.getVariableEntity().getIdentifier()).isEqualTo("1234-3");
+    assertThat(valueTable.getValue(valueTable.getVariable("BD"), valueSet)).isEqualTo(IntegerType.get().valueOf(65));
+    assertThat(valueSets.hasNext()).isFalse();
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_getValueSets_reads_pages() {
+    JdbcDatasourceSettings settings = new JdbcDatasourceSettings("Participant", null, null, false);
+    settings.setBatchSize(100);
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource-nodb", dataSource, settings);
+    jdbcDatasource.initialise();
+
+    Variable myVar = Variable.Builder.newVariable("my_var", IntegerType.get(), "Participant").build();
+    int count = JdbcValueTable.VALUE_SETS_PAGE_SIZE * 2 + 10;
+    try(ValueTableWriter tableWriter = jdbcDatasource.createWriter("my_table", "Participant")) {
+      try(VariableWriter variableWriter = tableWriter.writeVariables()) {
+        variableWriter.writeVariable(myVar);
+      }
+      for(int i = 0; i < count; i++) {
+        try(ValueSetWriter valueSetWriter = tableWriter
+            .writeValueSet(new VariableEntityBean("Participant", String.format("%05d", i)))) {
+          valueSetWriter.writeValue(myVar, IntegerType.get().valueOf(i));
+        }
+      }
+    }
+
+    ValueTable table = jdbcDatasource.getValueTable("my_table");
+    int i = 0;
+    for(ValueSet valueSet : table.getValueSets()) {
+      assertThat(valueSet.getVariableEntity().getIdentifier()).isEqualTo(String.format("%05d", i));
+      assertThat(table.getValue(myVar, valueSet)).isEqualTo(IntegerType.get().valueOf(i));
+      i++;
+    }
+    assertThat(i).isEqualTo(count);
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-nometa.sql",
+      afterSchema = "schema-notables.sql")
+  @Dataset(filenames = "JdbcDatasourceTest-nometa.xml")
+  @Test
+  public void test_getValueSets_abandoned_iteration_releases_connection() {
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource", dataSource, "Participant", false);
+    jdbcDatasource.initialise();
+
+    BasicDataSource pool = (BasicDataSource) dataSource;
+    ValueTable valueTable = jdbcDatasource.getValueTable("BONE_DENSITY");
+    // more abandoned iterations than connections in the pool
+    for(int i = 0; i < pool.getMaxActive() + 1; i++) {
+      Iterator<ValueSet> valueSets = valueTable.getValueSets().iterator();
+      assertThat(valueSets.next().getVariableEntity().getIdentifier()).isEqualTo("1234-2");
+      assertThat(pool.getNumActive()).isEqualTo(0);
+    }
+
+    jdbcDatasource.dispose();
+  }
+
   @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
       afterSchema = "schema-notables.sql")
   @Test
@@ -166,6 +272,138 @@ public class JdbcDatasourceTest extends AbstractMagmaTest {
     jdbcDatasource.dispose();
   }
 
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_getVariableEntities_refresh_picks_up_inserted_rows() {
+    JdbcDatasource jdbcDatasource = createTimestampedDatasourceWithEntities(3, null);
+    ValueTable table = jdbcDatasource.getValueTable("my_table");
+    assertThat(table.getVariableEntities()).hasSize(3);
+
+    // a row updated after the others is added incrementally
+    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.update("INSERT INTO MY_TABLE (ENTITY_ID, CREATED, UPDATED) VALUES (?, ?, ?)", "10",
+        new Date(System.currentTimeMillis() + 60000), new Date(System.currentTimeMillis() + 60000));
+    assertThat(table.getVariableEntities()).contains(new VariableEntityBean("Participant", "10"));
+    assertThat(table.getVariableEntities()).hasSize(4);
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_getVariableEntities_refresh_drops_deleted_rows_when_rows_are_counted() {
+    JdbcDatasource jdbcDatasource = createTimestampedDatasourceWithEntities(3, 0L);
+    ValueTable table = jdbcDatasource.getValueTable("my_table");
+    assertThat(table.getVariableEntities()).hasSize(3);
+
+    new JdbcTemplate(dataSource).update("DELETE FROM MY_TABLE WHERE ENTITY_ID = ?", "1");
+    assertThat(table.getVariableEntities()).hasSize(2);
+    assertThat(table.getVariableEntities()).doesNotContain(new VariableEntityBean("Participant", "1"));
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_getVariableEntities_refresh_ignores_deleted_rows_by_default() {
+    JdbcDatasource jdbcDatasource = createTimestampedDatasourceWithEntities(3, null);
+    ValueTable table = jdbcDatasource.getValueTable("my_table");
+    assertThat(table.getVariableEntities()).hasSize(3);
+
+    new JdbcTemplate(dataSource).update("DELETE FROM MY_TABLE WHERE ENTITY_ID = ?", "1");
+    assertThat(table.getVariableEntities()).hasSize(3);
+
+    jdbcDatasource.dispose();
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_getVariableEntities_after_write() {
+    JdbcDatasource jdbcDatasource = createTimestampedDatasourceWithEntities(3, null);
+    ValueTable table = jdbcDatasource.getValueTable("my_table");
+    assertThat(table.getVariableEntities()).hasSize(3);
+
+    // written by this datasource: seen without waiting for the timestamps to expire
+    Variable myVar = table.getVariable("MY_VAR");
+    try(ValueTableWriter tableWriter = jdbcDatasource.createWriter("my_table", "Participant");
+        ValueSetWriter valueSetWriter = tableWriter.writeValueSet(new VariableEntityBean("Participant", "10"))) {
+      valueSetWriter.writeValue(myVar, IntegerType.get().valueOf(10));
+    }
+    assertThat(table.getVariableEntities()).hasSize(4);
+    assertThat(table.getVariableEntities()).contains(new VariableEntityBean("Participant", "10"));
+
+    jdbcDatasource.dispose();
+  }
+
+  private JdbcDatasource createTimestampedDatasourceWithEntities(int count, @Nullable Long rowCountCheckInterval) {
+    JdbcDatasourceSettings settings = new JdbcDatasourceSettings("Participant", null, null, false);
+    settings.setDefaultCreatedTimestampColumnName("created");
+    settings.setDefaultUpdatedTimestampColumnName("updated");
+    // timestamps are queried again on each access
+    settings.setTimestampsTtl(0);
+    settings.setRowCountCheckInterval(rowCountCheckInterval);
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource-nodb", dataSource, settings);
+    jdbcDatasource.initialise();
+
+    Variable myVar = Variable.Builder.newVariable("my_var", IntegerType.get(), "Participant").build();
+    try(ValueTableWriter tableWriter = jdbcDatasource.createWriter("my_table", "Participant")) {
+      try(VariableWriter variableWriter = tableWriter.writeVariables()) {
+        variableWriter.writeVariable(myVar);
+      }
+      for(int i = 0; i < count; i++) {
+        try(ValueSetWriter valueSetWriter = tableWriter.writeValueSet(new VariableEntityBean("Participant", "" + i))) {
+          valueSetWriter.writeValue(myVar, IntegerType.get().valueOf(i));
+        }
+      }
+    }
+    return jdbcDatasource;
+  }
+
+  @TestSchema(schemaLocation = "org/obiba/magma/datasource/jdbc", beforeSchema = "schema-notables.sql",
+      afterSchema = "schema-notables.sql")
+  @Test
+  public void test_batch_write() {
+    JdbcDatasourceSettings settings = new JdbcDatasourceSettings("Participant", null, null, false);
+    settings.setBatchSize(3);
+    JdbcDatasource jdbcDatasource = new JdbcDatasource("my-datasource-nodb", dataSource, settings);
+    jdbcDatasource.initialise();
+
+    Variable myVar1 = Variable.Builder.newVariable("my_var1", IntegerType.get(), "Participant").build();
+    Variable myVar2 = Variable.Builder.newVariable("my_var2", DecimalType.get(), "Participant").build();
+    try(ValueTableWriter tableWriter = jdbcDatasource.createWriter("my_table", "Participant")) {
+      try(VariableWriter variableWriter = tableWriter.writeVariables()) {
+        variableWriter.writeVariable(myVar1);
+        variableWriter.writeVariable(myVar2);
+      }
+      // more value sets than the batch size, not all of them having the same columns
+      for(int i = 0; i < 10; i++) {
+        try(ValueSetWriter valueSetWriter = tableWriter.writeValueSet(new VariableEntityBean("Participant", "" + i))) {
+          valueSetWriter.writeValue(myVar1, IntegerType.get().valueOf(i));
+          if(i % 2 == 0) valueSetWriter.writeValue(myVar2, DecimalType.get().valueOf(i + 0.5));
+        }
+      }
+    }
+    try(ValueTableWriter tableWriter = jdbcDatasource.createWriter("my_table", "Participant")) {
+      try(ValueSetWriter valueSetWriter = tableWriter.writeValueSet(new VariableEntityBean("Participant", "3"))) {
+        valueSetWriter.writeValue(myVar1, IntegerType.get().valueOf(33));
+      }
+    }
+
+    ValueTable table = jdbcDatasource.getValueTable("my_table");
+    assertThat(table.getValueSetCount()).isEqualTo(10);
+    ValueSet valueSet = table.getValueSet(new VariableEntityBean("Participant", "3"));
+    assertThat(table.getValue(table.getVariable("my_var1"), valueSet)).isEqualTo(IntegerType.get().valueOf(33));
+    valueSet = table.getValueSet(new VariableEntityBean("Participant", "8"));
+    assertThat(table.getValue(table.getVariable("my_var1"), valueSet)).isEqualTo(IntegerType.get().valueOf(8));
+    assertThat(table.getValue(table.getVariable("my_var2"), valueSet)).isEqualTo(DecimalType.get().valueOf(8.5));
+
+    jdbcDatasource.dispose();
+  }
+
   //
   // Methods
   //
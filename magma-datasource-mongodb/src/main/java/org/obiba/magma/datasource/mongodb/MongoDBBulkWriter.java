@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.magma.datasource.mongodb;
+
+import java.util.Set;
+
+import javax.validation.constraints.NotNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Sets;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBObject;
+
+/**
+ * Accumulates the updates of value set documents in unordered bulk operations, executed by groups of
+ * {@link MongoDBDatasource#getBulkWriteSize()} documents. Each update is an upsert, so that documents do not need to be
+ * read before being written.
+ */
+class MongoDBBulkWriter {
+
+  private static final Logger log = LoggerFactory.getLogger(MongoDBBulkWriter.class);
+
+  private final MongoDBValueTable table;
+
+  private final int bulkWriteSize;
+
+  private BulkWriteOperation bulkOperation;
+
+  /**
+   * Identifiers of the documents updated by the pending bulk operation
+   */
+  private final Set<String> pendingIdentifiers = Sets.newHashSet();
+
+  MongoDBBulkWriter(@NotNull MongoDBValueTable table, int bulkWriteSize) {
+    this.table = table;
+    this.bulkWriteSize = bulkWriteSize;
+  }
+
+  synchronized void upsert(@NotNull String identifier, @NotNull DBObject update) {
+    // the operations of an unordered bulk operation can be executed in any order
+    if(pendingIdentifiers.contains(identifier)) flush();
+
+    if(bulkOperation == null) {
+      bulkOperation = table.getValueSetCollection().initializeUnorderedBulkOperation();
+    }
+    bulkOperation.find(new BasicDBObject("_id", identifier)).upsert().updateOne(update);
+    pendingIdentifiers.add(identifier);
+    if(pendingIdentifiers.size() >= bulkWriteSize) flush();
+  }
+
+  /**
+   * Executes the pending bulk operation.
+   */
+  synchronized void flush() {
+    if(bulkOperation == null) return;
+
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    bulkOperation.execute();
+    log.debug("Wrote {} value sets in {} in {}", pendingIdentifiers.size(), table.getName(), stopwatch);
+    bulkOperation = null;
+    pendingIdentifiers.clear();
+  }
+
+}
@@ -16,6 +16,7 @@ import java.util.Set;
 import javax.validation.constraints.NotNull;
 
 import org.bson.BSONObject;
+import org.obiba.magma.ConcurrentlyWritable;
 import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.Timestamped;
 import org.obiba.magma.Timestamps;
@@ -36,7 +37,7 @@ import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
 
-public class MongoDBDatasource extends AbstractDatasource {
+public class MongoDBDatasource extends AbstractDatasource implements ConcurrentlyWritable {
 
   public static final String TYPE = "mongodb";
 
@@ -50,11 +51,20 @@ public class MongoDBDatasource extends AbstractDatasource {
 
   private static final String VALUE_TABLE_COLLECTION = "value_table";
 
+  /**
+   * Default number of value sets written by a bulk operation
+   */
+  public static final int DEFAULT_BULK_WRITE_SIZE = 500;
+
   @NotNull
   private final MongoDBFactory mongoDBFactory;
 
   private DBObject dbObject;
 
+  private boolean bulkWrite = false;
+
+  private int bulkWriteSize = DEFAULT_BULK_WRITE_SIZE;
+
   /**
    * See <a href="http://docs.mongodb.org/manual/reference/connection-string">MongoDB connection string specifications</a>.
    *
@@ -115,6 +125,28 @@ public class MongoDBDatasource extends AbstractDatasource {
 
   }
 
+  /**
+   * When true, value sets are written with unordered bulk operations of {@link #getBulkWriteSize()} value sets: the
+   * existing documents are not read and only the written fields are updated. Meant for bulk imports, value sets written
+   * this way are only visible once the table writer is closed.
+   */
+  public void setBulkWrite(boolean bulkWrite) {
+    this.bulkWrite = bulkWrite;
+  }
+
+  public boolean isBulkWrite() {
+    return bulkWrite;
+  }
+
+  public void setBulkWriteSize(int bulkWriteSize) {
+    if(bulkWriteSize < 1) throw new IllegalArgumentException("bulkWriteSize must be positive");
+    this.bulkWriteSize = bulkWriteSize;
+  }
+
+  public int getBulkWriteSize() {
+    return bulkWriteSize;
+  }
+
   static DBObject createTimestampsObject() {
     return BasicDBObjectBuilder.start() //
         .add(TIMESTAMPS_CREATED_FIELD, new Date()) //
@@ -170,6 +202,11 @@ public class MongoDBDatasource extends AbstractDatasource {
     return true;
   }
 
+  @Override
+  public boolean canWriteConcurrently() {
+    return true;
+  }
+
   @Override
   public void drop() {
     for(String name : getValueTableNames()) {
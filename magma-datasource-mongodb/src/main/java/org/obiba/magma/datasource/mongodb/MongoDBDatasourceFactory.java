@@ -45,6 +45,10 @@ public class MongoDBDatasourceFactory extends AbstractDatasourceFactory {
 
   private String options;
 
+  private boolean bulkWrite = false;
+
+  private int bulkWriteSize = MongoDBDatasource.DEFAULT_BULK_WRITE_SIZE;
+
   public MongoDBDatasourceFactory(@NotNull String name, @NotNull String url) {
     this(name, url, null, null, null);
   }
@@ -61,7 +65,10 @@ public class MongoDBDatasourceFactory extends AbstractDatasourceFactory {
   @NotNull
   @Override
   protected Datasource internalCreate() {
-    return new MongoDBDatasource(getName(), getMongoDBFactory());
+    MongoDBDatasource datasource = new MongoDBDatasource(getName(), getMongoDBFactory());
+    datasource.setBulkWrite(bulkWrite);
+    datasource.setBulkWriteSize(bulkWriteSize);
+    return datasource;
   }
 
   public MongoDBFactory getMongoDBFactory() {
@@ -130,6 +137,22 @@ public class MongoDBDatasourceFactory extends AbstractDatasourceFactory {
     this.username = username;
   }
 
+  public boolean isBulkWrite() {
+    return bulkWrite;
+  }
+
+  public void setBulkWrite(boolean bulkWrite) {
+    this.bulkWrite = bulkWrite;
+  }
+
+  public int getBulkWriteSize() {
+    return bulkWriteSize;
+  }
+
+  public void setBulkWriteSize(int bulkWriteSize) {
+    this.bulkWriteSize = bulkWriteSize;
+  }
+
   public Properties readOptions() {
     Properties prop = new Properties();
     try {
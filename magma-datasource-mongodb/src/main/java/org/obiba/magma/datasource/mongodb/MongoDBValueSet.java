@@ -11,7 +11,10 @@
 package org.obiba.magma.datasource.mongodb;
 
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
 import org.bson.BSONObject;
@@ -32,6 +35,9 @@ import org.obiba.magma.type.DateTimeType;
 import org.obiba.magma.type.TextType;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBObject;
 
@@ -39,17 +45,45 @@ import static org.obiba.magma.datasource.mongodb.MongoDBValueTableWriter.GRID_FI
 import static org.obiba.magma.datasource.mongodb.MongoDBValueTableWriter.GRID_FILE_MD5;
 import static org.obiba.magma.datasource.mongodb.MongoDBValueTableWriter.GRID_FILE_SIZE;
 
+/**
+ * A value set that loads the fields of its document on demand: the first access loads the declared fields and the
+ * requested one, using a field projection, and the values are unmarshalled once, when first requested. When more than
+ * {@link #MAX_PROJECTED_FIELDS} fields were loaded this way, the rest of the document is loaded at once. A value set
+ * created without a set of declared fields loads the whole document on first access.
+ */
 class MongoDBValueSet implements ValueSet {
 
+  /**
+   * Number of fields loaded with projections, above which the whole document is loaded
+   */
+  static final int MAX_PROJECTED_FIELDS = 10;
+
   private final MongoDBValueTable valueTable;
 
   private final VariableEntity entity;
 
-  private BSONObject object;
+  /**
+   * Fields to load on first access, null for the whole document
+   */
+  @Nullable
+  private final Set<String> declaredFields;
+
+  private final BSONObject object = new BasicDBObject();
+
+  private final Set<String> loadedFields = Sets.newHashSet();
+
+  private boolean loaded;
+
+  private final Map<String, Value> values = Maps.newHashMap();
 
   MongoDBValueSet(MongoDBValueTable valueTable, VariableEntity entity) {
+    this(valueTable, entity, null);
+  }
+
+  MongoDBValueSet(MongoDBValueTable valueTable, VariableEntity entity, @Nullable Set<String> declaredFields) {
     this.valueTable = valueTable;
     this.entity = entity;
+    this.declaredFields = declaredFields;
   }
 
   @Override
@@ -62,12 +96,17 @@ class MongoDBValueSet implements ValueSet {
     return entity;
   }
 
-  Value getValue(MongoDBVariable variable) {
-    BSONObject valueObject = getDBObject();
-    ValueType valueType = variable.getValueType();
-    return valueType.equals(BinaryType.get())
-        ? getBinaryValue(variable, valueObject)
-        : ValueConverter.unmarshall(variable, valueObject);
+  synchronized Value getValue(MongoDBVariable variable) {
+    Value value = values.get(variable.getId());
+    if(value == null) {
+      BSONObject valueObject = getDBObject(variable.getId());
+      ValueType valueType = variable.getValueType();
+      value = valueType.equals(BinaryType.get())
+          ? getBinaryValue(variable, valueObject)
+          : ValueConverter.unmarshall(variable, valueObject);
+      values.put(variable.getId(), value);
+    }
+    return value;
   }
 
   @SuppressWarnings("unchecked")
@@ -125,20 +164,41 @@ class MongoDBValueSet implements ValueSet {
       }
 
       private Value getTimestamp(String key) {
-        BSONObject timestamps = (BSONObject) getDBObject().get(MongoDBDatasource.TIMESTAMPS_FIELD);
-        return ValueConverter.unmarshall(DateTimeType.get(), timestamps.get(key));
+        synchronized(MongoDBValueSet.this) {
+          BSONObject timestamps = (BSONObject) getDBObject(MongoDBDatasource.TIMESTAMPS_FIELD)
+              .get(MongoDBDatasource.TIMESTAMPS_FIELD);
+          return ValueConverter.unmarshall(DateTimeType.get(), timestamps.get(key));
+        }
       }
     };
   }
 
+  /**
+   * Returns the document, with at least the given field loaded if the document has it. The document is only accessed
+   * while holding the lock of this value set.
+   */
   @NotNull
-  private BSONObject getDBObject() {
-    if(object == null) {
-      DBObject template = BasicDBObjectBuilder.start("_id", entity.getIdentifier()).get();
-      object = valueTable.getValueSetCollection().findOne(template);
-      if(object == null) {
-        throw new NoSuchValueSetException(valueTable, entity);
+  private synchronized BSONObject getDBObject(String field) {
+    if(loaded || loadedFields.contains(field)) return object;
+
+    DBObject template = BasicDBObjectBuilder.start("_id", entity.getIdentifier()).get();
+    DBObject fields = null;
+    if(declaredFields != null && loadedFields.size() < MAX_PROJECTED_FIELDS) {
+      BasicDBObjectBuilder builder = BasicDBObjectBuilder.start(field, 1);
+      for(String declaredField : declaredFields) {
+        if(!loadedFields.contains(declaredField)) builder.add(declaredField, 1);
       }
+      fields = builder.get();
+    }
+    DBObject found = valueTable.getValueSetCollection().findOne(template, fields);
+    if(found == null) {
+      throw new NoSuchValueSetException(valueTable, entity);
+    }
+    object.putAll(found);
+    if(fields == null) {
+      loaded = true;
+    } else {
+      loadedFields.addAll(fields.keySet());
     }
     return object;
   }
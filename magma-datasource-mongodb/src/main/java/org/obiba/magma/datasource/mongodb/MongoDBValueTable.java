@@ -12,7 +12,9 @@ package org.obiba.magma.datasource.mongodb;
 
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 
 import javax.annotation.Nullable;
@@ -21,11 +23,14 @@ import javax.validation.constraints.NotNull;
 import org.bson.BSONObject;
 import org.bson.types.ObjectId;
 import org.obiba.magma.Datasource;
+import org.obiba.magma.MultipleVectorSource;
 import org.obiba.magma.NoSuchValueSetException;
+import org.obiba.magma.ProjectedValueSetSource;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.TimestampsBean;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
+import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.datasource.mongodb.converter.ValueConverter;
@@ -33,8 +38,12 @@ import org.obiba.magma.support.AbstractValueTable;
 import org.obiba.magma.support.NullTimestamps;
 import org.obiba.magma.type.DateTimeType;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DB;
@@ -44,7 +53,7 @@ import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
 import com.mongodb.gridfs.GridFS;
 
-public class MongoDBValueTable extends AbstractValueTable {
+public class MongoDBValueTable extends AbstractValueTable implements MultipleVectorSource, ProjectedValueSetSource {
 
   private static final String VARIABLE_SUFFIX = "_variable";
 
@@ -162,6 +171,23 @@ public class MongoDBValueTable extends AbstractValueTable {
     };
   }
 
+  /**
+   * Returns value sets that load their whole document, as all their values are usually read.
+   */
+  @Override
+  public Iterable<ValueSet> getValueSets() {
+    return Iterables.transform(getVariableEntities(), new Function<VariableEntity, ValueSet>() {
+      @Override
+      public ValueSet apply(VariableEntity entity) {
+        return new MongoDBValueSet(MongoDBValueTable.this, entity);
+      }
+    });
+  }
+
+  /**
+   * Returns a value set that loads its whole document on first access. Use
+   * {@link #getValueSet(VariableEntity, Iterable)} to load only the values of some variables.
+   */
   @Override
   public ValueSet getValueSet(VariableEntity entity) throws NoSuchValueSetException {
     if(!hasValueSet(entity)) {
@@ -170,6 +196,46 @@ public class MongoDBValueTable extends AbstractValueTable {
     return new MongoDBValueSet(this, entity);
   }
 
+  /**
+   * Returns a value set that loads the values of the given variables on first access, and the values of the other
+   * variables on demand.
+   */
+  @NotNull
+  @Override
+  public ValueSet getValueSet(@NotNull VariableEntity entity, @NotNull Iterable<Variable> variables)
+      throws NoSuchValueSetException {
+    if(!hasValueSet(entity)) {
+      throw new NoSuchValueSetException(this, entity);
+    }
+    Set<String> fields = Sets.newHashSet();
+    for(Variable variable : variables) {
+      fields.add(((MongoDBVariableValueSource) getVariableValueSource(variable.getName())).getVariable().getId());
+    }
+    return new MongoDBValueSet(this, entity, fields);
+  }
+
+  /**
+   * Reads the values of the variables from one cursor over the value set documents.
+   */
+  @NotNull
+  @Override
+  public Iterable<List<Value>> getValues(@NotNull final SortedSet<VariableEntity> entities,
+      @NotNull List<Variable> variables) {
+    if(entities.isEmpty()) {
+      return ImmutableList.of();
+    }
+    final List<MongoDBVariable> mongoDBVariables = Lists.newArrayListWithCapacity(variables.size());
+    for(Variable variable : variables) {
+      mongoDBVariables.add(((MongoDBVariableValueSource) getVariableValueSource(variable.getName())).getVariable());
+    }
+    return new Iterable<List<Value>>() {
+      @Override
+      public Iterator<List<Value>> iterator() {
+        return new MongoDBValuesIterator(MongoDBValueTable.this, entities, mongoDBVariables);
+      }
+    };
+  }
+
   @NotNull
   @Override
   public Timestamps getTimestamps() {
@@ -26,6 +26,7 @@ import org.obiba.magma.datasource.mongodb.converter.VariableConverter;
 import org.obiba.magma.type.BinaryType;
 
 import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
 import com.mongodb.BasicDBObjectBuilder;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -43,8 +44,13 @@ class MongoDBValueTableWriter implements ValueTableWriter {
 
   private final MongoDBValueTable table;
 
+  @Nullable
+  private final MongoDBBulkWriter bulkWriter;
+
   MongoDBValueTableWriter(@NotNull MongoDBValueTable table) {
     this.table = table;
+    MongoDBDatasource datasource = (MongoDBDatasource) table.getDatasource();
+    bulkWriter = datasource.isBulkWrite() ? new MongoDBBulkWriter(table, datasource.getBulkWriteSize()) : null;
   }
 
   @Override
@@ -55,11 +61,12 @@ class MongoDBValueTableWriter implements ValueTableWriter {
   @NotNull
   @Override
   public ValueSetWriter writeValueSet(@NotNull VariableEntity entity) {
-    return new MongoDBValueSetWriter(entity);
+    return bulkWriter == null ? new MongoDBValueSetWriter(entity) : new BulkValueSetWriter(entity);
   }
 
   @Override
   public void close() {
+    if(bulkWriter != null) bulkWriter.flush();
     updateLastUpdate();
   }
 
@@ -69,11 +76,11 @@ class MongoDBValueTableWriter implements ValueTableWriter {
 
   private class MongoDBValueSetWriter implements ValueTableWriter.ValueSetWriter {
 
-    private final VariableEntity entity;
+    final VariableEntity entity;
 
     private DBObject valueSetObject;
 
-    private boolean removed = false;
+    boolean removed = false;
 
     private MongoDBValueSetWriter(VariableEntity entity) {
       this.entity = entity;
@@ -100,12 +107,16 @@ class MongoDBValueTableWriter implements ValueTableWriter {
         DBObject fileMetadata = getValueSetObject().containsField(field)
             ? updateBinary(variable, value, field)
             : createBinary(variable, value);
-        getValueSetObject().put(field, fileMetadata);
+        putField(field, fileMetadata);
       } else {
-        getValueSetObject().put(field, ValueConverter.marshall(variable, value));
+        putField(field, ValueConverter.marshall(variable, value));
       }
     }
 
+    void putField(String field, @Nullable Object fieldValue) {
+      getValueSetObject().put(field, fieldValue);
+    }
+
     @Override
     public void remove() {
       removed = true;
@@ -196,6 +207,45 @@ class MongoDBValueTableWriter implements ValueTableWriter {
     }
   }
 
+  /**
+   * Writes the fields of a value set with an upsert in the bulk operation of the table writer, instead of saving the
+   * whole document. The document is read only when binary values are written, to replace their files.
+   */
+  private class BulkValueSetWriter extends MongoDBValueSetWriter {
+
+    private final BasicDBObject fields = new BasicDBObject();
+
+    private BulkValueSetWriter(VariableEntity entity) {
+      super(entity);
+    }
+
+    @Override
+    void putField(String field, @Nullable Object fieldValue) {
+      fields.put(field, fieldValue);
+    }
+
+    @Override
+    public void remove() {
+      // pending updates of the document must not be executed after its removal
+      bulkWriter.flush();
+      fields.clear();
+      super.remove();
+    }
+
+    @Override
+    public void close() {
+      if(removed) return;
+      Date now = new Date();
+      fields.put(MongoDBDatasource.TIMESTAMPS_FIELD + "." + MongoDBDatasource.TIMESTAMPS_UPDATED_FIELD, now);
+      DBObject update = BasicDBObjectBuilder.start() //
+          .add("$set", fields) //
+          .add("$setOnInsert", new BasicDBObject(
+              MongoDBDatasource.TIMESTAMPS_FIELD + "." + MongoDBDatasource.TIMESTAMPS_CREATED_FIELD, now)) //
+          .get();
+      bulkWriter.upsert(entity.getIdentifier(), update);
+    }
+  }
+
   private class MongoDBVariableWriter implements ValueTableWriter.VariableWriter {
 
     @Override
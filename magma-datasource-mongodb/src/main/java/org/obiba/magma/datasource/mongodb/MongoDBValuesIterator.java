@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2013 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.obiba.magma.datasource.mongodb;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
+
+import org.obiba.magma.Value;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.datasource.mongodb.converter.ValueConverter;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.BinaryType;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+/**
+ * Reads the values of some variables for some entities in a single pass over the value set documents: the cursor is
+ * sorted by {@code _id}, that is in the order of the entities, so that at most one document is read ahead. The cursor
+ * is restricted to the requested entities when they are a part of the table.
+ */
+class MongoDBValuesIterator implements Iterator<List<Value>> {
+
+  /**
+   * Maximum number of entities in a {@code $in} query, above which the whole collection is scanned
+   */
+  static final int MAX_IN_SIZE = 10000;
+
+  private final MongoDBValueTable table;
+
+  private final SortedSet<VariableEntity> entitySet;
+
+  private final Iterator<VariableEntity> entities;
+
+  private final List<MongoDBVariable> variables;
+
+  /**
+   * Identifiers of requested entities whose document was passed before they were requested, because the database does
+   * not sort them in the order of the entities (binary order of the UTF-8 bytes against order of the UTF-16 chars)
+   */
+  private final Set<String> passedIdentifiers = Sets.newHashSet();
+
+  /**
+   * Next document of the cursor, not returned yet
+   */
+  @Nullable
+  private DBObject nextDocument;
+
+  private final DBObject fields;
+
+  private final DBCursor cursor;
+
+  private boolean closed;
+
+  MongoDBValuesIterator(MongoDBValueTable table, SortedSet<VariableEntity> entitySet,
+      List<MongoDBVariable> variables) {
+    this.table = table;
+    this.entitySet = entitySet;
+    this.variables = variables;
+    entities = entitySet.iterator();
+
+    BasicDBObjectBuilder fieldsBuilder = BasicDBObjectBuilder.start();
+    for(MongoDBVariable variable : variables) {
+      fieldsBuilder.add(variable.getId(), 1);
+    }
+    fields = fieldsBuilder.get();
+    cursor = table.getValueSetCollection().find(getQuery(), fields)
+        .sort(BasicDBObjectBuilder.start("_id", 1).get());
+  }
+
+  private DBObject getQuery() {
+    if(entitySet.size() > MAX_IN_SIZE || entitySet.size() >= table.getValueSetCount()) {
+      return new BasicDBObject();
+    }
+    List<String> identifiers = Lists.newArrayListWithCapacity(entitySet.size());
+    for(VariableEntity entity : entitySet) {
+      identifiers.add(entity.getIdentifier());
+    }
+    return BasicDBObjectBuilder.start("_id", new BasicDBObject("$in", identifiers)).get();
+  }
+
+  @Override
+  public boolean hasNext() {
+    return entities.hasNext();
+  }
+
+  @Override
+  public List<Value> next() {
+    VariableEntity entity = entities.next();
+    String identifier = entity.getIdentifier();
+
+    DBObject obj = null;
+    if(passedIdentifiers.remove(identifier)) {
+      obj = table.getValueSetCollection().findOne(BasicDBObjectBuilder.start("_id", identifier).get(), fields);
+    } else {
+      // skip the documents sorted before the requested entity, stop at the first one sorted after it
+      while(obj == null && (nextDocument != null || !closed && cursor.hasNext())) {
+        DBObject document = nextDocument == null ? cursor.next() : nextDocument;
+        nextDocument = null;
+        String id = document.get("_id").toString();
+        int comparison = compareIdentifiers(id, identifier);
+        if(comparison == 0) {
+          obj = document;
+        } else if(comparison > 0) {
+          nextDocument = document;
+          break;
+        } else if(entitySet.tailSet(entity).contains(new VariableEntityBean(entity.getType(), id))) {
+          passedIdentifiers.add(id);
+        }
+      }
+    }
+
+    closeCursorIfNecessary();
+    return getValues(obj);
+  }
+
+  /**
+   * Compares identifiers in the order of the documents of the database, that is the binary order of their UTF-8 bytes,
+   * or the order of their code points.
+   */
+  static int compareIdentifiers(String id1, String id2) {
+    int i1 = 0;
+    int i2 = 0;
+    while(i1 < id1.length() && i2 < id2.length()) {
+      int c1 = id1.codePointAt(i1);
+      int c2 = id2.codePointAt(i2);
+      if(c1 != c2) return c1 < c2 ? -1 : 1;
+      i1 += Character.charCount(c1);
+      i2 += Character.charCount(c2);
+    }
+    return Integer.compare(id1.length() - i1, id2.length() - i2);
+  }
+
+  private List<Value> getValues(DBObject obj) {
+    List<Value> values = Lists.newArrayListWithCapacity(variables.size());
+    for(MongoDBVariable variable : variables) {
+      values.add(obj != null && variable.getValueType().equals(BinaryType.get())
+          ? MongoDBValueSet.getBinaryValue(table.getMongoDBFactory(), variable, obj)
+          : ValueConverter.unmarshall(variable, obj));
+    }
+    return values;
+  }
+
+  private void closeCursorIfNecessary() {
+    if(!closed && (nextDocument == null && !cursor.hasNext() || !hasNext())) {
+      closed = true;
+      cursor.close();
+    }
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -11,28 +11,22 @@
 package org.obiba.magma.datasource.mongodb;
 
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.SortedSet;
 
 import javax.validation.constraints.NotNull;
 
-import org.bson.BSONObject;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSet;
 import org.obiba.magma.ValueType;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.VectorSource;
-import org.obiba.magma.datasource.mongodb.converter.ValueConverter;
 import org.obiba.magma.datasource.mongodb.converter.VariableConverter;
-import org.obiba.magma.type.BinaryType;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Maps;
-import com.mongodb.BasicDBObject;
-import com.mongodb.BasicDBObjectBuilder;
-import com.mongodb.DBCursor;
-import com.mongodb.DBObject;
+import com.google.common.collect.Iterators;
 
 public class MongoDBVariableValueSource implements VariableValueSource, VectorSource {
 
@@ -80,7 +74,13 @@ public class MongoDBVariableValueSource implements VariableValueSource, VectorSo
     return new Iterable<Value>() {
       @Override
       public Iterator<Value> iterator() {
-        return new ValueIterator(getVariable(), entities.iterator());
+        return Iterators.transform(new MongoDBValuesIterator(table, entities, ImmutableList.of(getVariable())),
+            new Function<List<Value>, Value>() {
+              @Override
+              public Value apply(List<Value> values) {
+                return values.get(0);
+              }
+            });
       }
     };
   }
@@ -101,76 +101,4 @@ public class MongoDBVariableValueSource implements VariableValueSource, VectorSo
   public VectorSource asVectorSource() {
     return this;
   }
-
-  private class ValueIterator implements Iterator<Value> {
-
-    private final String field;
-
-    private final ValueType type;
-
-    private final boolean repeatable;
-
-    private final DBObject fields;
-
-    private final Iterator<VariableEntity> entities;
-
-    private final DBCursor cursor;
-
-    private final Map<String, Value> valueMap = Maps.newHashMap();
-
-    private ValueIterator(MongoDBVariable variable, Iterator<VariableEntity> entities) {
-      field = variable.getId();
-      type = variable.getValueType();
-      repeatable = variable.isRepeatable();
-      fields = BasicDBObjectBuilder.start(field, 1).get();
-      this.entities = entities;
-      cursor = table.getValueSetCollection().find(new BasicDBObject(), fields);
-    }
-
-    @Override
-    public boolean hasNext() {
-      return entities.hasNext();
-    }
-
-    @Override
-    public Value next() {
-      VariableEntity entity = entities.next();
-
-      if(valueMap.containsKey(entity.getIdentifier())) return getValueFromMap(entity);
-
-      boolean found = false;
-      while(cursor.hasNext() && !found) {
-        DBObject obj = cursor.next();
-        String id = obj.get("_id").toString();
-        Value value = variable.getValueType().equals(BinaryType.get())
-            ? getBinaryValue(obj)
-            : ValueConverter.unmarshall(type, repeatable, field, obj);
-        valueMap.put(id, value);
-        found = id.equals(entity.getIdentifier());
-      }
-
-      if(valueMap.containsKey(entity.getIdentifier())) return getValueFromMap(entity);
-      return ValueConverter.unmarshall(type, repeatable, field, null);
-    }
-
-    private Value getBinaryValue(BSONObject valueObject) {
-      return MongoDBValueSet.getBinaryValue(table.getMongoDBFactory(), variable, valueObject);
-    }
-
-    /**
-     * No duplicate of entities, so remove value from map once get.
-     * @param entity
-     * @return
-     */
-    private Value getValueFromMap(VariableEntity entity) {
-      Value value = valueMap.get(entity.getIdentifier());
-      valueMap.remove(entity.getIdentifier());
-      return value;
-    }
-
-    @Override
-    public void remove() {
-      throw new UnsupportedOperationException();
-    }
-  }
 }
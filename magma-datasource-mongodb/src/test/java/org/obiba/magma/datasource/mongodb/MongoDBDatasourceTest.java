@@ -3,6 +3,7 @@ package org.obiba.magma.datasource.mongodb;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.TreeSet;
 
@@ -17,6 +18,7 @@ import org.obiba.core.util.FileUtil;
 import org.obiba.magma.Datasource;
 import org.obiba.magma.DatasourceFactory;
 import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.MultipleVectorSource;
 import org.obiba.magma.NoSuchVariableException;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSequence;
@@ -47,6 +49,7 @@ import org.obiba.magma.xstream.MagmaXStreamExtension;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -410,6 +413,39 @@ public class MongoDBDatasourceTest {
     assertThat(createDatasource().getValueTable("table1").getValueSetCount()).isEqualTo(100);
   }
 
+  @Test
+  public void test_bulk_write() throws IOException {
+    Variable integerVariable = Variable.Builder.newVariable("Test Variable", IntegerType.get(), PARTICIPANT).build();
+    Variable decimalVariable = Variable.Builder.newVariable("Other Variable", DecimalType.get(), PARTICIPANT).build();
+    ImmutableSet<Variable> variables = ImmutableSet.of(integerVariable, decimalVariable);
+
+    MongoDBDatasourceFactory factory = new MongoDBDatasourceFactory("ds-" + DB_TEST, DB_URL);
+    factory.setBulkWrite(true);
+    factory.setBulkWriteSize(10);
+    Datasource ds = factory.create();
+    Initialisables.initialise(ds);
+    ValueTable generatedValueTable = new GeneratedValueTable(ds, variables, 25);
+    MagmaEngine.get().addDatasource(ds);
+    DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, "table1", ds);
+
+    ValueTable table = createDatasource().getValueTable("table1");
+    assertThat(table.getValueSetCount()).isEqualTo(25);
+    VariableEntity entity = Iterables.getFirst(table.getVariableEntities(), null);
+    Value decimalValue = table.getValue(decimalVariable, table.getValueSet(entity));
+
+    // a partial value set update keeps the values of the other variables
+    try(ValueTableWriter tableWriter = ds.createWriter("table1", PARTICIPANT);
+        ValueTableWriter.ValueSetWriter valueSetWriter = tableWriter.writeValueSet(entity)) {
+      valueSetWriter.writeValue(integerVariable, IntegerType.get().valueOf(42));
+    }
+
+    table = createDatasource().getValueTable("table1");
+    assertThat(table.getValueSetCount()).isEqualTo(25);
+    ValueSet valueSet = table.getValueSet(entity);
+    assertThat(table.getValue(integerVariable, valueSet)).isEqualTo(IntegerType.get().valueOf(42));
+    assertThat(table.getValue(decimalVariable, valueSet)).isEqualTo(decimalValue);
+  }
+
   @Test
   @Ignore
   // See http://jira.obiba.org/jira/browse/OPAL-2423
@@ -466,6 +502,47 @@ public class MongoDBDatasourceTest {
     }
   }
 
+  @Test
+  public void test_get_values_as_vectors() throws IOException {
+    Variable integerVariable = Variable.Builder.newVariable("V1", IntegerType.get(), PARTICIPANT).build();
+    Variable textVariable = Variable.Builder.newVariable("V2", TextType.get(), PARTICIPANT).build();
+    List<Variable> variables = ImmutableList.of(integerVariable, textVariable);
+
+    Datasource datasource1 = createDatasource();
+    ValueTable generatedValueTable = new GeneratedValueTable(datasource1, variables, 20);
+    MagmaEngine.get().addDatasource(datasource1);
+    DatasourceCopier.Builder.newCopier().build().copy(generatedValueTable, TABLE_TEST, datasource1);
+
+    ValueTable table = createDatasource().getValueTable(TABLE_TEST);
+    // a part of the entities and an entity without value set
+    TreeSet<VariableEntity> entities = Sets.newTreeSet();
+    int i = 0;
+    for(VariableEntity entity : table.getVariableEntities()) {
+      if(i++ % 2 == 0) entities.add(entity);
+    }
+    VariableEntity unknown = new VariableEntityBean(PARTICIPANT, "unknown");
+    entities.add(unknown);
+
+    Iterator<Value> vector = table.getVariableValueSource("V1").asVectorSource().getValues(entities).iterator();
+    Iterator<List<Value>> rows = ((MultipleVectorSource) table).getValues(entities, variables).iterator();
+    for(VariableEntity entity : entities) {
+      Value value = vector.next();
+      List<Value> row = rows.next();
+      if(entity.equals(unknown)) {
+        assertThat(value.isNull()).isTrue();
+        assertThat(row.get(0).isNull()).isTrue();
+        assertThat(row.get(1).isNull()).isTrue();
+      } else {
+        ValueSet valueSet = table.getValueSet(entity);
+        assertThat(value).isEqualTo(table.getValue(integerVariable, valueSet));
+        assertThat(row.get(0)).isEqualTo(table.getValue(integerVariable, valueSet));
+        assertThat(row.get(1)).isEqualTo(table.getValue(textVariable, valueSet));
+      }
+    }
+    assertThat(vector.hasNext()).isFalse();
+    assertThat(rows.hasNext()).isFalse();
+  }
+
   private Datasource createDatasource() {
     DatasourceFactory factory = new MongoDBDatasourceFactory("ds-" + DB_TEST, DB_URL);
     Datasource ds = factory.create();
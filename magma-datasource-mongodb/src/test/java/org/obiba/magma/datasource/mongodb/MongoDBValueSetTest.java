@@ -0,0 +1,125 @@
+package org.obiba.magma.datasource.mongodb;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.Value;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MongoDBValueSetTest {
+
+  private static final VariableEntity ENTITY = new VariableEntityBean("Participant", "1");
+
+  private final MongoDBVariable integerVariable = new MongoDBVariable(
+      Variable.Builder.newVariable("INTEGER", IntegerType.get(), "Participant").build(), "v1");
+
+  private final MongoDBVariable textVariable = new MongoDBVariable(
+      Variable.Builder.newVariable("TEXT", TextType.get(), "Participant").build(), "v2");
+
+  private MongoDBValueTable table;
+
+  private DBCollection collection;
+
+  @Before
+  public void before() {
+    new MagmaEngine();
+    table = mock(MongoDBValueTable.class);
+    collection = mock(DBCollection.class);
+    when(table.getValueSetCollection()).thenReturn(collection);
+    when(collection.findOne(any(DBObject.class), any(DBObject.class))).thenReturn(BasicDBObjectBuilder.start() //
+        .add("_id", ENTITY.getIdentifier()) //
+        .add("v1", 42L) //
+        .add("v2", "foo") //
+        .get());
+  }
+
+  @After
+  public void after() {
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void test_declared_fields_are_loaded_at_once_with_projection() {
+    MongoDBValueSet valueSet = new MongoDBValueSet(table, ENTITY, ImmutableSet.of("v2"));
+
+    assertThat(valueSet.getValue(integerVariable)).isEqualTo(IntegerType.get().valueOf(42));
+    assertThat(valueSet.getValue(textVariable)).isEqualTo(TextType.get().valueOf("foo"));
+    assertThat(valueSet.getValue(integerVariable)).isEqualTo(IntegerType.get().valueOf(42));
+
+    ArgumentCaptor<DBObject> fields = ArgumentCaptor.forClass(DBObject.class);
+    verify(collection, times(1)).findOne(any(DBObject.class), fields.capture());
+    assertThat(fields.getValue().keySet()).containsOnly("v1", "v2");
+  }
+
+  @Test
+  public void test_undeclared_fields_are_loaded_on_demand() {
+    MongoDBValueSet valueSet = new MongoDBValueSet(table, ENTITY, ImmutableSet.<String>of());
+
+    valueSet.getValue(integerVariable);
+    valueSet.getValue(textVariable);
+
+    ArgumentCaptor<DBObject> fields = ArgumentCaptor.forClass(DBObject.class);
+    verify(collection, times(2)).findOne(any(DBObject.class), fields.capture());
+    assertThat(fields.getAllValues().get(0).keySet()).containsOnly("v1");
+    assertThat(fields.getAllValues().get(1).keySet()).containsOnly("v2");
+  }
+
+  @Test
+  public void test_whole_document_is_loaded_without_declared_fields() {
+    MongoDBValueSet valueSet = new MongoDBValueSet(table, ENTITY);
+
+    valueSet.getValue(integerVariable);
+    valueSet.getValue(textVariable);
+
+    ArgumentCaptor<DBObject> fields = ArgumentCaptor.forClass(DBObject.class);
+    verify(collection, times(1)).findOne(any(DBObject.class), fields.capture());
+    assertThat(fields.getValue()).isNull();
+  }
+
+  @Test
+  public void test_document_is_loaded_once_by_concurrent_readers() throws Exception {
+    final MongoDBValueSet valueSet = new MongoDBValueSet(table, ENTITY);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Value>> values = Lists.newArrayList();
+    for(int i = 0; i < 32; i++) {
+      values.add(executor.submit(new Callable<Value>() {
+        @Override
+        public Value call() {
+          return valueSet.getValue(textVariable);
+        }
+      }));
+    }
+    for(Future<Value> value : values) {
+      assertThat(value.get()).isEqualTo(TextType.get().valueOf("foo"));
+    }
+    executor.shutdown();
+
+    verify(collection, times(1)).findOne(any(DBObject.class), any(DBObject.class));
+  }
+
+}
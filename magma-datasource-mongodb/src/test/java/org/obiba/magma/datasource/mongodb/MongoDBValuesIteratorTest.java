@@ -0,0 +1,133 @@
+package org.obiba.magma.datasource.mongodb;
+
+import java.util.Iterator;
+import java.util.SortedSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.obiba.magma.MagmaEngine;
+import org.obiba.magma.Variable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.VariableEntityBean;
+import org.obiba.magma.type.TextType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.mongodb.BasicDBObjectBuilder;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MongoDBValuesIteratorTest {
+
+  private MongoDBVariable textVariable;
+
+  private MongoDBValueTable table;
+
+  private DBCollection collection;
+
+  private DBCursor cursor;
+
+  @Before
+  public void before() {
+    new MagmaEngine();
+    textVariable = new MongoDBVariable(Variable.Builder.newVariable("TEXT", TextType.get(), "Participant").build(),
+        "v1");
+    table = mock(MongoDBValueTable.class);
+    collection = mock(DBCollection.class);
+    cursor = mock(DBCursor.class);
+    when(table.getValueSetCollection()).thenReturn(collection);
+    when(table.getValueSetCount()).thenReturn(100);
+    when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+    when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+  }
+
+  @After
+  public void after() {
+    MagmaEngine.get().shutdown();
+  }
+
+  @Test
+  public void test_documents_are_read_up_to_the_requested_entity() {
+    documents("1", "2", "4");
+    MongoDBValuesIterator iterator = new MongoDBValuesIterator(table, entities("1", "3", "4"),
+        ImmutableList.of(textVariable));
+
+    assertThat(iterator.next()).containsExactly(TextType.get().valueOf("value-1"));
+    verify(cursor, times(1)).next();
+    // stops at the document of the next entity
+    assertThat(iterator.next()).containsExactly(TextType.get().nullValue());
+    verify(cursor, times(3)).next();
+    assertThat(iterator.next()).containsExactly(TextType.get().valueOf("value-4"));
+    verify(cursor, times(3)).next();
+    assertThat(iterator.hasNext()).isFalse();
+    verify(collection, never()).findOne(any(DBObject.class), any(DBObject.class));
+  }
+
+  @Test
+  public void test_documents_sorted_in_another_order_are_looked_up() {
+    // a supplementary character is sorted before U+E000 in UTF-16, after it in UTF-8
+    String supplementary = "\uD800\uDC00";
+    String bmp = "\uE000";
+    documents(bmp, supplementary);
+    when(collection.findOne(any(DBObject.class), any(DBObject.class))).thenReturn(document(bmp));
+    MongoDBValuesIterator iterator = new MongoDBValuesIterator(table, entities(supplementary, bmp),
+        ImmutableList.of(textVariable));
+
+    assertThat(iterator.next()).containsExactly(TextType.get().valueOf("value-" + supplementary));
+    assertThat(iterator.next()).containsExactly(TextType.get().valueOf("value-" + bmp));
+    verify(collection, times(1)).findOne(any(DBObject.class), any(DBObject.class));
+  }
+
+  @Test
+  public void test_compare_identifiers_in_code_point_order() {
+    assertThat(MongoDBValuesIterator.compareIdentifiers("a", "b")).isNegative();
+    assertThat(MongoDBValuesIterator.compareIdentifiers("ab", "a")).isPositive();
+    assertThat(MongoDBValuesIterator.compareIdentifiers("a", "a")).isZero();
+    assertThat(MongoDBValuesIterator.compareIdentifiers("\uD800\uDC00", "\uE000")).isPositive();
+  }
+
+  private void documents(String... identifiers) {
+    ImmutableList.Builder<DBObject> documents = ImmutableList.builder();
+    for(String identifier : identifiers) {
+      documents.add(document(identifier));
+    }
+    final Iterator<DBObject> iterator = documents.build().iterator();
+    when(cursor.hasNext()).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) {
+        return iterator.hasNext();
+      }
+    });
+    when(cursor.next()).thenAnswer(new Answer<DBObject>() {
+      @Override
+      public DBObject answer(InvocationOnMock invocation) {
+        return iterator.next();
+      }
+    });
+  }
+
+  private static DBObject document(String identifier) {
+    return BasicDBObjectBuilder.start("_id", identifier).add("v1", "value-" + identifier).get();
+  }
+
+  private static SortedSet<VariableEntity> entities(String... identifiers) {
+    ImmutableSortedSet.Builder<VariableEntity> entities = ImmutableSortedSet.naturalOrder();
+    for(String identifier : identifiers) {
+      entities.add(new VariableEntityBean("Participant", identifier));
+    }
+    return entities.build();
+  }
+
+}
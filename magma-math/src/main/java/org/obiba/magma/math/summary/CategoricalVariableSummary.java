@@ -18,11 +18,13 @@ import java.util.Map;
 
 import javax.validation.constraints.NotNull;
 
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Category;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSource;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
+import org.obiba.magma.VectorSource;
 import org.obiba.magma.type.BooleanType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -185,31 +187,60 @@ public class CategoricalVariableSummary extends AbstractVariableSummary implemen
       //noinspection ConstantConditions
       Preconditions.checkArgument(variableValueSource != null, "variableValueSource cannot be null");
       if(!variableValueSource.supportVectorSource()) return;
-      for(Value value : variableValueSource.asVectorSource().getValues(summary.getFilteredVariableEntities(table))) {
-        add(value, categoryNames());
+      VectorSource vectorSource = variableValueSource.asVectorSource();
+      if(!summary.isFiltered() && vectorSource instanceof AggregatingVectorSource &&
+          addFrequencies(table, (AggregatingVectorSource) vectorSource)) return;
+
+      List<String> categoryNames = categoryNames();
+      for(Value value : vectorSource.getValues(summary.getFilteredVariableEntities(table))) {
+        add(value, categoryNames);
+      }
+    }
+
+    /**
+     * Adds the values counted by the vector source, returns false if they could not be counted. Values are only
+     * counted for the table of the vector source, as a table wrapping it may have fewer entities.
+     */
+    private boolean addFrequencies(@NotNull ValueTable table, @NotNull AggregatingVectorSource vectorSource) {
+      if(vectorSource.getValueTable() != table) return false;
+
+      Map<Value, Long> valueFrequencies = vectorSource.getValueFrequencies();
+      if(valueFrequencies == null) return false;
+
+      List<String> categoryNames = categoryNames();
+      long nullCount = table.getVariableEntityCount();
+      for(Map.Entry<Value, Long> entry : valueFrequencies.entrySet()) {
+        add(entry.getKey(), categoryNames, entry.getValue());
+        nullCount -= entry.getValue();
       }
+      if(nullCount > 0) add(variable.getValueType().nullValue(), categoryNames, nullCount);
+      return true;
     }
 
     private void add(@NotNull Value value, List<String> categoryNames) {
+      add(value, categoryNames, 1);
+    }
+
+    private void add(@NotNull Value value, List<String> categoryNames, long count) {
       //noinspection ConstantConditions
       Preconditions.checkArgument(value != null, "value cannot be null");
 
       if(summary.empty) summary.empty = false;
       if(value.isSequence()) {
         if(value.isNull()) {
-          summary.frequencyDist.addValue(NULL_NAME);
+          summary.frequencyDist.incrementValue(NULL_NAME, count);
         } else {
           for(Value v : value.asSequence().getValue()) {
-            add(v, categoryNames);
+            add(v, categoryNames, count);
           }
         }
       } else {
         if(value.isNull()) {
-          summary.frequencyDist.addValue(NULL_NAME);
+          summary.frequencyDist.incrementValue(NULL_NAME, count);
         } else if(summary.distinct || categoryNames.contains(value.toString())) {
-          summary.frequencyDist.addValue(value.toString());
+          summary.frequencyDist.incrementValue(value.toString(), count);
         } else {
-          summary.frequencyDist.addValue(OTHER_NAME);
+          summary.frequencyDist.incrementValue(OTHER_NAME, count);
         }
 
       }
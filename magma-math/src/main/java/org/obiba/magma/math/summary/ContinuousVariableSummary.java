@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -23,12 +24,14 @@ import org.apache.commons.math3.distribution.ExponentialDistribution;
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.distribution.RealDistribution;
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Category;
 import org.obiba.magma.MagmaRuntimeException;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueSource;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
+import org.obiba.magma.VectorSource;
 import org.obiba.magma.math.stat.IntervalFrequency;
 import org.obiba.magma.type.IntegerType;
 import org.slf4j.Logger;
@@ -279,33 +282,61 @@ public class ContinuousVariableSummary extends AbstractVariableSummary implement
       Preconditions.checkArgument(variableValueSource != null, "variableValueSource cannot be null");
 
       if(!variableValueSource.supportVectorSource()) return;
-      for(Value value : variableValueSource.asVectorSource().getValues(summary.getFilteredVariableEntities(table))) {
+      VectorSource vectorSource = variableValueSource.asVectorSource();
+      if(!summary.isFiltered() && vectorSource instanceof AggregatingVectorSource &&
+          addFrequencies(table, (AggregatingVectorSource) vectorSource)) return;
+
+      for(Value value : vectorSource.getValues(summary.getFilteredVariableEntities(table))) {
         add(value);
       }
     }
 
+    /**
+     * Adds the values counted by the vector source, returns false if they could not be counted. Values are only
+     * counted for the table of the vector source, as a table wrapping it may have fewer entities.
+     */
+    private boolean addFrequencies(@NotNull ValueTable table, @NotNull AggregatingVectorSource vectorSource) {
+      if(vectorSource.getValueTable() != table) return false;
+
+      Map<Value, Long> valueFrequencies = vectorSource.getValueFrequencies();
+      if(valueFrequencies == null) return false;
+
+      long nullCount = table.getVariableEntityCount();
+      for(Map.Entry<Value, Long> entry : valueFrequencies.entrySet()) {
+        add(entry.getKey(), entry.getValue());
+        nullCount -= entry.getValue();
+      }
+      if(nullCount > 0) summary.frequencyDist.incrementValue(NULL_NAME, nullCount);
+      return true;
+    }
+
     private void add(@NotNull Value value) {
+      add(value, 1);
+    }
+
+    private void add(@NotNull Value value, long count) {
       //noinspection ConstantConditions
       Preconditions.checkArgument(value != null, "value cannot be null");
       if(value.isNull()) {
-        summary.frequencyDist.addValue(NULL_NAME);
+        summary.frequencyDist.incrementValue(NULL_NAME, count);
       } else {
         if(value.isSequence()) {
           for(Value v : value.asSequence().getValue()) {
-            add(v);
+            add(v, count);
           }
         } else {
           if(!summary.missing.contains(value)) {
-            summary.descriptiveStats.addValue(((Number) value.getValue()).doubleValue());
+            double d = ((Number) value.getValue()).doubleValue();
+            for(long i = 0; i < count; i++) {
+              summary.descriptiveStats.addValue(d);
+            }
           }
 
           // A continuous variable can have missing categories
-          if(value.isNull()) {
-            summary.frequencyDist.addValue(NULL_NAME);
-          } else if(summary.missing.contains(value)) {
-            summary.frequencyDist.addValue(value.toString());
+          if(summary.missing.contains(value)) {
+            summary.frequencyDist.incrementValue(value.toString(), count);
           } else {
-            summary.frequencyDist.addValue(NOT_NULL_NAME);
+            summary.frequencyDist.incrementValue(NOT_NULL_NAME, count);
           }
         }
       }
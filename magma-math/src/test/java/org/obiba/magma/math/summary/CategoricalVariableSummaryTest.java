@@ -14,21 +14,27 @@ import java.util.TreeSet;
 
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.VariableValueSource;
 import org.obiba.magma.VectorSource;
+import org.obiba.magma.support.BatchValueTable;
 import org.obiba.magma.support.NullTimestamps;
 import org.obiba.magma.support.Values;
+import org.obiba.magma.support.VariableEntityBean;
 import org.obiba.magma.test.AbstractMagmaTest;
 import org.obiba.magma.type.TextType;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -81,6 +87,80 @@ public class CategoricalVariableSummaryTest extends AbstractMagmaTest {
     assertThat(summary.getMode()).isEqualTo("CAT1");
   }
 
+  @Test
+  public void test_withValueFrequencies() {
+    Variable variable = Variable.Builder.newVariable("mock", TextType.get(), "mock").addCategories("YES", "NO")
+        .build();
+    AggregatingVectorSource vectorSource = mock(AggregatingVectorSource.class);
+    when(vectorSource.getValueFrequencies()).thenReturn(ImmutableMap
+        .of(TextType.get().valueOf("YES"), 3L, TextType.get().valueOf("NO"), 1L, TextType.get().valueOf("MAYBE"), 2L));
+    CategoricalVariableSummary summary = computeFromTable(variable, vectorSource, 10);
+
+    assertThat(summary.getMode()).isEqualTo(CategoricalVariableSummary.NULL_NAME);
+    assertThat(summary.getN()).isEqualTo(10);
+    assertThat(summary.getOtherFrequency()).isEqualTo(2);
+    verify(vectorSource, never()).getValues(Mockito.<SortedSet<VariableEntity>>any());
+  }
+
+  @Test
+  public void test_withValuesThatCannotBeCounted() {
+    Variable variable = Variable.Builder.newVariable("mock", TextType.get(), "mock").addCategories("YES", "NO")
+        .build();
+    AggregatingVectorSource vectorSource = mock(AggregatingVectorSource.class);
+    when(vectorSource.getValues(Mockito.<SortedSet<VariableEntity>>any()))
+        .thenReturn(Values.asValues(TextType.get(), "YES", "NO", "NO"));
+    CategoricalVariableSummary summary = computeFromTable(variable, vectorSource, 3);
+
+    assertThat(summary.getMode()).isEqualTo("NO");
+    assertThat(summary.getN()).isEqualTo(3);
+  }
+
+  @Test
+  public void test_withValueFrequenciesOfWrappedTable() {
+    Variable variable = Variable.Builder.newVariable("mock", TextType.get(), "mock").addCategories("YES", "NO")
+        .build();
+    SortedSet<VariableEntity> entities = new TreeSet<VariableEntity>();
+    for(int i = 0; i < 5; i++) {
+      entities.add(new VariableEntityBean("mock", "" + i));
+    }
+    // a table that counts its values where they are stored, such as a JDBC table
+    ValueTable table = mock(ValueTable.class);
+    AggregatingVectorSource vectorSource = mock(AggregatingVectorSource.class);
+    when(vectorSource.getValueTable()).thenReturn(table);
+    when(vectorSource.getValueFrequencies())
+        .thenReturn(ImmutableMap.of(TextType.get().valueOf("YES"), 3L, TextType.get().valueOf("NO"), 2L));
+    when(vectorSource.getValues(Mockito.<SortedSet<VariableEntity>>any()))
+        .thenReturn(Values.asValues(TextType.get(), "YES", "NO"));
+    VariableValueSource valueSource = mock(VariableValueSource.class);
+    when(valueSource.supportVectorSource()).thenReturn(true);
+    when(valueSource.asVectorSource()).thenReturn(vectorSource);
+    when(table.getVariableEntities()).thenReturn(entities);
+    when(table.getVariableEntityCount()).thenReturn(entities.size());
+    when(table.hasValueSet(Mockito.<VariableEntity>any())).thenReturn(true);
+    when(table.getVariableValueSource("mock")).thenReturn(valueSource);
+
+    ValueTable batch = new BatchValueTable(table, 2);
+    CategoricalVariableSummary summary = new CategoricalVariableSummary.Builder(variable)
+        .addTable(batch, batch.getVariableValueSource("mock")).build();
+
+    assertThat(summary.getN()).isEqualTo(2);
+    verify(vectorSource, never()).getValueFrequencies();
+  }
+
+  private CategoricalVariableSummary computeFromTable(Variable variable, AggregatingVectorSource vectorSource,
+      int entityCount) {
+    VariableValueSource valueSource = mock(VariableValueSource.class);
+    when(valueSource.supportVectorSource()).thenReturn(true);
+    when(valueSource.asVectorSource()).thenReturn(vectorSource);
+
+    ValueTable table = mock(ValueTable.class);
+    when(table.getVariableEntities()).thenReturn(new TreeSet<VariableEntity>());
+    when(table.getVariableEntityCount()).thenReturn(entityCount);
+    when(vectorSource.getValueTable()).thenReturn(table);
+
+    return new CategoricalVariableSummary.Builder(variable).addTable(table, valueSource).build();
+  }
+
   private CategoricalVariableSummary computeFromTable(Variable variable, Iterable<Value> values) {
 
     VectorSource vectorSource = mock(VectorSource.class);
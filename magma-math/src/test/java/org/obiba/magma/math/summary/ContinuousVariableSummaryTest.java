@@ -9,12 +9,14 @@
  */
 package org.obiba.magma.math.summary;
 
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.obiba.magma.AggregatingVectorSource;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
@@ -25,8 +27,13 @@ import org.obiba.magma.support.Values;
 import org.obiba.magma.test.AbstractMagmaTest;
 import org.obiba.magma.type.IntegerType;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -70,6 +77,36 @@ public class ContinuousVariableSummaryTest extends AbstractMagmaTest {
     assertThat(descriptiveStats.getN()).isEqualTo(3l);
   }
 
+  @Test
+  public void test_compute_integerTypeFromValueFrequencies() {
+    Variable mockVariable = Variable.Builder.newVariable("mock", IntegerType.get(), "mock").addCategory("888", "", true)
+        .build();
+    AggregatingVectorSource vectorSource = mock(AggregatingVectorSource.class);
+    when(vectorSource.getValueFrequencies()).thenReturn(ImmutableMap
+        .of(IntegerType.get().valueOf(1), 2L, IntegerType.get().valueOf(4), 1L, IntegerType.get().valueOf(888), 3L));
+    ValueTable table = mock(ValueTable.class);
+    when(table.getVariableEntityCount()).thenReturn(8);
+    when(vectorSource.getValueTable()).thenReturn(table);
+    VariableValueSource valueSource = mock(VariableValueSource.class);
+    when(valueSource.supportVectorSource()).thenReturn(true);
+    when(valueSource.asVectorSource()).thenReturn(vectorSource);
+
+    ContinuousVariableSummary summary = new ContinuousVariableSummary.Builder(mockVariable,
+        ContinuousVariableSummary.Distribution.normal).addTable(table, valueSource).build();
+    DescriptiveStatistics descriptiveStats = summary.getDescriptiveStats();
+    assertThat(descriptiveStats.getMin()).isEqualTo(1.0);
+    assertThat(descriptiveStats.getMax()).isEqualTo(4.0);
+    assertThat(descriptiveStats.getMean()).isEqualTo(2.0);
+    assertThat(descriptiveStats.getN()).isEqualTo(3l);
+    Map<String, Long> frequencies = Maps.newHashMap();
+    for(ContinuousVariableSummary.Frequency frequency : summary.getFrequencies()) {
+      frequencies.put(frequency.getValue(), frequency.getFreq());
+    }
+    assertThat(frequencies).isEqualTo(ImmutableMap.of(ContinuousVariableSummary.NOT_NULL_NAME, 3L, "888", 3L,
+        ContinuousVariableSummary.NULL_NAME, 2L));
+    verify(vectorSource, never()).getValues(Mockito.<SortedSet<VariableEntity>>any());
+  }
+
   /*
     @Test
     public void test_compute_withNullValue() {
@@ -24,11 +24,32 @@ public class DefaultXStreamFactory implements XStreamFactory {
 
   private final transient List<Converter> converters = Lists.newArrayList();
 
+  @Nullable
+  private transient volatile XStream sharedXStream;
+
   @Override
   public XStream createXStream() {
     return createXStream(null);
   }
 
+  /**
+   * Returns an instance that is created once and shared by all callers, until a converter is registered. XStream
+   * instances are thread-safe once configured: the returned instance must only be used to (un)marshal objects, never
+   * configured further.
+   */
+  public XStream getSharedXStream() {
+    XStream xstream = sharedXStream;
+    if(xstream == null) {
+      synchronized(this) {
+        xstream = sharedXStream;
+        if(xstream == null) {
+          sharedXStream = xstream = createXStream();
+        }
+      }
+    }
+    return xstream;
+  }
+
   @Override
   @SuppressWarnings("PMD.NcssMethodCount")
   public XStream createXStream(@Nullable ReflectionProvider reflectionProvider) {
@@ -72,8 +93,10 @@ public class DefaultXStreamFactory implements XStreamFactory {
   }
 
   @Override
-  public void registerConverter(Converter converter) {
+  public synchronized void registerConverter(Converter converter) {
     converters.add(converter);
+    // the shared instance is created again with this converter
+    sharedXStream = null;
   }
 
 }
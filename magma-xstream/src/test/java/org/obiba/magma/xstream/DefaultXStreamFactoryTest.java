@@ -0,0 +1,57 @@
+package org.obiba.magma.xstream;
+
+import org.junit.Test;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DefaultXStreamFactoryTest extends AbstractMagmaXStreamTest {
+
+  @Test
+  public void test_shared_instance_is_created_once() {
+    DefaultXStreamFactory factory = new DefaultXStreamFactory();
+    assertThat(factory.getSharedXStream()).isSameAs(factory.getSharedXStream());
+  }
+
+  @Test
+  public void test_converter_registered_after_first_use_is_honoured() {
+    DefaultXStreamFactory factory = new DefaultXStreamFactory();
+    XStream first = factory.getSharedXStream();
+    assertThat(first.toXML(new Thing())).doesNotContain("converted");
+
+    factory.registerConverter(new ThingConverter());
+
+    XStream xstream = factory.getSharedXStream();
+    assertThat(xstream).isNotSameAs(first);
+    assertThat(xstream.toXML(new Thing())).contains("converted");
+    assertThat(xstream.fromXML(xstream.toXML(new Thing()))).isInstanceOf(Thing.class);
+  }
+
+  private static class Thing {
+  }
+
+  private static class ThingConverter implements Converter {
+
+    @Override
+    public boolean canConvert(Class type) {
+      return Thing.class.equals(type);
+    }
+
+    @Override
+    public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+      writer.setValue("converted");
+    }
+
+    @Override
+    public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+      return new Thing();
+    }
+  }
+
+}